@@ -63,8 +63,10 @@ public class AndroidTorWrapper extends AbstractTorWrapper {
 	 * 		transport binaries.
 	 * @param torDirectory The directory where the Tor process should keep its
 	 * 		state.
-	 * @param torSocksPort The port number to use for Tor's SOCKS port.
-	 * @param torControlPort The port number to use for Tor's control port.
+	 * @param torSocksPort The port number to use for Tor's SOCKS port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
+	 * @param torControlPort The port number to use for Tor's control port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
 	 */
 	public AndroidTorWrapper(Application app,
 			AndroidWakeLockManager wakeLockManager,
@@ -107,13 +109,11 @@ public class AndroidTorWrapper extends AbstractTorWrapper {
 	}
 
 	@Override
-	public void enableNetwork(boolean enable) throws IOException {
-		if (enable) wakeLock.acquire();
-		try {
-			super.enableNetwork(enable);
-		} finally {
-			if (!enable) wakeLock.release();
-		}
+	protected void onNetworkEnabledChanged(boolean enabled) {
+		// Hold the wake lock whenever the network is enabled, however it was
+		// enabled
+		if (enabled) wakeLock.acquire();
+		else wakeLock.release();
 	}
 
 	@Override
@@ -147,21 +147,22 @@ public class AndroidTorWrapper extends AbstractTorWrapper {
 
 	private void installExecutable(File extracted, File lib, String libName) throws IOException {
 		if (lib.exists()) {
-			// If an older version left behind a binary, delete it
-			if (extracted.exists()) {
-				if (extracted.delete()) LOG.info("Deleted old binary");
-				else LOG.info("Failed to delete old binary");
-			}
+			// The binary was extracted at install time
+			useExternalAsset(lib, extracted);
 		} else if (SDK_INT < 29) {
 			// The binary wasn't extracted at install time. Try to extract it
-			extractLibraryFromApk(libName, extracted);
+			installAsset(() -> openLibraryFromApk(libName), extracted, true);
 		} else {
 			// No point extracting the binary, we won't be allowed to execute it
 			throw new FileNotFoundException(lib.getAbsolutePath());
 		}
 	}
 
-	private void extractLibraryFromApk(String libName, File dest) throws IOException {
+	/**
+	 * Returns a stream positioned at the start of the given library inside
+	 * the app's APK files.
+	 */
+	private InputStream openLibraryFromApk(String libName) throws IOException {
 		File sourceDir = new File(app.getApplicationInfo().sourceDir);
 		if (sourceDir.isFile()) {
 			// Look for other APK files in the same directory, if we're allowed
@@ -175,10 +176,9 @@ public class AndroidTorWrapper extends AbstractTorWrapper {
 			for (ZipEntry e = zin.getNextEntry(); e != null; e = zin.getNextEntry()) {
 				if (libPaths.contains(e.getName())) {
 					if (LOG.isLoggable(INFO)) {
-						LOG.info("Extracting " + e.getName() + " from " + apk.getAbsolutePath());
+						LOG.info("Found " + e.getName() + " in " + apk.getAbsolutePath());
 					}
-					extract(zin, dest); // Zip input stream will be closed
-					return;
+					return zin; // The caller will close the zip input stream
 				}
 			}
 			zin.close();
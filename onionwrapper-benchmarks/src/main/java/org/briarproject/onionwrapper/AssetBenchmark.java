@@ -0,0 +1,75 @@
+package org.briarproject.onionwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Measures generating the torrc file and extracting assets to disk with
+ * {@link TorUtils#copyAndClose(InputStream, java.io.OutputStream)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssetBenchmark {
+
+	/**
+	 * The size of the asset in bytes. The Tor binary is typically several MB.
+	 */
+	@Param({"65536", "1048576", "8388608"})
+	public int assetSize;
+
+	private byte[] asset;
+	private File directory, dest;
+	private BenchmarkTorWrapper wrapper;
+
+	@Setup
+	public void setUp() throws IOException {
+		asset = new byte[assetSize];
+		new Random(0).nextBytes(asset);
+		directory = File.createTempFile("benchmark", null);
+		if (!directory.delete() || !directory.mkdirs()) throw new IOException();
+		dest = new File(directory, "asset");
+		wrapper = new BenchmarkTorWrapper(Runnable::run, directory);
+	}
+
+	@TearDown
+	public void tearDown() {
+		//noinspection ResultOfMethodCallIgnored
+		dest.delete();
+		//noinspection ResultOfMethodCallIgnored
+		directory.delete();
+	}
+
+	@Benchmark
+	public InputStream getConfigInputStream() {
+		return wrapper.getConfigInputStream();
+	}
+
+	@Benchmark
+	public long copyAndClose() throws IOException {
+		TorUtils.copyAndClose(new ByteArrayInputStream(asset), new FileOutputStream(dest));
+		return dest.length();
+	}
+}
@@ -0,0 +1,35 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * A Tor wrapper that never starts a Tor process, for benchmarking the
+ * wrapper's event handling and state management in isolation.
+ */
+@NotNullByDefault
+class BenchmarkTorWrapper extends AbstractTorWrapper {
+
+	BenchmarkTorWrapper(Executor eventExecutor, File torDirectory) {
+		super(Runnable::run, eventExecutor, "benchmark", torDirectory, 59060, 59061);
+	}
+
+	@Override
+	protected int getProcessId() {
+		return 0;
+	}
+
+	@Override
+	protected long getLastUpdateTime() {
+		return 0;
+	}
+
+	@Override
+	protected InputStream getResourceInputStream(String name, String extension) {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+}
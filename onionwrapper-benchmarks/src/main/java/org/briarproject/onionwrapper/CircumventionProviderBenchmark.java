@@ -0,0 +1,52 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.CircumventionProvider.BridgeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Measures loading bridges from the bundled resources and looking up the
+ * bridge types that are suitable for a country.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircumventionProviderBenchmark {
+
+	@Param({"DEFAULT_OBFS4", "NON_DEFAULT_OBFS4", "MEEK", "SNOWFLAKE", "VANILLA"})
+	public BridgeType bridgeType;
+
+	/**
+	 * "CN" has country-specific bridges for some types, "US" always uses the
+	 * fallback resources.
+	 */
+	@Param({"CN", "US"})
+	public String countryCode;
+
+	private final CircumventionProviderImpl provider = new CircumventionProviderImpl();
+
+	@Benchmark
+	public List<String> getBridges() {
+		return provider.getBridges(bridgeType, countryCode);
+	}
+
+	@Benchmark
+	public List<BridgeType> getSuitableBridgeTypes() {
+		return provider.getSuitableBridgeTypes(countryCode);
+	}
+}
@@ -0,0 +1,158 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceSpec;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * Measures the wrapper's control path end to end against a
+ * {@link FakeTorControlServer}, so the results don't depend on a Tor binary or
+ * the network. The server's per-command latency can be varied to model a busy
+ * Tor process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlPathBenchmark {
+
+	private static final int EVENTS_PER_STORM = 1000;
+	private static final int SERVICES_PER_BATCH = 100;
+
+	@Param({"0", "1"})
+	public long latencyMs;
+
+	private final ExecutorService executor = newCachedThreadPool();
+	private final AtomicInteger bootstrapNotifications = new AtomicInteger(0);
+	private final List<String> storm = new ArrayList<>(EVENTS_PER_STORM);
+	private final List<HiddenServiceSpec> batch = new ArrayList<>(SERVICES_PER_BATCH);
+
+	private File torDir;
+	private FakeTorControlServer server;
+	private TestTorWrapper tor;
+	private Level oldLevel;
+
+	@Setup
+	public void setUp() throws IOException, InterruptedException {
+		oldLevel = LOG.getLevel();
+		LOG.setLevel(OFF);
+		torDir = getTestDirectory();
+		server = new FakeTorControlServer();
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060);
+		tor.setObserver(new CountingObserver());
+		tor.start();
+		server.setDefaultLatency(latencyMs);
+		// Each event changes the bootstrap percentage, so each one notifies
+		// the observer
+		for (int i = 0; i < EVENTS_PER_STORM; i++) {
+			storm.add("STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=" + (50 + (i & 1))
+					+ " TAG=loading_descriptors SUMMARY=\"Loading relay descriptors\"");
+		}
+		for (int i = 0; i < SERVICES_PER_BATCH; i++) {
+			batch.add(new HiddenServiceSpec(8080 + i, 80, null));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		tor.stop();
+		server.close();
+		deleteTestDirectory(torDir);
+		executor.shutdown();
+		LOG.setLevel(oldLevel);
+	}
+
+	@Benchmark
+	public String publishAndRemoveHiddenService() throws IOException {
+		HiddenServiceProperties hs = tor.publishHiddenService(8080, 80, null);
+		tor.removeHiddenService(hs.onion);
+		return hs.onion;
+	}
+
+	/**
+	 * Publishes and removes a batch of services with pipelined commands,
+	 * for comparison with {@link #publishAndRemoveHiddenService()}.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(SERVICES_PER_BATCH)
+	public int publishAndRemoveHiddenServiceBatch() throws InterruptedException {
+		BatchResult<HiddenServiceProperties> published = tor.publishHiddenServices(batch);
+		List<String> onions = new ArrayList<>(SERVICES_PER_BATCH);
+		for (int i = 0; i < published.size(); i++) {
+			HiddenServiceProperties hs = published.getResult(i);
+			if (hs != null) onions.add(hs.onion);
+		}
+		return tor.removeHiddenServices(onions).getSuccessCount();
+	}
+
+	@Benchmark
+	public String setConf() throws IOException {
+		tor.enableConnectionPadding(true);
+		tor.enableConnectionPadding(false);
+		return tor.getTorState().name();
+	}
+
+	/**
+	 * A storm of events, measured from the first event being sent until the
+	 * wrapper has notified the observer of the last one.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_STORM)
+	public int eventStorm() {
+		int target = bootstrapNotifications.get() + EVENTS_PER_STORM;
+		for (String event : storm) server.sendEvent(event);
+		while (bootstrapNotifications.get() < target) Thread.yield();
+		return target;
+	}
+
+	private class CountingObserver implements Observer {
+
+		@Override
+		public void onState(TorState s) {
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+			bootstrapNotifications.incrementAndGet();
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+	}
+}
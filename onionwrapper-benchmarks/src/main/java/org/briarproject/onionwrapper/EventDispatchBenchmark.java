@@ -0,0 +1,130 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * Measures the cost of dispatching events from the control connection
+ * through the wrapper's {@link net.freehaven.tor.control.EventHandler}
+ * methods, including the resulting state changes and observer notifications.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+
+	private static final String[] BOOTSTRAP_EVENTS = {
+			"NOTICE BOOTSTRAP PROGRESS=50 TAG=loading_descriptors "
+					+ "SUMMARY=\"Loading relay descriptors\"",
+			"NOTICE BOOTSTRAP PROGRESS=75 TAG=enough_dirinfo "
+					+ "SUMMARY=\"Loaded enough directory info to build circuits\""
+	};
+
+	private static final String UPLOADED_EVENT =
+			"UPLOADED lqk2jfa4rsfw63tgjzsimkvsntoqhyfusqjcxfpgaegr6lkyvj3kaeqd UNKNOWN "
+					+ "$B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay";
+
+	private BenchmarkTorWrapper wrapper;
+	private Level oldLevel;
+	private int counter = 0;
+
+	@Setup
+	public void setUp() {
+		oldLevel = LOG.getLevel();
+		LOG.setLevel(OFF);
+		wrapper = new BenchmarkTorWrapper(Runnable::run, new File("benchmark.tmp"));
+		wrapper.setObserver(new NoOpObserver());
+	}
+
+	@TearDown
+	public void tearDown() {
+		LOG.setLevel(oldLevel);
+	}
+
+	/**
+	 * An OR connection opening and closing, which changes the number of
+	 * connected OR connections twice.
+	 */
+	@Benchmark
+	public void orConnStatus() {
+		wrapper.orConnStatus("CONNECTED", "$B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay");
+		wrapper.orConnStatus("CLOSED", "$B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay");
+	}
+
+	/**
+	 * A circuit being launched, extended and built.
+	 */
+	@Benchmark
+	public void circuitStatus() {
+		wrapper.circuitStatus("LAUNCHED", "123", "");
+		wrapper.circuitStatus("EXTENDED", "123", "$B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay");
+		wrapper.circuitStatus("BUILT", "123", "$B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay");
+	}
+
+	/**
+	 * A bootstrap status event that changes the bootstrap percentage, which
+	 * notifies the observer.
+	 */
+	@Benchmark
+	public void bootstrapStatus() {
+		wrapper.unrecognized("STATUS_CLIENT", BOOTSTRAP_EVENTS[counter++ & 1]);
+	}
+
+	/**
+	 * A circuit established status event and a circuit not established status
+	 * event, each of which changes the circuit state.
+	 */
+	@Benchmark
+	public void circuitEstablishedStatus() {
+		wrapper.unrecognized("STATUS_CLIENT", "NOTICE CIRCUIT_ESTABLISHED");
+		wrapper.unrecognized("STATUS_CLIENT", "NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+	}
+
+	/**
+	 * A hidden service descriptor upload event, which notifies the observer.
+	 */
+	@Benchmark
+	public void hsDescriptorUploaded() {
+		wrapper.unrecognized("HS_DESC", UPLOADED_EVENT);
+	}
+
+	private static class NoOpObserver implements Observer {
+
+		@Override
+		public void onState(TorState s) {
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+	}
+}
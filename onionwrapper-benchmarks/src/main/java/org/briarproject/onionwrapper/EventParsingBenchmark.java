@@ -0,0 +1,98 @@
+package org.briarproject.onionwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * Compares the cost of parsing the events handled by
+ * {@link AbstractTorWrapper#unrecognized(String, String)} with the legacy
+ * regex and split based parsing and with {@link ControlLineParser}. Run with
+ * {@code -prof gc} to see the bytes allocated per event
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventParsingBenchmark {
+
+	@Param({"bootstrap", "skew", "upload"})
+	public String event;
+
+	private String type, msg;
+	private final ControlLineParser parser = new ControlLineParser();
+	private BenchmarkTorWrapper wrapper;
+	private Level oldLevel;
+
+	@Setup
+	public void setUp() {
+		switch (event) {
+			case "bootstrap":
+				type = "STATUS_CLIENT";
+				msg = "NOTICE BOOTSTRAP PROGRESS=75 TAG=enough_dirinfo "
+						+ "SUMMARY=\"Loaded enough directory info to build circuits\"";
+				break;
+			case "skew":
+				type = "STATUS_GENERAL";
+				msg = "WARN CLOCK_SKEW SKEW=-3600 SOURCE=CONSENSUS";
+				break;
+			case "upload":
+				type = "HS_DESC";
+				msg = "UPLOADED lqk2jfa4rsfw63tgjzsimkvsntoqhyfusqjcxfpgaegr6lkyvj3kaeqd "
+						+ "UNKNOWN $B34C4A7C3B7A3B5B7B0D6A0D4E1F3C2D1A0B9C8D~relay "
+						+ "HSDIR_INDEX=0A1B2C3D4E5F";
+				break;
+			default:
+				throw new IllegalArgumentException(event);
+		}
+		// Keep logging out of the measurements
+		oldLevel = LOG.getLevel();
+		LOG.setLevel(OFF);
+		wrapper = new BenchmarkTorWrapper(Runnable::run, new File("benchmark.tmp"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		LOG.setLevel(oldLevel);
+	}
+
+	@Benchmark
+	public Object legacyParsing() {
+		return LegacyEventParser.parse(type, msg);
+	}
+
+	@Benchmark
+	public void controlLineParser(Blackhole bh) {
+		ControlLineParser p = parser.reset(msg);
+		if (type.equals("HS_DESC")) {
+			bh.consume(p.next() && p.tokenEquals("UPLOADED") && p.next());
+		} else {
+			bh.consume(p.skip(2) && p.next() && p.valueAsLong(0) != 0);
+		}
+	}
+
+	@Benchmark
+	public void unrecognized() {
+		wrapper.unrecognized(type, msg);
+	}
+}
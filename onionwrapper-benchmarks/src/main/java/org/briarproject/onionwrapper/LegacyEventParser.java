@@ -0,0 +1,69 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * The regex and split based event parsing that {@link AbstractTorWrapper} used
+ * before {@link ControlLineParser} was introduced, kept as a baseline for
+ * {@link EventParsingBenchmark}.
+ */
+@NotNullByDefault
+class LegacyEventParser {
+
+	private static final Pattern BOOTSTRAP_PERCENTAGE = Pattern.compile(".*PROGRESS=(\\d{1,3}).*");
+
+	/**
+	 * Returns the bootstrap percentage, clock skew or onion address carried
+	 * by the given event, or null if the event carries none of these.
+	 */
+	@Nullable
+	static Object parse(String type, String msg) {
+		if (type.equals("STATUS_CLIENT")) {
+			msg = removeSeverity(msg);
+			if (msg.startsWith("BOOTSTRAP PROGRESS=")) return parseBootstrapPercentage(msg);
+		} else if (type.equals("STATUS_GENERAL")) {
+			msg = removeSeverity(msg);
+			if (msg.startsWith("CLOCK_SKEW")) return parseLongArgument(msg, "SKEW");
+		} else if (type.equals("HS_DESC") && msg.startsWith("UPLOADED")) {
+			String[] parts = msg.split(" ");
+			if (parts.length >= 2) return parts[1];
+		}
+		return null;
+	}
+
+	private static String removeSeverity(String msg) {
+		return msg.replaceFirst("[^ ]+ ", "");
+	}
+
+	private static int parseBootstrapPercentage(String s) {
+		Matcher matcher = BOOTSTRAP_PERCENTAGE.matcher(s);
+		if (matcher.matches()) {
+			try {
+				return Integer.parseInt(matcher.group(1));
+			} catch (NumberFormatException e) {
+				// Fall through
+			}
+		}
+		return 0;
+	}
+
+	@Nullable
+	private static Long parseLongArgument(String msg, String argName) {
+		String[] args = msg.split(" ");
+		for (String arg : args) {
+			if (arg.startsWith(argName + "=")) {
+				try {
+					return Long.parseLong(arg.substring(argName.length() + 1));
+				} catch (NumberFormatException e) {
+					break;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,35 @@
+package org.briarproject.onionwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Measures {@link LocationUtils#getCountryDisplayName(String)}, which scans
+ * the available locales. An unknown country code scans all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationUtilsBenchmark {
+
+	@Param({"US", "TM", "ZZ"})
+	public String isoCode;
+
+	@Benchmark
+	public String getCountryDisplayName() {
+		return LocationUtils.getCountryDisplayName(isoCode);
+	}
+}
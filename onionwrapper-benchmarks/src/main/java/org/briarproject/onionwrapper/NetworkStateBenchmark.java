@@ -0,0 +1,124 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * Measures the wrapper's network state transitions, and the cost of polling
+ * {@link TorWrapper#getTorState()} and {@link TorWrapper#isTorRunning()}
+ * with and without a concurrent stream of events from the control connection.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkStateBenchmark {
+
+	private BenchmarkTorWrapper wrapper;
+	private Level oldLevel;
+	private int counter = 0; // Only accessed by the event thread
+
+	@Setup
+	public void setUp() {
+		oldLevel = LOG.getLevel();
+		LOG.setLevel(OFF);
+		wrapper = new BenchmarkTorWrapper(Runnable::run, new File("benchmark.tmp"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		LOG.setLevel(oldLevel);
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	public TorState getTorState() {
+		return wrapper.getTorState();
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	public boolean isTorRunning() {
+		return wrapper.isTorRunning();
+	}
+
+	/**
+	 * One thread delivering events that cause state transitions while three
+	 * threads poll the state.
+	 */
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedTransitions() {
+		deliverEvent(counter++);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public TorState contendedGetTorState() {
+		return wrapper.getTorState();
+	}
+
+	/**
+	 * Two threads delivering events concurrently, as happens when API calls
+	 * race with the event thread, while two threads poll the state. This
+	 * measures the cost of transitions retrying after losing a race.
+	 */
+	@Benchmark
+	@Group("concurrentWriters")
+	@GroupThreads(2)
+	public void concurrentTransitions(ThreadCounter c) {
+		deliverEvent(c.counter++);
+	}
+
+	@Benchmark
+	@Group("concurrentWriters")
+	@GroupThreads(2)
+	public boolean concurrentIsTorRunning() {
+		return wrapper.isTorRunning();
+	}
+
+	private void deliverEvent(int i) {
+		switch (i & 3) {
+			case 0:
+				wrapper.orConnStatus("CONNECTED", "relay");
+				break;
+			case 1:
+				wrapper.circuitStatus("BUILT", "1", "relay");
+				break;
+			case 2:
+				wrapper.unrecognized("STATUS_CLIENT", "NOTICE CIRCUIT_NOT_ESTABLISHED");
+				break;
+			default:
+				wrapper.orConnStatus("CLOSED", "relay");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadCounter {
+
+		private int counter = 0;
+	}
+}
@@ -1,10 +1,13 @@
 package org.briarproject.onionwrapper;
 
-import net.freehaven.tor.control.EventHandler;
-import net.freehaven.tor.control.TorControlConnection;
-
 import org.briarproject.nullsafety.InterfaceNotNullByDefault;
 import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.CircuitWatchdog.Action;
+import org.briarproject.onionwrapper.CircuitWatchdog.BridgeSupplier;
+import org.briarproject.onionwrapper.EventSubscription.Filter;
+import org.briarproject.onionwrapper.EventSubscription.Listener;
+import org.briarproject.onionwrapper.EventSubscription.OverflowPolicy;
+import org.briarproject.onionwrapper.StartupTimings.Recorder;
 
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
@@ -12,47 +15,63 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
-import static java.util.Collections.singletonMap;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
-import static net.freehaven.tor.control.TorControlCommands.HS_ADDRESS;
-import static net.freehaven.tor.control.TorControlCommands.HS_PRIVKEY;
 import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.AUTHENTICATE;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.CHECK_ASSETS;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.CREATE_AUTH_COOKIE;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.EXTRACT_CONFIG;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.INSTALL_ASSETS;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.OPEN_CONTROL_PORT;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.QUERY_STATUS;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.REGISTER_EVENTS;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.START_PROCESS;
 import static org.briarproject.onionwrapper.TorUtils.UTF_8;
 import static org.briarproject.onionwrapper.TorUtils.copyAndClose;
+import static org.briarproject.onionwrapper.TorUtils.copySyncAndClose;
 import static org.briarproject.onionwrapper.TorUtils.scrubOnion;
 import static org.briarproject.onionwrapper.TorUtils.tryToClose;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
 import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.DISABLED;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.NOT_STARTED;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTING;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
-import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPING;
 
 @InterfaceNotNullByDefault
-abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
+abstract class AbstractTorWrapper implements DetailedEventHandler, TorWrapper {
 
 	private static final String[] EVENTS = {
 			"CIRC",
@@ -65,24 +84,122 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			"ERR"
 	};
 
+	private static final String BANDWIDTH_EVENT = "BW";
+	private static final String STREAM_EVENT = "STREAM";
+	private static final String CIRCUIT_BANDWIDTH_EVENT = "CIRC_BW";
+
 	private static final String OWNER = "__OwningControllerProcess";
+	private static final int COOKIE_LENGTH = 32;
 	private static final int COOKIE_TIMEOUT_MS = 3000;
-	private static final int COOKIE_POLLING_INTERVAL_MS = 200;
-	private static final Pattern BOOTSTRAP_PERCENTAGE = Pattern.compile(".*PROGRESS=(\\d{1,3}).*");
+	private static final int COOKIE_POLLING_INTERVAL_MS = 5;
+	private static final int STARTUP_TIMINGS_HISTORY = 10;
+	private static final int MAX_PIPELINED_COMMANDS = 32;
+	private static final long COMMAND_TIMEOUT_MS = 60_000;
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final long STALE_TEMP_FILE_MS = 10 * 60 * 1000;
+	private static final long DESCRIPTOR_RETRY_DELAY_MS = 5_000;
+	private static final long MAX_DESCRIPTOR_RETRY_DELAY_MS = 5 * 60 * 1000;
+	private static final int MAX_DESCRIPTOR_RETRIES = 5;
+	private static final long RESTART_DELAY_MS = 1000;
+	private static final long MAX_RESTART_DELAY_MS = 60 * 1000;
+
+	/**
+	 * Serialises installations into the binary cache within this JVM. File
+	 * locks serialise installations by different JVMs, but can't be held
+	 * twice by the same JVM.
+	 */
+	private static final Object CACHE_LOCK = new Object();
 
 	protected final Executor ioExecutor;
 	protected final Executor eventExecutor;
 	protected final String architecture;
 	protected final File torDirectory;
-	private final File configFile, doneFile, cookieFile;
+	private final File configFile, manifestFile, cookieFile, controlPortFile;
 	private final int torSocksPort;
 	private final int torControlPort;
 
-	protected final NetworkState state = new NetworkState();
+	protected final NetworkState state;
+
+	/**
+	 * The hidden services published by this wrapper, indexed by onion
+	 * address, for tracking the uploads of their descriptors.
+	 */
+	@GuardedBy("hiddenServices")
+	private final Map<String, PublishedService> hiddenServices = new LinkedHashMap<>();
+
+	/**
+	 * Parser for the bodies of events. Only accessed on the control
+	 * reactor's thread.
+	 */
+	private final ControlLineParser eventParser = new ControlLineParser();
+
+	/**
+	 * Ring buffer holding the timings of the last few calls to
+	 * {@link #start()}.
+	 */
+	@GuardedBy("startupTimings")
+	private final StartupTimings[] startupTimings =
+			new StartupTimings[STARTUP_TIMINGS_HISTORY];
+	@GuardedBy("startupTimings")
+	private int nextStartupTimings = 0;
+
+	/**
+	 * The manifests of the previously installed assets, if any, and of the
+	 * assets being installed. Only set while assets are being installed.
+	 */
+	@Nullable
+	private volatile AssetManifest oldManifest = null, newManifest = null;
+
+	/**
+	 * True while the install tasks are being run to hash the assets, without
+	 * installing them.
+	 */
+	private volatile boolean hashingAssets = false;
+
+	@Nullable
+	private volatile File binaryCacheDirectory = null;
+
+	/**
+	 * The directory where the assets are installed: either the Tor directory
+	 * or a subdirectory of the binary cache.
+	 */
+	private volatile File assetDirectory;
 
 	private volatile Process torProcess = null;
-	private volatile Socket controlSocket = null;
-	private volatile TorControlConnection controlConnection = null;
+	private volatile int socksPort, controlPort;
+	@Nullable
+	private volatile ControlConnection controlConnection = null;
+	private volatile long descriptorRetryDelay = DESCRIPTOR_RETRY_DELAY_MS;
+
+	/**
+	 * The snapshot taken when Tor last stopped.
+	 */
+	private volatile TorSnapshot stoppedSnapshot = TorSnapshot.EMPTY;
+
+	private volatile boolean supervised = false;
+	private volatile long restartDelay = RESTART_DELAY_MS;
+	private volatile long lastRecoveryTime = -1;
+	private final AtomicBoolean recovering = new AtomicBoolean(false);
+	private final AtomicInteger restarts = new AtomicInteger(0);
+
+	@Nullable
+	private volatile CircuitWatchdog watchdog = null;
+	private final CircuitWatchdog.Host watchdogHost = new WatchdogHost();
+
+	private volatile boolean bandwidthMonitoring = false;
+	private final BandwidthMetrics bandwidth = new BandwidthMetrics();
+	private volatile boolean streamMonitoring = false;
+	private final StreamMetrics streams = new StreamMetrics();
+	private volatile boolean circuitBandwidthMonitoring = false;
+	private final CircuitMetrics circuits = new CircuitMetrics();
+	private final NotificationDispatcher dispatcher;
+	private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Incremented each time the caller stops Tor, so that recovery can tell
+	 * whether the caller has stopped Tor while it was restarting.
+	 */
+	private final AtomicInteger stopRequests = new AtomicInteger(0);
 
 	protected abstract int getProcessId();
 
@@ -98,22 +215,40 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			int torControlPort) {
 		this.ioExecutor = ioExecutor;
 		this.eventExecutor = eventExecutor;
+		dispatcher = new NotificationDispatcher(eventExecutor);
+		state = new NetworkState(dispatcher);
 		this.architecture = architecture;
 		this.torDirectory = torDirectory;
 		this.torSocksPort = torSocksPort;
 		this.torControlPort = torControlPort;
 		configFile = new File(torDirectory, "torrc");
-		doneFile = new File(torDirectory, "done");
+		manifestFile = new File(torDirectory, "manifest");
 		cookieFile = new File(torDirectory, ".tor/control_auth_cookie");
+		controlPortFile = new File(torDirectory, ".tor/control_port");
+		socksPort = torSocksPort;
+		controlPort = torControlPort;
+		assetDirectory = torDirectory;
 	}
 
 	protected File getTorExecutableFile() {
-		return new File(torDirectory, "tor");
+		return new File(assetDirectory, "tor");
 	}
 
 	@Override
 	public File getLyrebirdExecutableFile() {
-		return new File(torDirectory, "lyrebird");
+		return new File(assetDirectory, "lyrebird");
+	}
+
+	/**
+	 * Returns the directory where the assets are installed.
+	 */
+	protected File getAssetDirectory() {
+		return assetDirectory;
+	}
+
+	@Override
+	public void setBinaryCacheDirectory(@Nullable File directory) {
+		binaryCacheDirectory = directory == null ? null : directory.getAbsoluteFile();
 	}
 
 	@Override
@@ -123,7 +258,17 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 
 	@Override
 	public void start() throws IOException, InterruptedException {
-		if (!state.setStarting()) return; // Not in the appropriate state
+		startTor();
+	}
+
+	/**
+	 * Starts Tor if it's not running or being started by another call.
+	 *
+	 * @return True if this call started Tor.
+	 */
+	private boolean startTor() throws IOException, InterruptedException {
+		if (!state.setStarting()) return false; // Not in the appropriate state
+		Recorder timings = new Recorder();
 		try {
 			if (!torDirectory.exists()) {
 				if (!torDirectory.mkdirs()) {
@@ -131,12 +276,22 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 				}
 			}
 			// Install or update the assets if necessary
-			if (!assetsAreUpToDate()) installAssets();
-			// Start from the default config every time
-			extract(getConfigInputStream(), configFile);
+			boolean upToDate = assetsAreUpToDate();
+			timings.endPhase(CHECK_ASSETS);
+			if (!upToDate) {
+				installAssets();
+				timings.endPhase(INSTALL_ASSETS);
+			}
+			// Start from the default config every time. The config doesn't
+			// need to survive a crash, so it's written in place
+			copyAndClose(getConfigInputStream(), new FileOutputStream(configFile));
+			timings.endPhase(EXTRACT_CONFIG);
 			if (cookieFile.exists() && !cookieFile.delete()) {
 				LOG.warning("Old auth cookie not deleted");
 			}
+			if (controlPortFile.exists() && !controlPortFile.delete()) {
+				LOG.warning("Old control port file not deleted");
+			}
 			// Start a new Tor process
 			LOG.info("Starting Tor");
 			File torFile = getTorExecutableFile();
@@ -148,84 +303,548 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			env.put("HOME", torDirectory.getAbsolutePath());
 			pb.directory(torDirectory);
 			pb.redirectErrorStream(true);
-			try {
-				torProcess = pb.start();
-			} catch (SecurityException e) {
-				throw new IOException(e);
-			}
+			torProcess = startTorProcess(pb);
+			timings.endPhase(START_PROCESS);
 			// Wait for the Tor process to start
 			waitForTorToStart(requireNonNull(torProcess));
+			timings.endPhase(OPEN_CONTROL_PORT);
 			// Wait for the auth cookie file to be created/updated
-			long start = System.currentTimeMillis();
-			while (cookieFile.length() < 32) {
-				if (System.currentTimeMillis() - start > COOKIE_TIMEOUT_MS) {
-					throw new IOException("Auth cookie not created");
-				}
-				//noinspection BusyWait
-				Thread.sleep(COOKIE_POLLING_INTERVAL_MS);
-			}
+			waitForAuthCookie(cookieFile, COOKIE_TIMEOUT_MS);
+			timings.endPhase(CREATE_AUTH_COOKIE);
 			LOG.info("Auth cookie created");
-			// Open a control connection and authenticate using the cookie file
-			controlSocket = new Socket("127.0.0.1", torControlPort);
-			controlConnection = new TorControlConnection(controlSocket);
-			controlConnection.authenticate(read(cookieFile));
-			// Tell Tor to exit when the control connection is closed
-			controlConnection.takeOwnership();
-			controlConnection.resetConf(singletonList(OWNER));
-			// Register to receive events from the Tor process
-			controlConnection.setEventHandler(this);
-			controlConnection.setEvents(asList(EVENTS));
-			// Check whether Tor has already bootstrapped
-			String info = controlConnection.getInfo("status/bootstrap-phase");
-			if (info != null && info.contains("PROGRESS=")) {
-				int percentage = parseBootstrapPercentage(info);
-				if (percentage == 100) LOG.info("Tor has already bootstrapped");
-				state.setBootstrapPercentage(percentage);
+			// If Tor chose the control port, find out which port it chose
+			if (torControlPort == AUTO_PORT) {
+				controlPort = readControlPort();
+				if (LOG.isLoggable(INFO)) LOG.info("Control port is " + controlPort);
 			}
-			// Check whether Tor has already built a circuit
-			info = controlConnection.getInfo("status/circuit-established");
-			if ("1".equals(info)) {
+			// Open a control connection and authenticate using the cookie file.
+			// The connection is served by the reactor shared by all wrappers,
+			// which also handles the connection's events
+			ControlConnection connection = await(ControlReactor.getShared().connect(
+					new InetSocketAddress("127.0.0.1", controlPort),
+					new ControlEventAdapter(this), Runnable::run));
+			controlConnection = connection;
+			await(connection.authenticate(read(cookieFile)));
+			timings.endPhase(AUTHENTICATE);
+			// Send the rest of the setup commands without waiting for the
+			// replies. Tell Tor to exit when the control connection is
+			// closed and register to receive events from the Tor process
+			ControlFuture<ControlReply> takeOwnership = connection.takeOwnership();
+			ControlFuture<ControlReply> resetConf = connection.resetConf(singletonList(OWNER));
+			ControlFuture<ControlReply> setEvents = connection.setEvents(getEvents());
+			// Check whether Tor has already bootstrapped and built a circuit,
+			// and if Tor chose the SOCKS port, find out which port it chose
+			List<String> keys = new ArrayList<>(
+					asList("status/bootstrap-phase", "status/circuit-established"));
+			if (torSocksPort == AUTO_PORT) keys.add("net/listeners/socks");
+			ControlFuture<ControlReply> getInfo = connection.getInfo(keys);
+			await(takeOwnership);
+			await(resetConf);
+			await(setEvents);
+			timings.endPhase(REGISTER_EVENTS);
+			Map<String, String> info = await(getInfo).getKeyValues();
+			if (torSocksPort == AUTO_PORT) {
+				socksPort = parseListenerPort(info.get("net/listeners/socks"));
+				if (LOG.isLoggable(INFO)) LOG.info("SOCKS port is " + socksPort);
+			}
+			String phase = info.get("status/bootstrap-phase");
+			if (phase != null) {
+				ControlLineParser parser = new ControlLineParser().reset(phase);
+				if (parser.findKey("PROGRESS")) {
+					int percentage = parseBootstrapPercentage(parser);
+					if (percentage == 100) LOG.info("Tor has already bootstrapped");
+					state.setBootstrapPercentage(percentage);
+				}
+			}
+			if ("1".equals(info.get("status/circuit-established"))) {
 				LOG.info("Tor has already built a circuit");
 				state.setCircuitBuilt(true);
 			}
+			timings.endPhase(QUERY_STATUS);
 		} catch (IOException e) {
 			// Clean up
-			if (controlSocket != null) {
-				tryToClose(controlSocket, LOG, WARNING);
-				controlSocket = null;
-				controlConnection = null;
-			}
+			resetPorts();
+			closeControlConnection();
 			if (torProcess != null) {
 				torProcess.destroy();
 				torProcess.waitFor();
 				torProcess = null;
 			}
 			state.setStartupFailed();
+			addStartupTimings(timings.build(false));
 			throw e;
 		}
 		state.setStarted();
+		addStartupTimings(timings.build(true));
+		return true;
+	}
+
+	@Override
+	public BatchResult<HiddenServiceProperties> start(TorSnapshot snapshot)
+			throws IOException, InterruptedException {
+		// Restoring the snapshot onto a Tor process that's already running,
+		// or that another thread is starting, would overwrite its state
+		if (!startTor()) throw new IllegalStateException("Tor is already running or starting");
+		long start = System.currentTimeMillis();
+		Configuration config = configure();
+		snapshot.addTo(config);
+		config.apply();
+		BatchResult<HiddenServiceProperties> result =
+				publishHiddenServices(snapshot.getHiddenServices());
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Restored snapshot (" + snapshot + ") in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		return result;
+	}
+
+	@Override
+	public TorSnapshot getSnapshot() {
+		if (!state.isTorRunning()) return stoppedSnapshot;
+		return takeSnapshot();
+	}
+
+	private TorSnapshot takeSnapshot() {
+		List<HiddenServiceSpec> services = new ArrayList<>();
+		synchronized (hiddenServices) {
+			for (PublishedService service : hiddenServices.values()) {
+				services.add(new HiddenServiceSpec(service.localPort, service.remotePort,
+						service.handle.getProperties().privKey));
+			}
+		}
+		return state.getSnapshot(services);
+	}
+
+	private void addStartupTimings(StartupTimings timings) {
+		if (LOG.isLoggable(INFO)) LOG.info("Startup timings: " + timings);
+		synchronized (startupTimings) {
+			startupTimings[nextStartupTimings] = timings;
+			nextStartupTimings = (nextStartupTimings + 1) % STARTUP_TIMINGS_HISTORY;
+		}
+		state.onStartupTimings(timings);
+	}
+
+	@Override
+	public List<StartupTimings> getStartupTimings() {
+		List<StartupTimings> history = new ArrayList<>(STARTUP_TIMINGS_HISTORY);
+		synchronized (startupTimings) {
+			for (int i = 0; i < STARTUP_TIMINGS_HISTORY; i++) {
+				int index = (nextStartupTimings + i) % STARTUP_TIMINGS_HISTORY;
+				if (startupTimings[index] != null) history.add(startupTimings[index]);
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Called when a configuration change enables or disables Tor's network,
+	 * however the change was made. When the network is being enabled this
+	 * is called before the change is sent to Tor, and when it's being
+	 * disabled it's called afterwards, even if sending the change fails.
+	 * Brief resets of the network by the
+	 * {@link #setCircuitWatchdog(CircuitWatchdog) circuit watchdog} aren't
+	 * reported. The default implementation does nothing.
+	 */
+	protected void onNetworkEnabledChanged(boolean enabled) {
+	}
+
+	/**
+	 * Starts the Tor process described by the given process builder.
+	 */
+	protected Process startTorProcess(ProcessBuilder pb) throws IOException {
+		try {
+			return pb.start();
+		} catch (SecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private int readControlPort() throws IOException, InterruptedException {
+		// Tor normally writes the control port file before the auth cookie,
+		// but don't rely on the order
+		long start = System.currentTimeMillis();
+		while (!controlPortFile.exists()) {
+			if (System.currentTimeMillis() - start > COOKIE_TIMEOUT_MS) {
+				throw new IOException("Control port file not created");
+			}
+			//noinspection BusyWait
+			Thread.sleep(COOKIE_POLLING_INTERVAL_MS);
+		}
+		// The file contains a line of the form PORT=127.0.0.1:1234 for each
+		// control port
+		String contents = new String(read(controlPortFile), UTF_8);
+		for (String line : contents.split("\n")) {
+			line = line.trim();
+			if (line.startsWith("PORT=")) return parseListenerPort(line.substring(5));
+		}
+		throw new IOException("No control port in file");
+	}
+
+	/**
+	 * Parses the port number from the first address in a space-separated list
+	 * of listener addresses, which may be quoted, eg "127.0.0.1:1234".
+	 */
+	static int parseListenerPort(@Nullable String listeners) throws IOException {
+		if (listeners == null) throw new IOException("No listener address");
+		String address = listeners.trim();
+		int space = address.indexOf(' ');
+		if (space != -1) address = address.substring(0, space);
+		if (address.startsWith("\"") && address.endsWith("\"") && address.length() >= 2) {
+			address = address.substring(1, address.length() - 1);
+		}
+		int colon = address.lastIndexOf(':');
+		if (colon == -1) throw new IOException("Invalid listener address: " + address);
+		try {
+			int port = Integer.parseInt(address.substring(colon + 1));
+			if (port < 1 || port > 65535) throw new NumberFormatException();
+			return port;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid listener address: " + address);
+		}
+	}
+
+	private void resetPorts() {
+		socksPort = torSocksPort;
+		controlPort = torControlPort;
+	}
+
+	@Override
+	public int getSocksPort() {
+		return socksPort;
+	}
+
+	@Override
+	public int getControlPort() {
+		return controlPort;
+	}
+
+	/**
+	 * Waits for Tor to write the auth cookie to the given file, throwing an
+	 * exception if the cookie isn't written within the given timeout.
+	 * <p>
+	 * This implementation polls the file at a short interval. Subclasses may
+	 * override this method to wait for file change notifications instead.
+	 */
+	protected void waitForAuthCookie(File cookieFile, long timeoutMs)
+			throws IOException, InterruptedException {
+		pollForAuthCookie(cookieFile, timeoutMs);
+	}
+
+	/**
+	 * Polls the given file until it contains the auth cookie, throwing an
+	 * exception if the cookie isn't written within the given timeout.
+	 */
+	protected void pollForAuthCookie(File cookieFile, long timeoutMs)
+			throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		while (!isAuthCookieWritten(cookieFile)) {
+			if (System.currentTimeMillis() - start > timeoutMs) {
+				throw new IOException("Auth cookie not created");
+			}
+			//noinspection BusyWait
+			Thread.sleep(COOKIE_POLLING_INTERVAL_MS);
+		}
+	}
+
+	static boolean isAuthCookieWritten(File cookieFile) {
+		return cookieFile.length() >= COOKIE_LENGTH;
+	}
+
+	@Override
+	public long getAuthCookieWaitTime() {
+		List<StartupTimings> history = getStartupTimings();
+		for (int i = history.size() - 1; i >= 0; i--) {
+			StartupTimings timings = history.get(i);
+			if (timings.hasSucceeded()) return timings.getDuration(CREATE_AUTH_COOKIE);
+		}
+		return -1;
 	}
 
 	private boolean assetsAreUpToDate() {
-		return doneFile.lastModified() > getLastUpdateTime();
+		AssetManifest manifest = AssetManifest.read(manifestFile);
+		if (manifest == null || manifest.getUpdateTime() != getLastUpdateTime()) return false;
+		// Check that the assets are in the cache if and only if we're using it
+		File location = manifest.getLocation();
+		File cache = binaryCacheDirectory;
+		if (cache == null) {
+			if (location != null) return false;
+		} else if (location == null || !cache.equals(location.getParentFile())) {
+			return false;
+		}
+		File dir = location == null ? torDirectory : location;
+		if (!manifest.assetsExist(dir)) return false;
+		assetDirectory = dir;
+		return true;
 	}
 
-	private void installAssets() throws IOException {
-		// The done file may already exist from a previous installation
+	private void installAssets() throws IOException, InterruptedException {
+		// Each asset is replaced atomically, so the old manifest can stay in
+		// place until the installation is complete: if the installation is
+		// interrupted, the manifest's update time won't match and the assets
+		// will be checked again next time
+		oldManifest = AssetManifest.read(manifestFile);
+		// Older versions used a done file instead of a manifest
 		//noinspection ResultOfMethodCallIgnored
-		doneFile.delete();
-		installTorExecutable();
-		installLyrebirdExecutable();
-		extract(getConfigInputStream(), configFile);
-		if (!doneFile.createNewFile()) {
-			LOG.warning("Failed to create done file");
+		new File(torDirectory, "done").delete();
+		deleteStaleTempFiles(torDirectory);
+		AssetManifest manifest;
+		File cache = binaryCacheDirectory;
+		try {
+			if (cache == null) {
+				assetDirectory = torDirectory;
+				manifest = new AssetManifest(getLastUpdateTime());
+				newManifest = manifest;
+				runInstallTasks(getInstallTasks());
+			} else {
+				manifest = installCachedAssets(cache);
+			}
+		} finally {
+			oldManifest = null;
+			newManifest = null;
+		}
+		// Write the manifest last, so it's only updated when all the assets
+		// are in place
+		extract(new ByteArrayInputStream(manifest.toByteArray()), manifestFile);
+	}
+
+	/**
+	 * Installs the assets in a subdirectory of the binary cache named after
+	 * the assets' content hashes, unless another wrapper has already done
+	 * so, and returns a manifest that refers to the subdirectory.
+	 */
+	private AssetManifest installCachedAssets(File cache)
+			throws IOException, InterruptedException {
+		AssetManifest old = oldManifest;
+		// Run the install tasks without installing anything to find out
+		// which subdirectory the assets belong in
+		AssetManifest hashes = new AssetManifest(0);
+		newManifest = hashes;
+		hashingAssets = true;
+		try {
+			runInstallTasks(getInstallTasks());
+		} finally {
+			hashingAssets = false;
+		}
+		File dir = new File(cache, hashes.getContentKey());
+		File dirManifestFile = new File(dir, "manifest");
+		AssetManifest dirManifest;
+		synchronized (CACHE_LOCK) {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Could not create cache directory");
+			}
+			File lockFile = new File(cache, dir.getName() + ".lock");
+			FileOutputStream lockStream = new FileOutputStream(lockFile);
+			try {
+				// The lock is released when the stream is closed
+				lockStream.getChannel().lock();
+				dirManifest = AssetManifest.read(dirManifestFile);
+				if (dirManifest != null && dirManifest.assetsExist(dir)) {
+					LOG.info("Using cached assets");
+				} else {
+					LOG.info("Installing assets in cache");
+					deleteStaleTempFiles(dir);
+					assetDirectory = dir;
+					dirManifest = new AssetManifest(getLastUpdateTime());
+					newManifest = dirManifest;
+					oldManifest = null;
+					runInstallTasks(getInstallTasks());
+					// The cached assets are shared, so protect them from
+					// being modified
+					for (String name : dirManifest.getNames()) {
+						//noinspection ResultOfMethodCallIgnored
+						new File(dir, name).setWritable(false, false);
+					}
+					extract(new ByteArrayInputStream(dirManifest.toByteArray()),
+							dirManifestFile);
+				}
+			} finally {
+				tryToClose(lockStream, LOG, WARNING);
+			}
+		}
+		assetDirectory = dir;
+		if (old != null && old.getLocation() == null) deleteUncachedAssets(old);
+		AssetManifest manifest = new AssetManifest(getLastUpdateTime(), dir);
+		manifest.putAll(dirManifest);
+		return manifest;
+	}
+
+	/**
+	 * Deletes any assets that were previously installed in the Tor directory
+	 * rather than the binary cache.
+	 */
+	private void deleteUncachedAssets(AssetManifest old) {
+		for (String name : old.getNames()) {
+			File f = new File(torDirectory, name);
+			if (f.exists() && !f.delete()) LOG.warning("Uncached asset not deleted");
+		}
+	}
+
+	/**
+	 * Deletes any temporary files left behind by installations that crashed.
+	 * Recent temporary files are left alone, as they may belong to another
+	 * installation that's sharing the directory.
+	 */
+	private void deleteStaleTempFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		long now = System.currentTimeMillis();
+		for (File f : files) {
+			if (f.getName().endsWith(TEMP_FILE_SUFFIX)
+					&& now - f.lastModified() > STALE_TEMP_FILE_MS) {
+				if (f.delete()) LOG.info("Deleted stale temporary file");
+				else LOG.warning("Stale temporary file not deleted");
+			}
+		}
+	}
+
+	/**
+	 * Returns the tasks for installing the binaries. The tasks must be
+	 * independent of each other, as they may run concurrently.
+	 */
+	protected List<InstallTask> getInstallTasks() {
+		List<InstallTask> tasks = new ArrayList<>();
+		tasks.add(this::installTorExecutable);
+		tasks.add(this::installLyrebirdExecutable);
+		return tasks;
+	}
+
+	/**
+	 * Runs the given tasks concurrently on the IO executor and waits for them
+	 * to finish. If any task fails, the other tasks are cancelled and the
+	 * exception is rethrown without waiting for them.
+	 */
+	private void runInstallTasks(List<InstallTask> tasks)
+			throws IOException, InterruptedException {
+		CompletionService<Void> completion = new ExecutorCompletionService<>(ioExecutor);
+		List<Future<Void>> futures = new ArrayList<>(tasks.size());
+		try {
+			for (InstallTask task : tasks) {
+				futures.add(completion.submit(() -> {
+					task.install();
+					return null;
+				}));
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw (IOException) cause;
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			// Cancel any tasks that are still running after a failure
+			for (Future<Void> f : futures) f.cancel(true);
+		}
+	}
+
+	/**
+	 * Installs an asset in the {@link #getAssetDirectory() asset directory},
+	 * unless the asset is already installed and its content hash matches the
+	 * source. The hash is recorded in the manifest. This method may only be
+	 * called by {@link #getInstallTasks() install tasks}.
+	 *
+	 * @param executable True if the asset should be made executable.
+	 */
+	protected void installAsset(AssetSource source, File dest, boolean executable)
+			throws IOException {
+		AssetManifest manifest = requireNonNull(newManifest);
+		AssetManifest old = oldManifest;
+		String name = dest.getName();
+		if (hashingAssets) {
+			// The size isn't needed to find the asset's place in the cache
+			manifest.put(name, new AssetManifest.Entry(AssetManifest.hash(source.open()), -1));
+			return;
+		}
+		AssetManifest.Entry entry = old == null ? null : old.get(name);
+		if (entry != null && dest.isFile() && dest.length() == entry.size) {
+			// Hash the source without writing it to disk
+			if (AssetManifest.hash(source.open()).equals(entry.hash)) {
+				if (LOG.isLoggable(INFO)) LOG.info(name + " is unchanged");
+				if (executable && !dest.setExecutable(true, true)) {
+					throw new IOException("Could not make " + name + " executable");
+				}
+				manifest.put(name, entry);
+				return;
+			}
+		}
+		// Hash the source while extracting it
+		MessageDigest digest = AssetManifest.createDigest();
+		extract(new DigestInputStream(source.open(), digest), dest, executable);
+		String hash = AssetManifest.toHex(digest.digest());
+		manifest.put(name, new AssetManifest.Entry(hash, dest.length()));
+	}
+
+	/**
+	 * Records that an asset is provided by a file outside the
+	 * {@link #getAssetDirectory() asset directory}, such as a library
+	 * installed by the platform, rather than being installed at the given
+	 * destination. While the assets are being hashed, the file's hash is
+	 * recorded so that it contributes to the assets' place in the cache.
+	 * Otherwise any copy of the asset left at the destination by an older
+	 * version is deleted. This method may only be called by
+	 * {@link #getInstallTasks() install tasks}.
+	 */
+	protected void useExternalAsset(File file, File dest) throws IOException {
+		String name = dest.getName();
+		if (hashingAssets) {
+			String hash = AssetManifest.hash(new FileInputStream(file));
+			requireNonNull(newManifest).put(name, new AssetManifest.Entry(hash, -1));
+		} else if (dest.exists()) {
+			if (dest.delete()) LOG.info("Deleted old " + name);
+			else LOG.info("Failed to delete old " + name);
 		}
 	}
 
 	protected void extract(InputStream in, File dest) throws IOException {
-		@SuppressWarnings("IOStreamConstructor")
-		OutputStream out = new FileOutputStream(dest);
-		copyAndClose(in, out);
+		extract(in, dest, false);
+	}
+
+	/**
+	 * Extracts the given stream to a temporary file in the same directory as
+	 * the destination, forces it to the storage device and renames it over
+	 * the destination. The destination is therefore never left partly
+	 * written, even if the process crashes or several installations are
+	 * sharing the directory. The stream is closed.
+	 */
+	protected void extract(InputStream in, File dest, boolean executable) throws IOException {
+		File dir = requireNonNull(dest.getAbsoluteFile().getParentFile());
+		File temp;
+		FileOutputStream out;
+		try {
+			temp = File.createTempFile(dest.getName() + ".", TEMP_FILE_SUFFIX, dir);
+			out = new FileOutputStream(temp);
+		} catch (IOException e) {
+			tryToClose(in, LOG, WARNING);
+			throw e;
+		}
+		boolean replaced = false;
+		try {
+			copySyncAndClose(in, out);
+			if (executable && !temp.setExecutable(true, true)) {
+				throw new IOException("Could not make " + dest.getName() + " executable");
+			}
+			replaceFile(temp, dest);
+			replaced = true;
+		} finally {
+			if (!replaced && !temp.delete()) LOG.warning("Temporary file not deleted");
+		}
+	}
+
+	/**
+	 * Renames the source file over the destination file, replacing it
+	 * atomically if the platform allows.
+	 */
+	protected void replaceFile(File src, File dest) throws IOException {
+		if (src.renameTo(dest)) return;
+		// Some platforms can't rename a file over an existing file
+		if (dest.exists() && !dest.delete()) {
+			throw new IOException("Could not delete " + dest.getName());
+		}
+		if (!src.renameTo(dest)) throw new IOException("Could not rename " + src.getName());
 	}
 
 	protected void installTorExecutable() throws IOException {
@@ -233,8 +852,7 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			LOG.info("Installing Tor binary for " + architecture);
 		}
 		File torFile = getTorExecutableFile();
-		extract(getExecutableInputStream("tor"), torFile);
-		if (!torFile.setExecutable(true, true)) throw new IOException();
+		installAsset(() -> getExecutableInputStream("tor"), torFile, true);
 	}
 
 	protected void installLyrebirdExecutable() throws IOException {
@@ -242,8 +860,7 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			LOG.info("Installing lyrebird binary for " + architecture);
 		}
 		File lyrebirdFile = getLyrebirdExecutableFile();
-		extract(getExecutableInputStream("lyrebird"), lyrebirdFile);
-		if (!lyrebirdFile.setExecutable(true, true)) throw new IOException();
+		installAsset(() -> getExecutableInputStream("lyrebird"), lyrebirdFile, true);
 	}
 
 	protected InputStream getExecutableInputStream(String basename) {
@@ -262,15 +879,20 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 		strb.append("\n");
 	}
 
-	private InputStream getConfigInputStream() {
+	InputStream getConfigInputStream() {
 		File dataDirectory = new File(torDirectory, ".tor");
 		StringBuilder strb = new StringBuilder();
-		append(strb, "ControlPort", torControlPort);
+		if (torControlPort == AUTO_PORT) {
+			append(strb, "ControlPort", "auto");
+			append(strb, "ControlPortWriteToFile", controlPortFile.getAbsolutePath());
+		} else {
+			append(strb, "ControlPort", torControlPort);
+		}
 		append(strb, "CookieAuthentication", 1);
 		append(strb, "DataDirectory", dataDirectory.getAbsolutePath());
 		append(strb, "DisableNetwork", 1);
 		append(strb, "SafeSocks", 1);
-		append(strb, "SocksPort", torSocksPort);
+		append(strb, "SocksPort", torSocksPort == AUTO_PORT ? "auto" : torSocksPort);
 		strb.append("GeoIPFile\n");
 		strb.append("GeoIPv6File\n");
 		append(strb, "ConnectionPadding", 0);
@@ -322,6 +944,7 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 			try {
 				int exit = torProcess.waitFor();
 				if (LOG.isLoggable(INFO)) LOG.info("Tor exited with value " + exit);
+				if (started) onTorExited(torProcess);
 			} catch (InterruptedException e1) {
 				LOG.warning("Interrupted while waiting for Tor to exit");
 				Thread.currentThread().interrupt();
@@ -334,87 +957,266 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 	@Override
 	public HiddenServiceProperties publishHiddenService(int localPort,
 			int remotePort, @Nullable String privKey) throws IOException {
-		Map<Integer, String> portLines = singletonMap(remotePort, "127.0.0.1:" + localPort);
-		// Use the control connection to set up the hidden service
-		Map<String, String> response;
-		if (privKey == null) {
-			response = getControlConnection().addOnion("NEW:ED25519-V3", portLines, null);
-		} else {
-			response = getControlConnection().addOnion(privKey, portLines);
-		}
-		if (!response.containsKey(HS_ADDRESS)) {
-			throw new IOException("Missing hidden service address");
+		return publishHiddenService(localPort, remotePort, privKey, 1).getProperties();
+	}
+
+	@Override
+	public HiddenServiceHandle publishHiddenService(int localPort, int remotePort,
+			@Nullable String privKey, int uploadQuorum) throws IOException {
+		return await(sendAddOnion(localPort, remotePort, privKey, uploadQuorum));
+	}
+
+	/**
+	 * Starts publishing a hidden service and returns a future that completes
+	 * when Tor has accepted the service, without waiting for Tor's reply.
+	 * <p>
+	 * If no private key is given, Tor generates one. Either way, the service
+	 * is identified by the address that Tor reports.
+	 */
+	private ControlFuture<HiddenServiceHandle> sendAddOnion(int localPort, int remotePort,
+			@Nullable String privKey, int uploadQuorum) throws IOException {
+		if (uploadQuorum < 1) throw new IllegalArgumentException();
+		long start = System.currentTimeMillis();
+		ControlFuture<ControlReply> reply = getControlConnection().addOnion(
+				privKey == null ? "NEW:ED25519-V3" : privKey, remotePort,
+				"127.0.0.1:" + localPort);
+		ControlFuture<HiddenServiceHandle> published = new ControlFuture<>();
+		// The reply is handled on the reactor thread, before any events that
+		// Tor sends after accepting the service, so tracking the service here
+		// doesn't miss any upload events
+		reply.addListener(() -> {
+			try {
+				Map<String, String> keyValues = reply.getNow().getKeyValues();
+				String onion = keyValues.get("ServiceID");
+				if (onion == null) throw new IOException("Missing hidden service address");
+				String key = privKey == null ? keyValues.get("PrivateKey") : privKey;
+				if (key == null) throw new IOException("Missing private key");
+				HiddenServiceProperties props = new HiddenServiceProperties(onion, key);
+				HiddenServiceHandle handle = new HiddenServiceHandle(props, uploadQuorum, start);
+				synchronized (hiddenServices) {
+					hiddenServices.put(onion, new PublishedService(handle, localPort, remotePort));
+				}
+				published.complete(handle);
+			} catch (IOException e) {
+				published.fail(e);
+			}
+		}, Runnable::run);
+		return published;
+	}
+
+	@Override
+	public void removeHiddenService(String onion) throws IOException {
+		await(sendDelOnion(onion));
+	}
+
+	/**
+	 * Starts removing a hidden service and returns a future that completes
+	 * when Tor has removed the service, without waiting for Tor's reply.
+	 */
+	private ControlFuture<String> sendDelOnion(String onion) throws IOException {
+		ControlFuture<ControlReply> reply = getControlConnection().delOnion(onion);
+		ControlFuture<String> removed = new ControlFuture<>();
+		// Complete the returned future after the service has been untracked,
+		// so the caller doesn't see it in a snapshot taken after removal
+		reply.addListener(() -> {
+			try {
+				reply.getNow();
+			} catch (IOException e) {
+				removed.fail(e); // The service is still published
+				return;
+			}
+			PublishedService service;
+			synchronized (hiddenServices) {
+				service = hiddenServices.remove(onion);
+			}
+			if (service != null) service.handle.onRemoved("Hidden service removed");
+			removed.complete(onion);
+		}, Runnable::run);
+		return removed;
+	}
+
+	/**
+	 * Stops tracking the given hidden service if it's being tracked.
+	 */
+	private void forgetHiddenService(PublishedService service, String reason) {
+		String onion = service.handle.getProperties().onion;
+		synchronized (hiddenServices) {
+			if (hiddenServices.get(onion) != service) return;
+			hiddenServices.remove(onion);
 		}
-		if (privKey == null && !response.containsKey(HS_PRIVKEY)) {
-			throw new IOException("Missing private key");
+		service.handle.onRemoved(reason);
+	}
+
+	/**
+	 * Stops tracking all hidden services, failing the futures of any that
+	 * haven't become reachable.
+	 */
+	private void forgetHiddenServices(String reason) {
+		List<PublishedService> services;
+		synchronized (hiddenServices) {
+			services = new ArrayList<>(hiddenServices.values());
+			hiddenServices.clear();
 		}
-		String onion = response.get(HS_ADDRESS);
-		if (privKey == null) privKey = response.get(HS_PRIVKEY);
-		return new HiddenServiceProperties(onion, privKey);
+		for (PublishedService service : services) service.handle.onRemoved(reason);
+	}
+
+	/**
+	 * Sets the delay before republishing a hidden service whose descriptor
+	 * uploads have all failed. The delay doubles with each retry. This is
+	 * only exposed for testing.
+	 */
+	void setDescriptorRetryDelay(long delayMs) {
+		descriptorRetryDelay = delayMs;
 	}
 
 	@Override
-	public void removeHiddenService(String onion) throws IOException {
-		getControlConnection().delOnion(onion);
+	public BatchResult<HiddenServiceProperties> publishHiddenServices(
+			List<HiddenServiceSpec> specs) throws InterruptedException {
+		BatchResult<HiddenServiceProperties> result = runBatch(specs, spec -> {
+			ControlFuture<HiddenServiceHandle> f =
+					sendAddOnion(spec.localPort, spec.remotePort, spec.privateKey, 1);
+			return () -> f.await(COMMAND_TIMEOUT_MS).getProperties();
+		});
+		if (LOG.isLoggable(INFO)) LOG.info("Published hidden services: " + result);
+		return result;
+	}
+
+	@Override
+	public BatchResult<String> removeHiddenServices(Collection<String> onions)
+			throws InterruptedException {
+		BatchResult<String> result = runBatch(new ArrayList<>(onions), onion -> {
+			ControlFuture<String> f = sendDelOnion(onion);
+			return () -> f.await(COMMAND_TIMEOUT_MS);
+		});
+		if (LOG.isLoggable(INFO)) LOG.info("Removed hidden services: " + result);
+		return result;
+	}
+
+	/**
+	 * Sends a command for each item without waiting for the replies to
+	 * earlier commands, so the commands are pipelined on the control
+	 * connection, with up to {@link #MAX_PIPELINED_COMMANDS} commands in
+	 * flight at once. The replies are awaited on the calling thread, so no
+	 * other threads are needed.
+	 */
+	private <I, O> BatchResult<O> runBatch(List<I> items, BatchTask<I, O> task)
+			throws InterruptedException {
+		BatchResult.Recorder<O> recorder = new BatchResult.Recorder<>(items.size());
+		Deque<PendingItem<O>> inFlight = new ArrayDeque<>();
+		for (int i = 0; i < items.size(); i++) {
+			if (inFlight.size() == MAX_PIPELINED_COMMANDS) {
+				awaitItem(requireNonNull(inFlight.poll()), recorder);
+			}
+			long start = System.nanoTime();
+			try {
+				inFlight.add(new PendingItem<>(i, task.send(items.get(i)), start));
+			} catch (IOException | RuntimeException e) {
+				recorder.failed(i, e, System.nanoTime() - start);
+			}
+		}
+		while (!inFlight.isEmpty()) awaitItem(requireNonNull(inFlight.poll()), recorder);
+		return recorder.build();
+	}
+
+	private <O> void awaitItem(PendingItem<O> item, BatchResult.Recorder<O> recorder)
+			throws InterruptedException {
+		try {
+			O result = item.result.get();
+			recorder.succeeded(item.index, result, System.nanoTime() - item.start);
+		} catch (IOException | RuntimeException e) {
+			recorder.failed(item.index, e, System.nanoTime() - item.start);
+		}
 	}
 
 	@Override
 	public void enableNetwork(boolean enable) throws IOException {
-		if (!state.enableNetwork(enable)) return; // Unchanged
-		getControlConnection().setConf("DisableNetwork", enable ? "0" : "1");
+		configure().enableNetwork(enable).apply();
 	}
 
 	@Override
 	public void enableBridges(List<String> bridges) throws IOException {
-		if (!state.setBridges(bridges)) return; // Unchanged
-		if (bridges.isEmpty()) {
-			throw new IllegalArgumentException("Bridges can't be empty.");
-		}
-		List<String> conf = new ArrayList<>(bridges.size() + 1);
-		conf.add("UseBridges 1");
-		conf.addAll(bridges);
-		getControlConnection().setConf(conf);
+		configure().enableBridges(bridges).apply();
 	}
 
 	@Override
 	public void disableBridges() throws IOException {
-		if (!state.setBridges(emptyList())) return; // Unchanged
-		getControlConnection().setConf("UseBridges", "0");
+		configure().disableBridges().apply();
+	}
+
+	@Override
+	public Configuration configure() {
+		return new ConfigurationBuilder();
 	}
 
 	@Override
 	public void stop() throws IOException, InterruptedException {
+		stopRequests.incrementAndGet();
+		stopTor();
+	}
+
+	private void stopTor() throws IOException, InterruptedException {
 		if (!state.setStopping()) return; // Not in the appropriate state
+		CircuitWatchdog w = watchdog;
+		if (w != null) w.reset();
+		streams.clearStreams();
+		circuits.clearCircuits();
+		// Take a snapshot before the state is reset, so it can be restored
+		stoppedSnapshot = takeSnapshot();
 		try {
-			if (controlConnection != null) {
-				controlConnection.shutdownTor("TERM");
+			ControlConnection connection = controlConnection;
+			if (connection != null) {
+				try {
+					await(connection.signal("TERM"));
+				} catch (IOException e) {
+					// If the connection has been closed, Tor has already exited
+					if (!connection.isClosed()) throw e;
+				}
 			}
 		} finally {
-			controlConnection = null;
-			tryToClose(controlSocket, LOG, WARNING);
-			controlSocket = null;
+			closeControlConnection();
 			try {
 				if (torProcess != null) {
 					torProcess.waitFor();
 				}
 			} finally {
 				torProcess = null;
+				resetPorts();
 				state.setStopped();
+				forgetHiddenServices("Tor stopped");
 			}
 		}
 	}
 
 	@Override
 	public void circuitStatus(String status, String id, String path) {
+		circuitStatus(status, id, path, null, null);
+	}
+
+	@Override
+	public void circuitStatus(String status, String id, String path, @Nullable String purpose,
+			@Nullable String reason) {
+		circuits.onCircuitStatus(status, id, purpose, reason, System.currentTimeMillis());
 		// In case of races between receiving CIRCUIT_ESTABLISHED and setting
 		// DisableNetwork, set our circuitBuilt flag if not already set
-		if (status.equals("BUILT") && state.setCircuitBuilt(true)) {
-			LOG.info("Circuit built");
+		if (status.equals("BUILT") && state.setCircuitBuilt(true)) onCircuitBuilt();
+		if (isSubscribed("CIRC")) {
+			publish("CIRC", path.isEmpty() ? id + " " + status : id + " " + status + " " + path);
 		}
 	}
 
 	@Override
 	public void streamStatus(String status, String id, String target) {
+		streamStatus(status, id, target, null, null);
+	}
+
+	@Override
+	public void streamStatus(String status, String id, String target, @Nullable String reason,
+			@Nullable String remoteReason) {
+		if (streamMonitoring) {
+			streams.onStreamStatus(status, id, target, reason, remoteReason,
+					System.currentTimeMillis());
+		}
+		if (isSubscribed(STREAM_EVENT)) publish(STREAM_EVENT, id + " " + status + " " + target);
 	}
 
 	@Override
@@ -423,84 +1225,120 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 
 		if (status.equals("CONNECTED")) state.onOrConnectionConnected();
 		else if (status.equals("CLOSED")) state.onOrConnectionClosed();
+		if (isSubscribed("ORCONN")) publish("ORCONN", orName + " " + status);
 	}
 
 	@Override
 	public void bandwidthUsed(long read, long written) {
+		if (bandwidthMonitoring) bandwidth.record(read, written, System.currentTimeMillis());
+		if (isSubscribed(BANDWIDTH_EVENT)) publish(BANDWIDTH_EVENT, read + " " + written);
 	}
 
 	@Override
 	public void newDescriptors(List<String> orList) {
+		if (isSubscribed("NEWDESC")) {
+			StringBuilder sb = new StringBuilder();
+			for (String or : orList) {
+				if (sb.length() > 0) sb.append(' ');
+				sb.append(or);
+			}
+			publish("NEWDESC", sb.toString());
+		}
 	}
 
 	@Override
 	public void message(String severity, String msg) {
 		if (LOG.isLoggable(INFO)) LOG.info(severity + " " + msg);
+		if (isSubscribed(severity)) publish(severity, msg);
 	}
 
 	@Override
 	public void unrecognized(String type, String msg) {
+		ControlLineParser parser = eventParser.reset(msg);
 		if (type.equals("STATUS_CLIENT")) {
-			handleClientStatus(removeSeverity(msg));
+			// Skip the severity and read the action
+			if (parser.skip(2)) handleClientStatus(parser);
 		} else if (type.equals("STATUS_GENERAL")) {
-			handleGeneralStatus(removeSeverity(msg));
-		} else if (type.equals("HS_DESC") && msg.startsWith("UPLOADED")) {
-			String[] parts = msg.split(" ");
-			if (parts.length < 2) {
-				LOG.warning("Failed to parse HS_DESC UPLOADED event");
-			} else if (LOG.isLoggable(INFO)) {
-				String onion = parts[1];
-				LOG.info("V3 descriptor uploaded for " + scrubOnion(onion));
-				state.onHsDescriptorUploaded(onion);
-			}
+			// Skip the severity and read the action
+			if (parser.skip(2)) handleGeneralStatus(parser);
+		} else if (type.equals("HS_DESC")) {
+			if (parser.next()) handleHsDescriptor(parser);
+		} else if (type.equals(CIRCUIT_BANDWIDTH_EVENT)) {
+			if (circuitBandwidthMonitoring) handleCircuitBandwidth(parser);
 		}
+		if (isSubscribed(type)) publish(type, msg);
 	}
 
-	private String removeSeverity(String msg) {
-		return msg.replaceFirst("[^ ]+ ", "");
+	/**
+	 * Returns true if any subscription wants events of the given type, so
+	 * the cost of building an event can be avoided if not.
+	 */
+	private boolean isSubscribed(String type) {
+		for (EventSubscription s : subscriptions) {
+			if (s.wants(type)) return true;
+		}
+		return false;
 	}
 
-	private void handleClientStatus(String msg) {
-		if (msg.startsWith("BOOTSTRAP PROGRESS=")) {
-			int percentage = parseBootstrapPercentage(msg);
-			if (percentage == 100) LOG.info("Bootstrapped");
-			state.setBootstrapPercentage(percentage);
-		} else if (msg.startsWith("CIRCUIT_ESTABLISHED")) {
-			if (state.setCircuitBuilt(true)) LOG.info("Circuit built");
-		} else if (msg.startsWith("CIRCUIT_NOT_ESTABLISHED")) {
+	/**
+	 * Queues an event for the subscriptions that want it. This is called on
+	 * the event thread after the wrapper has handled the event. Queueing an
+	 * event never waits, so subscriptions can't delay the wrapper's own
+	 * state handling or the replies to commands, which are read on the same
+	 * thread.
+	 */
+	private void publish(String type, String message) {
+		TorEvent e = new TorEvent(type, message, System.currentTimeMillis());
+		for (EventSubscription s : subscriptions) {
+			if (s.wants(type)) s.offer(e);
+		}
+	}
+
+	private void handleClientStatus(ControlLineParser parser) {
+		if (parser.tokenEquals("BOOTSTRAP")) {
+			if (parser.next() && parser.keyEquals("PROGRESS")) {
+				int percentage = parseBootstrapPercentage(parser);
+				if (percentage == 100) LOG.info("Bootstrapped");
+				state.setBootstrapPercentage(percentage);
+			}
+		} else if (parser.tokenEquals("CIRCUIT_ESTABLISHED")) {
+			if (state.setCircuitBuilt(true)) onCircuitBuilt();
+		} else if (parser.tokenEquals("CIRCUIT_NOT_ESTABLISHED")) {
 			if (state.setCircuitBuilt(false)) {
 				LOG.info("Circuit not built");
-				// TODO: Disable and re-enable network to prompt Tor to rebuild
-				//  its guard/bridge connections? This will also close any
-				//  established circuits, which might still be functioning
+				CircuitWatchdog w = watchdog;
+				if (w != null) w.onCircuitLost(watchdogHost);
 			}
 		}
 	}
 
-	private int parseBootstrapPercentage(String s) {
-		Matcher matcher = BOOTSTRAP_PERCENTAGE.matcher(s);
-		if (matcher.matches()) {
-			try {
-				return Integer.parseInt(matcher.group(1));
-			} catch (NumberFormatException e) {
-				// Fall through
-			}
-		}
+	private void onCircuitBuilt() {
+		LOG.info("Circuit built");
+		CircuitWatchdog w = watchdog;
+		if (w != null) w.onCircuitEstablished();
+	}
+
+	/**
+	 * Parses the value of the PROGRESS argument on which the given parser is
+	 * positioned.
+	 */
+	private int parseBootstrapPercentage(ControlLineParser parser) {
+		int percentage = parser.valueAsInt(-1);
+		if (percentage >= 0 && percentage <= 100) return percentage;
 		if (LOG.isLoggable(WARNING)) {
-			LOG.warning("Failed to parse bootstrap percentage: " + s);
+			LOG.warning("Failed to parse bootstrap percentage: " + parser);
 		}
 		return 0;
 	}
 
-	private void handleGeneralStatus(String msg) {
-		if (msg.startsWith("CLOCK_JUMPED")) {
-			Long time = parseLongArgument(msg, "TIME");
-			if (time != null && LOG.isLoggable(WARNING)) {
-				LOG.warning("Clock jumped " + time + " seconds");
+	private void handleGeneralStatus(ControlLineParser parser) {
+		if (parser.tokenEquals("CLOCK_JUMPED")) {
+			if (findLongArgument(parser, "TIME") && LOG.isLoggable(WARNING)) {
+				LOG.warning("Clock jumped " + parser.valueAsLong(0) + " seconds");
 			}
-		} else if (msg.startsWith("CLOCK_SKEW")) {
-			Long skew = parseLongArgument(msg, "SKEW");
-			if (skew != null) {
+		} else if (parser.tokenEquals("CLOCK_SKEW")) {
+			if (findLongArgument(parser, "SKEW")) {
+				long skew = parser.valueAsLong(0);
 				if (LOG.isLoggable(WARNING)) {
 					LOG.warning("Clock is skewed by " + skew + " seconds");
 				}
@@ -509,43 +1347,395 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 		}
 	}
 
-	@Nullable
-	private Long parseLongArgument(String msg, String argName) {
-		String[] args = msg.split(" ");
-		for (String arg : args) {
-			if (arg.startsWith(argName + "=")) {
-				try {
-					return Long.parseLong(arg.substring(argName.length() + 1));
-				} catch (NumberFormatException e) {
-					break;
-				}
+	/**
+	 * Advances the given parser to the argument with the given name and
+	 * returns true if the argument's value is a valid long, or logs a warning
+	 * and returns false.
+	 */
+	private boolean findLongArgument(ControlLineParser parser, String argName) {
+		if (parser.findKey(argName) && parser.hasLongValue()) return true;
+		if (LOG.isLoggable(WARNING)) {
+			LOG.warning("Failed to parse " + argName + " from '" + parser + "'");
+		}
+		return false;
+	}
+
+	/**
+	 * Handles a CIRC_BW event, with the given parser positioned before the
+	 * event's arguments.
+	 */
+	private void handleCircuitBandwidth(ControlLineParser parser) {
+		String id = null;
+		long read = -1, written = -1;
+		while (parser.next()) {
+			if (parser.keyEquals("ID")) id = parser.value();
+			else if (parser.keyEquals("READ")) read = parser.valueAsLong(-1);
+			else if (parser.keyEquals("WRITTEN")) written = parser.valueAsLong(-1);
+		}
+		if (id == null || read < 0 || written < 0) {
+			LOG.warning("Failed to parse CIRC_BW event");
+			return;
+		}
+		circuits.onCircuitBandwidth(id, read, written);
+	}
+
+	/**
+	 * Handles an HS_DESC event, with the given parser positioned on the
+	 * event's action.
+	 */
+	private void handleHsDescriptor(ControlLineParser parser) {
+		boolean started = parser.tokenEquals("UPLOAD");
+		boolean succeeded = parser.tokenEquals("UPLOADED");
+		boolean failed = parser.tokenEquals("FAILED");
+		if (!started && !succeeded && !failed) return;
+		if (!parser.next()) {
+			LOG.warning("Failed to parse HS_DESC event");
+			return;
+		}
+		String onion = parser.token();
+		if (succeeded) {
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("V3 descriptor uploaded for " + scrubOnion(onion));
 			}
+			state.onHsDescriptorUploaded(onion);
 		}
-		if (LOG.isLoggable(WARNING)) {
-			LOG.warning("Failed to parse " + argName + " from '" + msg + "'");
+		PublishedService service;
+		synchronized (hiddenServices) {
+			service = hiddenServices.get(onion);
+		}
+		if (service == null) return; // Not published by this wrapper
+		HiddenServiceHandle handle = service.handle;
+		if (started) {
+			handle.onUploadStarted();
+		} else if (succeeded) {
+			handle.onUploadSucceeded(System.currentTimeMillis());
+			if (LOG.isLoggable(INFO)) LOG.info("Descriptor uploads for " + handle);
+		} else {
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("V3 descriptor upload failed for " + scrubOnion(onion));
+			}
+			if (handle.onUploadFailed()) scheduleRetry(service);
+		}
+	}
+
+	/**
+	 * Republishes a hidden service after a delay, which prompts Tor to
+	 * upload a new descriptor. Tor doesn't provide a way to retry the upload
+	 * of an existing descriptor.
+	 */
+	private void scheduleRetry(PublishedService service) {
+		HiddenServiceHandle handle = service.handle;
+		String scrubbed = scrubOnion(handle.getProperties().onion);
+		if (handle.getRetryCount() >= MAX_DESCRIPTOR_RETRIES) {
+			if (LOG.isLoggable(WARNING)) {
+				LOG.warning("Giving up on descriptor uploads for " + scrubbed);
+			}
+			return;
+		}
+		int retries = handle.onRetry();
+		long delay = Math.min(descriptorRetryDelay << retries, MAX_DESCRIPTOR_RETRY_DELAY_MS);
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("All descriptor uploads failed for " + scrubbed
+					+ ", republishing in " + delay + " ms");
+		}
+		schedule(() -> republish(service), delay);
+	}
+
+	private void republish(PublishedService service) {
+		HiddenServiceHandle handle = service.handle;
+		String onion = handle.getProperties().onion;
+		// Skip the retry if the service has been removed or has become
+		// reachable while we were waiting
+		synchronized (hiddenServices) {
+			if (hiddenServices.get(onion) != service) return;
+		}
+		if (handle.isReachable()) return;
+		try {
+			// Remove the service without untracking it, then publish it again
+			await(getControlConnection().delOnion(onion));
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) {
+				LOG.warning("Could not republish " + scrubOnion(onion) + ": " + e);
+			}
+			return;
+		}
+		try {
+			await(getControlConnection().addOnion(handle.getProperties().privKey,
+					service.remotePort, "127.0.0.1:" + service.localPort));
+		} catch (IOException e) {
+			forgetHiddenService(service, "Hidden service could not be published");
+			if (LOG.isLoggable(WARNING)) {
+				LOG.warning("Could not republish " + scrubOnion(onion) + ": " + e);
+			}
 		}
-		return null;
 	}
 
 	@Override
 	public void controlConnectionClosed() {
 		if (state.isTorRunning()) {
-			// TODO: Restart the Tor process
 			LOG.warning("Control connection closed");
+			onTorLost();
+		}
+	}
+
+	@Override
+	public void setSupervised(boolean supervised) {
+		this.supervised = supervised;
+	}
+
+	@Override
+	public int getRestartCount() {
+		return restarts.get();
+	}
+
+	@Override
+	public long getLastRecoveryTime() {
+		return lastRecoveryTime;
+	}
+
+	@Override
+	public void setCircuitWatchdog(@Nullable CircuitWatchdog watchdog) {
+		CircuitWatchdog old = this.watchdog;
+		this.watchdog = watchdog;
+		if (old != null && old != watchdog) old.reset();
+	}
+
+	@Override
+	public void enableBandwidthMonitoring(boolean enable) throws IOException {
+		bandwidthMonitoring = enable;
+		updateEvents();
+	}
+
+	@Override
+	public BandwidthMetrics getBandwidthMetrics() {
+		return bandwidth;
+	}
+
+	@Override
+	public void enableStreamMonitoring(boolean enable) throws IOException {
+		streamMonitoring = enable;
+		if (!enable) streams.clearStreams();
+		updateEvents();
+	}
+
+	@Override
+	public StreamMetrics getStreamMetrics() {
+		return streams;
+	}
+
+	@Override
+	public void enableCircuitBandwidthMonitoring(boolean enable) throws IOException {
+		circuitBandwidthMonitoring = enable;
+		updateEvents();
+	}
+
+	@Override
+	public CircuitMetrics getCircuitMetrics() {
+		return circuits;
+	}
+
+	@Override
+	public EventSubscription subscribe(Collection<String> eventTypes, @Nullable Filter filter,
+			Listener listener, Executor executor, int capacity, OverflowPolicy policy)
+			throws IOException {
+		EventSubscription s =
+				new EventSubscription(eventTypes, filter, listener, executor, capacity, policy);
+		subscriptions.add(s);
+		try {
+			updateEvents();
+		} catch (IOException e) {
+			// Tor may have rejected an unknown event type
+			subscriptions.remove(s);
+			s.cancel();
+			throw e;
 		}
+		return s;
+	}
+
+	@Override
+	public void unsubscribe(EventSubscription s) throws IOException {
+		if (!subscriptions.remove(s)) return;
+		s.cancel();
+		updateEvents();
+	}
+
+	/**
+	 * If Tor is running, registers the events that are currently needed.
+	 * Otherwise they'll be registered when Tor starts.
+	 */
+	private void updateEvents() throws IOException {
+		ControlConnection controlConnection = this.controlConnection;
+		if (controlConnection != null) await(controlConnection.setEvents(getEvents()));
+	}
+
+	private List<String> getEvents() {
+		Set<String> events = new LinkedHashSet<>(asList(EVENTS));
+		if (bandwidthMonitoring) events.add(BANDWIDTH_EVENT);
+		if (streamMonitoring) events.add(STREAM_EVENT);
+		if (circuitBandwidthMonitoring) events.add(CIRCUIT_BANDWIDTH_EVENT);
+		for (EventSubscription s : subscriptions) events.addAll(s.getEventTypes());
+		return new ArrayList<>(events);
+	}
+
+	/**
+	 * Sets the delay before the first attempt to restart Tor after it's
+	 * lost. The delay doubles with each failed attempt. This is only exposed
+	 * for testing.
+	 */
+	void setRestartDelay(long delayMs) {
+		restartDelay = delayMs;
+	}
+
+	/**
+	 * Called when a Tor process that started successfully exits.
+	 */
+	private void onTorExited(Process process) {
+		// If Tor is being stopped or has been replaced, the exit is expected
+		if (process != torProcess || !state.isTorRunning()) return;
+		LOG.warning("Tor exited unexpectedly");
+		onTorLost();
+	}
+
+	/**
+	 * Called when Tor has crashed or the control connection has been lost.
+	 * If supervision is enabled, starts restarting Tor unless that's
+	 * already happening.
+	 */
+	private void onTorLost() {
+		if (!supervised || !recovering.compareAndSet(false, true)) return;
+		int stops = stopRequests.get();
+		long start = System.currentTimeMillis();
+		runRecoveryStep(() -> {
+			try {
+				stopTor();
+			} catch (IOException e) {
+				// Expected, as Tor is no longer reachable
+				if (LOG.isLoggable(INFO)) LOG.info("Error while cleaning up: " + e);
+			}
+			// The snapshot was taken while stopping
+			return scheduleRestart(stops, stoppedSnapshot, 0, start);
+		});
+	}
+
+	/**
+	 * Runs a step of recovery on a thread of its own. Starting Tor waits for
+	 * tasks that run on the IO executor, so recovery mustn't occupy one of
+	 * the executor's threads while it waits. Recovery ends when a step
+	 * returns false.
+	 */
+	private void runRecoveryStep(RecoveryStep step) {
+		Thread thread = new Thread(() -> {
+			boolean continuing = false;
+			try {
+				continuing = step.run();
+			} catch (InterruptedException e) {
+				LOG.warning("Interrupted while restarting Tor");
+			} finally {
+				if (!continuing) recovering.set(false);
+			}
+		}, "TorRecovery");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules an attempt to restart Tor after a delay that doubles with
+	 * each attempt. The delay is timed by the shared {@link ControlReactor},
+	 * so no thread waits while backing off.
+	 *
+	 * @return True if the attempt was scheduled.
+	 */
+	private boolean scheduleRestart(int stops, TorSnapshot snapshot, int attempt, long start) {
+		long delay = Math.min(restartDelay << Math.min(attempt, 16), MAX_RESTART_DELAY_MS);
+		try {
+			ControlReactor.getShared().schedule(() -> runRecoveryStep(() ->
+					restart(stops, snapshot, attempt, start)), delay);
+			return true;
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Could not schedule restart: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Restarts Tor and restores the configuration and hidden services from
+	 * the given snapshot, unless the caller has stopped Tor or disabled
+	 * supervision since Tor was lost. If Tor can't be started, another
+	 * attempt is scheduled.
+	 *
+	 * @param stops The value of {@link #stopRequests} when Tor was lost.
+	 * @return True if another attempt was scheduled.
+	 */
+	private boolean restart(int stops, TorSnapshot snapshot, int attempt, long start)
+			throws InterruptedException {
+		if (!supervised || stopRequests.get() != stops) {
+			LOG.info("Not restarting Tor");
+			return false;
+		}
+		if (LOG.isLoggable(INFO)) LOG.info("Restarting Tor, attempt " + (attempt + 1));
+		BatchResult<HiddenServiceProperties> result;
+		try {
+			result = start(snapshot);
+		} catch (IllegalStateException e) {
+			LOG.info("Tor has been started by the caller, not restarting");
+			return false;
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Could not restart Tor: " + e);
+			// If Tor started but the snapshot couldn't be restored, stop it so
+			// the next attempt restores the snapshot onto a fresh process
+			try {
+				stopTor();
+			} catch (IOException e1) {
+				if (LOG.isLoggable(INFO)) LOG.info("Error while cleaning up: " + e1);
+			}
+			// Stopping took a snapshot of the partly restored state, which
+			// shouldn't replace the snapshot being restored
+			stoppedSnapshot = snapshot;
+			return scheduleRestart(stops, snapshot, attempt + 1, start);
+		}
+		if (stopRequests.get() != stops) {
+			// The caller stopped Tor while it was starting, before the
+			// stop could take effect
+			try {
+				stopTor();
+			} catch (IOException e) {
+				if (LOG.isLoggable(WARNING)) LOG.warning("Could not stop Tor: " + e);
+			}
+			return false;
+		}
+		restarts.incrementAndGet();
+		lastRecoveryTime = System.currentTimeMillis() - start;
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Restored Tor in " + lastRecoveryTime + " ms, "
+					+ result.getFailureCount() + " hidden services not restored");
+		}
+		state.onRestarted(result);
+		return false;
 	}
 
 	@Override
 	public void enableConnectionPadding(boolean enable) throws IOException {
-		if (!state.enableConnectionPadding(enable)) return; // Unchanged
-		getControlConnection().setConf("ConnectionPadding", enable ? "1" : "0");
+		configure().enableConnectionPadding(enable).apply();
 	}
 
 	@Override
 	public void enableIpv6(boolean enable) throws IOException {
-		if (!state.enableIpv6(enable)) return; // Unchanged
-		getControlConnection().setConf("ClientUseIPv4", enable ? "0" : "1");
-		getControlConnection().setConf("ClientUseIPv6", enable ? "1" : "0");
+		configure().enableIpv6(enable).apply();
+	}
+
+	@Override
+	public void setCoalescingNotifications(boolean coalesce) {
+		dispatcher.setCoalescing(coalesce);
+	}
+
+	@Override
+	public LatencyHistogram getNotificationLag() {
+		return dispatcher.getLag();
+	}
+
+	@Override
+	public long getCoalescedNotificationCount() {
+		return dispatcher.getCoalescedCount();
 	}
 
 	@Override
@@ -558,261 +1748,242 @@ abstract class AbstractTorWrapper implements EventHandler, TorWrapper {
 		return state.isTorRunning();
 	}
 
-	private TorControlConnection getControlConnection() throws IOException {
-		TorControlConnection controlConnection = this.controlConnection;
+	private ControlConnection getControlConnection() throws IOException {
+		ControlConnection controlConnection = this.controlConnection;
 		if (controlConnection == null) {
 			throw new IOException("Control connection not opened");
 		}
 		return controlConnection;
 	}
 
-	private enum ProcessState {
-		NOT_STARTED, STARTING, STARTED, STOPPING, STOPPED
+	private void closeControlConnection() {
+		ControlConnection controlConnection = this.controlConnection;
+		this.controlConnection = null;
+		if (controlConnection != null) controlConnection.close();
 	}
 
-	@ThreadSafe
-	@NotNullByDefault
-	private class NetworkState {
-
-		@GuardedBy("this")
-		@Nullable
-		private Observer observer = null;
-
-		@GuardedBy("this")
-		private ProcessState processState = ProcessState.NOT_STARTED;
+	/**
+	 * Runs the given task on the IO executor after the given delay. The
+	 * delay is timed by the shared {@link ControlReactor}, so no thread is
+	 * tied up while waiting.
+	 */
+	private void schedule(Runnable task, long delayMs) {
+		try {
+			ControlReactor.getShared().schedule(() -> ioExecutor.execute(task), delayMs);
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Could not schedule task: " + e);
+		}
+	}
 
-		@GuardedBy("this")
-		private boolean networkInitialised = false,
-				networkEnabled = false,
-				paddingEnabled = false,
-				ipv6Enabled = false,
-				circuitBuilt = false;
+	/**
+	 * Waits for a command sent on the control connection to complete,
+	 * throwing an IOException if it fails or doesn't complete within
+	 * {@link #COMMAND_TIMEOUT_MS}.
+	 */
+	private static <T> T await(ControlFuture<T> future) throws IOException {
+		try {
+			return future.await(COMMAND_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for Tor");
+		}
+	}
 
-		@GuardedBy("this")
-		private int bootstrapPercentage = 0;
+	/**
+	 * A task for installing one of the binaries.
+	 */
+	protected interface InstallTask {
 
-		@GuardedBy("this")
-		private List<String> bridges = emptyList();
+		void install() throws IOException;
+	}
 
-		@GuardedBy("this")
-		private int orConnectionsConnected = 0;
+	/**
+	 * A source of an asset, which may be opened more than once.
+	 */
+	protected interface AssetSource {
 
-		@GuardedBy("this")
-		@Nullable
-		private TorState state = null;
+		InputStream open() throws IOException;
+	}
 
-		private synchronized void setObserver(@Nullable Observer observer) {
-			this.observer = observer;
-		}
-
-		@GuardedBy("this")
-		private void updateState() {
-			TorState newState = getState();
-			if (newState != state) {
-				state = newState;
-				if (observer != null) {
-					// Notify the observer on the event executor
-					eventExecutor.execute(() -> observer.onState(newState));
-				}
-			}
-		}
+	/**
+	 * A task for one item of a batch.
+	 */
+	private interface BatchTask<I, O> {
 
 		/**
-		 * If the current process state is {@link ProcessState#NOT_STARTED NOT_STARTED} or
-		 * {@link ProcessState#STOPPED STOPPED}, sets the process state to
-		 * {@link ProcessState#STARTING STARTING} and returns true. Otherwise returns false.
+		 * Sends the command for the given item without waiting for the
+		 * reply.
 		 */
-		private synchronized boolean setStarting() {
-			// It's appropriate to call start() if the wrapper has never been started,
-			// or has been started and then stopped
-			if (processState != ProcessState.NOT_STARTED && processState != ProcessState.STOPPED) {
-				return false;
-			}
-			processState = ProcessState.STARTING;
-			updateState();
-			return true;
-		}
+		PendingResult<O> send(I item) throws IOException;
+	}
 
-		private synchronized void setStarted() {
-			// We should always be in the STARTING state when this is called
-			if (processState != ProcessState.STARTING) throw new IllegalStateException();
-			processState = ProcessState.STARTED;
-			updateState();
-		}
-
-		private synchronized void setStartupFailed() {
-			// We should always be in the STARTING state when this is called
-			if (processState != ProcessState.STARTING) throw new IllegalStateException();
-			processState = ProcessState.STOPPED;
-			// Reset all state related to the failed attempt
-			networkInitialised = false;
-			networkEnabled = false;
-			paddingEnabled = false;
-			ipv6Enabled = false;
-			circuitBuilt = false;
-			bootstrapPercentage = 0;
-			bridges = emptyList();
-			orConnectionsConnected = 0;
-			updateState();
-		}
+	/**
+	 * The result of a command that has been sent for one item of a batch.
+	 */
+	private interface PendingResult<O> {
 
 		/**
-		 * Returns true if the current process state is {@link ProcessState#STARTED STARTED}.
+		 * Waits for the reply and returns the item's result.
 		 */
-		@SuppressWarnings("BooleanMethodIsAlwaysInverted")
-		private synchronized boolean isTorRunning() {
-			return processState == ProcessState.STARTED;
-		}
+		O get() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * A step of recovering from the loss of Tor.
+	 */
+	private interface RecoveryStep {
 
 		/**
-		 * If the current process state is {@link ProcessState#STARTING STARTING} or
-		 * {@link ProcessState#STARTED STARTED}, changes the process state to
-		 * {@link ProcessState#STOPPING STOPPING} and returns true. Otherwise returns false.
+		 * Runs the step and returns true if another step has been scheduled.
 		 */
-		private synchronized boolean setStopping() {
-			// It's appropriate to call stop() if start() has returned without throwing
-			// an exception
-			if (processState != ProcessState.STARTED) return false;
-			processState = ProcessState.STOPPING;
-			updateState();
-			return true;
-		}
+		boolean run() throws InterruptedException;
+	}
 
-		private synchronized void setStopped() {
-			// We should always be in the STOPPING state when this is called
-			if (processState != ProcessState.STOPPING) throw new IllegalStateException();
-			processState = ProcessState.STOPPED;
-			// Reset all state related to the process that has stopped
-			networkInitialised = false;
-			networkEnabled = false;
-			paddingEnabled = false;
-			ipv6Enabled = false;
-			circuitBuilt = false;
-			bootstrapPercentage = 0;
-			bridges = emptyList();
-			orConnectionsConnected = 0;
-			updateState();
-		}
+	@Immutable
+	@NotNullByDefault
+	private static class PendingItem<O> {
 
-		private synchronized void setBootstrapPercentage(int percentage) {
-			if (percentage == bootstrapPercentage) return;
-			bootstrapPercentage = percentage;
-			if (observer != null) {
-				// Notify the observer on the event executor
-				eventExecutor.execute(() -> observer.onBootstrapPercentage(percentage));
-			}
-			updateState();
-		}
+		private final int index;
+		private final PendingResult<O> result;
+		private final long start;
 
-		/**
-		 * Sets the `circuitBuilt` flag and returns true if the flag has
-		 * changed.
-		 */
-		private synchronized boolean setCircuitBuilt(boolean built) {
-			if (built == circuitBuilt) return false; // Unchanged
-			circuitBuilt = built;
-			updateState();
-			return true; // Changed
+		private PendingItem(int index, PendingResult<O> result, long start) {
+			this.index = index;
+			this.result = result;
+			this.start = start;
 		}
+	}
 
-		/**
-		 * Sets the `networkEnabled` flag and returns true if the flag has
-		 * changed.
-		 */
-		private synchronized boolean enableNetwork(boolean enable) {
-			boolean wasInitialised = networkInitialised;
-			boolean wasEnabled = networkEnabled;
-			networkInitialised = true;
-			networkEnabled = enable;
-			if (!enable) circuitBuilt = false;
-			if (!wasInitialised || enable != wasEnabled) {
-				updateState();
-			}
-			return enable != wasEnabled;
+	@Immutable
+	@NotNullByDefault
+	private static class PublishedService {
+
+		private final HiddenServiceHandle handle;
+		private final int localPort, remotePort;
+
+		private PublishedService(HiddenServiceHandle handle, int localPort, int remotePort) {
+			this.handle = handle;
+			this.localPort = localPort;
+			this.remotePort = remotePort;
 		}
+	}
 
-		/**
-		 * Sets the `paddingEnabled` flag and returns true if the flag has
-		 * changed. Doesn't affect getState().
-		 */
-		private synchronized boolean enableConnectionPadding(boolean enable) {
-			if (enable == paddingEnabled) return false; // Unchanged
-			paddingEnabled = enable;
-			return true; // Changed
+	@NotThreadSafe
+	@NotNullByDefault
+	private class ConfigurationBuilder implements Configuration {
+
+		@Nullable
+		private Boolean network = null, padding = null, ipv6 = null;
+		@Nullable
+		private List<String> bridges = null;
+		private final Map<String, String> options = new LinkedHashMap<>();
+
+		@Override
+		public Configuration enableNetwork(boolean enable) {
+			network = enable;
+			return this;
 		}
 
-		/**
-		 * Sets the `ipv6Enabled` flag and returns true if the flag has
-		 * changed. Doesn't affect getState().
-		 */
-		private synchronized boolean enableIpv6(boolean enable) {
-			if (enable == ipv6Enabled) return false; // Unchanged
-			ipv6Enabled = enable;
-			return true; // Changed
+		@Override
+		public Configuration enableBridges(List<String> bridges) {
+			if (bridges.isEmpty()) {
+				throw new IllegalArgumentException("Bridges can't be empty.");
+			}
+			this.bridges = new ArrayList<>(bridges);
+			return this;
 		}
 
-		/**
-		 * Sets the list of bridges being used and returns true if the
-		 * list has changed. The list is empty if bridges are disabled.
-		 * Doesn't affect getState().
-		 */
-		@SuppressWarnings("BooleanMethodIsAlwaysInverted")
-		private synchronized boolean setBridges(List<String> bridges) {
-			if (this.bridges.equals(bridges)) return false; // Unchanged
-			this.bridges = bridges;
-			return true; // Changed
+		@Override
+		public Configuration disableBridges() {
+			bridges = emptyList();
+			return this;
 		}
 
-		private synchronized TorState getState() {
-			if (processState == ProcessState.NOT_STARTED) return NOT_STARTED;
-			if (processState == ProcessState.STARTING) return STARTING;
-			if (processState == ProcessState.STOPPING) return STOPPING;
-			if (processState == ProcessState.STOPPED) return STOPPED;
-			if (!networkInitialised) return STARTED;
-			if (!networkEnabled) return DISABLED;
-			return bootstrapPercentage == 100 && circuitBuilt
-					&& orConnectionsConnected > 0 ? CONNECTED : CONNECTING;
+		@Override
+		public Configuration enableConnectionPadding(boolean enable) {
+			padding = enable;
+			return this;
 		}
 
-		private synchronized void onOrConnectionConnected() {
-			int oldConnected = orConnectionsConnected;
-			orConnectionsConnected++;
-			logOrConnections();
-			if (oldConnected == 0) updateState();
+		@Override
+		public Configuration enableIpv6(boolean ipv6Only) {
+			ipv6 = ipv6Only;
+			return this;
 		}
 
-		private synchronized void onOrConnectionClosed() {
-			int oldConnected = orConnectionsConnected;
-			orConnectionsConnected--;
-			if (orConnectionsConnected < 0) {
-				LOG.warning("Count was zero before connection closed");
-				orConnectionsConnected = 0;
+		@Override
+		public Configuration setOption(String key, String value) {
+			if (key.isEmpty() || key.matches(".*\\s.*")) {
+				throw new IllegalArgumentException("Invalid option: " + key);
 			}
-			logOrConnections();
-			if (orConnectionsConnected == 0 && oldConnected != 0) {
-				updateState();
+			if (value.indexOf('\r') != -1 || value.indexOf('\n') != -1) {
+				throw new IllegalArgumentException("Invalid value for option: " + key);
 			}
+			options.put(key, value);
+			return this;
 		}
 
-		@GuardedBy("this")
-		private void logOrConnections() {
-			if (LOG.isLoggable(INFO)) {
-				LOG.info(orConnectionsConnected + " OR connections connected");
+		@Override
+		public void apply() throws IOException {
+			List<String> conf = state.configure(network, bridges, padding, ipv6, options);
+			if (conf.isEmpty()) return; // Unchanged
+			boolean networkChanged = network != null
+					&& conf.contains("DisableNetwork " + (network ? "0" : "1"));
+			if (networkChanged && network) onNetworkEnabledChanged(true);
+			try {
+				// Send all the changes in a single command so Tor applies them
+				// atomically
+				await(getControlConnection().setConf(conf));
+			} finally {
+				if (networkChanged && !network) onNetworkEnabledChanged(false);
 			}
 		}
+	}
+
+	@ThreadSafe
+	@NotNullByDefault
+	private class WatchdogHost implements CircuitWatchdog.Host {
+
+		@Override
+		public boolean isStalled() {
+			return state.getState() == CONNECTING;
+		}
 
-		private synchronized void onHsDescriptorUploaded(String onion) {
-			if (observer != null) {
-				// Notify the observer on the event executor
-				eventExecutor.execute(() -> observer.onHsDescriptorUpload(onion));
+		@Override
+		public boolean takeAction(Action action, @Nullable BridgeSupplier bridgeSupplier)
+				throws IOException {
+			switch (action) {
+				case NEW_CIRCUITS:
+					await(getControlConnection().signal("NEWNYM"));
+					return true;
+				case RESET_NETWORK:
+					// Tor closes its connections when the network is disabled
+					// and reconnects when it's re-enabled. The network state
+					// records the reset, so a concurrent configuration change
+					// isn't undone by re-enabling the network
+					List<String> disable = state.startNetworkReset();
+					if (disable.isEmpty()) return false; // Not enabled
+					await(getControlConnection().setConf(disable));
+					List<String> enable = state.endNetworkReset();
+					if (!enable.isEmpty()) await(getControlConnection().setConf(enable));
+					return true;
+				case SWITCH_BRIDGES:
+					List<String> bridges =
+							bridgeSupplier == null ? null : bridgeSupplier.getNextBridges();
+					if (bridges == null || bridges.isEmpty()) {
+						LOG.info("No more bridges to switch to");
+						return false;
+					}
+					enableBridges(bridges);
+					return true;
+				default:
+					throw new AssertionError();
 			}
 		}
 
-		private synchronized void onClockSkewDetected(long skewSeconds) {
-			if (observer != null) {
-				// Notify the observer on the event executor
-				eventExecutor.execute(() -> observer.onClockSkewDetected(skewSeconds));
-			}
+		@Override
+		public void schedule(Runnable task, long delayMs) {
+			AbstractTorWrapper.this.schedule(task, delayMs);
 		}
 	}
 }
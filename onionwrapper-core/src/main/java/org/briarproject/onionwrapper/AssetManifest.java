@@ -0,0 +1,228 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.briarproject.onionwrapper.TorUtils.tryToClose;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * A record of the assets installed in the Tor directory, containing the
+ * SHA-256 hash and size of each asset and the
+ * {@link AbstractTorWrapper#getLastUpdateTime() update time} of the code that
+ * installed them.
+ * <p>
+ * The manifest is stored as a text file with one line per asset, so checking
+ * whether the installed assets are up to date only requires reading the
+ * manifest, not the assets themselves. If the assets were installed in a
+ * shared cache rather than the Tor directory, the manifest also records the
+ * {@link #getLocation() location} of the assets.
+ */
+@ThreadSafe
+@NotNullByDefault
+class AssetManifest {
+
+	private static final String UPDATE_TIME = "update-time";
+	private static final String LOCATION = "location";
+	private static final String SHA_256 = "sha256";
+
+	private final long updateTime;
+	@Nullable
+	private final File location;
+
+	@GuardedBy("this")
+	private final Map<String, Entry> entries = new TreeMap<>();
+
+	AssetManifest(long updateTime) {
+		this(updateTime, null);
+	}
+
+	AssetManifest(long updateTime, @Nullable File location) {
+		this.updateTime = updateTime;
+		this.location = location;
+	}
+
+	long getUpdateTime() {
+		return updateTime;
+	}
+
+	/**
+	 * Returns the directory where the assets are installed, or null if they
+	 * are installed in the Tor directory.
+	 */
+	@Nullable
+	File getLocation() {
+		return location;
+	}
+
+	@Nullable
+	synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	synchronized void put(String name, Entry entry) {
+		entries.put(name, entry);
+	}
+
+	void putAll(AssetManifest other) {
+		Map<String, Entry> copy;
+		synchronized (other) {
+			copy = new TreeMap<>(other.entries);
+		}
+		synchronized (this) {
+			entries.putAll(copy);
+		}
+	}
+
+	synchronized List<String> getNames() {
+		return new ArrayList<>(entries.keySet());
+	}
+
+	/**
+	 * Returns a hex string identifying the names and hashes of the assets,
+	 * which can be used as the name of a directory holding those assets.
+	 * Sizes are ignored, so the key can be calculated before the assets are
+	 * installed.
+	 */
+	synchronized String getContentKey() {
+		MessageDigest digest = createDigest();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			String line = e.getKey() + ' ' + e.getValue().hash + '\n';
+			digest.update(line.getBytes(UTF_8));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns true if every asset in the manifest exists in the given
+	 * directory and has the expected size.
+	 */
+	synchronized boolean assetsExist(File directory) {
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			File f = new File(directory, e.getKey());
+			if (!f.isFile() || f.length() != e.getValue().size) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a manifest from the given file, returning null if the file does
+	 * not exist or cannot be parsed.
+	 */
+	@Nullable
+	static AssetManifest read(File file) {
+		if (!file.exists()) return null;
+		Scanner scanner = null;
+		try {
+			scanner = new Scanner(new FileInputStream(file), "UTF-8");
+			if (!scanner.hasNextLine()) return null;
+			String[] header = scanner.nextLine().split(" ", 2);
+			if (header.length != 2 || !header[0].equals(UPDATE_TIME)) return null;
+			long updateTime = Long.parseLong(header[1]);
+			List<String> lines = new ArrayList<>();
+			while (scanner.hasNextLine()) lines.add(scanner.nextLine());
+			// The location, if any, comes before the assets
+			File location = null;
+			if (!lines.isEmpty() && lines.get(0).startsWith(LOCATION + ' ')) {
+				location = new File(lines.remove(0).substring(LOCATION.length() + 1));
+			}
+			AssetManifest manifest = new AssetManifest(updateTime, location);
+			for (String line : lines) {
+				String[] fields = line.split(" ", 4);
+				if (fields.length != 4 || !fields[0].equals(SHA_256)) return null;
+				long size = Long.parseLong(fields[2]);
+				manifest.put(fields[3], new Entry(fields[1], size));
+			}
+			return manifest;
+		} catch (IOException | NumberFormatException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Could not read asset manifest: " + e);
+			return null;
+		} finally {
+			if (scanner != null) scanner.close();
+		}
+	}
+
+	/**
+	 * Returns the manifest in the format read by {@link #read(File)}.
+	 */
+	synchronized byte[] toByteArray() {
+		StringBuilder s = new StringBuilder();
+		s.append(UPDATE_TIME).append(' ').append(updateTime).append('\n');
+		if (location != null) {
+			s.append(LOCATION).append(' ').append(location.getAbsolutePath()).append('\n');
+		}
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			s.append(SHA_256).append(' ').append(entry.hash).append(' ').append(entry.size)
+					.append(' ').append(e.getKey()).append('\n');
+		}
+		return s.toString().getBytes(UTF_8);
+	}
+
+	static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Reads the given stream to the end and closes it, returning the SHA-256
+	 * hash of its contents as a hex string.
+	 */
+	static String hash(InputStream in) throws IOException {
+		MessageDigest digest = createDigest();
+		byte[] buf = new byte[8192];
+		try {
+			while (true) {
+				int read = in.read(buf);
+				if (read == -1) break;
+				digest.update(buf, 0, read);
+			}
+		} finally {
+			tryToClose(in, LOG, WARNING);
+		}
+		return toHex(digest.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+	@Immutable
+	@NotNullByDefault
+	static class Entry {
+
+		final String hash;
+		final long size;
+
+		Entry(String hash, long size) {
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Bandwidth used by a Tor process, accumulated from the BW events that Tor
+ * sends once per second while
+ * {@link TorWrapper#enableBandwidthMonitoring(boolean) bandwidth monitoring}
+ * is enabled.
+ * <p>
+ * Each sample is stored in a ring of per-second slots covering the longest
+ * {@link Window}, so rates can be read from any thread without locking.
+ * Rates are averaged over the window's most recent complete seconds, so a
+ * sample is included in the rates from the second after it arrives.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class BandwidthMetrics {
+
+	public enum Window {
+
+		ONE_SECOND(1), ONE_MINUTE(60), FIFTEEN_MINUTES(15 * 60);
+
+		private final int seconds;
+
+		Window(int seconds) {
+			this.seconds = seconds;
+		}
+
+		public int getSeconds() {
+			return seconds;
+		}
+	}
+
+	private static final int SLOTS = Window.FIFTEEN_MINUTES.seconds;
+	private static final long EMPTY = -1;
+
+	private final AtomicLong totalRead = new AtomicLong(0), totalWritten = new AtomicLong(0);
+
+	/**
+	 * The second of each slot's samples, or {@link #EMPTY} while the slot is
+	 * being reset. Readers check the second before and after reading a slot
+	 * to detect whether it was reused in the meantime.
+	 */
+	private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+	private final AtomicLongArray slotRead = new AtomicLongArray(SLOTS);
+	private final AtomicLongArray slotWritten = new AtomicLongArray(SLOTS);
+
+	BandwidthMetrics() {
+		for (int i = 0; i < SLOTS; i++) slotSeconds.set(i, EMPTY);
+	}
+
+	/**
+	 * Returns the total number of bytes read since the wrapper was created.
+	 */
+	public long getTotalBytesRead() {
+		return totalRead.get();
+	}
+
+	/**
+	 * Returns the total number of bytes written since the wrapper was
+	 * created.
+	 */
+	public long getTotalBytesWritten() {
+		return totalWritten.get();
+	}
+
+	/**
+	 * Returns the mean number of bytes read per second over the given window.
+	 */
+	public long getReadRate(Window window) {
+		return getReadRate(window, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the mean number of bytes written per second over the given
+	 * window.
+	 */
+	public long getWriteRate(Window window) {
+		return getWriteRate(window, System.currentTimeMillis());
+	}
+
+	@Override
+	public String toString() {
+		long now = System.currentTimeMillis();
+		StringBuilder s = new StringBuilder();
+		s.append("read ").append(getTotalBytesRead()).append(" B, written ")
+				.append(getTotalBytesWritten()).append(" B");
+		for (Window window : Window.values()) {
+			s.append(", ").append(window.seconds).append(" s: ")
+					.append(getReadRate(window, now)).append('/')
+					.append(getWriteRate(window, now)).append(" B/s");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Records a sample. This should only be called from one thread at a
+	 * time, which is the case for the control connection's event thread.
+	 */
+	void record(long read, long written, long now) {
+		totalRead.addAndGet(read);
+		totalWritten.addAndGet(written);
+		long second = now / 1000;
+		int slot = (int) (second % SLOTS);
+		if (slotSeconds.get(slot) != second) {
+			slotSeconds.set(slot, EMPTY);
+			slotRead.set(slot, read);
+			slotWritten.set(slot, written);
+		} else {
+			slotRead.addAndGet(slot, read);
+			slotWritten.addAndGet(slot, written);
+		}
+		slotSeconds.set(slot, second);
+	}
+
+	long getReadRate(Window window, long now) {
+		return getRate(slotRead, window, now);
+	}
+
+	long getWriteRate(Window window, long now) {
+		return getRate(slotWritten, window, now);
+	}
+
+	private long getRate(AtomicLongArray slotBytes, Window window, long now) {
+		long end = now / 1000; // Exclusive: the current second isn't complete
+		long total = 0;
+		for (long second = end - window.seconds; second < end; second++) {
+			int slot = (int) (second % SLOTS);
+			if (slotSeconds.get(slot) != second) continue;
+			long bytes = slotBytes.get(slot);
+			if (slotSeconds.get(slot) == second) total += bytes;
+		}
+		return total / window.seconds;
+	}
+}
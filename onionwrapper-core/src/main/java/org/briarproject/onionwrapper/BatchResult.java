@@ -0,0 +1,160 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * The results of a batch of operations, such as
+ * {@link TorWrapper#publishHiddenServices(java.util.List)}, with the result
+ * or failure of each item in the batch and the time taken.
+ */
+@Immutable
+@NotNullByDefault
+public class BatchResult<T> {
+
+	private final Object[] results;
+	private final Exception[] failures;
+	private final long[] latencies;
+	private final long duration;
+
+	private BatchResult(Object[] results, Exception[] failures, long[] latencies,
+			long duration) {
+		this.results = results;
+		this.failures = failures;
+		this.latencies = latencies;
+		this.duration = duration;
+	}
+
+	/**
+	 * Returns the number of items in the batch.
+	 */
+	public int size() {
+		return results.length;
+	}
+
+	/**
+	 * Returns the result of the item with the given index, or null if the
+	 * item failed.
+	 */
+	@Nullable
+	@SuppressWarnings("unchecked")
+	public T getResult(int index) {
+		return (T) results[index];
+	}
+
+	/**
+	 * Returns the exception thrown by the item with the given index, or null
+	 * if the item succeeded.
+	 */
+	@Nullable
+	public Exception getFailure(int index) {
+		return failures[index];
+	}
+
+	/**
+	 * Returns the number of items that succeeded.
+	 */
+	public int getSuccessCount() {
+		int count = 0;
+		for (Exception e : failures) if (e == null) count++;
+		return count;
+	}
+
+	/**
+	 * Returns the number of items that failed.
+	 */
+	public int getFailureCount() {
+		return size() - getSuccessCount();
+	}
+
+	/**
+	 * Returns the time between sending the command for the item with the
+	 * given index and receiving the response, in milliseconds.
+	 */
+	public long getLatency(int index) {
+		return NANOSECONDS.toMillis(latencies[index]);
+	}
+
+	/**
+	 * Returns the mean latency of the items in milliseconds, or 0 if the
+	 * batch is empty.
+	 */
+	public long getMeanLatency() {
+		if (latencies.length == 0) return 0;
+		long total = 0;
+		for (long latency : latencies) total += latency;
+		return NANOSECONDS.toMillis(total / latencies.length);
+	}
+
+	/**
+	 * Returns the highest latency of any item in milliseconds, or 0 if the
+	 * batch is empty.
+	 */
+	public long getMaxLatency() {
+		long max = 0;
+		for (long latency : latencies) max = Math.max(max, latency);
+		return NANOSECONDS.toMillis(max);
+	}
+
+	/**
+	 * Returns the time taken by the whole batch in milliseconds.
+	 */
+	public long getDuration() {
+		return NANOSECONDS.toMillis(duration);
+	}
+
+	/**
+	 * Returns the number of items processed per second.
+	 */
+	public double getThroughput() {
+		if (duration == 0) return 0;
+		return results.length * 1_000_000_000.0 / duration;
+	}
+
+	@Override
+	public String toString() {
+		return size() + " items (" + getFailureCount() + " failed) in "
+				+ getDuration() + "ms, " + Math.round(getThroughput()) + "/s, latency mean "
+				+ getMeanLatency() + "ms, max " + getMaxLatency() + "ms";
+	}
+
+	/**
+	 * Records the results of the items as they complete. Items may complete
+	 * on any thread and in any order.
+	 */
+	@ThreadSafe
+	@NotNullByDefault
+	static class Recorder<T> {
+
+		private final long start = System.nanoTime();
+		private final Object[] results;
+		private final Exception[] failures;
+		private final long[] latencies;
+
+		Recorder(int size) {
+			results = new Object[size];
+			failures = new Exception[size];
+			latencies = new long[size];
+		}
+
+		synchronized void succeeded(int index, T result, long latencyNanos) {
+			results[index] = result;
+			latencies[index] = latencyNanos;
+		}
+
+		synchronized void failed(int index, Exception failure, long latencyNanos) {
+			failures[index] = failure;
+			latencies[index] = latencyNanos;
+		}
+
+		synchronized BatchResult<T> build() {
+			return new BatchResult<>(results.clone(), failures.clone(), latencies.clone(),
+					System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Metrics for the circuits built by a Tor process, accumulated from the CIRC
+ * events that the wrapper always receives and, while
+ * {@link TorWrapper#enableCircuitBandwidthMonitoring(boolean) circuit
+ * bandwidth monitoring} is enabled, the CIRC_BW events that report each
+ * circuit's throughput.
+ * <p>
+ * Build times are also broken down by the purpose Tor gives for each
+ * circuit, such as GENERAL or HS_CLIENT_REND, and the reasons Tor gives for
+ * circuits failing or being closed are counted. At most
+ * {@link #MAX_PURPOSES} purposes are kept, after which build times are
+ * recorded under {@link #OTHER_PURPOSE}.
+ * <p>
+ * At most {@link #MAX_TRACKED_CIRCUITS} circuits are tracked at a time,
+ * after which new circuits are only counted as untracked.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class CircuitMetrics {
+
+	public static final int MAX_TRACKED_CIRCUITS = 1024;
+	public static final int MAX_PURPOSES = 32;
+	public static final String OTHER_PURPOSE = "OTHER";
+
+	@GuardedBy("this")
+	private final LatencyHistogram.Recorder buildTimes = new LatencyHistogram.Recorder();
+	@GuardedBy("this")
+	private final Map<String, LatencyHistogram.Recorder> purposeBuildTimes =
+			new LinkedHashMap<>();
+	@GuardedBy("this")
+	private final ReasonCounts failureReasons = new ReasonCounts();
+	@GuardedBy("this")
+	private final ReasonCounts closeReasons = new ReasonCounts();
+	@GuardedBy("this")
+	private final Map<String, Long> launched = new HashMap<>();
+	@GuardedBy("this")
+	private final Map<String, Circuit> built = new LinkedHashMap<>();
+	@GuardedBy("this")
+	private long failed = 0, closed = 0, untracked = 0;
+	@GuardedBy("this")
+	private long totalRead = 0, totalWritten = 0;
+
+	CircuitMetrics() {
+	}
+
+	/**
+	 * Returns the times in milliseconds from circuits being launched to them
+	 * being built.
+	 */
+	public synchronized LatencyHistogram getBuildTimes() {
+		return buildTimes.snapshot();
+	}
+
+	/**
+	 * Returns the build times of the circuits with each purpose, in the
+	 * order the purposes were first seen. Circuits that Tor didn't give a
+	 * purpose for aren't included.
+	 */
+	public synchronized Map<String, LatencyHistogram> getBuildTimesByPurpose() {
+		Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+		for (Map.Entry<String, LatencyHistogram.Recorder> e : purposeBuildTimes.entrySet()) {
+			histograms.put(e.getKey(), e.getValue().snapshot());
+		}
+		return unmodifiableMap(histograms);
+	}
+
+	/**
+	 * Returns the number of circuits that failed for each reason, in the
+	 * order the reasons were first seen. Failures without a reason aren't
+	 * included.
+	 */
+	public synchronized Map<String, Long> getFailureReasons() {
+		return failureReasons.snapshot();
+	}
+
+	/**
+	 * Returns the number of built circuits that were closed for each
+	 * reason, in the order the reasons were first seen. Closures without a
+	 * reason aren't included.
+	 */
+	public synchronized Map<String, Long> getCloseReasons() {
+		return closeReasons.snapshot();
+	}
+
+	/**
+	 * Returns the number of circuits that failed to be built or failed
+	 * after being built.
+	 */
+	public synchronized long getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of built circuits that have been closed.
+	 */
+	public synchronized long getClosedCount() {
+		return closed;
+	}
+
+	/**
+	 * Returns the number of circuits that weren't tracked because
+	 * {@link #MAX_TRACKED_CIRCUITS} circuits were already being tracked.
+	 */
+	public synchronized long getUntrackedCount() {
+		return untracked;
+	}
+
+	/**
+	 * Returns the total number of bytes read on circuits while circuit
+	 * bandwidth monitoring was enabled.
+	 */
+	public synchronized long getTotalBytesRead() {
+		return totalRead;
+	}
+
+	/**
+	 * Returns the total number of bytes written on circuits while circuit
+	 * bandwidth monitoring was enabled.
+	 */
+	public synchronized long getTotalBytesWritten() {
+		return totalWritten;
+	}
+
+	/**
+	 * Returns the circuits that are currently built, in the order they were
+	 * built.
+	 */
+	public synchronized List<CircuitInfo> getOpenCircuits() {
+		List<CircuitInfo> circuits = new ArrayList<>(built.size());
+		for (Map.Entry<String, Circuit> e : built.entrySet()) {
+			Circuit c = e.getValue();
+			circuits.add(new CircuitInfo(e.getKey(), c.purpose, c.buildTime, c.read,
+					c.written));
+		}
+		return unmodifiableList(circuits);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return built.size() + " open circuits, " + failed + " failed, " + closed + " closed, "
+				+ "build times: " + buildTimes.snapshot() + ", failure reasons: "
+				+ failureReasons.snapshot();
+	}
+
+	/**
+	 * Records a CIRC event with its PURPOSE and REASON arguments, which may
+	 * be null.
+	 */
+	synchronized void onCircuitStatus(String status, String id, @Nullable String purpose,
+			@Nullable String reason, long now) {
+		switch (status) {
+			case "LAUNCHED":
+				if (launched.size() + built.size() >= MAX_TRACKED_CIRCUITS) untracked++;
+				else launched.put(id, now);
+				break;
+			case "BUILT":
+				Long start = launched.remove(id);
+				if (start == null) return; // Untracked, or launched before we started
+				long buildTime = now - start;
+				buildTimes.add(buildTime);
+				if (purpose != null) getPurposeBuildTimes(purpose).add(buildTime);
+				built.put(id, new Circuit(purpose, buildTime));
+				break;
+			case "FAILED":
+				// Tor sends CLOSED after FAILED
+				if (launched.remove(id) != null || built.remove(id) != null) {
+					failed++;
+					if (reason != null) failureReasons.add(reason);
+				}
+				break;
+			case "CLOSED":
+				launched.remove(id);
+				if (built.remove(id) != null) {
+					closed++;
+					if (reason != null) closeReasons.add(reason);
+				}
+				break;
+			default:
+				// EXTENDED and GUARD_WAIT don't affect the metrics
+				break;
+		}
+	}
+
+	@GuardedBy("this")
+	private LatencyHistogram.Recorder getPurposeBuildTimes(String purpose) {
+		LatencyHistogram.Recorder recorder = purposeBuildTimes.get(purpose);
+		if (recorder != null) return recorder;
+		if (purposeBuildTimes.size() >= MAX_PURPOSES - 1) purpose = OTHER_PURPOSE;
+		recorder = purposeBuildTimes.get(purpose);
+		if (recorder == null) {
+			recorder = new LatencyHistogram.Recorder();
+			purposeBuildTimes.put(purpose, recorder);
+		}
+		return recorder;
+	}
+
+	/**
+	 * Records a CIRC_BW event.
+	 */
+	synchronized void onCircuitBandwidth(String id, long read, long written) {
+		totalRead += read;
+		totalWritten += written;
+		Circuit c = built.get(id);
+		if (c != null) {
+			c.read += read;
+			c.written += written;
+		}
+	}
+
+	/**
+	 * Forgets the circuits being tracked, which Tor won't send any more
+	 * events about. Called when Tor stops.
+	 */
+	synchronized void clearCircuits() {
+		launched.clear();
+		built.clear();
+	}
+
+	/**
+	 * A circuit that's currently built.
+	 */
+	@Immutable
+	@NotNullByDefault
+	public static class CircuitInfo {
+
+		private final String id;
+		@Nullable
+		private final String purpose;
+		private final long buildTime, read, written;
+
+		private CircuitInfo(String id, @Nullable String purpose, long buildTime, long read,
+				long written) {
+			this.id = id;
+			this.purpose = purpose;
+			this.buildTime = buildTime;
+			this.read = read;
+			this.written = written;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * Returns the purpose Tor gave for the circuit when it was built,
+		 * or null if Tor didn't give a purpose.
+		 */
+		@Nullable
+		public String getPurpose() {
+			return purpose;
+		}
+
+		/**
+		 * Returns the time in milliseconds from the circuit being launched
+		 * to it being built.
+		 */
+		public long getBuildTime() {
+			return buildTime;
+		}
+
+		/**
+		 * Returns the number of bytes read on the circuit while circuit
+		 * bandwidth monitoring was enabled.
+		 */
+		public long getBytesRead() {
+			return read;
+		}
+
+		/**
+		 * Returns the number of bytes written on the circuit while circuit
+		 * bandwidth monitoring was enabled.
+		 */
+		public long getBytesWritten() {
+			return written;
+		}
+
+		@Override
+		public String toString() {
+			return "circuit " + id + " (" + purpose + "): built in " + buildTime + " ms, read "
+					+ read + " B, written " + written + " B";
+		}
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private static class Circuit {
+
+		@Nullable
+		private final String purpose;
+		private final long buildTime;
+		private long read = 0, written = 0;
+
+		private Circuit(@Nullable String purpose, long buildTime) {
+			this.purpose = purpose;
+			this.buildTime = buildTime;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * A watchdog that helps Tor recover when it reports that it can no longer
+ * establish circuits, which often happens after the device's network
+ * changes.
+ * <p>
+ * If circuits haven't been re-established after a grace period, the
+ * watchdog takes the first of its recovery actions, then escalates to the
+ * next action each time the escalation interval passes without recovery.
+ * Once the last action has been taken it is repeated until circuits are
+ * established. To avoid flapping, the watchdog only starts again from the
+ * first action if circuits have stayed established for the stable period;
+ * if they're lost again sooner, escalation carries on where it left off.
+ * <p>
+ * The watchdog records how often each action is taken and how long circuits
+ * take to be established after it, so the actions and timings can be tuned.
+ * <p>
+ * A watchdog should only be used by one {@link TorWrapper} at a time.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class CircuitWatchdog {
+
+	public enum Action {
+
+		/**
+		 * Asks Tor to build new circuits for new streams (SIGNAL NEWNYM).
+		 */
+		NEW_CIRCUITS,
+
+		/**
+		 * Disables and re-enables the network, which makes Tor close its
+		 * connections and reconnect to its guards or bridges.
+		 */
+		RESET_NETWORK,
+
+		/**
+		 * Switches to the next bridges from the {@link BridgeSupplier}. This
+		 * action is skipped if there's no supplier or it has no more bridges.
+		 */
+		SWITCH_BRIDGES
+	}
+
+	/**
+	 * Supplies alternative bridges for the {@link Action#SWITCH_BRIDGES}
+	 * action, such as bridges of a different type.
+	 */
+	public interface BridgeSupplier {
+
+		/**
+		 * Returns the next bridges to try, in the format accepted by
+		 * {@link TorWrapper#enableBridges(List)}, or null if there are no
+		 * more bridges to try.
+		 */
+		@Nullable
+		List<String> getNextBridges();
+	}
+
+	/**
+	 * The wrapper being watched.
+	 */
+	interface Host {
+
+		/**
+		 * Returns true if Tor is running with its network enabled but
+		 * isn't connected.
+		 */
+		boolean isStalled();
+
+		/**
+		 * Returns true if the action was taken, or false if it was skipped.
+		 */
+		boolean takeAction(Action action, @Nullable BridgeSupplier bridgeSupplier)
+				throws IOException;
+
+		/**
+		 * Runs the given task after the given delay on a thread where it may
+		 * block, without tying up a thread while waiting.
+		 */
+		void schedule(Runnable task, long delayMs);
+	}
+
+	public static final long DEFAULT_GRACE_PERIOD_MS = 30 * 1000;
+	public static final long DEFAULT_ESCALATION_INTERVAL_MS = 60 * 1000;
+	public static final long DEFAULT_STABLE_PERIOD_MS = 5 * 60 * 1000;
+
+	private final long gracePeriod, escalationInterval, stablePeriod;
+	private final List<Action> actions;
+	@Nullable
+	private final BridgeSupplier bridgeSupplier;
+
+	@GuardedBy("this")
+	private final int[] attempts = new int[Action.values().length];
+	@GuardedBy("this")
+	private final int[] recoveries = new int[Action.values().length];
+	@GuardedBy("this")
+	private final long[] recoveryTimes = new long[Action.values().length];
+
+	/**
+	 * Incremented whenever a stall ends, so the scheduled escalation steps
+	 * for the stall can tell that they should stop.
+	 */
+	@GuardedBy("this")
+	private int generation = 0;
+	@GuardedBy("this")
+	private boolean stalled = false;
+	/**
+	 * The index of the next action to take.
+	 */
+	@GuardedBy("this")
+	private int level = 0;
+	@GuardedBy("this")
+	@Nullable
+	private Action lastAction = null;
+	@GuardedBy("this")
+	private long lastActionTime = 0, recoveredTime = -1;
+
+	/**
+	 * Creates a watchdog with the default timings.
+	 */
+	public CircuitWatchdog(List<Action> actions, @Nullable BridgeSupplier bridgeSupplier) {
+		this(DEFAULT_GRACE_PERIOD_MS, DEFAULT_ESCALATION_INTERVAL_MS, DEFAULT_STABLE_PERIOD_MS,
+				actions, bridgeSupplier);
+	}
+
+	/**
+	 * @param gracePeriodMs How long to wait for Tor to recover by itself
+	 * 		before taking the first action.
+	 * @param escalationIntervalMs How long to wait after each action before
+	 * 		taking the next.
+	 * @param stablePeriodMs How long circuits must stay established before
+	 * 		escalation starts again from the first action.
+	 * @param actions The actions to take, in order of escalation.
+	 * @param bridgeSupplier A source of bridges for
+	 *        {@link Action#SWITCH_BRIDGES}, or null.
+	 */
+	public CircuitWatchdog(long gracePeriodMs, long escalationIntervalMs, long stablePeriodMs,
+			List<Action> actions, @Nullable BridgeSupplier bridgeSupplier) {
+		if (actions.isEmpty()) throw new IllegalArgumentException();
+		this.gracePeriod = gracePeriodMs;
+		this.escalationInterval = escalationIntervalMs;
+		this.stablePeriod = stablePeriodMs;
+		this.actions = unmodifiableList(new ArrayList<>(actions));
+		this.bridgeSupplier = bridgeSupplier;
+	}
+
+	public List<Action> getActions() {
+		return actions;
+	}
+
+	/**
+	 * Returns the number of times the given action has been taken.
+	 */
+	public synchronized int getAttemptCount(Action action) {
+		return attempts[action.ordinal()];
+	}
+
+	/**
+	 * Returns the number of times circuits were established after the given
+	 * action was taken, before any other action was taken.
+	 */
+	public synchronized int getRecoveryCount(Action action) {
+		return recoveries[action.ordinal()];
+	}
+
+	/**
+	 * Returns the mean time in milliseconds from taking the given action to
+	 * circuits being established, or -1 if circuits have never been
+	 * established after the action.
+	 */
+	public synchronized long getMeanRecoveryTime(Action action) {
+		int i = action.ordinal();
+		return recoveries[i] == 0 ? -1 : recoveryTimes[i] / recoveries[i];
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Action action : Action.values()) {
+			int i = action.ordinal();
+			if (s.length() > 0) s.append(", ");
+			s.append(action).append(": ").append(recoveries[i]).append('/').append(attempts[i])
+					.append(" recovered, mean ").append(getMeanRecoveryTime(action)).append(" ms");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Called when Tor reports that circuits can't be established. Unless a
+	 * stall is already being handled, schedules the first escalation step
+	 * for the end of the grace period.
+	 */
+	void onCircuitLost(Host host) {
+		int stall;
+		synchronized (this) {
+			if (stalled) return;
+			stalled = true;
+			long now = System.currentTimeMillis();
+			if (recoveredTime == -1 || now - recoveredTime >= stablePeriod) level = 0;
+			stall = generation;
+		}
+		host.schedule(() -> escalate(host, stall), gracePeriod);
+	}
+
+	/**
+	 * Called when circuits have been established.
+	 */
+	synchronized void onCircuitEstablished() {
+		if (!stalled) return;
+		long now = System.currentTimeMillis();
+		endStall();
+		recoveredTime = now;
+		if (lastAction != null) {
+			int i = lastAction.ordinal();
+			long time = now - lastActionTime;
+			recoveries[i]++;
+			recoveryTimes[i] += time;
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Circuits established " + time + " ms after " + lastAction);
+			}
+			lastAction = null;
+		}
+	}
+
+	/**
+	 * Stops handling the current stall, if any, without counting it as a
+	 * recovery. Called when Tor stops or the watchdog is replaced.
+	 */
+	synchronized void reset() {
+		if (stalled) endStall();
+		lastAction = null;
+	}
+
+	@GuardedBy("this")
+	private void endStall() {
+		stalled = false;
+		generation++;
+	}
+
+	/**
+	 * Takes the next action, unless the stall has ended, and schedules the
+	 * next step for the end of the escalation interval.
+	 */
+	private void escalate(Host host, int stall) {
+		Action action;
+		synchronized (this) {
+			if (stall != generation) return;
+			if (!host.isStalled()) {
+				// The network has been disabled or Tor has stopped
+				endStall();
+				return;
+			}
+			action = actions.get(Math.min(level, actions.size() - 1));
+			level++;
+		}
+		if (LOG.isLoggable(INFO)) LOG.info("No circuits, taking action " + action);
+		try {
+			if (host.takeAction(action, bridgeSupplier)) {
+				synchronized (this) {
+					attempts[action.ordinal()]++;
+					lastAction = action;
+					lastActionTime = System.currentTimeMillis();
+				}
+			}
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Action " + action + " failed: " + e);
+		}
+		synchronized (this) {
+			if (stall != generation) return;
+		}
+		host.schedule(() -> escalate(host, stall), escalationInterval);
+	}
+}
@@ -0,0 +1,378 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.briarproject.onionwrapper.TorUtils.tryToClose;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * A non-blocking connection to Tor's control port, served by a
+ * {@link ControlReactor}.
+ * <p>
+ * Any number of commands can be in flight at once: each command is written
+ * as soon as it's sent, without waiting for the replies to earlier commands,
+ * and Tor replies to the commands in the order they were sent. Replies are
+ * delivered by completing the {@link ControlFuture futures} returned when
+ * the commands are sent. Events are delivered to the connection's
+ * {@link EventListener listener} on its executor.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class ControlConnection implements Closeable {
+
+	/**
+	 * A listener for asynchronous events received on the connection. All
+	 * calls happen on the executor supplied when connecting.
+	 */
+	public interface EventListener {
+
+		/**
+		 * Called for each event received on the connection.
+		 */
+		void onEvent(ControlReply event);
+
+		/**
+		 * Called when the connection is closed, either by calling
+		 * {@link #close()} or because of an error.
+		 */
+		void onClosed();
+	}
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private final ControlReactor reactor;
+	private final SocketChannel channel;
+	private final EventListener listener;
+	private final Executor eventExecutor;
+
+	// The following fields are only accessed on the reactor thread
+	private final ControlReplyDecoder decoder = new ControlReplyDecoder();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final List<ControlReply> decoded = new ArrayList<>();
+	@Nullable
+	private SelectionKey key = null;
+
+	/**
+	 * The future to complete when the connection is established, or null
+	 * if the connection is established.
+	 */
+	@Nullable
+	private volatile ControlFuture<ControlConnection> connectFuture;
+
+	private final Object lock = new Object();
+
+	/**
+	 * The futures of the commands that are waiting for replies, in the
+	 * order the commands were sent.
+	 */
+	@GuardedBy("lock")
+	private final Deque<ControlFuture<ControlReply>> pending = new ArrayDeque<>();
+	@GuardedBy("lock")
+	private final Deque<ByteBuffer> outgoing = new ArrayDeque<>();
+	@GuardedBy("lock")
+	private boolean writeInterest = false, closed = false;
+
+	ControlConnection(ControlReactor reactor, SocketChannel channel, EventListener listener,
+			Executor eventExecutor, ControlFuture<ControlConnection> connectFuture) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.listener = listener;
+		this.eventExecutor = eventExecutor;
+		this.connectFuture = connectFuture;
+	}
+
+	/**
+	 * Sends a command and returns a future for the reply. The future fails
+	 * with an IOException if Tor replies with an error status or the
+	 * connection is closed before the reply is received.
+	 * <p>
+	 * The future is completed on the reactor thread, so any listeners added
+	 * to it should run on another executor unless they're quick.
+	 *
+	 * @param command The command, without the trailing CRLF. Multi-line
+	 * 		commands are not supported.
+	 */
+	public ControlFuture<ControlReply> sendCommand(String command) {
+		if (command.indexOf('\r') != -1 || command.indexOf('\n') != -1) {
+			throw new IllegalArgumentException("Command contains a line break");
+		}
+		ControlFuture<ControlReply> future = new ControlFuture<>();
+		ByteBuffer buf = ByteBuffer.wrap((command + "\r\n").getBytes(UTF_8));
+		IOException error = null;
+		synchronized (lock) {
+			if (closed) {
+				error = new IOException("Connection closed");
+			} else {
+				pending.add(future);
+				outgoing.add(buf);
+				// If the reactor isn't waiting to write, try to write the
+				// command straight away
+				if (!writeInterest) {
+					try {
+						flush();
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+			}
+		}
+		if (error != null) {
+			future.fail(error);
+			close(error);
+		}
+		return future;
+	}
+
+	/**
+	 * Authenticates with the given auth cookie.
+	 */
+	public ControlFuture<ControlReply> authenticate(byte[] cookie) {
+		return sendCommand("AUTHENTICATE " + AssetManifest.toHex(cookie));
+	}
+
+	/**
+	 * Registers for the given events, replacing any previous registration.
+	 */
+	public ControlFuture<ControlReply> setEvents(Collection<String> events) {
+		return sendCommand(join("SETEVENTS", events));
+	}
+
+	/**
+	 * Queries the given keys. The values can be retrieved from the reply with
+	 * {@link ControlReply#getKeyValues()}.
+	 */
+	public ControlFuture<ControlReply> getInfo(Collection<String> keys) {
+		return sendCommand(join("GETINFO", keys));
+	}
+
+	/**
+	 * Tells Tor to exit when this connection is closed.
+	 */
+	public ControlFuture<ControlReply> takeOwnership() {
+		return sendCommand("TAKEOWNERSHIP");
+	}
+
+	/**
+	 * Sets the given options, each of which is given as a torrc line: the
+	 * option's name, a space and the option's value. All the options are
+	 * set in a single command, so Tor applies them atomically.
+	 */
+	public ControlFuture<ControlReply> setConf(Collection<String> lines) {
+		StringBuilder s = new StringBuilder("SETCONF");
+		for (String line : lines) {
+			int space = line.indexOf(' ');
+			if (space == -1) {
+				s.append(' ').append(line);
+			} else {
+				s.append(' ').append(line, 0, space).append('=');
+				appendQuoted(s, line.substring(space + 1));
+			}
+		}
+		return sendCommand(s.toString());
+	}
+
+	/**
+	 * Resets the given options to their default values.
+	 */
+	public ControlFuture<ControlReply> resetConf(Collection<String> keys) {
+		return sendCommand(join("RESETCONF", keys));
+	}
+
+	/**
+	 * Sends the given signal, such as NEWNYM or TERM.
+	 */
+	public ControlFuture<ControlReply> signal(String signal) {
+		return sendCommand("SIGNAL " + signal);
+	}
+
+	/**
+	 * Publishes a hidden service. The onion address can be retrieved from
+	 * the reply's ServiceID value, and if Tor generated the key, the key can
+	 * be retrieved from the PrivateKey value.
+	 *
+	 * @param keySpec The private key, such as "ED25519-V3:...", or
+	 * 		"NEW:ED25519-V3" to have Tor generate a key.
+	 * @param target The address where connections to the virtual port are
+	 * 		forwarded, such as "127.0.0.1:8080".
+	 */
+	public ControlFuture<ControlReply> addOnion(String keySpec, int virtualPort,
+			String target) {
+		return sendCommand("ADD_ONION " + keySpec + " Port=" + virtualPort + "," + target);
+	}
+
+	/**
+	 * Removes a hidden service published on this connection.
+	 */
+	public ControlFuture<ControlReply> delOnion(String onion) {
+		return sendCommand("DEL_ONION " + onion);
+	}
+
+	/**
+	 * Closes the connection. Any commands waiting for replies fail.
+	 */
+	@Override
+	public void close() {
+		close(new IOException("Connection closed"));
+	}
+
+	/**
+	 * Returns true if the connection has been closed.
+	 */
+	public boolean isClosed() {
+		synchronized (lock) {
+			return closed;
+		}
+	}
+
+	/**
+	 * Called on the reactor thread when the channel has been registered.
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Called on the reactor thread when the connection is established.
+	 */
+	void onConnected() {
+		SelectionKey k = key;
+		if (k != null) k.interestOps(OP_READ);
+		ControlFuture<ControlConnection> f = connectFuture;
+		connectFuture = null;
+		if (f != null && !f.complete(this)) close(); // The caller gave up
+	}
+
+	/**
+	 * Called on the reactor thread when the channel is ready to finish
+	 * connecting.
+	 */
+	void onConnectable() throws IOException {
+		if (channel.finishConnect()) onConnected();
+	}
+
+	/**
+	 * Called on the reactor thread when the channel is readable.
+	 */
+	void onReadable() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read == -1) {
+			close(new IOException("Connection closed by Tor"));
+			return;
+		}
+		readBuffer.flip();
+		decoder.decode(readBuffer, decoded);
+		readBuffer.clear();
+		for (ControlReply reply : decoded) {
+			if (reply.isEvent()) {
+				eventExecutor.execute(() -> listener.onEvent(reply));
+				continue;
+			}
+			ControlFuture<ControlReply> f;
+			synchronized (lock) {
+				f = pending.poll();
+			}
+			if (f == null) throw new IOException("Unexpected reply: " + reply);
+			if (reply.isOk()) f.complete(reply);
+			else f.fail(new IOException(reply.toString()));
+		}
+		decoded.clear();
+	}
+
+	/**
+	 * Called on the reactor thread when the channel is writable.
+	 */
+	void onWritable() throws IOException {
+		synchronized (lock) {
+			flush();
+		}
+	}
+
+	/**
+	 * Called on the reactor thread to register or unregister interest in
+	 * writing, depending on whether there's anything waiting to be written.
+	 */
+	private void updateInterestOps() {
+		SelectionKey k = key;
+		if (k == null || !k.isValid()) return;
+		boolean write;
+		synchronized (lock) {
+			write = writeInterest;
+		}
+		k.interestOps(write ? OP_READ | OP_WRITE : OP_READ);
+	}
+
+	@GuardedBy("lock")
+	private void flush() throws IOException {
+		while (!outgoing.isEmpty()) {
+			ByteBuffer buf = outgoing.peek();
+			channel.write(buf);
+			if (buf.hasRemaining()) break; // The socket's send buffer is full
+			outgoing.poll();
+		}
+		boolean write = !outgoing.isEmpty();
+		if (write != writeInterest) {
+			writeInterest = write;
+			reactor.execute(this::updateInterestOps);
+		}
+	}
+
+	void close(IOException reason) {
+		List<ControlFuture<ControlReply>> toFail;
+		synchronized (lock) {
+			if (closed) return;
+			closed = true;
+			toFail = new ArrayList<>(pending);
+			pending.clear();
+			outgoing.clear();
+		}
+		tryToClose(channel, LOG, WARNING);
+		// Wake the reactor so it stops selecting the channel
+		reactor.wakeup();
+		for (ControlFuture<ControlReply> future : toFail) future.fail(reason);
+		ControlFuture<ControlConnection> f = connectFuture;
+		connectFuture = null;
+		// Only tell the listener if the connection was established
+		if (f == null) eventExecutor.execute(listener::onClosed);
+		else f.fail(reason);
+	}
+
+	/**
+	 * Appends the given value as a quoted string, escaping any quotes and
+	 * backslashes.
+	 */
+	private static void appendQuoted(StringBuilder s, String value) {
+		s.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') s.append('\\');
+			s.append(c);
+		}
+		s.append('"');
+	}
+
+	private static String join(String keyword, Collection<String> args) {
+		StringBuilder s = new StringBuilder(keyword);
+		for (String arg : args) s.append(' ').append(arg);
+		return s.toString();
+	}
+}
@@ -0,0 +1,156 @@
+package org.briarproject.onionwrapper;
+
+import net.freehaven.tor.control.EventHandler;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.ControlConnection.EventListener;
+import org.briarproject.onionwrapper.ControlReply.Line;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * Delivers the events received on a {@link ControlConnection} to a jtorctl
+ * {@link EventHandler}, with the same arguments that jtorctl's own
+ * connection would pass, so handlers don't need to know which client
+ * received the events. Handlers that implement {@link DetailedEventHandler}
+ * also receive the keyword arguments that jtorctl drops.
+ * <p>
+ * Each line of an event is delivered separately. A malformed line is logged
+ * and skipped without affecting the rest of the event.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class ControlEventAdapter implements EventListener {
+
+	private final EventHandler handler;
+	private final ControlLineParser parser = new ControlLineParser();
+
+	ControlEventAdapter(EventHandler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void onEvent(ControlReply event) {
+		for (Line line : event.getLines()) {
+			try {
+				dispatch(line.message);
+			} catch (RuntimeException e) {
+				if (LOG.isLoggable(WARNING)) {
+					LOG.warning("Failed to handle event '" + line.message + "': " + e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onClosed() {
+		handler.controlConnectionClosed();
+	}
+
+	private void dispatch(String message) {
+		int space = message.indexOf(' ');
+		String type = (space == -1 ? message : message.substring(0, space))
+				.toUpperCase(Locale.US);
+		String rest = space == -1 ? "" : message.substring(space + 1);
+		switch (type) {
+			case "CIRC":
+				// CIRC <id> <status> [<path>] [<key>=<value> ...]
+				parser.reset(rest);
+				String circuitId = nextToken();
+				String circuitStatus = nextToken();
+				String path = "";
+				boolean more = parser.next();
+				if (more && !isKeywordArgument(parser.token())) {
+					path = parser.token();
+					more = parser.next();
+				}
+				if (handler instanceof DetailedEventHandler) {
+					String purpose = null, reason = null;
+					for (; more; more = parser.next()) {
+						if (parser.keyEquals("PURPOSE")) purpose = parser.value();
+						else if (parser.keyEquals("REASON")) reason = parser.value();
+					}
+					((DetailedEventHandler) handler).circuitStatus(circuitStatus, circuitId, path,
+							purpose, reason);
+				} else {
+					handler.circuitStatus(circuitStatus, circuitId, path);
+				}
+				break;
+			case "STREAM":
+				// STREAM <id> <status> <circuit id> <target> [<key>=<value> ...]
+				parser.reset(rest);
+				String streamId = nextToken();
+				String streamStatus = nextToken();
+				nextToken();
+				String target = nextToken();
+				if (handler instanceof DetailedEventHandler) {
+					String reason = null, remoteReason = null;
+					while (parser.next()) {
+						if (parser.keyEquals("REASON")) reason = parser.value();
+						else if (parser.keyEquals("REMOTE_REASON")) remoteReason = parser.value();
+					}
+					((DetailedEventHandler) handler).streamStatus(streamStatus, streamId, target,
+							reason, remoteReason);
+				} else {
+					handler.streamStatus(streamStatus, streamId, target);
+				}
+				break;
+			case "ORCONN":
+				// ORCONN <name> <status> [<key>=<value> ...]
+				parser.reset(rest);
+				String orName = nextToken();
+				handler.orConnStatus(nextToken(), orName);
+				break;
+			case "BW":
+				// BW <read> <written> [<key>=<value> ...]
+				parser.reset(rest);
+				long read = Long.parseLong(nextToken());
+				handler.bandwidthUsed(read, Long.parseLong(nextToken()));
+				break;
+			case "NEWDESC":
+				parser.reset(rest);
+				List<String> descriptors = new ArrayList<>();
+				while (parser.next()) descriptors.add(parser.token());
+				handler.newDescriptors(descriptors);
+				break;
+			case "DEBUG":
+			case "INFO":
+			case "NOTICE":
+			case "WARN":
+			case "ERR":
+				handler.message(type, rest);
+				break;
+			default:
+				handler.unrecognized(type, rest);
+				break;
+		}
+	}
+
+	/**
+	 * Returns true if the given token is a keyword argument, such as
+	 * PURPOSE=GENERAL, rather than a positional argument. Positional
+	 * arguments such as circuit paths may also contain '=', but keywords
+	 * only contain capital letters and underscores.
+	 */
+	private static boolean isKeywordArgument(String token) {
+		int equals = token.indexOf('=');
+		if (equals < 1) return false;
+		for (int i = 0; i < equals; i++) {
+			char c = token.charAt(i);
+			if ((c < 'A' || c > 'Z') && c != '_') return false;
+		}
+		return true;
+	}
+
+	private String nextToken() {
+		if (!parser.next()) throw new IllegalArgumentException("Missing argument");
+		return parser.token();
+	}
+}
@@ -0,0 +1,225 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The pending result of an asynchronous operation, such as a command sent
+ * with {@link ControlConnection#sendCommand(String)}.
+ * <p>
+ * Listeners can be added to be told when the operation completes, so callers
+ * don't need to block. This class is used instead of CompletableFuture,
+ * which isn't available on all the Android versions we support.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class ControlFuture<T> implements Future<T> {
+
+	@GuardedBy("this")
+	private boolean done = false, cancelled = false;
+	@GuardedBy("this")
+	@Nullable
+	private T result = null;
+	@GuardedBy("this")
+	@Nullable
+	private Throwable failure = null;
+	@GuardedBy("this")
+	@Nullable
+	private List<ListenerTask> listeners = new ArrayList<>();
+
+	/**
+	 * Completes the future with the given result, returning false if the
+	 * future was already complete.
+	 */
+	boolean complete(T result) {
+		List<ListenerTask> toNotify;
+		synchronized (this) {
+			if (done) return false;
+			done = true;
+			this.result = result;
+			toNotify = takeListeners();
+		}
+		notifyListeners(toNotify);
+		return true;
+	}
+
+	/**
+	 * Completes the future with the given failure, returning false if the
+	 * future was already complete.
+	 */
+	boolean fail(Throwable failure) {
+		List<ListenerTask> toNotify;
+		synchronized (this) {
+			if (done) return false;
+			done = true;
+			this.failure = failure;
+			toNotify = takeListeners();
+		}
+		notifyListeners(toNotify);
+		return true;
+	}
+
+	/**
+	 * Cancels the future. The operation itself can't be cancelled, so if the
+	 * operation is a command, the command may still be executed, but its
+	 * reply will be discarded.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<ListenerTask> toNotify;
+		synchronized (this) {
+			if (done) return false;
+			done = true;
+			cancelled = true;
+			toNotify = takeListeners();
+		}
+		notifyListeners(toNotify);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done) wait();
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = end - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException();
+			wait(Math.max(1, MILLISECONDS.convert(remaining, TimeUnit.NANOSECONDS)));
+		}
+		return getResult();
+	}
+
+	/**
+	 * Waits for the operation to complete and returns its result, or throws
+	 * an IOException if the operation failed, was cancelled or didn't
+	 * complete within the given time. This is convenient for callers that
+	 * need to block.
+	 */
+	public T await(long timeoutMs) throws IOException, InterruptedException {
+		try {
+			return get(timeoutMs, MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause);
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out after " + timeoutMs + " ms");
+		} catch (CancellationException e) {
+			throw new IOException("Cancelled");
+		}
+	}
+
+	/**
+	 * Returns the result of an operation that has completed, or throws an
+	 * IOException if the operation failed or was cancelled. This is
+	 * convenient for listeners, which are only run when the future has
+	 * completed.
+	 *
+	 * @throws IllegalStateException If the future hasn't completed.
+	 */
+	synchronized T getNow() throws IOException {
+		if (!done) throw new IllegalStateException();
+		try {
+			return getResult();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause);
+		} catch (CancellationException e) {
+			throw new IOException("Cancelled");
+		}
+	}
+
+	/**
+	 * Adds a listener that will be run on the given executor when the
+	 * future completes, or straight away if the future has already
+	 * completed.
+	 */
+	public void addListener(Runnable listener, Executor executor) {
+		ListenerTask task = new ListenerTask(listener, executor);
+		synchronized (this) {
+			if (!done) {
+				requireListeners().add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	@GuardedBy("this")
+	private T getResult() throws ExecutionException {
+		if (cancelled) throw new CancellationException();
+		if (failure != null) throw new ExecutionException(failure);
+		//noinspection ConstantConditions
+		return result;
+	}
+
+	@GuardedBy("this")
+	private List<ListenerTask> requireListeners() {
+		if (listeners == null) throw new AssertionError();
+		return listeners;
+	}
+
+	@GuardedBy("this")
+	private List<ListenerTask> takeListeners() {
+		List<ListenerTask> taken = requireListeners();
+		listeners = null;
+		notifyAll();
+		return taken;
+	}
+
+	private void notifyListeners(List<ListenerTask> toNotify) {
+		for (ListenerTask task : toNotify) task.run();
+	}
+
+	@NotNullByDefault
+	private static class ListenerTask {
+
+		private final Runnable listener;
+		private final Executor executor;
+
+		private ListenerTask(Runnable listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+
+		private void run() {
+			try {
+				executor.execute(listener);
+			} catch (RuntimeException e) {
+				TorWrapper.LOG.warning("Could not run listener: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A single-pass tokenizer for Tor control protocol reply lines, such as the
+ * bodies of asynchronous events. A line consists of space-separated tokens,
+ * each of which is either a keyword or a key=value argument, where the value
+ * may be a quoted string containing spaces.
+ * <p>
+ * Tokens are scanned directly over the underlying {@link CharSequence}, so
+ * parsing a line doesn't allocate any intermediate strings, arrays or regexes.
+ * A parser can be reused for any number of lines by calling
+ * {@link #reset(CharSequence)}.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class ControlLineParser {
+
+	private static final int NO_VALUE = -1;
+
+	private CharSequence line = "";
+	private int pos = 0, tokenStart = 0, tokenEnd = 0, valueStart = NO_VALUE;
+	private long longValue = 0;
+
+	/**
+	 * Starts parsing the given line. The parser is positioned before the
+	 * first token, so {@link #next()} must be called to read it.
+	 */
+	ControlLineParser reset(CharSequence line) {
+		this.line = line;
+		pos = 0;
+		tokenStart = 0;
+		tokenEnd = 0;
+		valueStart = NO_VALUE;
+		return this;
+	}
+
+	/**
+	 * Advances to the next token and returns true, or returns false if there
+	 * are no more tokens in the line.
+	 */
+	boolean next() {
+		int length = line.length();
+		while (pos < length && line.charAt(pos) == ' ') pos++;
+		valueStart = NO_VALUE;
+		if (pos == length) {
+			tokenStart = length;
+			tokenEnd = length;
+			return false;
+		}
+		tokenStart = pos;
+		boolean quoted = false;
+		while (pos < length) {
+			char c = line.charAt(pos);
+			if (quoted) {
+				if (c == '\\') pos++; // Skip the escaped character
+				else if (c == '"') quoted = false;
+			} else if (c == ' ') {
+				break;
+			} else if (c == '=' && valueStart == NO_VALUE) {
+				valueStart = pos + 1;
+				quoted = pos + 1 < length && line.charAt(pos + 1) == '"';
+				if (quoted) pos++;
+			}
+			pos++;
+		}
+		tokenEnd = Math.min(pos, length);
+		return true;
+	}
+
+	/**
+	 * Skips the given number of tokens and returns true, or returns false if
+	 * the line contains fewer tokens.
+	 */
+	boolean skip(int tokens) {
+		for (int i = 0; i < tokens; i++) {
+			if (!next()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the current token is exactly equal to the given keyword.
+	 */
+	boolean tokenEquals(String keyword) {
+		return regionEquals(tokenStart, tokenEnd, keyword);
+	}
+
+	/**
+	 * Returns true if the current token is a key=value argument with the
+	 * given key.
+	 */
+	boolean keyEquals(String key) {
+		return valueStart != NO_VALUE && regionEquals(tokenStart, valueStart - 1, key);
+	}
+
+	/**
+	 * Advances to the next key=value argument with the given key and returns
+	 * true, or returns false if there is no such argument in the rest of the
+	 * line.
+	 */
+	boolean findKey(String key) {
+		while (next()) {
+			if (keyEquals(key)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the current token is a key=value argument whose value is
+	 * a valid decimal long.
+	 */
+	boolean hasLongValue() {
+		return parseLongValue();
+	}
+
+	/**
+	 * Parses the value of the current key=value argument as a decimal
+	 * integer, returning the given default value if the current token has no
+	 * value or the value is not a valid long.
+	 */
+	long valueAsLong(long defaultValue) {
+		return parseLongValue() ? longValue : defaultValue;
+	}
+
+	/**
+	 * Parses the value of the current key=value argument as a decimal
+	 * integer, returning the given default value if the current token has no
+	 * value or the value is not a valid int.
+	 */
+	int valueAsInt(int defaultValue) {
+		if (!parseLongValue()) return defaultValue;
+		if (longValue < Integer.MIN_VALUE || longValue > Integer.MAX_VALUE) return defaultValue;
+		return (int) longValue;
+	}
+
+	/**
+	 * Returns the current token as a string.
+	 */
+	String token() {
+		return line.subSequence(tokenStart, tokenEnd).toString();
+	}
+
+	/**
+	 * Returns the value of the current key=value argument as a string, without
+	 * any surrounding quotes, or null if the current token has no value.
+	 */
+	@Nullable
+	String value() {
+		if (valueStart == NO_VALUE) return null;
+		int start = valueStart, end = tokenEnd;
+		if (end - start >= 2 && line.charAt(start) == '"' && line.charAt(end - 1) == '"') {
+			start++;
+			end--;
+		}
+		return line.subSequence(start, end).toString();
+	}
+
+	@Override
+	public String toString() {
+		return line.toString();
+	}
+
+	/**
+	 * Parses the value of the current key=value argument as a decimal long,
+	 * storing the result in {@link #longValue}, and returns true if the value
+	 * is valid.
+	 */
+	private boolean parseLongValue() {
+		if (valueStart == NO_VALUE || valueStart == tokenEnd) return false;
+		int i = valueStart;
+		boolean negative = line.charAt(i) == '-';
+		if (negative || line.charAt(i) == '+') {
+			i++;
+			if (i == tokenEnd) return false;
+		}
+		long value = 0;
+		for (; i < tokenEnd; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9) return false;
+			// Accumulate negatively so that Long.MIN_VALUE can be parsed
+			if (value < (Long.MIN_VALUE + digit) / 10) return false;
+			value = value * 10 - digit;
+		}
+		if (negative) {
+			longValue = value;
+		} else {
+			if (value == Long.MIN_VALUE) return false;
+			longValue = -value;
+		}
+		return true;
+	}
+
+	private boolean regionEquals(int start, int end, String s) {
+		int length = s.length();
+		if (end - start != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(start + i) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+}
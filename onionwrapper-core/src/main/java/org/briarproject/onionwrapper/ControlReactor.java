@@ -0,0 +1,261 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.ControlConnection.EventListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorUtils.tryToClose;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * A single thread that serves any number of {@link ControlConnection control
+ * connections} using non-blocking IO, so many wrappers can share one thread
+ * rather than each connection having its own reader thread.
+ * <p>
+ * The thread also runs {@link #schedule(Runnable, long) delayed tasks}, so
+ * waiting for a delay doesn't tie up a thread of its own.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class ControlReactor implements Closeable {
+
+	/**
+	 * The reactor shared by all the wrappers in this process.
+	 */
+	@GuardedBy("ControlReactor.class")
+	@Nullable
+	private static ControlReactor shared = null;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+
+	/**
+	 * Delayed tasks in the order they're due. Only accessed by the reactor
+	 * thread.
+	 */
+	private final PriorityQueue<DelayedTask> delayedTasks = new PriorityQueue<>();
+	private long nextSequenceNumber = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a reactor and starts its thread.
+	 */
+	public ControlReactor() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this::run, "ControlReactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the reactor shared by all the wrappers in this process,
+	 * creating it if it doesn't exist or has stopped.
+	 */
+	static synchronized ControlReactor getShared() throws IOException {
+		ControlReactor reactor = shared;
+		if (reactor == null || reactor.closed) {
+			reactor = new ControlReactor();
+			shared = reactor;
+		}
+		return reactor;
+	}
+
+	/**
+	 * Connects to a control port and returns a future for the connection.
+	 * The future fails with an IOException if the connection can't be
+	 * established.
+	 *
+	 * @param listener The listener for events received on the connection.
+	 * @param eventExecutor The executor on which to call the listener. To
+	 * 		ensure that events are observed in the order they occur, this
+	 * 		executor should have a single thread.
+	 */
+	public ControlFuture<ControlConnection> connect(InetSocketAddress address,
+			EventListener listener, Executor eventExecutor) {
+		ControlFuture<ControlConnection> future = new ControlFuture<>();
+		execute(() -> {
+			if (closed) {
+				future.fail(new IOException("Reactor closed"));
+				return;
+			}
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				ControlConnection c = new ControlConnection(this, channel, listener,
+						eventExecutor, future);
+				boolean connected = channel.connect(address);
+				SelectionKey key = channel.register(selector, connected ? OP_READ : OP_CONNECT, c);
+				c.setKey(key);
+				if (connected) c.onConnected();
+			} catch (IOException e) {
+				tryToClose(channel, LOG, WARNING);
+				future.fail(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stops the reactor and closes all its connections.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		if (Thread.currentThread() == thread) return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the given task on the reactor thread.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the given task on the reactor thread after the given delay. Tasks
+	 * with the same due time run in the order they were scheduled. The task
+	 * must not block, so any blocking work should be handed to another
+	 * executor. Tasks that haven't run when the reactor closes are dropped.
+	 */
+	public void schedule(Runnable task, long delayMs) {
+		long due = System.nanoTime() + MILLISECONDS.toNanos(delayMs);
+		execute(() -> delayedTasks.add(new DelayedTask(due, nextSequenceNumber++, task)));
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				DelayedTask next = delayedTasks.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					long waitNs = next.due - System.nanoTime();
+					// select(0) waits indefinitely, so poll if a task is due
+					if (waitNs < MILLISECONDS.toNanos(1)) selector.selectNow();
+					else selector.select(waitNs / MILLISECONDS.toNanos(1));
+				}
+				runTasks();
+				runDelayedTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handle(key);
+				}
+			}
+		} catch (IOException e) {
+			if (LOG.isLoggable(WARNING)) LOG.warning("Reactor failed: " + e);
+		} finally {
+			closed = true;
+			List<ControlConnection> open = new ArrayList<>();
+			for (SelectionKey key : selector.keys()) {
+				open.add((ControlConnection) key.attachment());
+			}
+			for (ControlConnection c : open) c.close(new IOException("Reactor closed"));
+			// Fail any connections that were requested after closing
+			runTasks();
+			tryToClose(selector, LOG, WARNING);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				if (LOG.isLoggable(WARNING)) LOG.warning("Reactor task failed: " + e);
+			}
+		}
+	}
+
+	private void runDelayedTasks() {
+		long now = System.nanoTime();
+		DelayedTask next;
+		while ((next = delayedTasks.peek()) != null && next.due - now <= 0) {
+			delayedTasks.poll();
+			try {
+				next.task.run();
+			} catch (RuntimeException e) {
+				if (LOG.isLoggable(WARNING)) LOG.warning("Delayed task failed: " + e);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		ControlConnection c = (ControlConnection) key.attachment();
+		try {
+			if (key.isConnectable()) c.onConnectable();
+			if (key.isValid() && key.isReadable()) c.onReadable();
+			if (key.isValid() && key.isWritable()) c.onWritable();
+		} catch (IOException e) {
+			c.close(e);
+		} catch (CancelledKeyException e) {
+			// The connection was closed by another thread
+		} catch (RuntimeException e) {
+			// Don't let one connection's listener stop the reactor
+			if (LOG.isLoggable(WARNING)) LOG.warning("Connection failed: " + e);
+			c.close(new IOException(e));
+		}
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class DelayedTask implements Comparable<DelayedTask> {
+
+		private final long due, sequenceNumber;
+		private final Runnable task;
+
+		private DelayedTask(long due, long sequenceNumber, Runnable task) {
+			this.due = due;
+			this.sequenceNumber = sequenceNumber;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(DelayedTask d) {
+			// Compare due times by difference, as nanoTime() may overflow
+			long diff = due - d.due;
+			if (diff == 0) diff = sequenceNumber - d.sequenceNumber;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
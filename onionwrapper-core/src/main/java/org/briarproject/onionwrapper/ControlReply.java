@@ -0,0 +1,104 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * A reply to a Tor control command, or an asynchronous event, consisting of
+ * one or more lines. Each line has a status code, a message and, for lines
+ * that are followed by a data block, the data.
+ */
+@Immutable
+@NotNullByDefault
+public class ControlReply {
+
+	private final List<Line> lines;
+
+	ControlReply(List<Line> lines) {
+		if (lines.isEmpty()) throw new IllegalArgumentException();
+		this.lines = unmodifiableList(new ArrayList<>(lines));
+	}
+
+	/**
+	 * Returns the status code of the reply, which is the status code of its
+	 * last line.
+	 */
+	public int getStatus() {
+		return lines.get(lines.size() - 1).status;
+	}
+
+	/**
+	 * Returns true if the status code indicates success.
+	 */
+	public boolean isOk() {
+		int status = getStatus();
+		return status >= 200 && status < 300;
+	}
+
+	/**
+	 * Returns true if the reply is an asynchronous event.
+	 */
+	public boolean isEvent() {
+		return getStatus() / 100 == 6;
+	}
+
+	/**
+	 * Returns the message of the first line, which for an event is the event
+	 * type followed by the event's arguments.
+	 */
+	public String getMessage() {
+		return lines.get(0).message;
+	}
+
+	public List<Line> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Returns the keyword=value pairs in the reply, such as the replies to
+	 * GETINFO and GETCONF. The value of a line with a data block is the
+	 * data. Lines without an '=' are ignored.
+	 */
+	public Map<String, String> getKeyValues() {
+		Map<String, String> values = new LinkedHashMap<>();
+		for (Line line : lines) {
+			int eq = line.message.indexOf('=');
+			if (eq == -1) continue;
+			String key = line.message.substring(0, eq);
+			String value = line.data == null ? line.message.substring(eq + 1) : line.data;
+			values.put(key, value);
+		}
+		return unmodifiableMap(values);
+	}
+
+	@Override
+	public String toString() {
+		return getStatus() + " " + getMessage();
+	}
+
+	@Immutable
+	@NotNullByDefault
+	public static class Line {
+
+		public final int status;
+		public final String message;
+		@Nullable
+		public final String data;
+
+		Line(int status, String message, @Nullable String data) {
+			this.status = status;
+			this.message = message;
+			this.data = data;
+		}
+	}
+}
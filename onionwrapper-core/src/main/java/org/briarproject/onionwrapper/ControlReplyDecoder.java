@@ -0,0 +1,113 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.ControlReply.Line;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+
+/**
+ * An incremental decoder for replies and events received on a Tor control
+ * connection. Bytes can be fed to the decoder in chunks of any size, and
+ * each reply is returned as soon as its last line has been decoded.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class ControlReplyDecoder {
+
+	/**
+	 * The maximum length of a line, to protect against a misbehaving peer.
+	 * Data blocks may be longer, as they're made up of many lines.
+	 */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private final List<Line> lines = new ArrayList<>();
+
+	private byte[] line = new byte[256];
+	private int lineLength = 0;
+
+	/**
+	 * The data block being decoded, or null if no data block is being
+	 * decoded.
+	 */
+	@Nullable
+	private StringBuilder data = null;
+	private int dataStatus = 0;
+	private String dataMessage = "";
+
+	/**
+	 * Decodes the remaining bytes in the given buffer and adds any complete
+	 * replies to the given list. Any partial line is kept until the rest of
+	 * it is fed to the decoder.
+	 *
+	 * @throws IOException If the bytes are not a valid reply.
+	 */
+	void decode(ByteBuffer in, List<ControlReply> out) throws IOException {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') length--;
+				lineLength = 0;
+				decodeLine(new String(line, 0, length, UTF_8), out);
+			} else {
+				if (lineLength == MAX_LINE_LENGTH) throw new IOException("Line too long");
+				if (lineLength == line.length) {
+					byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+					System.arraycopy(line, 0, bigger, 0, lineLength);
+					line = bigger;
+				}
+				line[lineLength++] = b;
+			}
+		}
+	}
+
+	private void decodeLine(String s, List<ControlReply> out) throws IOException {
+		if (data != null) {
+			if (s.equals(".")) {
+				// Remove the newline after the last line of data
+				if (data.length() > 0) data.setLength(data.length() - 1);
+				lines.add(new Line(dataStatus, dataMessage, data.toString()));
+				data = null;
+			} else {
+				// A leading dot is escaped by doubling it
+				if (s.startsWith(".")) data.append(s, 1, s.length());
+				else data.append(s);
+				data.append('\n');
+			}
+			return;
+		}
+		if (s.length() < 4) throw new IOException("Malformed line");
+		int status = 0;
+		for (int i = 0; i < 3; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') throw new IOException("Malformed status code");
+			status = status * 10 + (c - '0');
+		}
+		String message = s.substring(4);
+		switch (s.charAt(3)) {
+			case '-':
+				lines.add(new Line(status, message, null));
+				break;
+			case '+':
+				data = new StringBuilder();
+				dataStatus = status;
+				dataMessage = message;
+				break;
+			case ' ':
+				lines.add(new Line(status, message, null));
+				out.add(new ControlReply(lines));
+				lines.clear();
+				break;
+			default:
+				throw new IOException("Malformed line");
+		}
+	}
+}
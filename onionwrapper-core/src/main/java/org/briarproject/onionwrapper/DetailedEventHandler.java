@@ -0,0 +1,31 @@
+package org.briarproject.onionwrapper;
+
+import net.freehaven.tor.control.EventHandler;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+
+/**
+ * An {@link EventHandler} that also receives the keyword arguments that
+ * jtorctl's interface has no room for. If a {@link ControlEventAdapter}'s
+ * handler implements this interface, the adapter calls these methods
+ * instead of their jtorctl counterparts.
+ */
+@NotNullByDefault
+interface DetailedEventHandler extends EventHandler {
+
+	/**
+	 * Called for a CIRC event, with the event's PURPOSE and REASON
+	 * arguments, or null for arguments the event doesn't have.
+	 */
+	void circuitStatus(String status, String id, String path, @Nullable String purpose,
+			@Nullable String reason);
+
+	/**
+	 * Called for a STREAM event, with the event's REASON and REMOTE_REASON
+	 * arguments, or null for arguments the event doesn't have.
+	 */
+	void streamStatus(String status, String id, String target, @Nullable String reason,
+			@Nullable String remoteReason);
+}
@@ -0,0 +1,193 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.unmodifiableSet;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+
+/**
+ * A subscription to Tor's control port events, created by
+ * {@link TorWrapper#subscribe(Collection, Filter, Listener, Executor, int, OverflowPolicy)}.
+ * <p>
+ * Each subscription has its own bounded queue, drained by a task on its own
+ * executor, so a slow listener only delays its own events. When the queue
+ * is full, the subscription's {@link OverflowPolicy} decides what happens.
+ * Events are queued on the thread that reads from the control port, which
+ * also carries the replies to commands, so queueing an event never waits
+ * and there's no policy that waits for room in the queue.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class EventSubscription {
+
+	public enum OverflowPolicy {
+
+		/**
+		 * Drops the new event.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * Drops the oldest queued event to make room for the new event.
+		 */
+		DROP_OLDEST
+	}
+
+	public interface Listener {
+
+		/**
+		 * Called on the subscription's executor for each event that passes
+		 * the subscription's filter, in the order the events were received.
+		 */
+		void onEvent(TorEvent e);
+	}
+
+	public interface Filter {
+
+		/**
+		 * Returns true if the event should be delivered. This is called on
+		 * the wrapper's event thread, so it should be quick.
+		 */
+		boolean accept(TorEvent e);
+	}
+
+	private final Set<String> eventTypes;
+	@Nullable
+	private final Filter filter;
+	private final Listener listener;
+	private final Executor executor;
+	private final BlockingQueue<TorEvent> queue;
+	private final OverflowPolicy policy;
+
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+	private final AtomicLong delivered = new AtomicLong(0), dropped = new AtomicLong(0);
+
+	private volatile boolean cancelled = false;
+
+	EventSubscription(Collection<String> eventTypes, @Nullable Filter filter, Listener listener,
+			Executor executor, int capacity, OverflowPolicy policy) {
+		if (eventTypes.isEmpty() || capacity < 1) throw new IllegalArgumentException();
+		Set<String> types = new HashSet<>();
+		for (String type : eventTypes) {
+			if (type.isEmpty() || type.matches(".*\\s.*")) {
+				throw new IllegalArgumentException("Invalid event type: " + type);
+			}
+			types.add(type.toUpperCase(Locale.US));
+		}
+		this.eventTypes = unmodifiableSet(types);
+		this.filter = filter;
+		this.listener = listener;
+		this.executor = executor;
+		this.policy = policy;
+		queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	public Set<String> getEventTypes() {
+		return eventTypes;
+	}
+
+	/**
+	 * Returns the number of events that have been delivered to the listener.
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * Returns the number of events that have been dropped because the queue
+	 * was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of events waiting to be delivered.
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns true if the subscription has been cancelled with
+	 * {@link TorWrapper#unsubscribe(EventSubscription)}.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public String toString() {
+		return eventTypes + ": " + delivered.get() + " delivered, " + dropped.get()
+				+ " dropped, " + getQueuedCount() + " queued";
+	}
+
+	boolean wants(String type) {
+		return !cancelled && eventTypes.contains(type);
+	}
+
+	/**
+	 * Called on the wrapper's event thread to queue an event of one of the
+	 * subscribed types. This never waits.
+	 */
+	void offer(TorEvent e) {
+		if (filter != null && !filter.accept(e)) return;
+		switch (policy) {
+			case DROP_NEWEST:
+				if (!queue.offer(e)) dropped.incrementAndGet();
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(e)) {
+					if (queue.poll() != null) dropped.incrementAndGet();
+				}
+				break;
+			default:
+				throw new AssertionError();
+		}
+		scheduleDrain();
+	}
+
+	void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true)) executor.execute(this::drain);
+	}
+
+	private void drain() {
+		while (true) {
+			TorEvent e;
+			while ((e = queue.poll()) != null) {
+				if (cancelled) return;
+				try {
+					listener.onEvent(e);
+				} catch (RuntimeException ex) {
+					if (LOG.isLoggable(WARNING)) {
+						LOG.warning("Event listener threw an exception: " + ex);
+					}
+				}
+				delivered.incrementAndGet();
+			}
+			drainScheduled.set(false);
+			// An event may have been queued after the queue was found to be
+			// empty but before the flag was cleared
+			if (queue.isEmpty() || !drainScheduled.compareAndSet(false, true)) return;
+		}
+	}
+}
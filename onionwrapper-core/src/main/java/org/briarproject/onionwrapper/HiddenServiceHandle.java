@@ -0,0 +1,157 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+
+import java.io.IOException;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Tracks the uploads of a published hidden service's descriptor to the
+ * hidden service directories. A service can't be reached by clients until
+ * its descriptor has been uploaded, so {@link #getReachableFuture()} can be
+ * used to wait until the service is actually reachable, rather than just
+ * published.
+ * <p>
+ * Tor uploads the descriptor to several directories, and uploads it again
+ * from time to time. The counts returned by this class cover all uploads
+ * since the service was published.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class HiddenServiceHandle {
+
+	private final HiddenServiceProperties properties;
+	private final int quorum;
+	private final long publishTime;
+	private final ControlFuture<HiddenServiceHandle> reachable = new ControlFuture<>();
+
+	@GuardedBy("this")
+	private int started = 0, succeeded = 0, failed = 0, retries = 0;
+	/**
+	 * The number of uploads that have succeeded or failed since the service
+	 * was last (re)published.
+	 */
+	@GuardedBy("this")
+	private int startedSinceRetry = 0, finishedSinceRetry = 0;
+	@GuardedBy("this")
+	private long firstUploadLatency = -1, reachableLatency = -1;
+
+	HiddenServiceHandle(HiddenServiceProperties properties, int quorum, long publishTime) {
+		if (quorum < 1) throw new IllegalArgumentException();
+		this.properties = properties;
+		this.quorum = quorum;
+		this.publishTime = publishTime;
+	}
+
+	public HiddenServiceProperties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Returns the number of successful uploads needed before the service is
+	 * considered reachable.
+	 */
+	public int getQuorum() {
+		return quorum;
+	}
+
+	/**
+	 * Returns a future that completes when the number of successful uploads
+	 * reaches the {@link #getQuorum() quorum}, or fails if the service is
+	 * removed or Tor stops before then.
+	 */
+	public ControlFuture<HiddenServiceHandle> getReachableFuture() {
+		return reachable;
+	}
+
+	public synchronized int getUploadCount() {
+		return started;
+	}
+
+	public synchronized int getSuccessCount() {
+		return succeeded;
+	}
+
+	public synchronized int getFailureCount() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of times the service has been republished because
+	 * all the uploads of its descriptor failed.
+	 */
+	public synchronized int getRetryCount() {
+		return retries;
+	}
+
+	/**
+	 * Returns the time in milliseconds from publishing the service to the
+	 * first successful upload, or -1 if no upload has succeeded.
+	 */
+	public synchronized long getFirstUploadLatency() {
+		return firstUploadLatency;
+	}
+
+	/**
+	 * Returns the time in milliseconds from publishing the service to
+	 * reaching the quorum, or -1 if the quorum hasn't been reached.
+	 */
+	public synchronized long getReachableLatency() {
+		return reachableLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return TorUtils.scrubOnion(properties.onion) + ": " + succeeded + "/" + started
+				+ " uploads succeeded, " + failed + " failed, " + retries + " retries";
+	}
+
+	synchronized void onUploadStarted() {
+		started++;
+		startedSinceRetry++;
+	}
+
+	void onUploadSucceeded(long now) {
+		boolean reachedQuorum;
+		synchronized (this) {
+			succeeded++;
+			finishedSinceRetry++;
+			if (firstUploadLatency == -1) firstUploadLatency = now - publishTime;
+			reachedQuorum = succeeded == quorum;
+			if (reachedQuorum) reachableLatency = now - publishTime;
+		}
+		if (reachedQuorum) reachable.complete(this);
+	}
+
+	/**
+	 * Records a failed upload and returns true if the service should be
+	 * republished, which is the case if every upload since the service was
+	 * last (re)published has finished and the quorum hasn't been reached.
+	 */
+	synchronized boolean onUploadFailed() {
+		failed++;
+		finishedSinceRetry++;
+		return succeeded < quorum && finishedSinceRetry >= startedSinceRetry;
+	}
+
+	/**
+	 * Records that the service is being republished and returns the number
+	 * of previous retries.
+	 */
+	synchronized int onRetry() {
+		startedSinceRetry = 0;
+		finishedSinceRetry = 0;
+		return retries++;
+	}
+
+	synchronized boolean isReachable() {
+		return succeeded >= quorum;
+	}
+
+	void onRemoved(String reason) {
+		reachable.fail(new IOException(reason));
+	}
+}
@@ -0,0 +1,101 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A histogram of latencies in milliseconds with fixed buckets, so its size
+ * doesn't depend on the number of samples.
+ */
+@Immutable
+@NotNullByDefault
+public class LatencyHistogram {
+
+	/**
+	 * The upper bounds in milliseconds of the buckets. The last bucket has
+	 * no upper bound.
+	 */
+	private static final long[] BUCKET_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10_000,
+			30_000, 60_000, Long.MAX_VALUE};
+
+	private final long[] counts;
+	private final long count, total;
+
+	private LatencyHistogram(long[] counts, long count, long total) {
+		this.counts = counts;
+		this.count = count;
+		this.total = total;
+	}
+
+	/**
+	 * Returns the upper bounds in milliseconds of the buckets. The last bound
+	 * is {@link Long#MAX_VALUE}.
+	 */
+	public static long[] getBucketBounds() {
+		return BUCKET_BOUNDS.clone();
+	}
+
+	/**
+	 * Returns the number of samples in each bucket.
+	 */
+	public long[] getCounts() {
+		return counts.clone();
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the mean latency in milliseconds, or -1 if there are no
+	 * samples.
+	 */
+	public long getMean() {
+		return count == 0 ? -1 : total / count;
+	}
+
+	/**
+	 * Returns the upper bound in milliseconds of the bucket containing the
+	 * given percentile, {@link Long#MAX_VALUE} if the percentile falls in the
+	 * last bucket, or -1 if there are no samples.
+	 */
+	public long getPercentile(int percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+		if (count == 0) return -1;
+		long rank = Math.max(1, (count * percentile + 99) / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return BUCKET_BOUNDS[i];
+		}
+		throw new AssertionError();
+	}
+
+	@Override
+	public String toString() {
+		return count + " samples, mean " + getMean() + " ms, median <= " + getPercentile(50)
+				+ " ms, 90th percentile <= " + getPercentile(90) + " ms";
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	static class Recorder {
+
+		private final long[] counts = new long[BUCKET_BOUNDS.length];
+		private long count = 0, total = 0;
+
+		void add(long latency) {
+			int i = 0;
+			while (latency > BUCKET_BOUNDS[i]) i++;
+			counts[i]++;
+			count++;
+			total += latency;
+		}
+
+		LatencyHistogram snapshot() {
+			return new LatencyHistogram(counts.clone(), count, total);
+		}
+	}
+}
@@ -0,0 +1,481 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceSpec;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.logging.Level.INFO;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.DISABLED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.NOT_STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPING;
+
+/**
+ * The network state of a {@link TorWrapper}, held in an immutable
+ * {@link StateRecord} that is replaced atomically by each transition.
+ * Reading the state is a single volatile load, so polling
+ * {@link TorWrapper#getTorState()} never contends with the event thread.
+ */
+@ThreadSafe
+@NotNullByDefault
+class NetworkState {
+
+	private final NotificationDispatcher dispatcher;
+
+	private final AtomicReference<StateRecord> current =
+			new AtomicReference<>(StateRecord.INITIAL);
+
+	/**
+	 * The last state the observer was notified about. Only updated by
+	 * notification tasks running on the event executor.
+	 */
+	private final AtomicReference<StateRecord> notified =
+			new AtomicReference<>(StateRecord.INITIAL);
+
+	@Nullable
+	private volatile Observer observer = null;
+
+	NetworkState(NotificationDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	void setObserver(@Nullable Observer observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * Applies the given transition atomically and returns the state it
+	 * was applied to. If the state has changed in a way the observer can
+	 * see, the observer is notified.
+	 */
+	StateRecord transition(StateTransition t) {
+		while (true) {
+			StateRecord before = current.get();
+			StateRecord after = t.apply(before);
+			if (after == before) return before; // Unchanged
+			if (current.compareAndSet(before, after)) {
+				if (after.torState != before.torState
+						|| after.bootstrapPercentage != before.bootstrapPercentage) {
+					notifyObserver(after);
+				}
+				return before;
+			}
+		}
+	}
+
+	private void notifyObserver(StateRecord s) {
+		Observer observer = this.observer;
+		if (observer == null) return;
+		// Notify the observer on the event executor. Concurrent
+		// transitions may queue their notifications out of order, so
+		// skip any notification that's older than the last one delivered
+		dispatcher.dispatch(NotificationKind.STATE, () -> {
+			StateRecord last;
+			do {
+				last = notified.get();
+				if (s.version <= last.version) return;
+			} while (!notified.compareAndSet(last, s));
+			// Stopping Tor resets the bootstrap percentage, but only the
+			// percentages reported by Tor are passed to the observer
+			if (s.bootstrapPercentage != last.bootstrapPercentage
+					&& s.processState != ProcessState.STOPPED) {
+				observer.onBootstrapPercentage(s.bootstrapPercentage);
+			}
+			if (s.torState != last.torState) observer.onState(s.torState);
+		});
+	}
+
+	/**
+	 * If the current process state is {@link ProcessState#NOT_STARTED NOT_STARTED} or
+	 * {@link ProcessState#STOPPED STOPPED}, sets the process state to
+	 * {@link ProcessState#STARTING STARTING} and returns true. Otherwise returns false.
+	 */
+	boolean setStarting() {
+		// It's appropriate to call start() if the wrapper has never been started,
+		// or has been started and then stopped
+		StateRecord before = transition(s -> s.processState == ProcessState.NOT_STARTED
+				|| s.processState == ProcessState.STOPPED
+				? s.withProcessState(ProcessState.STARTING) : s);
+		return before.processState == ProcessState.NOT_STARTED
+				|| before.processState == ProcessState.STOPPED;
+	}
+
+	void setStarted() {
+		// We should always be in the STARTING state when this is called
+		StateRecord before = transition(s -> s.processState == ProcessState.STARTING
+				? s.withProcessState(ProcessState.STARTED) : s);
+		if (before.processState != ProcessState.STARTING) {
+			throw new IllegalStateException();
+		}
+	}
+
+	void setStartupFailed() {
+		// We should always be in the STARTING state when this is called.
+		// Reset all state related to the failed attempt
+		StateRecord before = transition(s -> s.processState == ProcessState.STARTING
+				? s.reset(ProcessState.STOPPED) : s);
+		if (before.processState != ProcessState.STARTING) {
+			throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Returns true if the current process state is {@link ProcessState#STARTED STARTED}.
+	 */
+	@SuppressWarnings("BooleanMethodIsAlwaysInverted")
+	boolean isTorRunning() {
+		return current.get().processState == ProcessState.STARTED;
+	}
+
+	/**
+	 * If the current process state is {@link ProcessState#STARTED STARTED},
+	 * changes the process state to {@link ProcessState#STOPPING STOPPING}
+	 * and returns true. Otherwise returns false.
+	 */
+	boolean setStopping() {
+		// It's appropriate to call stop() if start() has returned without throwing
+		// an exception
+		StateRecord before = transition(s -> s.processState == ProcessState.STARTED
+				? s.withProcessState(ProcessState.STOPPING) : s);
+		return before.processState == ProcessState.STARTED;
+	}
+
+	void setStopped() {
+		// We should always be in the STOPPING state when this is called.
+		// Reset all state related to the process that has stopped
+		StateRecord before = transition(s -> s.processState == ProcessState.STOPPING
+				? s.reset(ProcessState.STOPPED) : s);
+		if (before.processState != ProcessState.STOPPING) {
+			throw new IllegalStateException();
+		}
+	}
+
+	void setBootstrapPercentage(int percentage) {
+		transition(s -> s.bootstrapPercentage == percentage
+				? s : s.withBootstrapPercentage(percentage));
+	}
+
+	/**
+	 * Sets the `circuitBuilt` flag and returns true if the flag has
+	 * changed.
+	 */
+	boolean setCircuitBuilt(boolean built) {
+		StateRecord before = transition(s -> s.circuitBuilt == built
+				? s : s.withCircuitBuilt(built));
+		return before.circuitBuilt != built;
+	}
+
+	/**
+	 * Applies the given configuration changes, ignoring any null
+	 * arguments, and returns the torrc lines that need to be sent to Tor
+	 * to apply the changes. The list is empty if nothing has changed.
+	 * The observer is notified at most once.
+	 */
+	List<String> configure(@Nullable Boolean network,
+			@Nullable List<String> bridges, @Nullable Boolean padding,
+			@Nullable Boolean ipv6, Map<String, String> options) {
+		StateRecord before = transition(s -> {
+			boolean networkInitialised = s.networkInitialised || network != null;
+			boolean networkEnabled = network == null ? s.networkEnabled : network;
+			boolean circuitBuilt = s.circuitBuilt && !Boolean.FALSE.equals(network);
+			Map<String, String> newOptions = s.options;
+			for (Entry<String, String> e : options.entrySet()) {
+				if (e.getValue().equals(newOptions.get(e.getKey()))) continue;
+				if (newOptions == s.options) newOptions = new LinkedHashMap<>(s.options);
+				newOptions.put(e.getKey(), e.getValue());
+			}
+			if (newOptions != s.options) newOptions = unmodifiableMap(newOptions);
+			// Configuring the network ends any reset in progress
+			boolean networkResetting = s.networkResetting && network == null;
+			return s.withConfiguration(networkInitialised, networkEnabled, networkResetting,
+					padding == null ? s.paddingEnabled : padding,
+					ipv6 == null ? s.ipv6Enabled : ipv6, circuitBuilt,
+					bridges == null || bridges.equals(s.bridges)
+							? s.bridges : unmodifiableList(bridges), newOptions);
+		});
+		// Work out which changes were applied to the state the transition
+		// won against
+		List<String> conf = new ArrayList<>();
+		if (bridges != null && !before.bridges.equals(bridges)) {
+			if (bridges.isEmpty()) {
+				conf.add("UseBridges 0");
+			} else {
+				conf.add("UseBridges 1");
+				conf.addAll(bridges);
+			}
+		}
+		if (padding != null && padding != before.paddingEnabled) {
+			conf.add("ConnectionPadding " + (padding ? "1" : "0"));
+		}
+		if (ipv6 != null && ipv6 != before.ipv6Enabled) {
+			conf.add("ClientUseIPv4 " + (ipv6 ? "0" : "1"));
+			conf.add("ClientUseIPv6 " + (ipv6 ? "1" : "0"));
+		}
+		for (Entry<String, String> e : options.entrySet()) {
+			if (e.getValue().equals(before.options.get(e.getKey()))) continue;
+			conf.add(e.getKey() + " " + e.getValue());
+		}
+		if (network != null && network != before.networkEnabled) {
+			conf.add("DisableNetwork " + (network ? "0" : "1"));
+		}
+		return conf;
+	}
+
+	/**
+	 * Disables the network for a reset if it's enabled, and returns the
+	 * torrc lines that need to be sent to Tor. The list is empty if the
+	 * network isn't enabled. The network is re-enabled by
+	 * {@link #endNetworkReset()}.
+	 */
+	List<String> startNetworkReset() {
+		StateRecord before = transition(s -> s.networkEnabled
+				? s.withConfiguration(s.networkInitialised, false, true, s.paddingEnabled,
+				s.ipv6Enabled, false, s.bridges, s.options) : s);
+		return before.networkEnabled ? singletonList("DisableNetwork 1") : emptyList();
+	}
+
+	/**
+	 * Re-enables the network after a reset and returns the torrc lines
+	 * that need to be sent to Tor. If the network has been configured
+	 * since the reset started, the configuration is left alone and the
+	 * list is empty.
+	 */
+	List<String> endNetworkReset() {
+		StateRecord before = transition(s -> s.networkResetting
+				? s.withConfiguration(s.networkInitialised, true, false, s.paddingEnabled,
+				s.ipv6Enabled, s.circuitBuilt, s.bridges, s.options) : s);
+		return before.networkResetting ? singletonList("DisableNetwork 0") : emptyList();
+	}
+
+	/**
+	 * Returns a snapshot of the configuration with the given hidden
+	 * services.
+	 */
+	TorSnapshot getSnapshot(List<HiddenServiceSpec> hiddenServices) {
+		StateRecord s = current.get();
+		// A network reset doesn't count as disabling the network
+		Boolean network = s.networkInitialised
+				? s.networkEnabled || s.networkResetting : null;
+		return new TorSnapshot(network, s.bridges, s.paddingEnabled, s.ipv6Enabled,
+				s.options, hiddenServices);
+	}
+
+	TorState getState() {
+		return current.get().torState;
+	}
+
+	void onOrConnectionConnected() {
+		StateRecord before = transition(s ->
+				s.withOrConnectionsConnected(s.orConnectionsConnected + 1));
+		logOrConnections(before.orConnectionsConnected + 1);
+	}
+
+	void onOrConnectionClosed() {
+		StateRecord before = transition(s -> s.orConnectionsConnected == 0
+				? s : s.withOrConnectionsConnected(s.orConnectionsConnected - 1));
+		if (before.orConnectionsConnected == 0) {
+			LOG.warning("Count was zero before connection closed");
+		} else {
+			logOrConnections(before.orConnectionsConnected - 1);
+		}
+	}
+
+	private void logOrConnections(int connected) {
+		if (LOG.isLoggable(INFO)) {
+			LOG.info(connected + " OR connections connected");
+		}
+	}
+
+	void onHsDescriptorUploaded(String onion) {
+		Observer observer = this.observer;
+		if (observer != null) {
+			// Notify the observer on the event executor
+			dispatcher.dispatch(onion, () -> observer.onHsDescriptorUpload(onion));
+		}
+	}
+
+	void onClockSkewDetected(long skewSeconds) {
+		Observer observer = this.observer;
+		if (observer != null) {
+			// Notify the observer on the event executor
+			dispatcher.dispatch(NotificationKind.CLOCK_SKEW,
+					() -> observer.onClockSkewDetected(skewSeconds));
+		}
+	}
+
+	void onStartupTimings(StartupTimings timings) {
+		Observer observer = this.observer;
+		if (observer != null) {
+			// Notify the observer on the event executor
+			dispatcher.dispatch(NotificationKind.STARTUP_TIMINGS,
+					() -> observer.onStartupTimings(timings));
+		}
+	}
+
+	void onRestarted(BatchResult<HiddenServiceProperties> restored) {
+		Observer observer = this.observer;
+		if (observer != null) {
+			// Notify the observer on the event executor
+			dispatcher.dispatch(NotificationKind.RESTARTED,
+					() -> observer.onRestarted(restored));
+		}
+	}
+
+	/**
+	 * Keys for coalescing observer notifications. Descriptor upload
+	 * notifications are keyed by onion address instead.
+	 */
+	private enum NotificationKind {
+		STATE, CLOCK_SKEW, STARTUP_TIMINGS, RESTARTED
+	}
+
+	private enum ProcessState {
+		NOT_STARTED, STARTING, STARTED, STOPPING, STOPPED
+	}
+
+	/**
+	 * A transition from one {@link StateRecord} to another.
+	 */
+	@NotNullByDefault
+	interface StateTransition {
+
+		/**
+		 * Returns the next state, or the given state if nothing changes.
+		 * This may be called more than once if another thread changes the
+		 * state concurrently, so it must not have side effects.
+		 */
+		StateRecord apply(StateRecord s);
+	}
+
+	/**
+	 * An immutable record of the network state. The {@link TorState} is
+	 * derived when the record is created, so reading it is free.
+	 */
+	@Immutable
+	@NotNullByDefault
+	static class StateRecord {
+
+		private static final StateRecord INITIAL = new StateRecord(0, ProcessState.NOT_STARTED,
+				false, false, false, false, false, false, 0, emptyList(), emptyMap(), 0);
+
+		/**
+		 * Incremented by each transition, so observer notifications that are
+		 * queued out of order can be detected.
+		 */
+		final long version;
+		final ProcessState processState;
+		final boolean networkInitialised, networkEnabled, paddingEnabled, ipv6Enabled,
+				circuitBuilt;
+		/**
+		 * True while the network is disabled by a
+		 * {@link NetworkState#startNetworkReset() reset}, and hasn't been
+		 * configured since.
+		 */
+		final boolean networkResetting;
+		final int bootstrapPercentage;
+		final List<String> bridges;
+		/**
+		 * Other torrc options set with {@link TorWrapper.Configuration#setOption(String, String)}.
+		 */
+		final Map<String, String> options;
+		final int orConnectionsConnected;
+		final TorState torState;
+
+		private StateRecord(long version, ProcessState processState, boolean networkInitialised,
+				boolean networkEnabled, boolean networkResetting, boolean paddingEnabled,
+				boolean ipv6Enabled, boolean circuitBuilt, int bootstrapPercentage,
+				List<String> bridges, Map<String, String> options, int orConnectionsConnected) {
+			this.version = version;
+			this.processState = processState;
+			this.networkInitialised = networkInitialised;
+			this.networkEnabled = networkEnabled;
+			this.networkResetting = networkResetting;
+			this.paddingEnabled = paddingEnabled;
+			this.ipv6Enabled = ipv6Enabled;
+			this.circuitBuilt = circuitBuilt;
+			this.bootstrapPercentage = bootstrapPercentage;
+			this.bridges = bridges;
+			this.options = options;
+			this.orConnectionsConnected = orConnectionsConnected;
+			torState = deriveTorState();
+		}
+
+		private TorState deriveTorState() {
+			if (processState == ProcessState.NOT_STARTED) return NOT_STARTED;
+			if (processState == ProcessState.STARTING) return STARTING;
+			if (processState == ProcessState.STOPPING) return STOPPING;
+			if (processState == ProcessState.STOPPED) return STOPPED;
+			if (!networkInitialised) return STARTED;
+			// The network is only briefly disabled by a reset, so the
+			// observer isn't told about it
+			if (!networkEnabled && !networkResetting) return DISABLED;
+			return bootstrapPercentage == 100 && circuitBuilt
+					&& orConnectionsConnected > 0 ? CONNECTED : CONNECTING;
+		}
+
+		StateRecord withProcessState(ProcessState processState) {
+			return new StateRecord(version + 1, processState, networkInitialised,
+					networkEnabled, networkResetting, paddingEnabled, ipv6Enabled, circuitBuilt,
+					bootstrapPercentage, bridges, options, orConnectionsConnected);
+		}
+
+		/**
+		 * Returns a record with the given process state and all state related
+		 * to the process reset.
+		 */
+		StateRecord reset(ProcessState processState) {
+			return new StateRecord(version + 1, processState, false, false, false, false, false,
+					false, 0, emptyList(), emptyMap(), 0);
+		}
+
+		StateRecord withBootstrapPercentage(int bootstrapPercentage) {
+			return new StateRecord(version + 1, processState, networkInitialised,
+					networkEnabled, networkResetting, paddingEnabled, ipv6Enabled, circuitBuilt,
+					bootstrapPercentage, bridges, options, orConnectionsConnected);
+		}
+
+		StateRecord withCircuitBuilt(boolean circuitBuilt) {
+			return new StateRecord(version + 1, processState, networkInitialised,
+					networkEnabled, networkResetting, paddingEnabled, ipv6Enabled, circuitBuilt,
+					bootstrapPercentage, bridges, options, orConnectionsConnected);
+		}
+
+		StateRecord withOrConnectionsConnected(int orConnectionsConnected) {
+			return new StateRecord(version + 1, processState, networkInitialised,
+					networkEnabled, networkResetting, paddingEnabled, ipv6Enabled, circuitBuilt,
+					bootstrapPercentage, bridges, options, orConnectionsConnected);
+		}
+
+		StateRecord withConfiguration(boolean networkInitialised,
+				boolean networkEnabled, boolean networkResetting, boolean paddingEnabled,
+				boolean ipv6Enabled, boolean circuitBuilt, List<String> bridges,
+				Map<String, String> options) {
+			return new StateRecord(version + 1, processState, networkInitialised,
+					networkEnabled, networkResetting, paddingEnabled, ipv6Enabled, circuitBuilt,
+					bootstrapPercentage, bridges, options, orConnectionsConnected);
+		}
+	}
+}
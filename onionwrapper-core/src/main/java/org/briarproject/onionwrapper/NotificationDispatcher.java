@@ -0,0 +1,123 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Delivers observer notifications on the event executor and measures how
+ * long they wait to be delivered.
+ * <p>
+ * By default each notification is submitted to the executor separately. In
+ * coalescing mode, notifications wait in a queue drained by a single task,
+ * so at most one task per dispatcher is waiting on the executor at a time.
+ * A notification replaces any pending notification with the same key and
+ * moves to the back of the queue, so a slow executor only delivers the
+ * latest value of each kind, in the order the latest values were posted.
+ */
+@ThreadSafe
+@NotNullByDefault
+class NotificationDispatcher {
+
+	private final Executor executor;
+
+	private volatile boolean coalescing = false;
+
+	@GuardedBy("this")
+	private final Map<Object, Notification> pending = new LinkedHashMap<>();
+	@GuardedBy("this")
+	private boolean drainScheduled = false;
+	@GuardedBy("this")
+	private final LatencyHistogram.Recorder lag = new LatencyHistogram.Recorder();
+	@GuardedBy("this")
+	private long coalesced = 0;
+
+	NotificationDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	void setCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * Returns the time in milliseconds between notifications being posted
+	 * and delivered.
+	 */
+	synchronized LatencyHistogram getLag() {
+		return lag.snapshot();
+	}
+
+	/**
+	 * Returns the number of notifications that were replaced by later
+	 * notifications with the same key before being delivered.
+	 */
+	synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * Posts a notification. In coalescing mode it replaces any pending
+	 * notification with an equal key.
+	 */
+	void dispatch(Object key, Runnable task) {
+		Notification n = new Notification(task, System.currentTimeMillis());
+		if (!coalescing) {
+			executor.execute(() -> deliver(n));
+			return;
+		}
+		boolean schedule;
+		synchronized (this) {
+			if (pending.remove(key) != null) coalesced++;
+			pending.put(key, n);
+			schedule = !drainScheduled;
+			drainScheduled = true;
+		}
+		// Submit outside the lock, as the executor may run the task inline
+		if (schedule) executor.execute(this::drain);
+	}
+
+	private void drain() {
+		while (true) {
+			Notification n;
+			synchronized (this) {
+				Iterator<Notification> it = pending.values().iterator();
+				if (!it.hasNext()) {
+					drainScheduled = false;
+					return;
+				}
+				n = it.next();
+				it.remove();
+			}
+			deliver(n);
+		}
+	}
+
+	private void deliver(Notification n) {
+		long delay = System.currentTimeMillis() - n.posted;
+		synchronized (this) {
+			lag.add(delay);
+		}
+		n.task.run();
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class Notification {
+
+		private final Runnable task;
+		private final long posted;
+
+		private Notification(Runnable task, long posted) {
+			this.task = task;
+			this.posted = posted;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Locale;
+
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+
+/**
+ * Derives v3 onion addresses from hidden service public keys and checks
+ * whether onion addresses are valid, without involving Tor.
+ * <p>
+ * This class doesn't generate keys or derive public keys from private keys.
+ * That needs a constant-time implementation of Ed25519, so it's left to Tor,
+ * which generates a key when
+ * {@link TorWrapper#publishHiddenService(int, int, String)} is called
+ * without one.
+ */
+@NotNullByDefault
+public class OnionKeys {
+
+	/**
+	 * The length of an onion address, without the ".onion" suffix.
+	 */
+	public static final int ONION_ADDRESS_LENGTH = 56;
+
+	private static final int PUBLIC_KEY_LENGTH = 32;
+	private static final byte VERSION = 3;
+	private static final byte[] CHECKSUM_LABEL = ".onion checksum".getBytes(UTF_8);
+	private static final String BASE32_ALPHABET = "abcdefghijklmnopqrstuvwxyz234567";
+
+	private OnionKeys() {
+	}
+
+	/**
+	 * Returns the onion address, without the ".onion" suffix, of the hidden
+	 * service with the given public key.
+	 */
+	public static String getOnionAddress(byte[] publicKey) {
+		if (publicKey.length != PUBLIC_KEY_LENGTH) {
+			throw new IllegalArgumentException("Invalid key length");
+		}
+		// onion_address = base32(PUBKEY | CHECKSUM | VERSION), where
+		// CHECKSUM = SHA3-256(".onion checksum" | PUBKEY | VERSION)[:2]
+		byte[] version = {VERSION};
+		byte[] checksum = Sha3.sha3_256(CHECKSUM_LABEL, publicKey, version);
+		byte[] address = new byte[publicKey.length + 3];
+		System.arraycopy(publicKey, 0, address, 0, publicKey.length);
+		address[publicKey.length] = checksum[0];
+		address[publicKey.length + 1] = checksum[1];
+		address[publicKey.length + 2] = VERSION;
+		return toBase32(address);
+	}
+
+	/**
+	 * Returns true if the given string, without the ".onion" suffix, is a
+	 * valid v3 onion address with a correct checksum.
+	 */
+	public static boolean isValidOnionAddress(String onion) {
+		if (onion.length() != ONION_ADDRESS_LENGTH) return false;
+		String lower = onion.toLowerCase(Locale.US);
+		for (int i = 0; i < lower.length(); i++) {
+			if (BASE32_ALPHABET.indexOf(lower.charAt(i)) == -1) return false;
+		}
+		byte[] address = fromBase32(lower);
+		byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+		System.arraycopy(address, 0, publicKey, 0, publicKey.length);
+		return getOnionAddress(publicKey).equals(lower);
+	}
+
+	private static String toBase32(byte[] b) {
+		StringBuilder s = new StringBuilder((b.length * 8 + 4) / 5);
+		int buffer = 0, bits = 0;
+		for (byte value : b) {
+			buffer = (buffer << 8) | (value & 0xFF);
+			bits += 8;
+			while (bits >= 5) {
+				bits -= 5;
+				s.append(BASE32_ALPHABET.charAt((buffer >> bits) & 31));
+			}
+		}
+		if (bits > 0) s.append(BASE32_ALPHABET.charAt((buffer << (5 - bits)) & 31));
+		return s.toString();
+	}
+
+	private static byte[] fromBase32(String s) {
+		byte[] b = new byte[s.length() * 5 / 8];
+		int buffer = 0, bits = 0, length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			buffer = (buffer << 5) | BASE32_ALPHABET.indexOf(s.charAt(i));
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				b[length++] = (byte) (buffer >> bits);
+			}
+		}
+		return b;
+	}
+}
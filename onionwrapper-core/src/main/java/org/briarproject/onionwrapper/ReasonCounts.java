@@ -0,0 +1,44 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Counts the reasons that Tor gives in the REASON fields of its events.
+ * <p>
+ * Reasons are keywords from a small set, but Tor may add new ones, so at
+ * most {@link #MAX_REASONS} reasons are kept, after which reasons are
+ * counted under {@link #OTHER}.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class ReasonCounts {
+
+	static final int MAX_REASONS = 32;
+	static final String OTHER = "OTHER";
+
+	private final Map<String, Long> counts = new LinkedHashMap<>();
+
+	void add(String reason) {
+		Long count = counts.get(reason);
+		if (count == null && counts.size() >= MAX_REASONS - 1) {
+			reason = OTHER;
+			count = counts.get(reason);
+		}
+		counts.put(reason, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Returns the number of times each reason was seen, in the order the
+	 * reasons were first seen.
+	 */
+	Map<String, Long> snapshot() {
+		return unmodifiableMap(new LinkedHashMap<>(counts));
+	}
+}
@@ -0,0 +1,103 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+/**
+ * A minimal implementation of the SHA3-256 hash function (FIPS 202), which
+ * is needed for onion address checksums but isn't provided by the platform
+ * on older versions of Android.
+ */
+@NotNullByDefault
+class Sha3 {
+
+	/**
+	 * The number of bytes absorbed per permutation for SHA3-256.
+	 */
+	private static final int RATE = 136;
+
+	private static final long[] ROUND_CONSTANTS = {
+			0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL,
+			0x8000000080008000L, 0x000000000000808bL, 0x0000000080000001L,
+			0x8000000080008081L, 0x8000000000008009L, 0x000000000000008aL,
+			0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+			0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L,
+			0x8000000000008003L, 0x8000000000008002L, 0x8000000000000080L,
+			0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L,
+			0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L
+	};
+
+	private static final int[] ROTATIONS = {
+			0, 1, 62, 28, 27, 36, 44, 6, 55, 20, 3, 10, 43, 25, 39, 41, 45, 15,
+			21, 8, 18, 2, 61, 56, 14
+	};
+
+	/**
+	 * Returns the SHA3-256 hash of the concatenation of the given inputs.
+	 */
+	static byte[] sha3_256(byte[]... inputs) {
+		int length = 0;
+		for (byte[] input : inputs) length += input.length;
+		// Pad the message to a multiple of the rate
+		byte[] padded = new byte[(length / RATE + 1) * RATE];
+		int offset = 0;
+		for (byte[] input : inputs) {
+			System.arraycopy(input, 0, padded, offset, input.length);
+			offset += input.length;
+		}
+		padded[length] ^= 0x06;
+		padded[padded.length - 1] ^= (byte) 0x80;
+		// Absorb the padded message
+		long[] state = new long[25];
+		for (int block = 0; block < padded.length; block += RATE) {
+			for (int i = 0; i < RATE / 8; i++) {
+				state[i] ^= readLongLittleEndian(padded, block + i * 8);
+			}
+			keccakF(state);
+		}
+		// The output fits within the first block of the state
+		byte[] hash = new byte[32];
+		for (int i = 0; i < hash.length; i++) {
+			hash[i] = (byte) (state[i / 8] >>> (8 * (i % 8)));
+		}
+		return hash;
+	}
+
+	private static long readLongLittleEndian(byte[] b, int off) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) value = (value << 8) | (b[off + i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Applies the Keccak-f[1600] permutation to the given state, where lane
+	 * (x, y) is at index x + 5y.
+	 */
+	private static void keccakF(long[] a) {
+		long[] c = new long[5], b = new long[25];
+		for (long roundConstant : ROUND_CONSTANTS) {
+			// Theta
+			for (int x = 0; x < 5; x++) {
+				c[x] = a[x] ^ a[x + 5] ^ a[x + 10] ^ a[x + 15] ^ a[x + 20];
+			}
+			for (int x = 0; x < 5; x++) {
+				long d = c[(x + 4) % 5] ^ Long.rotateLeft(c[(x + 1) % 5], 1);
+				for (int y = 0; y < 25; y += 5) a[x + y] ^= d;
+			}
+			// Rho and pi
+			for (int x = 0; x < 5; x++) {
+				for (int y = 0; y < 5; y++) {
+					int i = x + 5 * y;
+					b[y + 5 * ((2 * x + 3 * y) % 5)] = Long.rotateLeft(a[i], ROTATIONS[i]);
+				}
+			}
+			// Chi
+			for (int y = 0; y < 25; y += 5) {
+				for (int x = 0; x < 5; x++) {
+					a[x + y] = b[x + y] ^ (~b[(x + 1) % 5 + y] & b[(x + 2) % 5 + y]);
+				}
+			}
+			// Iota
+			a[0] ^= roundConstant;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Arrays;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * The time spent in each phase of a call to {@link TorWrapper#start()}.
+ */
+@Immutable
+@NotNullByDefault
+public class StartupTimings {
+
+	/**
+	 * The phases of starting Tor, in the order in which they happen.
+	 */
+	public enum Phase {
+
+		/**
+		 * Checking whether the Tor and pluggable transport binaries need to
+		 * be installed or updated.
+		 */
+		CHECK_ASSETS,
+
+		/**
+		 * Installing or updating the binaries. This phase is skipped if the
+		 * binaries are up to date.
+		 */
+		INSTALL_ASSETS,
+
+		/**
+		 * Writing the torrc file.
+		 */
+		EXTRACT_CONFIG,
+
+		/**
+		 * Spawning the Tor process.
+		 */
+		START_PROCESS,
+
+		/**
+		 * Waiting for Tor to open its control port.
+		 */
+		OPEN_CONTROL_PORT,
+
+		/**
+		 * Waiting for Tor to write its auth cookie.
+		 */
+		CREATE_AUTH_COOKIE,
+
+		/**
+		 * Connecting to the control port and authenticating.
+		 */
+		AUTHENTICATE,
+
+		/**
+		 * Taking ownership of the Tor process and registering for events.
+		 */
+		REGISTER_EVENTS,
+
+		/**
+		 * Querying Tor's SOCKS port (if chosen automatically), bootstrap
+		 * status and circuit status.
+		 */
+		QUERY_STATUS
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final long startTime;
+	private final long[] durations;
+	private final boolean succeeded;
+
+	private StartupTimings(long startTime, long[] durations, boolean succeeded) {
+		this.startTime = startTime;
+		this.durations = durations;
+		this.succeeded = succeeded;
+	}
+
+	/**
+	 * Returns the time at which startup began, in milliseconds since the
+	 * Unix epoch.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the time spent in the given phase in milliseconds, or -1 if
+	 * the phase was skipped or not reached.
+	 */
+	public long getDuration(Phase phase) {
+		long duration = durations[phase.ordinal()];
+		return duration == -1 ? -1 : NANOSECONDS.toMillis(duration);
+	}
+
+	/**
+	 * Returns the total time spent in all phases in milliseconds.
+	 */
+	public long getTotalDuration() {
+		long total = 0;
+		for (long duration : durations) {
+			if (duration > 0) total += duration;
+		}
+		return NANOSECONDS.toMillis(total);
+	}
+
+	/**
+	 * Returns true if startup succeeded, or false if it failed, in which case
+	 * the phase in which it failed and any later phases are not recorded.
+	 */
+	public boolean hasSucceeded() {
+		return succeeded;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Phase phase : PHASES) {
+			long duration = durations[phase.ordinal()];
+			if (duration == -1) continue;
+			if (s.length() > 0) s.append(", ");
+			s.append(phase).append('=').append(NANOSECONDS.toMillis(duration)).append("ms");
+		}
+		if (!succeeded) s.append(" (failed)");
+		return s.toString();
+	}
+
+	/**
+	 * Records the end of each phase as startup progresses.
+	 */
+	@NotThreadSafe
+	@NotNullByDefault
+	static class Recorder {
+
+		private final long startTime = System.currentTimeMillis();
+		private final long[] durations = new long[PHASES.length];
+		private long lastMark = System.nanoTime();
+
+		Recorder() {
+			Arrays.fill(durations, -1);
+		}
+
+		/**
+		 * Records the end of the given phase, which is assumed to have begun
+		 * when the previous phase ended.
+		 */
+		void endPhase(Phase phase) {
+			long now = System.nanoTime();
+			durations[phase.ordinal()] = now - lastMark;
+			lastMark = now;
+		}
+
+		StartupTimings build(boolean succeeded) {
+			return new StartupTimings(startTime, durations.clone(), succeeded);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Metrics for the streams opened through a Tor process's SOCKS port,
+ * accumulated from the STREAM events that Tor sends while
+ * {@link TorWrapper#enableStreamMonitoring(boolean) stream monitoring} is
+ * enabled.
+ * <p>
+ * Streams are grouped into {@link TargetClass target classes} by whether
+ * they connect to an onion service or an exit, and by port. Memory use is
+ * bounded: at most {@link #MAX_TARGET_CLASSES} classes are kept, after
+ * which streams are counted under {@link TargetClass#OTHER}, and at most
+ * {@link #MAX_TRACKED_STREAMS} streams are tracked at a time, after which
+ * new streams are only counted as untracked.
+ * <p>
+ * The reasons Tor gives for failing and closing streams are counted per
+ * target class. When a stream was ended by the other side, its reason is
+ * END followed by the remote reason, for example END:EXITPOLICY.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class StreamMetrics {
+
+	public static final int MAX_TARGET_CLASSES = 32;
+	public static final int MAX_TRACKED_STREAMS = 1024;
+
+	@GuardedBy("this")
+	private final Map<TargetClass, Counters> classes = new LinkedHashMap<>();
+	@GuardedBy("this")
+	private final Map<String, Stream> streams = new HashMap<>();
+	@GuardedBy("this")
+	private int openStreams = 0;
+	@GuardedBy("this")
+	private long untrackedStreams = 0;
+
+	StreamMetrics() {
+	}
+
+	/**
+	 * Returns the number of streams that have been opened and not yet
+	 * closed.
+	 */
+	public synchronized int getOpenStreamCount() {
+		return openStreams;
+	}
+
+	/**
+	 * Returns the number of streams that were not tracked because
+	 * {@link #MAX_TRACKED_STREAMS} streams were already being tracked.
+	 */
+	public synchronized long getUntrackedStreamCount() {
+		return untrackedStreams;
+	}
+
+	/**
+	 * Returns the statistics for each target class, in the order the
+	 * classes were first seen.
+	 */
+	public synchronized Map<TargetClass, StreamStats> getStats() {
+		Map<TargetClass, StreamStats> stats = new LinkedHashMap<>();
+		for (Map.Entry<TargetClass, Counters> e : classes.entrySet()) {
+			stats.put(e.getKey(), e.getValue().toStats());
+		}
+		return unmodifiableMap(stats);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return openStreams + " open streams, " + untrackedStreams + " untracked, "
+				+ getStats();
+	}
+
+	/**
+	 * Records a STREAM event with its REASON and REMOTE_REASON arguments,
+	 * which may be null.
+	 */
+	void onStreamStatus(String status, String id, String target, @Nullable String reason,
+			@Nullable String remoteReason, long now) {
+		if ("END".equals(reason) && remoteReason != null) reason = "END:" + remoteReason;
+		switch (status) {
+			case "NEW":
+				onNew(id, target, now);
+				break;
+			case "SUCCEEDED":
+				onSucceeded(id, now);
+				break;
+			case "FAILED":
+				onFailed(id, reason);
+				break;
+			case "CLOSED":
+				onClosed(id, reason);
+				break;
+			default:
+				// Resolve streams, remaps, detaches and other intermediate
+				// states don't affect the metrics
+				break;
+		}
+	}
+
+	/**
+	 * Forgets the streams being tracked, which Tor won't send any more events
+	 * about. Called when Tor stops.
+	 */
+	synchronized void clearStreams() {
+		streams.clear();
+		openStreams = 0;
+	}
+
+	private synchronized void onNew(String id, String target, long now) {
+		if (streams.containsKey(id)) return;
+		if (streams.size() >= MAX_TRACKED_STREAMS) {
+			untrackedStreams++;
+			return;
+		}
+		streams.put(id, new Stream(getCounters(TargetClass.parse(target)), now));
+	}
+
+	private synchronized void onSucceeded(String id, long now) {
+		Stream stream = streams.get(id);
+		if (stream == null || stream.succeeded || stream.failed) return;
+		stream.succeeded = true;
+		stream.counters.latency.add(now - stream.created);
+		openStreams++;
+	}
+
+	private synchronized void onFailed(String id, @Nullable String reason) {
+		Stream stream = streams.get(id);
+		if (stream == null || stream.succeeded || stream.failed) return;
+		stream.failed = true;
+		stream.counters.failed++;
+		if (reason != null) stream.counters.failureReasons.add(reason);
+	}
+
+	private synchronized void onClosed(String id, @Nullable String reason) {
+		Stream stream = streams.remove(id);
+		if (stream == null) return;
+		if (stream.succeeded) {
+			openStreams--;
+			stream.counters.closed++;
+			if (reason != null) stream.counters.closeReasons.add(reason);
+		} else if (!stream.failed) {
+			// Closed before it was opened, e.g. because the client gave up
+			stream.counters.closedBeforeOpening++;
+		}
+	}
+
+	@GuardedBy("this")
+	private Counters getCounters(TargetClass targetClass) {
+		Counters counters = classes.get(targetClass);
+		if (counters != null) return counters;
+		if (classes.size() >= MAX_TARGET_CLASSES - 1) targetClass = TargetClass.OTHER;
+		counters = classes.get(targetClass);
+		if (counters == null) {
+			counters = new Counters();
+			classes.put(targetClass, counters);
+		}
+		return counters;
+	}
+
+	/**
+	 * A class of stream targets: onion services or exits, on a given port.
+	 */
+	@Immutable
+	@NotNullByDefault
+	public static class TargetClass {
+
+		/**
+		 * The class used for targets that can't be parsed, and for all
+		 * targets once the maximum number of classes has been reached.
+		 */
+		public static final TargetClass OTHER = new TargetClass(false, -1);
+
+		private final boolean onion;
+		private final int port;
+
+		public TargetClass(boolean onion, int port) {
+			this.onion = onion;
+			this.port = port;
+		}
+
+		public boolean isOnion() {
+			return onion;
+		}
+
+		/**
+		 * Returns the target port, or -1 for {@link #OTHER}.
+		 */
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * Parses a STREAM event's target, which has the form host:port.
+		 */
+		static TargetClass parse(String target) {
+			int colon = target.lastIndexOf(':');
+			if (colon == -1) return OTHER;
+			int port;
+			try {
+				port = Integer.parseInt(target.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				return OTHER;
+			}
+			if (port < 0 || port > 65535) return OTHER;
+			String host = target.substring(0, colon);
+			return new TargetClass(host.endsWith(".onion"), port);
+		}
+
+		@Override
+		public boolean equals(@Nullable Object o) {
+			if (!(o instanceof TargetClass)) return false;
+			TargetClass t = (TargetClass) o;
+			return onion == t.onion && port == t.port;
+		}
+
+		@Override
+		public int hashCode() {
+			return onion ? port : -port - 2;
+		}
+
+		@Override
+		public String toString() {
+			if (port == -1) return "other";
+			return (onion ? "onion:" : "exit:") + port;
+		}
+	}
+
+	/**
+	 * Statistics for the streams of one {@link TargetClass}.
+	 */
+	@Immutable
+	@NotNullByDefault
+	public static class StreamStats {
+
+		private final long failed, closedBeforeOpening, closed;
+		private final LatencyHistogram latency;
+		private final Map<String, Long> failureReasons, closeReasons;
+
+		private StreamStats(long failed, long closedBeforeOpening, long closed,
+				LatencyHistogram latency, Map<String, Long> failureReasons,
+				Map<String, Long> closeReasons) {
+			this.failed = failed;
+			this.closedBeforeOpening = closedBeforeOpening;
+			this.closed = closed;
+			this.latency = latency;
+			this.failureReasons = failureReasons;
+			this.closeReasons = closeReasons;
+		}
+
+		/**
+		 * Returns the number of streams that were opened successfully.
+		 */
+		public long getSucceededCount() {
+			return latency.getCount();
+		}
+
+		/**
+		 * Returns the number of streams that Tor failed to open.
+		 */
+		public long getFailedCount() {
+			return failed;
+		}
+
+		/**
+		 * Returns the number of streams that were closed before Tor had
+		 * opened or failed to open them.
+		 */
+		public long getClosedBeforeOpeningCount() {
+			return closedBeforeOpening;
+		}
+
+		/**
+		 * Returns the number of streams that were closed after they were
+		 * opened.
+		 */
+		public long getClosedCount() {
+			return closed;
+		}
+
+		/**
+		 * Returns the number of streams that Tor failed to open for each
+		 * reason, in the order the reasons were first seen. Failures
+		 * without a reason aren't included.
+		 */
+		public Map<String, Long> getFailureReasons() {
+			return failureReasons;
+		}
+
+		/**
+		 * Returns the number of opened streams that were closed for each
+		 * reason, in the order the reasons were first seen. Closures
+		 * without a reason aren't included.
+		 */
+		public Map<String, Long> getCloseReasons() {
+			return closeReasons;
+		}
+
+		/**
+		 * Returns the times in milliseconds from streams being created to
+		 * them being opened.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return latency.getCount() + " succeeded, " + failed + " failed, "
+					+ closedBeforeOpening + " closed before opening, latency: " + latency
+					+ ", failure reasons: " + failureReasons + ", close reasons: "
+					+ closeReasons;
+		}
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private static class Counters {
+
+		private final LatencyHistogram.Recorder latency = new LatencyHistogram.Recorder();
+		private final ReasonCounts failureReasons = new ReasonCounts();
+		private final ReasonCounts closeReasons = new ReasonCounts();
+		private long failed = 0, closedBeforeOpening = 0, closed = 0;
+
+		private StreamStats toStats() {
+			return new StreamStats(failed, closedBeforeOpening, closed, latency.snapshot(),
+					failureReasons.snapshot(), closeReasons.snapshot());
+		}
+	}
+
+	@NotThreadSafe
+	@NotNullByDefault
+	private static class Stream {
+
+		private final Counters counters;
+		private final long created;
+		private boolean succeeded = false, failed = false;
+
+		private Stream(Counters counters, long created) {
+			this.counters = counters;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An asynchronous event received from Tor's control port, delivered to
+ * {@link EventSubscription event subscriptions}.
+ * <p>
+ * The message is the rest of the event line after the event type. For
+ * event types that the control library parses before passing them to the
+ * wrapper (CIRC, STREAM, ORCONN, BW and log events), the message is
+ * rebuilt from the parsed fields, so any fields the library doesn't parse
+ * are missing. For example, a CIRC message contains the circuit ID, status
+ * and path, but not the purpose.
+ */
+@Immutable
+@NotNullByDefault
+public class TorEvent {
+
+	private final String type, message;
+	private final long time;
+
+	TorEvent(String type, String message, long time) {
+		this.type = type;
+		this.message = message;
+		this.time = time;
+	}
+
+	/**
+	 * Returns the event type, such as CIRC or STATUS_CLIENT.
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the time in milliseconds since the epoch when the wrapper
+	 * received the event.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + message;
+	}
+}
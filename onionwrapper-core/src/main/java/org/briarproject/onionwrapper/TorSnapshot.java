@@ -0,0 +1,212 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.TorWrapper.Configuration;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+
+/**
+ * A snapshot of the configuration applied to a {@link TorWrapper} and the
+ * hidden services it has published, which can be persisted and restored
+ * with {@link TorWrapper#start(TorSnapshot)} after Tor restarts.
+ * <p>
+ * The snapshot is stored as text with one line per setting or service.
+ * It contains the private keys of the hidden services, so it should be
+ * stored as securely as the keys themselves.
+ */
+@Immutable
+@NotNullByDefault
+public class TorSnapshot {
+
+	/**
+	 * A snapshot with no configuration changes and no hidden services.
+	 */
+	public static final TorSnapshot EMPTY =
+			new TorSnapshot(null, emptyList(), false, false, emptyMap(), emptyList());
+
+	private static final String HEADER = "tor-snapshot 1";
+	private static final String NETWORK = "network";
+	private static final String BRIDGE = "bridge";
+	private static final String PADDING = "padding";
+	private static final String IPV6 = "ipv6";
+	private static final String OPTION = "option";
+	private static final String SERVICE = "service";
+
+	@Nullable
+	private final Boolean networkEnabled;
+	private final List<String> bridges;
+	private final boolean paddingEnabled, ipv6Enabled;
+	private final Map<String, String> options;
+	private final List<HiddenServiceSpec> hiddenServices;
+
+	TorSnapshot(@Nullable Boolean networkEnabled, List<String> bridges, boolean paddingEnabled,
+			boolean ipv6Enabled, Map<String, String> options,
+			List<HiddenServiceSpec> hiddenServices) {
+		this.networkEnabled = networkEnabled;
+		this.bridges = unmodifiableList(new ArrayList<>(bridges));
+		this.paddingEnabled = paddingEnabled;
+		this.ipv6Enabled = ipv6Enabled;
+		this.options = unmodifiableMap(new LinkedHashMap<>(options));
+		this.hiddenServices = unmodifiableList(new ArrayList<>(hiddenServices));
+	}
+
+	/**
+	 * Returns true if the network was enabled, false if it was disabled, or
+	 * null if it was never enabled or disabled.
+	 */
+	@Nullable
+	public Boolean isNetworkEnabled() {
+		return networkEnabled;
+	}
+
+	/**
+	 * Returns the bridges that were being used, or an empty list if bridges
+	 * were not being used.
+	 */
+	public List<String> getBridges() {
+		return bridges;
+	}
+
+	public boolean isConnectionPaddingEnabled() {
+		return paddingEnabled;
+	}
+
+	public boolean isIpv6Enabled() {
+		return ipv6Enabled;
+	}
+
+	/**
+	 * Returns any other torrc options that were set with
+	 * {@link Configuration#setOption(String, String)}.
+	 */
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	/**
+	 * Returns the hidden services that were published, in the order they
+	 * were published. Each service has its private key.
+	 */
+	public List<HiddenServiceSpec> getHiddenServices() {
+		return hiddenServices;
+	}
+
+	/**
+	 * Adds the snapshot's configuration to the given builder.
+	 */
+	void addTo(Configuration config) {
+		if (networkEnabled != null) config.enableNetwork(networkEnabled);
+		if (bridges.isEmpty()) config.disableBridges();
+		else config.enableBridges(bridges);
+		config.enableConnectionPadding(paddingEnabled);
+		config.enableIpv6(ipv6Enabled);
+		for (Map.Entry<String, String> e : options.entrySet()) {
+			config.setOption(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Returns the snapshot in the format read by {@link #fromByteArray(byte[])}.
+	 */
+	public byte[] toByteArray() {
+		StringBuilder s = new StringBuilder();
+		s.append(HEADER).append('\n');
+		if (networkEnabled != null) {
+			s.append(NETWORK).append(' ').append(networkEnabled ? 1 : 0).append('\n');
+		}
+		for (String bridge : bridges) s.append(BRIDGE).append(' ').append(bridge).append('\n');
+		s.append(PADDING).append(' ').append(paddingEnabled ? 1 : 0).append('\n');
+		s.append(IPV6).append(' ').append(ipv6Enabled ? 1 : 0).append('\n');
+		for (Map.Entry<String, String> e : options.entrySet()) {
+			s.append(OPTION).append(' ').append(e.getKey()).append(' ').append(e.getValue())
+					.append('\n');
+		}
+		for (HiddenServiceSpec service : hiddenServices) {
+			s.append(SERVICE).append(' ').append(service.localPort).append(' ')
+					.append(service.remotePort).append(' ').append(service.privateKey)
+					.append('\n');
+		}
+		return s.toString().getBytes(UTF_8);
+	}
+
+	/**
+	 * Parses a snapshot in the format returned by {@link #toByteArray()}.
+	 *
+	 * @throws IOException If the snapshot cannot be parsed.
+	 */
+	public static TorSnapshot fromByteArray(byte[] b) throws IOException {
+		String[] lines = new String(b, UTF_8).split("\n");
+		if (!lines[0].equals(HEADER)) throw new IOException("Unsupported snapshot format");
+		Boolean networkEnabled = null;
+		List<String> bridges = new ArrayList<>();
+		boolean paddingEnabled = false, ipv6Enabled = false;
+		Map<String, String> options = new LinkedHashMap<>();
+		List<HiddenServiceSpec> hiddenServices = new ArrayList<>();
+		try {
+			for (int i = 1; i < lines.length; i++) {
+				String[] fields = lines[i].split(" ", 2);
+				if (fields.length != 2) throw new IOException("Malformed line " + i);
+				String value = fields[1];
+				switch (fields[0]) {
+					case NETWORK:
+						networkEnabled = parseFlag(value);
+						break;
+					case BRIDGE:
+						bridges.add(value);
+						break;
+					case PADDING:
+						paddingEnabled = parseFlag(value);
+						break;
+					case IPV6:
+						ipv6Enabled = parseFlag(value);
+						break;
+					case OPTION:
+						String[] option = value.split(" ", 2);
+						if (option.length != 2) throw new IOException("Malformed line " + i);
+						options.put(option[0], option[1]);
+						break;
+					case SERVICE:
+						String[] service = value.split(" ", 3);
+						if (service.length != 3) throw new IOException("Malformed line " + i);
+						hiddenServices.add(new HiddenServiceSpec(Integer.parseInt(service[0]),
+								Integer.parseInt(service[1]), service[2]));
+						break;
+					default:
+						// Ignore lines added by later versions
+						break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException(e);
+		}
+		return new TorSnapshot(networkEnabled, bridges, paddingEnabled, ipv6Enabled, options,
+				hiddenServices);
+	}
+
+	private static boolean parseFlag(String value) throws IOException {
+		if (value.equals("1")) return true;
+		if (value.equals("0")) return false;
+		throw new IOException("Malformed flag: " + value);
+	}
+
+	@Override
+	public String toString() {
+		return "network " + networkEnabled + ", " + bridges.size() + " bridges, padding "
+				+ paddingEnabled + ", IPv6 " + ipv6Enabled + ", " + options.size()
+				+ " options, " + hiddenServices.size() + " hidden services";
+	}
+}
@@ -3,10 +3,17 @@ package org.briarproject.onionwrapper;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,25 +29,67 @@ class TorUtils {
 	@SuppressWarnings("CharsetObjectCanBeUsed")
 	static final Charset UTF_8 = Charset.forName("UTF-8");
 
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
 	static String scrubOnion(String onion) {
 		// Keep first three characters of onion address
 		return onion.substring(0, 3) + "[scrubbed]";
 	}
 
-	static void copyAndClose(InputStream in, OutputStream out) {
-		byte[] buf = new byte[4096];
+	/**
+	 * Copies the given input stream to the given output stream and closes
+	 * both streams, even if an exception is thrown.
+	 */
+	static void copyAndClose(InputStream in, OutputStream out) throws IOException {
+		copyAndClose(in, out, false);
+	}
+
+	/**
+	 * Copies the given input stream to the given file output stream, forces
+	 * the file's contents to the storage device and closes both streams, even
+	 * if an exception is thrown.
+	 */
+	static void copySyncAndClose(InputStream in, FileOutputStream out) throws IOException {
+		copyAndClose(in, out, true);
+	}
+
+	private static void copyAndClose(InputStream in, OutputStream out, boolean sync)
+			throws IOException {
 		try {
-			while (true) {
-				int read = in.read(buf);
-				if (read == -1) break;
-				out.write(buf, 0, read);
+			if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+				transfer(((FileInputStream) in).getChannel(),
+						((FileOutputStream) out).getChannel());
+			} else {
+				WritableByteChannel dest = out instanceof FileOutputStream
+						? ((FileOutputStream) out).getChannel()
+						: Channels.newChannel(out);
+				copy(Channels.newChannel(in), dest);
 			}
 			in.close();
 			out.flush();
+			if (sync) ((FileOutputStream) out).getFD().sync();
 			out.close();
 		} catch (IOException e) {
 			tryToClose(in, LOG, WARNING);
 			tryToClose(out, LOG, WARNING);
+			throw e;
+		}
+	}
+
+	private static void copy(ReadableByteChannel src, WritableByteChannel dest)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+		while (src.read(buf) != -1) {
+			buf.flip();
+			while (buf.hasRemaining()) dest.write(buf);
+			buf.clear();
+		}
+	}
+
+	private static void transfer(FileChannel src, FileChannel dest) throws IOException {
+		long size = src.size(), position = src.position();
+		while (position < size) {
+			position += src.transferTo(position, size - position, dest);
 		}
 	}
 
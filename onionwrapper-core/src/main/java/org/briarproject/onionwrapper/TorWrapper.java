@@ -1,10 +1,15 @@
 package org.briarproject.onionwrapper;
 
 import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.EventSubscription.Filter;
+import org.briarproject.onionwrapper.EventSubscription.Listener;
+import org.briarproject.onionwrapper.EventSubscription.OverflowPolicy;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -16,6 +21,13 @@ public interface TorWrapper {
 
 	Logger LOG = getLogger(TorWrapper.class.getName());
 
+	/**
+	 * Passing this value as the SOCKS or control port number tells Tor to
+	 * choose an unused port when it starts. The chosen port can be retrieved
+	 * with {@link #getSocksPort()} or {@link #getControlPort()}.
+	 */
+	int AUTO_PORT = 0;
+
 	/**
 	 * Starts the Tor process, but does not yet connect to the Tor network.
 	 * Call {@link #enableNetwork(boolean)} for this.
@@ -31,12 +43,118 @@ public interface TorWrapper {
 	 */
 	void start() throws IOException, InterruptedException;
 
+	/**
+	 * Starts the Tor process as {@link #start()} does, then restores the
+	 * given snapshot: the configuration is applied with a single command
+	 * and the hidden services are republished in a pipelined
+	 * {@link #publishHiddenServices(List) batch}.
+	 * <p>
+	 * Unlike {@link #start()}, this method doesn't return silently if Tor
+	 * is already running or being started, as the snapshot would overwrite
+	 * the running process's configuration.
+	 *
+	 * @return The results of republishing the hidden services.
+	 * @throws IllegalStateException If Tor is already running or being
+	 * 		started.
+	 */
+	BatchResult<HiddenServiceProperties> start(TorSnapshot snapshot)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Returns a snapshot of the configuration applied and the hidden
+	 * services published since Tor was started, which can be persisted with
+	 * {@link TorSnapshot#toByteArray()} and restored with
+	 * {@link #start(TorSnapshot)}. If Tor is not running, the snapshot taken
+	 * when Tor last stopped is returned.
+	 */
+	TorSnapshot getSnapshot();
+
+	/**
+	 * Enables or disables supervision, which is disabled by default. While
+	 * supervision is enabled, if the Tor process exits unexpectedly or the
+	 * control connection is lost, the wrapper restarts Tor with exponential
+	 * backoff and restores the configuration and hidden services from a
+	 * {@link #getSnapshot() snapshot}.
+	 * <p>
+	 * The observer sees the state change to {@link TorState#STOPPED} and
+	 * back again, followed by a call to
+	 * {@link Observer#onRestarted(BatchResult)}. The futures of any
+	 * {@link HiddenServiceHandle handles} fail when Tor is lost, as the
+	 * restored services have new handles.
+	 */
+	void setSupervised(boolean supervised);
+
+	/**
+	 * Returns the number of times supervision has restarted Tor.
+	 */
+	int getRestartCount();
+
+	/**
+	 * Returns the time in milliseconds between supervision detecting that
+	 * Tor was lost and Tor being restored the last time it was restarted,
+	 * or -1 if it has not been restarted.
+	 */
+	long getLastRecoveryTime();
+
+	/**
+	 * Sets the watchdog that helps Tor recover when it reports that circuits
+	 * can't be established, or removes the watchdog if the argument is
+	 * null. There is no watchdog by default.
+	 */
+	void setCircuitWatchdog(@Nullable CircuitWatchdog watchdog);
+
+	/**
+	 * Enables or disables bandwidth monitoring, which is disabled by
+	 * default. While monitoring is enabled the wrapper subscribes to Tor's
+	 * BW events and accumulates them into its
+	 * {@link #getBandwidthMetrics() metrics}. The setting is kept if Tor is
+	 * restarted.
+	 */
+	void enableBandwidthMonitoring(boolean enable) throws IOException;
+
+	/**
+	 * Returns the bandwidth used by Tor while bandwidth monitoring has been
+	 * enabled.
+	 */
+	BandwidthMetrics getBandwidthMetrics();
+
+	/**
+	 * Enables or disables stream monitoring, which is disabled by default.
+	 * While monitoring is enabled the wrapper subscribes to Tor's STREAM
+	 * events and accumulates them into its
+	 * {@link #getStreamMetrics() metrics}. The setting is kept if Tor is
+	 * restarted.
+	 */
+	void enableStreamMonitoring(boolean enable) throws IOException;
+
+	/**
+	 * Returns metrics for the streams opened while stream monitoring has
+	 * been enabled.
+	 */
+	StreamMetrics getStreamMetrics();
+
+	/**
+	 * Enables or disables circuit bandwidth monitoring, which is disabled by
+	 * default. While monitoring is enabled the wrapper subscribes to Tor's
+	 * CIRC_BW events and adds each circuit's throughput to its
+	 * {@link #getCircuitMetrics() metrics}. The setting is kept if Tor is
+	 * restarted.
+	 */
+	void enableCircuitBandwidthMonitoring(boolean enable) throws IOException;
+
+	/**
+	 * Returns metrics for the circuits built by Tor, which are always
+	 * recorded.
+	 */
+	CircuitMetrics getCircuitMetrics();
+
 	/**
 	 * Tell the Tor process to stop and waits for it to stop before returning.
 	 * <p>
 	 * The wrapper's configuration is reset, so if the wrapper is reused by
 	 * calling {@link #start()} again then any configuration applied via
-	 * {@link #enableNetwork(boolean)} etc must be applied again.
+	 * {@link #enableNetwork(boolean)} etc must be applied again, or restored
+	 * from a {@link #getSnapshot() snapshot}.
 	 * <p>
 	 * Do not call this method concurrently with {@link #start()}.
 	 */
@@ -49,6 +167,76 @@ public interface TorWrapper {
 	 */
 	void setObserver(@Nullable Observer observer);
 
+	/**
+	 * Enables or disables coalescing of observer notifications, which is
+	 * disabled by default. While coalescing is enabled, at most one task is
+	 * queued on the event executor at a time, and a pending notification is
+	 * replaced by a later notification of the same kind, so the observer
+	 * only sees the latest state, bootstrap percentage, clock skew and
+	 * startup timings, and one descriptor upload per onion address. This is
+	 * useful if the event executor is slow, such as the main thread on
+	 * Android.
+	 * <p>
+	 * This should be called before {@link #start()}.
+	 */
+	void setCoalescingNotifications(boolean coalesce);
+
+	/**
+	 * Returns the time in milliseconds between observer notifications being
+	 * posted and delivered.
+	 */
+	LatencyHistogram getNotificationLag();
+
+	/**
+	 * Returns the number of observer notifications that were replaced by
+	 * later notifications of the same kind before being delivered.
+	 */
+	long getCoalescedNotificationCount();
+
+	/**
+	 * Subscribes to events of the given types from Tor's control port. Any
+	 * types the wrapper doesn't already receive are registered with Tor, now
+	 * if Tor is running or otherwise when it starts.
+	 * <p>
+	 * Events that pass the filter are queued in a queue of the given
+	 * capacity and delivered to the listener on the given executor. The
+	 * policy decides which event is dropped when the queue is full. Any
+	 * number of subscriptions can be active, and each has its own queue, so
+	 * a slow listener doesn't delay the wrapper's own state handling,
+	 * replies to commands or other subscriptions.
+	 *
+	 * @param eventTypes Event types as used by SETEVENTS, such as CIRC or
+	 * 		STATUS_CLIENT.
+	 * @param filter A filter for the events, or null to receive all events
+	 * 		of the given types.
+	 * @throws IOException If Tor is running and rejects any of the types.
+	 */
+	EventSubscription subscribe(Collection<String> eventTypes, @Nullable Filter filter,
+			Listener listener, Executor executor, int capacity, OverflowPolicy policy)
+			throws IOException;
+
+	/**
+	 * Cancels a subscription. Any queued events that haven't been delivered
+	 * are discarded, and event types that are no longer needed are
+	 * unregistered if Tor is running.
+	 */
+	void unsubscribe(EventSubscription subscription) throws IOException;
+
+	/**
+	 * Sets a directory where the Tor and pluggable transport binaries should
+	 * be installed, so wrappers that use the same directory can share one
+	 * copy of each binary, or installs the binaries in the wrapper's own
+	 * directory if the argument is null (the default).
+	 * <p>
+	 * Each set of binaries is installed in a subdirectory named after their
+	 * content hashes, so wrappers with different versions of the binaries
+	 * can share the directory. The wrappers may belong to different
+	 * processes. Each wrapper still has its own data directory.
+	 * <p>
+	 * This method must be called before {@link #start()}.
+	 */
+	void setBinaryCacheDirectory(@Nullable File directory);
+
 	/**
 	 * Returns the current state of the wrapper.
 	 */
@@ -61,6 +249,33 @@ public interface TorWrapper {
 	@SuppressWarnings("BooleanMethodIsAlwaysInverted")
 	boolean isTorRunning();
 
+	/**
+	 * Returns the time in milliseconds that the last successful call to
+	 * {@link #start()} spent waiting for Tor to write its auth cookie, or -1
+	 * if the wrapper has not been started.
+	 */
+	long getAuthCookieWaitTime();
+
+	/**
+	 * Returns the time spent in each phase of the last few calls to
+	 * {@link #start()}, including any calls that failed, oldest first.
+	 */
+	List<StartupTimings> getStartupTimings();
+
+	/**
+	 * Returns the port number of Tor's SOCKS port. If the wrapper was created
+	 * with {@link #AUTO_PORT}, this is the port chosen by Tor, or
+	 * {@link #AUTO_PORT} if Tor is not running.
+	 */
+	int getSocksPort();
+
+	/**
+	 * Returns the port number of Tor's control port. If the wrapper was
+	 * created with {@link #AUTO_PORT}, this is the port chosen by Tor, or
+	 * {@link #AUTO_PORT} if Tor is not running.
+	 */
+	int getControlPort();
+
 	/**
 	 * Publishes an ephemeral hidden service.
 	 *
@@ -73,12 +288,47 @@ public interface TorWrapper {
 	HiddenServiceProperties publishHiddenService(int localPort,
 			int remotePort, @Nullable String privateKey) throws IOException;
 
+	/**
+	 * Publishes an ephemeral hidden service and returns a handle for
+	 * tracking the uploads of its descriptor. The handle's
+	 * {@link HiddenServiceHandle#getReachableFuture() future} completes when
+	 * the given number of uploads have succeeded, meaning the service can be
+	 * reached by clients. If all the uploads fail, the service is
+	 * republished with exponential backoff.
+	 *
+	 * @param uploadQuorum The number of successful uploads after which the
+	 * 		service is considered reachable. Tor normally uploads each
+	 * 		descriptor to several directories.
+	 * @see #publishHiddenService(int, int, String)
+	 */
+	HiddenServiceHandle publishHiddenService(int localPort, int remotePort,
+			@Nullable String privateKey, int uploadQuorum) throws IOException;
+
 	/**
 	 * Removes (unpublishes) an ephemeral hidden service that was created by
 	 * calling {@link #publishHiddenService(int, int, String)}.
 	 */
 	void removeHiddenService(String onion) throws IOException;
 
+	/**
+	 * Publishes a batch of ephemeral hidden services. The commands are
+	 * pipelined on the control connection, so this is much faster than
+	 * publishing the services one at a time. Each item in the result holds
+	 * the {@link HiddenServiceProperties properties} of the corresponding
+	 * service, or the reason it could not be published.
+	 */
+	BatchResult<HiddenServiceProperties> publishHiddenServices(List<HiddenServiceSpec> specs)
+			throws InterruptedException;
+
+	/**
+	 * Removes a batch of ephemeral hidden services. The commands are
+	 * pipelined on the control connection. Each item in the result holds the
+	 * onion address of the corresponding service if it was removed, or the
+	 * reason it could not be removed.
+	 */
+	BatchResult<String> removeHiddenServices(Collection<String> onions)
+			throws InterruptedException;
+
 	/**
 	 * Enables or disables the Tor process's network connection. The network
 	 * connection is disabled by default.
@@ -111,6 +361,15 @@ public interface TorWrapper {
 	 */
 	void enableIpv6(boolean ipv6Only) throws IOException;
 
+	/**
+	 * Returns a builder for changing several configuration options at once.
+	 * The changes are sent to Tor in a single command when
+	 * {@link Configuration#apply()} is called, so Tor never acts on a
+	 * partially applied configuration, and the observer is told about the
+	 * resulting state change at most once.
+	 */
+	Configuration configure();
+
 	/**
 	 * Returns the Lyrebird executable as a File for use with Moat.
 	 */
@@ -203,6 +462,98 @@ public interface TorWrapper {
 		 * Called whenever Tor detects that the system clock is skewed.
 		 */
 		void onClockSkewDetected(long skewSeconds);
+
+		/**
+		 * Called whenever a call to {@link #start()} succeeds or fails, with
+		 * the time spent in each phase of starting Tor. The default
+		 * implementation does nothing.
+		 */
+		default void onStartupTimings(StartupTimings timings) {
+		}
+
+		/**
+		 * Called whenever {@link #setSupervised(boolean) supervision} has
+		 * restarted Tor, with the results of restoring the hidden services
+		 * that were published when Tor was lost. The default implementation
+		 * does nothing.
+		 */
+		default void onRestarted(BatchResult<HiddenServiceProperties> restored) {
+		}
+	}
+
+	/**
+	 * A set of configuration changes to be applied together. Options that
+	 * are not changed keep their current values. Calling one of the
+	 * {@link TorWrapper} methods such as {@link #enableNetwork(boolean)} is
+	 * equivalent to applying a configuration with a single change.
+	 */
+	interface Configuration {
+
+		/**
+		 * @see TorWrapper#enableNetwork(boolean)
+		 */
+		Configuration enableNetwork(boolean enable);
+
+		/**
+		 * @see TorWrapper#enableBridges(List)
+		 */
+		Configuration enableBridges(List<String> bridges);
+
+		/**
+		 * @see TorWrapper#disableBridges()
+		 */
+		Configuration disableBridges();
+
+		/**
+		 * @see TorWrapper#enableConnectionPadding(boolean)
+		 */
+		Configuration enableConnectionPadding(boolean enable);
+
+		/**
+		 * @see TorWrapper#enableIpv6(boolean)
+		 */
+		Configuration enableIpv6(boolean ipv6Only);
+
+		/**
+		 * Sets any other torrc option, replacing its current value. Options
+		 * that can be changed with the other methods of this interface
+		 * should be changed with those methods, so the wrapper's view of
+		 * the configuration stays consistent with Tor's.
+		 */
+		Configuration setOption(String key, String value);
+
+		/**
+		 * Applies the changes. Options that already have the requested
+		 * values are not sent to Tor, and if nothing has changed, no command
+		 * is sent.
+		 */
+		void apply() throws IOException;
+	}
+
+	/**
+	 * The parameters for publishing a hidden service with
+	 * {@link #publishHiddenServices(List)}.
+	 */
+	class HiddenServiceSpec {
+
+		public final int localPort, remotePort;
+		@Nullable
+		public final String privateKey;
+
+		/**
+		 * @param localPort The local port on which the service is listening.
+		 * @param remotePort The port number that clients of the service will
+		 * 		see.
+		 * @param privateKey The private key of the hidden service, in the form
+		 * 		returned by a previous call to
+		 * 		{@link #publishHiddenService(int, int, String)}, or null if a new
+		 * 		service should be created.
+		 */
+		public HiddenServiceSpec(int localPort, int remotePort, @Nullable String privateKey) {
+			this.localPort = localPort;
+			this.remotePort = remotePort;
+			this.privateKey = privateKey;
+		}
 	}
 
 	class HiddenServiceProperties {
@@ -0,0 +1,564 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+import org.briarproject.onionwrapper.TorWrapper.Configuration;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.onionwrapper.TorUtils.scrubOnion;
+import static org.briarproject.onionwrapper.TorWrapper.LOG;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.DISABLED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.NOT_STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPING;
+
+/**
+ * A pool of Tor wrappers behind a single facade. Tor's main loop runs on a
+ * single thread, so hosting hidden services in several Tor processes allows
+ * the number of services to scale with the number of cores.
+ * <p>
+ * Each member of the pool must have its own Tor directory and ports. Hidden
+ * services are published by the running member that is currently hosting
+ * the fewest services, and removed by the member that published them.
+ * Configuration changes are applied to every member. If a supervised
+ * member restarts Tor, the services it restores stay with that member.
+ * <p>
+ * The pool takes over the members' observers, so observers should be set on
+ * the pool rather than the members.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class TorWrapperPool {
+
+	/**
+	 * The states in order of readiness. The pool's state is the state of
+	 * its least ready member.
+	 */
+	private static final TorState[] READINESS = {
+			NOT_STARTED,
+			STOPPED,
+			STOPPING,
+			STARTING,
+			STARTED,
+			DISABLED,
+			CONNECTING,
+			CONNECTED
+	};
+
+	private final Executor ioExecutor;
+	private final Executor eventExecutor;
+	private final List<TorWrapper> members;
+
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private final TorState[] memberStates;
+	@GuardedBy("lock")
+	private final int[] memberPercentages;
+	/**
+	 * The number of hidden services hosted by each member, including any
+	 * services that are being published.
+	 */
+	@GuardedBy("lock")
+	private final int[] memberLoads;
+	@GuardedBy("lock")
+	private final Map<String, Integer> owners = new HashMap<>();
+	@GuardedBy("lock")
+	private TorState state = NOT_STARTED;
+	@GuardedBy("lock")
+	private int bootstrapPercentage = 0;
+	@GuardedBy("lock")
+	@Nullable
+	private Observer observer = null;
+
+	/**
+	 * @param ioExecutor The pool will use this executor to start and stop
+	 * 		the members concurrently. Each of these tasks blocks until the
+	 * 		member has started or stopped, which may need the member's own IO
+	 * 		tasks to run on the same executor, so the executor should have an
+	 * 		unlimited thread pool.
+	 * @param eventExecutor The pool will use this executor to call the
+	 * 		{@link Observer observer} (if any). To ensure that events are observed
+	 * 		in the order they occur, this executor should have a single thread (eg
+	 * 		the app's main thread).
+	 * @param members The wrappers belonging to the pool, each with its own
+	 * 		Tor directory and ports.
+	 */
+	public TorWrapperPool(Executor ioExecutor, Executor eventExecutor,
+			List<? extends TorWrapper> members) {
+		if (members.isEmpty()) throw new IllegalArgumentException();
+		this.ioExecutor = ioExecutor;
+		this.eventExecutor = eventExecutor;
+		this.members = unmodifiableList(new ArrayList<>(members));
+		int size = members.size();
+		memberStates = new TorState[size];
+		memberPercentages = new int[size];
+		memberLoads = new int[size];
+		for (int i = 0; i < size; i++) {
+			TorWrapper member = members.get(i);
+			memberStates[i] = member.getTorState();
+			member.setObserver(new MemberObserver(i));
+		}
+		state = aggregateState();
+	}
+
+	/**
+	 * Returns the members of the pool.
+	 */
+	public List<TorWrapper> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Returns the member hosting the given hidden service, or null if the
+	 * service was not published via the pool or has been removed.
+	 */
+	@Nullable
+	public TorWrapper getOwner(String onion) {
+		synchronized (lock) {
+			Integer owner = owners.get(onion);
+			return owner == null ? null : members.get(owner);
+		}
+	}
+
+	/**
+	 * Returns the number of hidden services hosted by each member, in the
+	 * same order as {@link #getMembers()}.
+	 */
+	public int[] getHiddenServiceCounts() {
+		synchronized (lock) {
+			return memberLoads.clone();
+		}
+	}
+
+	/**
+	 * Sets an observer for observing the aggregate state of the pool,
+	 * replacing any existing observer, or removes any existing observer if
+	 * the argument is null. The observer is told about state changes of the
+	 * pool as a whole, the lowest bootstrap percentage of any member, and
+	 * every other event from every member.
+	 */
+	public void setObserver(@Nullable Observer observer) {
+		synchronized (lock) {
+			this.observer = observer;
+		}
+	}
+
+	/**
+	 * Returns the state of the pool, which is the state of its least ready
+	 * member. For example, the pool is {@link TorState#CONNECTED connected}
+	 * when all its members are connected.
+	 */
+	public TorState getTorState() {
+		synchronized (lock) {
+			return state;
+		}
+	}
+
+	/**
+	 * Returns true if every member of the pool is running.
+	 */
+	public boolean isTorRunning() {
+		for (TorWrapper member : members) if (!member.isTorRunning()) return false;
+		return true;
+	}
+
+	/**
+	 * Starts all the members concurrently and waits for them to start. If
+	 * any member fails to start, the members that did start are stopped and
+	 * the exception is rethrown.
+	 *
+	 * @see TorWrapper#start()
+	 */
+	public void start() throws IOException, InterruptedException {
+		try {
+			runOnAllMembers(TorWrapper::start);
+		} catch (IOException | InterruptedException e) {
+			try {
+				runOnAllMembers(TorWrapper::stop);
+			} catch (IOException e1) {
+				if (LOG.isLoggable(WARNING)) LOG.warning("Could not stop pool: " + e1);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops all the members concurrently and waits for them to stop.
+	 *
+	 * @see TorWrapper#stop()
+	 */
+	public void stop() throws IOException, InterruptedException {
+		runOnAllMembers(TorWrapper::stop);
+	}
+
+	/**
+	 * Publishes an ephemeral hidden service on the running member that is
+	 * hosting the fewest services.
+	 *
+	 * @see TorWrapper#publishHiddenService(int, int, String)
+	 */
+	public HiddenServiceProperties publishHiddenService(int localPort,
+			int remotePort, @Nullable String privateKey) throws IOException {
+		int chosen = -1;
+		synchronized (lock) {
+			for (int i = 0; i < members.size(); i++) {
+				if (!members.get(i).isTorRunning()) continue;
+				if (chosen == -1 || memberLoads[i] < memberLoads[chosen]) chosen = i;
+			}
+			if (chosen == -1) throw new IOException("No members are running");
+			// Count the service before publishing it, so concurrent calls
+			// are spread across the members
+			memberLoads[chosen]++;
+		}
+		HiddenServiceProperties hs;
+		try {
+			hs = members.get(chosen).publishHiddenService(localPort, remotePort, privateKey);
+		} catch (IOException | RuntimeException e) {
+			synchronized (lock) {
+				memberLoads[chosen]--;
+			}
+			throw e;
+		}
+		synchronized (lock) {
+			Integer old = owners.put(hs.onion, chosen);
+			// If the service was already published, it's now hosted twice
+			// and will only be removed from the new owner
+			if (old != null) memberLoads[old]--;
+		}
+		return hs;
+	}
+
+	/**
+	 * Removes a hidden service from the member that published it.
+	 *
+	 * @see TorWrapper#removeHiddenService(String)
+	 */
+	public void removeHiddenService(String onion) throws IOException {
+		Integer owner;
+		synchronized (lock) {
+			owner = owners.remove(onion);
+			if (owner == null) {
+				throw new IOException("Unknown hidden service " + scrubOnion(onion));
+			}
+			memberLoads[owner]--;
+		}
+		try {
+			members.get(owner).removeHiddenService(onion);
+		} catch (IOException | RuntimeException e) {
+			// The service may still be published, so keep track of it
+			synchronized (lock) {
+				if (!owners.containsKey(onion)) {
+					owners.put(onion, owner);
+					memberLoads[owner]++;
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @see TorWrapper#enableNetwork(boolean)
+	 */
+	public void enableNetwork(boolean enable) throws IOException {
+		configureAllMembers(member -> member.enableNetwork(enable));
+	}
+
+	/**
+	 * @see TorWrapper#enableBridges(List)
+	 */
+	public void enableBridges(List<String> bridges) throws IOException {
+		configureAllMembers(member -> member.enableBridges(bridges));
+	}
+
+	/**
+	 * @see TorWrapper#disableBridges()
+	 */
+	public void disableBridges() throws IOException {
+		configureAllMembers(TorWrapper::disableBridges);
+	}
+
+	/**
+	 * @see TorWrapper#enableConnectionPadding(boolean)
+	 */
+	public void enableConnectionPadding(boolean enable) throws IOException {
+		configureAllMembers(member -> member.enableConnectionPadding(enable));
+	}
+
+	/**
+	 * @see TorWrapper#enableIpv6(boolean)
+	 */
+	public void enableIpv6(boolean ipv6Only) throws IOException {
+		configureAllMembers(member -> member.enableIpv6(ipv6Only));
+	}
+
+	/**
+	 * Returns a builder for changing several configuration options at once
+	 * on every member. Each member applies the changes with a single
+	 * command.
+	 *
+	 * @see TorWrapper#configure()
+	 */
+	public Configuration configure() {
+		return new PoolConfiguration();
+	}
+
+	/**
+	 * Applies the given configuration change to every member, even if it
+	 * fails for some members, and rethrows the first exception.
+	 */
+	private void configureAllMembers(ConfigTask task) throws IOException {
+		IOException first = null;
+		for (TorWrapper member : members) {
+			try {
+				task.configure(member);
+			} catch (IOException e) {
+				if (first == null) first = e;
+			}
+		}
+		if (first != null) throw first;
+	}
+
+	/**
+	 * Runs the given task on every member concurrently and waits for all the
+	 * tasks to finish, then rethrows the first exception, if any.
+	 */
+	private void runOnAllMembers(MemberTask task) throws IOException, InterruptedException {
+		CompletionService<Void> completion = new ExecutorCompletionService<>(ioExecutor);
+		for (TorWrapper member : members) {
+			completion.submit(() -> {
+				task.run(member);
+				return null;
+			});
+		}
+		Throwable first = null;
+		for (int i = 0; i < members.size(); i++) {
+			try {
+				completion.take().get();
+			} catch (ExecutionException e) {
+				if (first == null) first = e.getCause();
+			}
+		}
+		if (first == null) return;
+		if (first instanceof IOException) throw (IOException) first;
+		if (first instanceof InterruptedException) throw (InterruptedException) first;
+		if (first instanceof RuntimeException) throw (RuntimeException) first;
+		if (first instanceof Error) throw (Error) first;
+		throw new IOException(first);
+	}
+
+	@GuardedBy("lock")
+	private TorState aggregateState() {
+		int least = READINESS.length - 1;
+		for (TorState s : memberStates) {
+			for (int i = 0; i < least; i++) {
+				if (READINESS[i] == s) {
+					least = i;
+					break;
+				}
+			}
+		}
+		return READINESS[least];
+	}
+
+	@GuardedBy("lock")
+	private int aggregateBootstrapPercentage() {
+		int least = 100;
+		for (int percentage : memberPercentages) least = Math.min(least, percentage);
+		return least;
+	}
+
+	private void onMemberState(int index, TorState s) {
+		synchronized (lock) {
+			memberStates[index] = s;
+			if (s == STOPPED) {
+				// The member's hidden services were removed when it stopped
+				Iterator<Integer> it = owners.values().iterator();
+				while (it.hasNext()) if (it.next() == index) it.remove();
+				memberLoads[index] = 0;
+				memberPercentages[index] = 0;
+			}
+			TorState newState = aggregateState();
+			if (newState == state) return;
+			state = newState;
+			Observer o = observer;
+			if (o != null) eventExecutor.execute(() -> o.onState(newState));
+		}
+	}
+
+	/**
+	 * Takes ownership of the hidden services that a member restored after
+	 * supervision restarted it. The member's services were forgotten when
+	 * it stopped.
+	 */
+	private void onMemberRestarted(int index, BatchResult<HiddenServiceProperties> restored) {
+		synchronized (lock) {
+			for (int i = 0; i < restored.size(); i++) {
+				HiddenServiceProperties hs = restored.getResult(i);
+				if (hs == null) continue;
+				Integer old = owners.put(hs.onion, index);
+				if (old != null && old == index) continue;
+				memberLoads[index]++;
+				if (old != null) memberLoads[old]--;
+			}
+		}
+	}
+
+	private void onMemberBootstrapPercentage(int index, int percentage) {
+		synchronized (lock) {
+			memberPercentages[index] = percentage;
+			int newPercentage = aggregateBootstrapPercentage();
+			if (newPercentage == bootstrapPercentage) return;
+			bootstrapPercentage = newPercentage;
+			Observer o = observer;
+			if (o != null) eventExecutor.execute(() -> o.onBootstrapPercentage(newPercentage));
+		}
+	}
+
+	private void forwardEvent(EventTask task) {
+		synchronized (lock) {
+			Observer o = observer;
+			if (o != null) eventExecutor.execute(() -> task.deliver(o));
+		}
+	}
+
+	private interface MemberTask {
+		void run(TorWrapper member) throws IOException, InterruptedException;
+	}
+
+	private interface ConfigTask {
+		void configure(TorWrapper member) throws IOException;
+	}
+
+	private interface EventTask {
+		void deliver(Observer observer);
+	}
+
+	private interface ConfigStep {
+		void addTo(Configuration c);
+	}
+
+	/**
+	 * Records the changes and replays them on each member's configuration
+	 * builder when applied.
+	 */
+	@NotThreadSafe
+	@NotNullByDefault
+	private class PoolConfiguration implements Configuration {
+
+		private final List<ConfigStep> steps = new ArrayList<>();
+
+		@Override
+		public Configuration enableNetwork(boolean enable) {
+			steps.add(c -> c.enableNetwork(enable));
+			return this;
+		}
+
+		@Override
+		public Configuration enableBridges(List<String> bridges) {
+			if (bridges.isEmpty()) {
+				throw new IllegalArgumentException("Bridges can't be empty.");
+			}
+			List<String> copy = new ArrayList<>(bridges);
+			steps.add(c -> c.enableBridges(copy));
+			return this;
+		}
+
+		@Override
+		public Configuration disableBridges() {
+			steps.add(Configuration::disableBridges);
+			return this;
+		}
+
+		@Override
+		public Configuration enableConnectionPadding(boolean enable) {
+			steps.add(c -> c.enableConnectionPadding(enable));
+			return this;
+		}
+
+		@Override
+		public Configuration enableIpv6(boolean ipv6Only) {
+			steps.add(c -> c.enableIpv6(ipv6Only));
+			return this;
+		}
+
+		@Override
+		public Configuration setOption(String key, String value) {
+			steps.add(c -> c.setOption(key, value));
+			return this;
+		}
+
+		@Override
+		public void apply() throws IOException {
+			configureAllMembers(member -> {
+				Configuration c = member.configure();
+				for (ConfigStep step : steps) step.addTo(c);
+				c.apply();
+			});
+		}
+	}
+
+	@NotNullByDefault
+	private class MemberObserver implements Observer {
+
+		private final int index;
+
+		private MemberObserver(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void onState(TorState s) {
+			onMemberState(index, s);
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+			onMemberBootstrapPercentage(index, percentage);
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+			forwardEvent(o -> o.onHsDescriptorUpload(onion));
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+			forwardEvent(o -> o.onClockSkewDetected(skewSeconds));
+		}
+
+		@Override
+		public void onStartupTimings(StartupTimings timings) {
+			forwardEvent(o -> o.onStartupTimings(timings));
+		}
+
+		@Override
+		public void onRestarted(BatchResult<HiddenServiceProperties> restored) {
+			onMemberRestarted(index, restored);
+			forwardEvent(o -> o.onRestarted(restored));
+		}
+	}
+}
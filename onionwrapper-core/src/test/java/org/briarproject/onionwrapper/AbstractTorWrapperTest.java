@@ -0,0 +1,1317 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.CircuitMetrics.CircuitInfo;
+import org.briarproject.onionwrapper.StartupTimings.Phase;
+import org.briarproject.onionwrapper.StreamMetrics.StreamStats;
+import org.briarproject.onionwrapper.StreamMetrics.TargetClass;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceSpec;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+import static org.briarproject.onionwrapper.AbstractTorWrapper.parseListenerPort;
+import static org.briarproject.onionwrapper.CircuitWatchdog.Action.NEW_CIRCUITS;
+import static org.briarproject.onionwrapper.CircuitWatchdog.Action.RESET_NETWORK;
+import static org.briarproject.onionwrapper.CircuitWatchdog.Action.SWITCH_BRIDGES;
+import static org.briarproject.onionwrapper.EventSubscription.OverflowPolicy.DROP_NEWEST;
+import static org.briarproject.onionwrapper.EventSubscription.OverflowPolicy.DROP_OLDEST;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.CREATE_AUTH_COOKIE;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.INSTALL_ASSETS;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.OPEN_CONTROL_PORT;
+import static org.briarproject.onionwrapper.StartupTimings.Phase.QUERY_STATUS;
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.briarproject.onionwrapper.TorWrapper.AUTO_PORT;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.DISABLED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AbstractTorWrapperTest extends BaseTest {
+
+	private static final long TIMEOUT = 10_000;
+
+	private final ExecutorService executor = newCachedThreadPool();
+	private final File torDir = getTestDirectory();
+
+	private FakeTorControlServer server;
+	private TestTorWrapper tor;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeTorControlServer();
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		deleteTestDirectory(torDir);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testStartAndStop() throws Exception {
+		tor.start();
+		assertEquals(STARTED, tor.getTorState());
+		assertTrue(tor.isTorRunning());
+		assertEquals(1, server.getCommandCount("AUTHENTICATE"));
+		assertEquals(1, server.getCommandCount("TAKEOWNERSHIP"));
+		assertEquals(1, server.getCommandCount("SETEVENTS"));
+		tor.stop();
+		assertEquals(STOPPED, tor.getTorState());
+		assertFalse(tor.isTorRunning());
+		assertEquals(0, server.getConnectionCount());
+	}
+
+	@Test
+	public void testReportsNetworkChangesMadeThroughAnyPath() throws Exception {
+		tor.start();
+		try {
+			tor.configure().enableNetwork(true).enableConnectionPadding(true).apply();
+			assertEquals(singletonList(true), tor.getNetworkChanges());
+			// Changes that don't touch the network, or don't change it, aren't
+			// reported
+			tor.enableNetwork(true);
+			tor.configure().enableIpv6(true).apply();
+			assertEquals(singletonList(true), tor.getNetworkChanges());
+			tor.configure().enableNetwork(false).apply();
+			assertEquals(asList(true, false), tor.getNetworkChanges());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testMeasuresAuthCookieWaitTime() throws Exception {
+		assertEquals(-1, tor.getAuthCookieWaitTime());
+		server.setCookieDelay(200);
+		tor.start();
+		try {
+			assertTrue(tor.getAuthCookieWaitTime() >= 150);
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testRecordsStartupTimings() throws Exception {
+		List<StartupTimings> observed = new CopyOnWriteArrayList<>();
+		tor.setObserver(new StartupTimingsObserver(observed));
+		assertTrue(tor.getStartupTimings().isEmpty());
+		tor.start();
+		tor.stop();
+		List<StartupTimings> history = tor.getStartupTimings();
+		assertEquals(1, history.size());
+		assertEquals(history, observed);
+		StartupTimings timings = history.get(0);
+		assertTrue(timings.hasSucceeded());
+		// The assets were installed, so every phase was recorded
+		for (Phase phase : Phase.values()) assertTrue(timings.getDuration(phase) >= 0);
+		// The assets are up to date the second time, so they aren't installed
+		tor.start();
+		tor.stop();
+		history = tor.getStartupTimings();
+		assertEquals(2, history.size());
+		assertEquals(-1, history.get(1).getDuration(INSTALL_ASSETS));
+		assertTrue(history.get(1).getDuration(QUERY_STATUS) >= 0);
+	}
+
+	@Test
+	public void testRecordsFailedStartupTimings() throws Exception {
+		server.setCookieDelay(60_000);
+		try {
+			tor.start();
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		List<StartupTimings> history = tor.getStartupTimings();
+		assertEquals(1, history.size());
+		StartupTimings timings = history.get(0);
+		assertFalse(timings.hasSucceeded());
+		assertTrue(timings.getDuration(OPEN_CONTROL_PORT) >= 0);
+		assertEquals(-1, timings.getDuration(CREATE_AUTH_COOKIE));
+		assertEquals(-1, tor.getAuthCookieWaitTime());
+	}
+
+	@Test
+	public void testStartFailsIfAssetCannotBeInstalled() throws Exception {
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060) {
+			@Override
+			protected InputStream getResourceInputStream(String name, String extension) {
+				if (name.endsWith("lyrebird")) return new FailingInputStream();
+				return super.getResourceInputStream(name, extension);
+			}
+		};
+		try {
+			tor.start();
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		assertFalse(tor.isTorRunning());
+		assertEquals(0, server.getCommandCount("AUTHENTICATE"));
+		// The assets are installed again when the wrapper is restarted
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060);
+		tor.start();
+		try {
+			List<StartupTimings> history = tor.getStartupTimings();
+			assertTrue(history.get(0).getDuration(INSTALL_ASSETS) >= 0);
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testOnlyChangedAssetsAreRewritten() throws Exception {
+		Map<String, String> assets = new ConcurrentHashMap<>();
+		assets.put("tor", "tor v1");
+		assets.put("lyrebird", "lyrebird v1");
+		AtomicLong updateTime = new AtomicLong(1);
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060) {
+			@Override
+			protected long getLastUpdateTime() {
+				return updateTime.get();
+			}
+
+			@Override
+			protected InputStream getResourceInputStream(String name, String extension) {
+				String asset = assets.get(name.substring(name.indexOf('/') + 1));
+				return new ByteArrayInputStream(asset.getBytes(UTF_8));
+			}
+		};
+		File torFile = new File(torDir, "tor"), lyrebirdFile = new File(torDir, "lyrebird");
+		tor.start();
+		tor.stop();
+		assertTrue(torFile.setLastModified(1000));
+		assertTrue(lyrebirdFile.setLastModified(1000));
+		// Nothing is installed if the update time hasn't changed
+		tor.start();
+		tor.stop();
+		assertEquals(-1, getLastStartupTimings().getDuration(INSTALL_ASSETS));
+		// If the update time changes, only the changed asset is rewritten
+		updateTime.set(2);
+		assets.put("lyrebird", "lyrebird v2");
+		tor.start();
+		tor.stop();
+		assertTrue(getLastStartupTimings().getDuration(INSTALL_ASSETS) >= 0);
+		assertEquals(1000, torFile.lastModified());
+		assertTrue(lyrebirdFile.lastModified() > 1000);
+		assertEquals("lyrebird v2".length(), lyrebirdFile.length());
+		// If an asset is missing, it is installed again
+		assertTrue(torFile.delete());
+		tor.start();
+		tor.stop();
+		assertTrue(getLastStartupTimings().getDuration(INSTALL_ASSETS) >= 0);
+		assertEquals("tor v1".length(), torFile.length());
+	}
+
+	@Test
+	public void testFailedUpdateLeavesOldAssetIntact() throws Exception {
+		AtomicLong updateTime = new AtomicLong(1);
+		AtomicBoolean fail = new AtomicBoolean(false);
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, 59060) {
+			@Override
+			protected long getLastUpdateTime() {
+				return updateTime.get();
+			}
+
+			@Override
+			protected InputStream getResourceInputStream(String name, String extension) {
+				if (name.endsWith("lyrebird") && fail.get()) {
+					// Fail partway through the new version
+					InputStream partial = new ByteArrayInputStream("lyr".getBytes(UTF_8));
+					return new SequenceInputStream(partial, new FailingInputStream());
+				}
+				return new ByteArrayInputStream(name.getBytes(UTF_8));
+			}
+		};
+		File lyrebirdFile = new File(torDir, "lyrebird");
+		tor.start();
+		tor.stop();
+		assertEquals("test/lyrebird".length(), lyrebirdFile.length());
+		updateTime.set(2);
+		fail.set(true);
+		try {
+			tor.start();
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		// The old version is still in place and no temporary files are left
+		assertEquals("test/lyrebird".length(), lyrebirdFile.length());
+		assertTrue(lyrebirdFile.canExecute());
+		assertEquals(0, countTempFiles());
+	}
+
+	@Test
+	public void testConcurrentExtractionsDoNotCorruptFile() throws Exception {
+		assertTrue(torDir.mkdirs());
+		File dest = new File(torDir, "tor");
+		int threads = 8, size = 256 * 1024;
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			byte[] contents = new byte[size];
+			Arrays.fill(contents, (byte) i);
+			futures.add(executor.submit(() -> {
+				for (int j = 0; j < 10; j++) {
+					tor.extract(new ByteArrayInputStream(contents), dest, true);
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> f : futures) f.get(TIMEOUT, MILLISECONDS);
+		// The file contains exactly one of the versions
+		byte[] contents = new byte[size + 1];
+		InputStream in = new FileInputStream(dest);
+		int read = 0;
+		while (read < contents.length) {
+			int n = in.read(contents, read, contents.length - read);
+			if (n == -1) break;
+			read += n;
+		}
+		in.close();
+		assertEquals(size, read);
+		for (int i = 1; i < size; i++) assertEquals(contents[0], contents[i]);
+		assertTrue(dest.canExecute());
+		assertEquals(0, countTempFiles());
+	}
+
+	@Test
+	public void testWrappersShareCachedBinaries() throws Exception {
+		File cacheDir = new File(torDir, "cache");
+		File torDir1 = new File(torDir, "1"), torDir2 = new File(torDir, "2");
+		AtomicInteger opened = new AtomicInteger(0);
+		TestTorWrapper tor1 = createCountingWrapper(torDir1, opened);
+		TestTorWrapper tor2 = createCountingWrapper(torDir2, opened);
+		tor1.setBinaryCacheDirectory(cacheDir);
+		tor2.setBinaryCacheDirectory(cacheDir);
+		tor1.start();
+		tor1.stop();
+		// The binaries are hashed, then installed
+		assertEquals(4, opened.get());
+		File torFile = tor1.getTorExecutableFile();
+		assertEquals(cacheDir.getAbsoluteFile(), torFile.getParentFile().getParentFile());
+		assertTrue(torFile.canExecute());
+		assertFalse(new File(torDir1, "tor").exists());
+		// The second wrapper only hashes the binaries
+		tor2.start();
+		tor2.stop();
+		assertEquals(6, opened.get());
+		assertEquals(torFile, tor2.getTorExecutableFile());
+		assertEquals(tor1.getLyrebirdExecutableFile(), tor2.getLyrebirdExecutableFile());
+		// Nothing is hashed or installed when the wrapper is restarted
+		tor2.start();
+		tor2.stop();
+		assertEquals(6, opened.get());
+		// If the cache is no longer used, the binaries are installed locally
+		tor2.setBinaryCacheDirectory(null);
+		tor2.start();
+		tor2.stop();
+		assertEquals(new File(torDir2, "tor"), tor2.getTorExecutableFile());
+		assertTrue(new File(torDir2, "tor").exists());
+		// Switching back to the cache deletes the local copies
+		tor2.setBinaryCacheDirectory(cacheDir);
+		tor2.start();
+		tor2.stop();
+		assertEquals(torFile, tor2.getTorExecutableFile());
+		assertFalse(new File(torDir2, "tor").exists());
+	}
+
+	@Test
+	public void testExternalAssetsContributeToCachedBinariesLocation() throws Exception {
+		File cacheDir = new File(torDir, "cache");
+		File external = new File(torDir, "libtor.so");
+		assertTrue(torDir.mkdirs());
+		writeFile(external, "a");
+		TestTorWrapper tor1 = createExternalTorWrapper(new File(torDir, "1"), external);
+		TestTorWrapper tor2 = createExternalTorWrapper(new File(torDir, "2"), external);
+		tor1.setBinaryCacheDirectory(cacheDir);
+		tor2.setBinaryCacheDirectory(cacheDir);
+		tor1.start();
+		tor1.stop();
+		File dir = tor1.getLyrebirdExecutableFile().getParentFile();
+		// The external file isn't installed in the cache
+		assertFalse(new File(dir, "tor").exists());
+		// A wrapper using the same external file shares the cached binaries
+		tor2.start();
+		tor2.stop();
+		assertEquals(dir, tor2.getLyrebirdExecutableFile().getParentFile());
+		// A wrapper using a different external file uses another location
+		writeFile(external, "b");
+		TestTorWrapper tor3 = createExternalTorWrapper(new File(torDir, "3"), external);
+		tor3.setBinaryCacheDirectory(cacheDir);
+		tor3.start();
+		tor3.stop();
+		assertNotEquals(dir, tor3.getLyrebirdExecutableFile().getParentFile());
+	}
+
+	@Test
+	public void testKeepsLimitedStartupTimingsHistory() throws Exception {
+		for (int i = 0; i < 12; i++) {
+			tor.start();
+			tor.stop();
+		}
+		List<StartupTimings> history = tor.getStartupTimings();
+		assertEquals(10, history.size());
+		for (int i = 1; i < history.size(); i++) {
+			assertTrue(history.get(i).getStartTime() >= history.get(i - 1).getStartTime());
+		}
+	}
+
+	@Test
+	public void testDiscoversAutomaticPorts() throws Exception {
+		tor = new TestTorWrapper(executor, Runnable::run, torDir, server, AUTO_PORT, AUTO_PORT);
+		assertEquals(AUTO_PORT, tor.getSocksPort());
+		assertEquals(AUTO_PORT, tor.getControlPort());
+		tor.start();
+		try {
+			assertEquals(singletonList("auto"), server.getConf("SocksPort"));
+			assertEquals(singletonList("auto"), server.getConf("ControlPort"));
+			assertEquals(server.getSocksPort(), tor.getSocksPort());
+			assertEquals(server.getPort(), tor.getControlPort());
+		} finally {
+			tor.stop();
+		}
+		assertEquals(AUTO_PORT, tor.getSocksPort());
+		assertEquals(AUTO_PORT, tor.getControlPort());
+	}
+
+	@Test
+	public void testUsesFixedPorts() throws Exception {
+		tor.start();
+		try {
+			assertEquals(singletonList("59060"), server.getConf("SocksPort"));
+			assertEquals(59060, tor.getSocksPort());
+			assertEquals(server.getPort(), tor.getControlPort());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testParsesListenerPort() throws Exception {
+		assertEquals(9050, parseListenerPort("\"127.0.0.1:9050\""));
+		assertEquals(9050, parseListenerPort("127.0.0.1:9050"));
+		assertEquals(9050, parseListenerPort("\"127.0.0.1:9050\" \"[::1]:9051\""));
+		assertEquals(9051, parseListenerPort("[::1]:9051"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsListenerWithoutPort() throws Exception {
+		parseListenerPort("\"unix:/tmp/socks\"");
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsListenerWithInvalidPort() throws Exception {
+		parseListenerPort("127.0.0.1:0");
+	}
+
+	@Test
+	public void testWrapperCanBeReused() throws Exception {
+		tor.start();
+		tor.stop();
+		tor.start();
+		assertEquals(STARTED, tor.getTorState());
+		assertEquals(2, server.getCommandCount("AUTHENTICATE"));
+		tor.stop();
+		assertEquals(STOPPED, tor.getTorState());
+	}
+
+	@Test
+	public void testConnectsWhenBootstrapped() throws Exception {
+		tor.start();
+		try {
+			tor.enableNetwork(false);
+			assertEquals(DISABLED, tor.getTorState());
+			assertEquals(singletonList("1"), server.getConf("DisableNetwork"));
+			tor.enableNetwork(true);
+			assertEquals(CONNECTING, tor.getTorState());
+			assertEquals(singletonList("0"), server.getConf("DisableNetwork"));
+			server.bootstrap();
+			waitForState(CONNECTED);
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testAppliesConfigurationInOneCommand() throws Exception {
+		tor.start();
+		try {
+			int before = server.getCommandCount("SETCONF");
+			tor.configure()
+					.enableBridges(asList("Bridge 192.0.2.1:443", "Bridge 192.0.2.2:443"))
+					.enableConnectionPadding(true)
+					.enableIpv6(true)
+					.setOption("NumEntryGuards", "2")
+					.enableNetwork(true)
+					.apply();
+			assertEquals(before + 1, server.getCommandCount("SETCONF"));
+			assertEquals(CONNECTING, tor.getTorState());
+			assertEquals(singletonList("1"), server.getConf("UseBridges"));
+			assertEquals(asList("192.0.2.1:443", "192.0.2.2:443"), server.getConf("Bridge"));
+			assertEquals(singletonList("1"), server.getConf("ConnectionPadding"));
+			assertEquals(singletonList("0"), server.getConf("ClientUseIPv4"));
+			assertEquals(singletonList("1"), server.getConf("ClientUseIPv6"));
+			assertEquals(singletonList("2"), server.getConf("NumEntryGuards"));
+			assertEquals(singletonList("0"), server.getConf("DisableNetwork"));
+			// Options that are unchanged are not sent again
+			tor.configure().enableConnectionPadding(true).enableNetwork(true).apply();
+			tor.enableIpv6(true);
+			assertEquals(before + 1, server.getCommandCount("SETCONF"));
+			tor.configure().disableBridges().enableIpv6(false).apply();
+			assertEquals(before + 2, server.getCommandCount("SETCONF"));
+			assertEquals(singletonList("0"), server.getConf("UseBridges"));
+			assertEquals(singletonList("1"), server.getConf("ClientUseIPv4"));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConfigurationRejectsEmptyBridges() {
+		tor.configure().enableBridges(emptyList());
+	}
+
+	@Test
+	public void testPublishAndRemoveHiddenService() throws Exception {
+		tor.start();
+		try {
+			List<String> keySpecs = new CopyOnWriteArrayList<>();
+			server.addCommandListener((keyword, args, success) -> {
+				if (keyword.equals("ADD_ONION")) keySpecs.add(args.split(" ")[0]);
+			});
+			HiddenServiceProperties hs = tor.publishHiddenService(8080, 80, null);
+			assertEquals(56, hs.onion.length());
+			// Tor generates the key and reports it along with the address
+			assertTrue(hs.privKey.startsWith("ED25519-V3:"));
+			assertTrue(OnionKeys.isValidOnionAddress(hs.onion));
+			assertTrue(server.getOnions().contains(hs.onion));
+			tor.removeHiddenService(hs.onion);
+			assertFalse(server.getOnions().contains(hs.onion));
+			// Republishing with the same key gives the same address
+			HiddenServiceProperties republished =
+					tor.publishHiddenService(8080, 80, hs.privKey);
+			assertEquals(hs.onion, republished.onion);
+			assertEquals(hs.privKey, republished.privKey);
+			// The server has handled both ADD_ONION commands before replying
+			// to a later command
+			tor.removeHiddenService(republished.onion);
+			assertEquals(asList("NEW:ED25519-V3", hs.privKey), keySpecs);
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testHandleCompletesWhenQuorumOfUploadsSucceeds() throws Exception {
+		tor.start();
+		try {
+			HiddenServiceHandle handle = tor.publishHiddenService(8080, 80, null, 2);
+			String onion = handle.getProperties().onion;
+			// Uploads of other services' descriptors are ignored
+			String other = "25njqamcweflpvkl73j4szahhihoc4xt3ktcgjnpaingr5yhkenl5sid";
+			server.sendEvent(hsDesc("UPLOADED", other));
+			for (int i = 0; i < 3; i++) server.sendEvent(hsDesc("UPLOAD", onion));
+			server.sendEvent(hsDesc("FAILED", onion) + " REASON=UPLOAD_REJECTED");
+			server.sendEvent(hsDesc("UPLOADED", onion));
+			server.sendEvent(hsDesc("UPLOADED", onion));
+			assertSame(handle, handle.getReachableFuture().await(TIMEOUT));
+			assertEquals(3, handle.getUploadCount());
+			assertEquals(2, handle.getSuccessCount());
+			assertEquals(1, handle.getFailureCount());
+			assertEquals(0, handle.getRetryCount());
+			assertTrue(handle.getFirstUploadLatency() >= 0);
+			assertTrue(handle.getReachableLatency() >= handle.getFirstUploadLatency());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testRepublishesWhenAllUploadsFail() throws Exception {
+		tor.setDescriptorRetryDelay(10);
+		tor.start();
+		try {
+			HiddenServiceHandle handle = tor.publishHiddenService(8080, 80, null, 1);
+			String onion = handle.getProperties().onion;
+			server.sendEvent(hsDesc("UPLOAD", onion));
+			server.sendEvent(hsDesc("UPLOAD", onion));
+			server.sendEvent(hsDesc("FAILED", onion) + " REASON=UPLOAD_REJECTED");
+			server.sendEvent(hsDesc("FAILED", onion) + " REASON=UPLOAD_REJECTED");
+			long start = System.currentTimeMillis();
+			while (server.getCommandCount("ADD_ONION") < 2) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(1, server.getCommandCount("DEL_ONION"));
+			assertEquals(1, handle.getRetryCount());
+			assertFalse(handle.getReachableFuture().isDone());
+			server.sendEvent(hsDesc("UPLOAD", onion));
+			server.sendEvent(hsDesc("UPLOADED", onion));
+			handle.getReachableFuture().await(TIMEOUT);
+			assertEquals(2, handle.getFailureCount());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testHandleFailsWhenServiceIsRemoved() throws Exception {
+		tor.start();
+		HiddenServiceHandle handle;
+		try {
+			handle = tor.publishHiddenService(8080, 80, null, 1);
+			tor.removeHiddenService(handle.getProperties().onion);
+		} finally {
+			tor.stop();
+		}
+		try {
+			handle.getReachableFuture().await(TIMEOUT);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRestoresSnapshotAfterRestart() throws Exception {
+		List<HiddenServiceProperties> published = new ArrayList<>();
+		tor.start();
+		try {
+			tor.configure()
+					.enableBridges(singletonList("Bridge 192.0.2.1:443"))
+					.enableConnectionPadding(true)
+					.setOption("NumEntryGuards", "2")
+					.enableNetwork(true)
+					.apply();
+			for (int i = 0; i < 3; i++) {
+				published.add(tor.publishHiddenService(8080 + i, 80, null));
+			}
+			tor.removeHiddenService(published.remove(0).onion);
+		} finally {
+			tor.stop();
+		}
+		// The snapshot taken when Tor stopped can be persisted and restored
+		TorSnapshot snapshot = TorSnapshot.fromByteArray(tor.getSnapshot().toByteArray());
+		assertEquals(2, snapshot.getHiddenServices().size());
+		int setConfBefore = server.getCommandCount("SETCONF");
+		BatchResult<HiddenServiceProperties> result = tor.start(snapshot);
+		try {
+			assertEquals(2, result.getSuccessCount());
+			for (HiddenServiceProperties hs : published) {
+				assertTrue(server.getOnions().contains(hs.onion));
+			}
+			// The configuration was restored with a single command
+			assertEquals(setConfBefore + 1, server.getCommandCount("SETCONF"));
+			assertEquals(CONNECTING, tor.getTorState());
+			assertEquals(singletonList("192.0.2.1:443"), server.getConf("Bridge"));
+			assertEquals(singletonList("2"), server.getConf("NumEntryGuards"));
+			TorSnapshot restored = tor.getSnapshot();
+			assertEquals(Boolean.TRUE, restored.isNetworkEnabled());
+			assertTrue(restored.isConnectionPaddingEnabled());
+			// The services are published concurrently, so their order may vary
+			List<String> keys = new ArrayList<>();
+			for (HiddenServiceSpec spec : restored.getHiddenServices()) {
+				keys.add(spec.privateKey);
+			}
+			assertEquals(2, keys.size());
+			for (HiddenServiceProperties hs : published) assertTrue(keys.contains(hs.privKey));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testSupervisionRestartsTorAfterCrash() throws Exception {
+		tor.setSupervised(true);
+		tor.setRestartDelay(10);
+		tor.start();
+		try {
+			tor.configure().enableConnectionPadding(true).enableNetwork(true).apply();
+			HiddenServiceProperties a = tor.publishHiddenService(8080, 80, null);
+			HiddenServiceProperties b = tor.publishHiddenService(8081, 80, null);
+			server.crash();
+			long start = System.currentTimeMillis();
+			while (tor.getRestartCount() == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(1, tor.getRestartCount());
+			assertTrue(tor.getLastRecoveryTime() >= 0);
+			assertEquals(2, server.getCommandCount("AUTHENTICATE"));
+			assertEquals(CONNECTING, tor.getTorState());
+			assertEquals(singletonList("1"), server.getConf("ConnectionPadding"));
+			assertTrue(server.getOnions().contains(a.onion));
+			assertTrue(server.getOnions().contains(b.onion));
+		} finally {
+			tor.stop();
+		}
+		assertEquals(STOPPED, tor.getTorState());
+	}
+
+	@Test
+	public void testSupervisionRetriesRestoreOnFreshProcess() throws Exception {
+		tor.setSupervised(true);
+		tor.setRestartDelay(10);
+		tor.start();
+		try {
+			tor.configure().enableConnectionPadding(true).enableNetwork(true).apply();
+			HiddenServiceProperties hs = tor.publishHiddenService(8080, 80, null);
+			// The first restart starts Tor but can't restore the configuration
+			server.failCommands("SETCONF", 1);
+			server.crash();
+			long start = System.currentTimeMillis();
+			while (tor.getRestartCount() == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			// The second attempt started a fresh process and restored the
+			// snapshot taken when Tor was lost
+			assertEquals(3, server.getCommandCount("AUTHENTICATE"));
+			assertEquals(CONNECTING, tor.getTorState());
+			assertEquals(singletonList("1"), server.getConf("ConnectionPadding"));
+			assertTrue(server.getOnions().contains(hs.onion));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testStartWithSnapshotRejectsRunningTor() throws Exception {
+		tor.start();
+		try {
+			TorSnapshot snapshot = tor.getSnapshot();
+			int setConfBefore = server.getCommandCount("SETCONF");
+			try {
+				tor.start(snapshot);
+				fail();
+			} catch (IllegalStateException expected) {
+				// Expected
+			}
+			// Nothing was restored onto the running process
+			assertEquals(setConfBefore, server.getCommandCount("SETCONF"));
+			assertEquals(STARTED, tor.getTorState());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testSupervisionRestartsTorWithSingleIoThread() throws Exception {
+		// Recovery mustn't wait on the IO executor for tasks that need
+		// another of its threads, such as reading Tor's output
+		ExecutorService ioExecutor = newSingleThreadExecutor();
+		TestTorWrapper tor = new TestTorWrapper(ioExecutor, Runnable::run,
+				new File(torDir, "single"), server, 59060);
+		tor.setSupervised(true);
+		tor.setRestartDelay(10);
+		tor.start();
+		try {
+			HiddenServiceProperties hs = tor.publishHiddenService(8080, 80, null);
+			server.crash();
+			long start = System.currentTimeMillis();
+			while (tor.getRestartCount() == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertTrue(server.getOnions().contains(hs.onion));
+		} finally {
+			tor.stop();
+			ioExecutor.shutdown();
+		}
+	}
+
+	@Test
+	public void testTorIsNotRestartedWithoutSupervision() throws Exception {
+		tor.setRestartDelay(10);
+		tor.start();
+		try {
+			server.crash();
+			Thread.sleep(200);
+			assertEquals(0, tor.getRestartCount());
+			assertEquals(1, server.getCommandCount("AUTHENTICATE"));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testWatchdogEscalatesUntilCircuitsAreEstablished() throws Exception {
+		List<String> bridges = singletonList("Bridge 192.0.2.1:443");
+		AtomicInteger suppliedBridges = new AtomicInteger(0);
+		CircuitWatchdog watchdog = new CircuitWatchdog(10, 50, TIMEOUT,
+				asList(NEW_CIRCUITS, RESET_NETWORK, SWITCH_BRIDGES),
+				() -> suppliedBridges.getAndIncrement() == 0 ? bridges : null);
+		tor.setCircuitWatchdog(watchdog);
+		tor.start();
+		try {
+			tor.enableNetwork(true);
+			server.bootstrap();
+			waitForState(CONNECTED);
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+			waitForState(CONNECTING);
+			long start = System.currentTimeMillis();
+			while (suppliedBridges.get() < 2) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(1, server.getCommandCount("SIGNAL"));
+			assertEquals(singletonList("0"), server.getConf("DisableNetwork"));
+			assertEquals(singletonList("192.0.2.1:443"), server.getConf("Bridge"));
+			// The last action is repeated, but the supplier has no more bridges
+			assertEquals(1, watchdog.getAttemptCount(SWITCH_BRIDGES));
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED");
+			// Recovery is credited to the last action taken
+			start = System.currentTimeMillis();
+			while (watchdog.getRecoveryCount(SWITCH_BRIDGES) == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(CONNECTED, tor.getTorState());
+			assertEquals(0, watchdog.getRecoveryCount(NEW_CIRCUITS));
+			assertEquals(0, watchdog.getRecoveryCount(RESET_NETWORK));
+			assertTrue(watchdog.getMeanRecoveryTime(SWITCH_BRIDGES) >= 0);
+			assertEquals(-1, watchdog.getMeanRecoveryTime(NEW_CIRCUITS));
+			// Circuits are lost again before the stable period has passed, so
+			// escalation carries on with the last action
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+			waitForState(CONNECTING);
+			Thread.sleep(100);
+			assertEquals(1, watchdog.getAttemptCount(NEW_CIRCUITS));
+			assertEquals(1, watchdog.getAttemptCount(RESET_NETWORK));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testWatchdogTakesNoActionIfCircuitsRecoverDuringGracePeriod()
+			throws Exception {
+		CircuitWatchdog watchdog =
+				new CircuitWatchdog(TIMEOUT, TIMEOUT, TIMEOUT, singletonList(NEW_CIRCUITS), null);
+		tor.setCircuitWatchdog(watchdog);
+		tor.start();
+		try {
+			tor.enableNetwork(true);
+			server.bootstrap();
+			waitForState(CONNECTED);
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+			waitForState(CONNECTING);
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED");
+			waitForState(CONNECTED);
+			assertEquals(0, watchdog.getAttemptCount(NEW_CIRCUITS));
+			assertEquals(0, watchdog.getRecoveryCount(NEW_CIRCUITS));
+			assertEquals(0, server.getCommandCount("SIGNAL"));
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testRecordsBandwidthWhileMonitoringIsEnabled() throws Exception {
+		tor.start();
+		try {
+			BandwidthMetrics metrics = tor.getBandwidthMetrics();
+			tor.enableBandwidthMonitoring(true);
+			server.sendEvent("BW 100 20");
+			server.sendEvent("BW 300 40");
+			long start = System.currentTimeMillis();
+			while (metrics.getTotalBytesWritten() < 60) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(400, metrics.getTotalBytesRead());
+			// After monitoring is disabled, Tor stops sending BW events
+			tor.enableBandwidthMonitoring(false);
+			server.sendEvent("BW 100 20");
+			Thread.sleep(100);
+			assertEquals(400, metrics.getTotalBytesRead());
+			assertEquals(60, metrics.getTotalBytesWritten());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testRecordsStreamsWhileMonitoringIsEnabled() throws Exception {
+		tor.start();
+		try {
+			StreamMetrics metrics = tor.getStreamMetrics();
+			tor.enableStreamMonitoring(true);
+			server.sendEvent("STREAM 1 NEW 0 192.0.2.1:443 SOURCE_ADDR=127.0.0.1:5000");
+			server.sendEvent("STREAM 1 SUCCEEDED 3 192.0.2.1:443");
+			long start = System.currentTimeMillis();
+			while (metrics.getOpenStreamCount() == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			StreamStats stats = metrics.getStats().get(new TargetClass(false, 443));
+			assertEquals(1, stats.getSucceededCount());
+			assertTrue(stats.getLatency().getMean() >= 0);
+		} finally {
+			tor.stop();
+		}
+		// Streams don't outlive Tor
+		assertEquals(0, tor.getStreamMetrics().getOpenStreamCount());
+	}
+
+	@Test
+	public void testRecordsCircuitBuildTimesAndBandwidth() throws Exception {
+		tor.start();
+		try {
+			CircuitMetrics metrics = tor.getCircuitMetrics();
+			tor.enableCircuitBandwidthMonitoring(true);
+			server.sendEvent("CIRC 7 LAUNCHED BUILD_FLAGS=NEED_CAPACITY PURPOSE=GENERAL");
+			server.sendEvent("CIRC 7 BUILT $0123456789ABCDEF0123456789ABCDEF01234567~guard");
+			server.sendEvent("CIRC_BW ID=7 READ=1000 WRITTEN=200 TIME=2024-01-01T00:00:00.000");
+			long start = System.currentTimeMillis();
+			while (metrics.getTotalBytesWritten() == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(1, metrics.getBuildTimes().getCount());
+			List<CircuitInfo> open = metrics.getOpenCircuits();
+			assertEquals(1, open.size());
+			assertEquals("7", open.get(0).getId());
+			assertEquals(1000, open.get(0).getBytesRead());
+			assertEquals(200, open.get(0).getBytesWritten());
+		} finally {
+			tor.stop();
+		}
+		// Circuits don't outlive Tor
+		assertTrue(tor.getCircuitMetrics().getOpenCircuits().isEmpty());
+	}
+
+	@Test
+	public void testWatchdogResetsNetworkThroughNetworkState() throws Exception {
+		CircuitWatchdog watchdog =
+				new CircuitWatchdog(10, TIMEOUT, TIMEOUT, singletonList(RESET_NETWORK), null);
+		tor.setCircuitWatchdog(watchdog);
+		List<TorState> states = new CopyOnWriteArrayList<>();
+		tor.setObserver(new StateObserver(states));
+		tor.start();
+		try {
+			tor.enableNetwork(true);
+			server.bootstrap();
+			waitForState(CONNECTED);
+			int setConf = server.getCommandCount("SETCONF");
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+			long start = System.currentTimeMillis();
+			while (watchdog.getAttemptCount(RESET_NETWORK) == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(setConf + 2, server.getCommandCount("SETCONF"));
+			assertEquals(singletonList("0"), server.getConf("DisableNetwork"));
+			// The reset isn't reported as disabling the network
+			assertEquals(CONNECTING, tor.getTorState());
+			assertFalse(states.contains(DISABLED));
+			assertEquals(Boolean.TRUE, tor.getSnapshot().isNetworkEnabled());
+			// The network state knows the network is enabled
+			tor.enableNetwork(false);
+			assertEquals(singletonList("1"), server.getConf("DisableNetwork"));
+			assertEquals(DISABLED, tor.getTorState());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testNetworkResetDoesNotUndoConcurrentConfiguration() throws Exception {
+		CircuitWatchdog watchdog =
+				new CircuitWatchdog(10, TIMEOUT, TIMEOUT, singletonList(RESET_NETWORK), null);
+		tor.setCircuitWatchdog(watchdog);
+		tor.start();
+		try {
+			tor.enableNetwork(true);
+			server.bootstrap();
+			waitForState(CONNECTED);
+			// Delay the replies so the network can be configured while the
+			// watchdog is waiting for the network to be disabled
+			server.setLatency("SETCONF", 500);
+			int setConf = server.getCommandCount("SETCONF");
+			server.sendEvent("STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED");
+			long start = System.currentTimeMillis();
+			while (server.getCommandCount("SETCONF") == setConf) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			// Tor is already being told to disable the network
+			tor.enableNetwork(false);
+			start = System.currentTimeMillis();
+			while (watchdog.getAttemptCount(RESET_NETWORK) == 0) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			// The watchdog didn't re-enable the network
+			assertEquals(setConf + 1, server.getCommandCount("SETCONF"));
+			assertEquals(singletonList("1"), server.getConf("DisableNetwork"));
+			assertEquals(DISABLED, tor.getTorState());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testCoalescesNotificationsOnSlowEventExecutor() throws Exception {
+		// An event executor that only runs tasks when the test drains it
+		Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+		tor = new TestTorWrapper(executor, queued::add, torDir, server, 59060);
+		List<TorState> states = new ArrayList<>();
+		List<Integer> percentages = new ArrayList<>();
+		tor.setObserver(new Observer() {
+			@Override
+			public void onState(TorState s) {
+				states.add(s);
+			}
+
+			@Override
+			public void onBootstrapPercentage(int percentage) {
+				percentages.add(percentage);
+			}
+
+			@Override
+			public void onHsDescriptorUpload(String onion) {
+			}
+
+			@Override
+			public void onClockSkewDetected(long skewSeconds) {
+			}
+		});
+		tor.setCoalescingNotifications(true);
+		tor.start();
+		try {
+			tor.enableNetwork(true);
+			server.bootstrap();
+			waitForState(CONNECTED);
+			// Only one drain task was queued for all the notifications
+			assertEquals(1, queued.size());
+			requireNonNull(queued.poll()).run();
+			assertEquals(singletonList(CONNECTED), states);
+			assertEquals(singletonList(100), percentages);
+			assertTrue(tor.getCoalescedNotificationCount() > 0);
+			assertEquals(2, tor.getNotificationLag().getCount());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testDeliversEventsToEachSubscriber() throws Exception {
+		tor.start();
+		try {
+			List<TorEvent> fast = new CopyOnWriteArrayList<>();
+			EventSubscription fastSub = tor.subscribe(asList("STREAM", "CIRC"),
+					e -> !e.getMessage().contains("CLOSED"), fast::add, Runnable::run, 16,
+					DROP_OLDEST);
+			// A subscriber whose executor only runs tasks when the test drains it
+			Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+			EventSubscription slowSub = tor.subscribe(singletonList("stream"), null,
+					e -> {
+					}, queued::add, 1, DROP_NEWEST);
+			// The wrapper doesn't otherwise receive STREAM events
+			assertEquals(3, server.getCommandCount("SETEVENTS"));
+			server.sendEvent("STREAM 1 NEW 0 192.0.2.1:443");
+			server.sendEvent("STREAM 1 SUCCEEDED 3 192.0.2.1:443");
+			server.sendEvent("STREAM 1 CLOSED 3 192.0.2.1:443");
+			server.sendEvent("CIRC 3 BUILT");
+			long start = System.currentTimeMillis();
+			while (fast.size() < 3) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals("STREAM", fast.get(0).getType());
+			assertEquals("1 NEW 192.0.2.1:443", fast.get(0).getMessage());
+			assertEquals("CIRC", fast.get(2).getType());
+			assertEquals(3, fastSub.getDeliveredCount());
+			assertEquals(0, fastSub.getDroppedCount());
+			// The slow subscriber's queue filled up without delaying the other
+			assertEquals(1, slowSub.getQueuedCount());
+			assertEquals(2, slowSub.getDroppedCount());
+			assertEquals(1, queued.size());
+			requireNonNull(queued.poll()).run();
+			assertEquals(1, slowSub.getDeliveredCount());
+			// The wrapper stops receiving STREAM events when nobody wants them
+			tor.unsubscribe(fastSub);
+			tor.unsubscribe(slowSub);
+			assertTrue(slowSub.isCancelled());
+			server.sendEvent("STREAM 2 NEW 0 192.0.2.1:443");
+			Thread.sleep(100);
+			assertEquals(3, fast.size());
+			assertTrue(queued.isEmpty());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	@Test
+	public void testStalledSubscriberDoesNotDelayCommands() throws Exception {
+		tor.start();
+		ExecutorService executor = newSingleThreadExecutor();
+		CountDownLatch stalled = new CountDownLatch(1), release = new CountDownLatch(1);
+		try {
+			List<String> received = new CopyOnWriteArrayList<>();
+			EventSubscription sub = tor.subscribe(singletonList("STREAM"), null, e -> {
+				stalled.countDown();
+				try {
+					assertTrue(release.await(TIMEOUT, MILLISECONDS));
+				} catch (InterruptedException ex) {
+					throw new AssertionError(ex);
+				}
+				received.add(e.getMessage());
+			}, executor, 1, DROP_NEWEST);
+			// The listener stalls on the first event, the second fills the
+			// queue and the rest are dropped
+			server.sendEvent("STREAM 0 NEW 0 192.0.2.1:443");
+			assertTrue(stalled.await(TIMEOUT, MILLISECONDS));
+			for (int i = 1; i < 5; i++) server.sendEvent("STREAM " + i + " NEW 0 192.0.2.1:443");
+			long start = System.currentTimeMillis();
+			while (sub.getDroppedCount() < 3) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			// Commands complete while the subscriber is stalled, as the
+			// thread that reads their replies doesn't wait for it
+			Thread command = new Thread(() -> {
+				try {
+					tor.enableNetwork(true);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			});
+			command.start();
+			command.join(TIMEOUT);
+			assertFalse(command.isAlive());
+			assertEquals(singletonList("0"), server.getConf("DisableNetwork"));
+			// The queued event is delivered when the subscriber catches up
+			release.countDown();
+			start = System.currentTimeMillis();
+			while (sub.getDeliveredCount() < 2) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(asList("0 NEW 192.0.2.1:443", "1 NEW 192.0.2.1:443"), received);
+			assertEquals(3, sub.getDroppedCount());
+			tor.unsubscribe(sub);
+		} finally {
+			// Let the subscriber catch up so stopping Tor can't get stuck
+			release.countDown();
+			tor.stop();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testPublishesAndRemovesHiddenServicesInBatches() throws Exception {
+		tor.start();
+		try {
+			List<HiddenServiceSpec> specs = new ArrayList<>();
+			for (int i = 0; i < 100; i++) specs.add(new HiddenServiceSpec(8080 + i, 80, null));
+			// An invalid key fails without affecting the other items
+			specs.add(new HiddenServiceSpec(9090, 80, "RSA1024:invalid"));
+			BatchResult<HiddenServiceProperties> published = tor.publishHiddenServices(specs);
+			assertEquals(101, published.size());
+			assertEquals(100, published.getSuccessCount());
+			assertEquals(1, published.getFailureCount());
+			assertNull(published.getResult(100));
+			assertTrue(published.getFailure(100) instanceof IOException);
+			assertTrue(published.getThroughput() > 0);
+			List<String> onions = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				HiddenServiceProperties hs = requireNonNull(published.getResult(i));
+				assertNull(published.getFailure(i));
+				assertTrue(server.getOnions().contains(hs.onion));
+				onions.add(hs.onion);
+			}
+			assertEquals(100, server.getOnions().size());
+			// Removing an unknown service fails without affecting the others
+			onions.add(0, "unknown");
+			BatchResult<String> removed = tor.removeHiddenServices(onions);
+			assertEquals(101, removed.size());
+			assertEquals(1, removed.getFailureCount());
+			assertNotNull(removed.getFailure(0));
+			assertEquals(onions.get(1), removed.getResult(1));
+			assertTrue(server.getOnions().isEmpty());
+		} finally {
+			tor.stop();
+		}
+	}
+
+	private TestTorWrapper createCountingWrapper(File dir, AtomicInteger opened) {
+		return new TestTorWrapper(executor, Runnable::run, dir, server, 59060) {
+			@Override
+			protected InputStream getResourceInputStream(String name, String extension) {
+				opened.incrementAndGet();
+				return new ByteArrayInputStream(name.getBytes(UTF_8));
+			}
+		};
+	}
+
+	private TestTorWrapper createExternalTorWrapper(File dir, File external) {
+		return new TestTorWrapper(executor, Runnable::run, dir, server, 59060) {
+			@Override
+			protected void installTorExecutable() throws IOException {
+				useExternalAsset(external, super.getTorExecutableFile());
+			}
+		};
+	}
+
+	private void writeFile(File f, String contents) throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		out.write(contents.getBytes(UTF_8));
+		out.close();
+	}
+
+	private int countTempFiles() {
+		File[] files = requireNonNull(torDir.listFiles());
+		int count = 0;
+		for (File f : files) if (f.getName().endsWith(".tmp")) count++;
+		return count;
+	}
+
+	private StartupTimings getLastStartupTimings() {
+		List<StartupTimings> history = tor.getStartupTimings();
+		return history.get(history.size() - 1);
+	}
+
+	private static class FailingInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			throw new IOException();
+		}
+	}
+
+	private static class StateObserver implements Observer {
+
+		private final List<TorState> states;
+
+		private StateObserver(List<TorState> states) {
+			this.states = states;
+		}
+
+		@Override
+		public void onState(TorState s) {
+			states.add(s);
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+	}
+
+	private static class StartupTimingsObserver implements Observer {
+
+		private final List<StartupTimings> observed;
+
+		private StartupTimingsObserver(List<StartupTimings> observed) {
+			this.observed = observed;
+		}
+
+		@Override
+		public void onState(TorState s) {
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+
+		@Override
+		public void onStartupTimings(StartupTimings timings) {
+			observed.add(timings);
+		}
+	}
+
+	private static String hsDesc(String action, String onion) {
+		return "HS_DESC " + action + " " + onion
+				+ " UNKNOWN $0123456789ABCDEF0123456789ABCDEF01234567~hsdir";
+	}
+
+	private void waitForState(TorState expected) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while (tor.getTorState() != expected) {
+			if (System.currentTimeMillis() - start > TIMEOUT) {
+				throw new AssertionError("Expected " + expected + ", was " + tor.getTorState());
+			}
+			//noinspection BusyWait
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.AssetManifest.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AssetManifestTest extends BaseTest {
+
+	private final File testDir = getTestDirectory();
+	private final File manifestFile = new File(testDir, "manifest");
+
+	@Before
+	public void setUp() {
+		assertTrue(testDir.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testWritesAndReadsManifest() throws Exception {
+		AssetManifest manifest = new AssetManifest(123);
+		manifest.put("tor", new Entry("abcd", 4));
+		manifest.put("lyrebird with spaces", new Entry("ef01", 10));
+		writeFile(manifestFile, manifest.toByteArray());
+
+		AssetManifest read = requireNonNull(AssetManifest.read(manifestFile));
+		assertEquals(123, read.getUpdateTime());
+		Entry tor = requireNonNull(read.get("tor"));
+		assertEquals("abcd", tor.hash);
+		assertEquals(4, tor.size);
+		Entry lyrebird = requireNonNull(read.get("lyrebird with spaces"));
+		assertEquals("ef01", lyrebird.hash);
+		assertEquals(10, lyrebird.size);
+		assertNull(read.get("libevent"));
+	}
+
+	@Test
+	public void testWritesAndReadsLocation() throws Exception {
+		File location = new File(testDir, "cache dir/abcd");
+		AssetManifest manifest = new AssetManifest(123, location);
+		manifest.put("tor", new Entry("abcd", 4));
+		writeFile(manifestFile, manifest.toByteArray());
+
+		AssetManifest read = requireNonNull(AssetManifest.read(manifestFile));
+		assertEquals(location.getAbsoluteFile(), read.getLocation());
+		assertEquals(4, requireNonNull(read.get("tor")).size);
+		// A manifest without assets has no location unless one was written
+		writeFile(manifestFile, new AssetManifest(123).toByteArray());
+		assertNull(requireNonNull(AssetManifest.read(manifestFile)).getLocation());
+	}
+
+	@Test
+	public void testContentKeyDependsOnNamesAndHashesOnly() {
+		AssetManifest a = new AssetManifest(1);
+		a.put("tor", new Entry("abcd", -1));
+		AssetManifest b = new AssetManifest(2, testDir);
+		b.put("tor", new Entry("abcd", 4));
+		assertEquals(a.getContentKey(), b.getContentKey());
+		b.put("tor", new Entry("abce", 4));
+		assertNotEquals(a.getContentKey(), b.getContentKey());
+		a.put("lyrebird", new Entry("abcd", -1));
+		assertNotEquals(a.getContentKey(), new AssetManifest(1).getContentKey());
+	}
+
+	@Test
+	public void testMissingOrCorruptManifestIsNotRead() throws Exception {
+		assertNull(AssetManifest.read(manifestFile));
+		writeFile(manifestFile, "update-time not-a-number\n");
+		assertNull(AssetManifest.read(manifestFile));
+		writeFile(manifestFile, "update-time 123\nsha256 abcd\n");
+		assertNull(AssetManifest.read(manifestFile));
+		writeFile(manifestFile, "");
+		assertNull(AssetManifest.read(manifestFile));
+	}
+
+	@Test
+	public void testChecksThatAssetsExistWithExpectedSize() throws Exception {
+		AssetManifest manifest = new AssetManifest(123);
+		manifest.put("tor", new Entry("abcd", 4));
+		assertFalse(manifest.assetsExist(testDir));
+		writeFile(new File(testDir, "tor"), "abc");
+		assertFalse(manifest.assetsExist(testDir));
+		writeFile(new File(testDir, "tor"), "abcd");
+		assertTrue(manifest.assetsExist(testDir));
+	}
+
+	@Test
+	public void testHashesStream() throws Exception {
+		String empty = AssetManifest.hash(new ByteArrayInputStream(new byte[0]));
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+				empty);
+	}
+
+	private void writeFile(File f, String contents) throws Exception {
+		writeFile(f, contents.getBytes(UTF_8));
+	}
+
+	private void writeFile(File f, byte[] contents) throws Exception {
+		OutputStream out = new FileOutputStream(f);
+		out.write(contents);
+		out.close();
+	}
+}
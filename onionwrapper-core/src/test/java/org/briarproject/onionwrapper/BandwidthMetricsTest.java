@@ -0,0 +1,65 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.Test;
+
+import static org.briarproject.onionwrapper.BandwidthMetrics.Window.FIFTEEN_MINUTES;
+import static org.briarproject.onionwrapper.BandwidthMetrics.Window.ONE_MINUTE;
+import static org.briarproject.onionwrapper.BandwidthMetrics.Window.ONE_SECOND;
+import static org.junit.Assert.assertEquals;
+
+public class BandwidthMetricsTest extends BaseTest {
+
+	private static final long START = 1_700_000_000_000L;
+
+	private final BandwidthMetrics metrics = new BandwidthMetrics();
+
+	@Test
+	public void testAccumulatesTotals() {
+		metrics.record(100, 10, START);
+		metrics.record(200, 20, START + 1000);
+		assertEquals(300, metrics.getTotalBytesRead());
+		assertEquals(30, metrics.getTotalBytesWritten());
+	}
+
+	@Test
+	public void testRatesCoverCompleteSeconds() {
+		metrics.record(600, 60, START);
+		// The sample isn't included until its second is complete
+		assertEquals(0, metrics.getReadRate(ONE_SECOND, START + 500));
+		assertEquals(600, metrics.getReadRate(ONE_SECOND, START + 1000));
+		assertEquals(60, metrics.getWriteRate(ONE_SECOND, START + 1000));
+		assertEquals(10, metrics.getReadRate(ONE_MINUTE, START + 1000));
+		// The sample drops out of each window when the window has passed
+		assertEquals(0, metrics.getReadRate(ONE_SECOND, START + 2000));
+		assertEquals(10, metrics.getReadRate(ONE_MINUTE, START + 60_000));
+		assertEquals(0, metrics.getReadRate(ONE_MINUTE, START + 61_000));
+	}
+
+	@Test
+	public void testAveragesOverWindow() {
+		for (int i = 0; i < 15 * 60; i++) metrics.record(i < 60 ? 90 : 0, 9, START + i * 1000L);
+		long now = START + 15 * 60 * 1000;
+		assertEquals(0, metrics.getReadRate(ONE_MINUTE, now));
+		assertEquals(6, metrics.getReadRate(FIFTEEN_MINUTES, now));
+		assertEquals(9, metrics.getWriteRate(ONE_MINUTE, now));
+		assertEquals(9, metrics.getWriteRate(FIFTEEN_MINUTES, now));
+	}
+
+	@Test
+	public void testSamplesInSameSecondAreAdded() {
+		metrics.record(100, 10, START);
+		metrics.record(50, 5, START + 999);
+		assertEquals(150, metrics.getReadRate(ONE_SECOND, START + 1000));
+		assertEquals(15, metrics.getWriteRate(ONE_SECOND, START + 1000));
+	}
+
+	@Test
+	public void testReusedSlotsDoNotKeepOldSamples() {
+		metrics.record(100, 10, START);
+		// Fifteen minutes later the same slot is reused
+		long later = START + 15 * 60 * 1000;
+		metrics.record(7, 1, later);
+		assertEquals(7, metrics.getReadRate(ONE_SECOND, later + 1000));
+		assertEquals(1, metrics.getWriteRate(ONE_SECOND, later + 1000));
+	}
+}
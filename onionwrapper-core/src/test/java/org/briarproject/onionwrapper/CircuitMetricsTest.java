@@ -0,0 +1,129 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.CircuitMetrics.CircuitInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.briarproject.onionwrapper.CircuitMetrics.MAX_PURPOSES;
+import static org.briarproject.onionwrapper.CircuitMetrics.MAX_TRACKED_CIRCUITS;
+import static org.briarproject.onionwrapper.CircuitMetrics.OTHER_PURPOSE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitMetricsTest extends BaseTest {
+
+	private final CircuitMetrics metrics = new CircuitMetrics();
+
+	@Test
+	public void testRecordsBuildTimes() {
+		metrics.onCircuitStatus("LAUNCHED", "1", null, null, 1000);
+		metrics.onCircuitStatus("EXTENDED", "1", null, null, 1200);
+		metrics.onCircuitStatus("BUILT", "1", null, null, 1400);
+		metrics.onCircuitStatus("LAUNCHED", "2", null, null, 2000);
+		metrics.onCircuitStatus("BUILT", "2", null, null, 5000);
+		// A circuit that was launched before we started receiving events
+		metrics.onCircuitStatus("BUILT", "3", null, null, 6000);
+
+		LatencyHistogram buildTimes = metrics.getBuildTimes();
+		assertEquals(2, buildTimes.getCount());
+		assertEquals(1700, buildTimes.getMean());
+		assertEquals(500, buildTimes.getPercentile(50));
+		assertEquals(5000, buildTimes.getPercentile(90));
+		List<CircuitInfo> open = metrics.getOpenCircuits();
+		assertEquals(2, open.size());
+		assertEquals("1", open.get(0).getId());
+		assertEquals(400, open.get(0).getBuildTime());
+		assertEquals(3000, open.get(1).getBuildTime());
+	}
+
+	@Test
+	public void testCountsFailedAndClosedCircuits() {
+		metrics.onCircuitStatus("LAUNCHED", "1", null, null, 0);
+		metrics.onCircuitStatus("FAILED", "1", null, null, 100);
+		metrics.onCircuitStatus("CLOSED", "1", null, null, 100);
+		metrics.onCircuitStatus("LAUNCHED", "2", null, null, 0);
+		metrics.onCircuitStatus("BUILT", "2", null, null, 100);
+		metrics.onCircuitStatus("CLOSED", "2", null, null, 200);
+		metrics.onCircuitStatus("LAUNCHED", "3", null, null, 0);
+		metrics.onCircuitStatus("BUILT", "3", null, null, 100);
+		metrics.onCircuitStatus("FAILED", "3", null, null, 200);
+		metrics.onCircuitStatus("CLOSED", "3", null, null, 200);
+		assertEquals(2, metrics.getFailedCount());
+		assertEquals(1, metrics.getClosedCount());
+		assertTrue(metrics.getOpenCircuits().isEmpty());
+	}
+
+	@Test
+	public void testRecordsPurposesAndReasons() {
+		metrics.onCircuitStatus("LAUNCHED", "1", "GENERAL", null, 0);
+		metrics.onCircuitStatus("BUILT", "1", "GENERAL", null, 100);
+		metrics.onCircuitStatus("LAUNCHED", "2", "HS_CLIENT_REND", null, 0);
+		metrics.onCircuitStatus("BUILT", "2", "HS_CLIENT_REND", null, 300);
+		metrics.onCircuitStatus("LAUNCHED", "3", "GENERAL", null, 0);
+		metrics.onCircuitStatus("BUILT", "3", "GENERAL", null, 500);
+		metrics.onCircuitStatus("LAUNCHED", "4", "GENERAL", null, 0);
+		metrics.onCircuitStatus("FAILED", "4", "GENERAL", "TIMEOUT", 100);
+		metrics.onCircuitStatus("CLOSED", "4", "GENERAL", "TIMEOUT", 100);
+		metrics.onCircuitStatus("FAILED", "3", "GENERAL", "DESTROYED", 600);
+		metrics.onCircuitStatus("CLOSED", "2", "HS_CLIENT_REND", "FINISHED", 700);
+
+		Map<String, LatencyHistogram> byPurpose = metrics.getBuildTimesByPurpose();
+		assertEquals(asList("GENERAL", "HS_CLIENT_REND"), new ArrayList<>(byPurpose.keySet()));
+		assertEquals(2, byPurpose.get("GENERAL").getCount());
+		assertEquals(300, byPurpose.get("GENERAL").getMean());
+		assertEquals(1, byPurpose.get("HS_CLIENT_REND").getCount());
+		Map<String, Long> failureReasons = metrics.getFailureReasons();
+		assertEquals(asList("TIMEOUT", "DESTROYED"), new ArrayList<>(failureReasons.keySet()));
+		assertEquals(singletonMap("FINISHED", 1L), metrics.getCloseReasons());
+		List<CircuitInfo> open = metrics.getOpenCircuits();
+		assertEquals(1, open.size());
+		assertEquals("GENERAL", open.get(0).getPurpose());
+	}
+
+	@Test
+	public void testLimitsPurposes() {
+		for (int i = 0; i < MAX_PURPOSES * 2; i++) {
+			String id = String.valueOf(i);
+			metrics.onCircuitStatus("LAUNCHED", id, null, null, 0);
+			metrics.onCircuitStatus("BUILT", id, "PURPOSE_" + i, null, 100);
+		}
+		Map<String, LatencyHistogram> byPurpose = metrics.getBuildTimesByPurpose();
+		assertEquals(MAX_PURPOSES, byPurpose.size());
+		assertEquals(MAX_PURPOSES + 1, byPurpose.get(OTHER_PURPOSE).getCount());
+	}
+
+	@Test
+	public void testRecordsCircuitBandwidth() {
+		metrics.onCircuitStatus("LAUNCHED", "1", null, null, 0);
+		metrics.onCircuitStatus("BUILT", "1", null, null, 100);
+		metrics.onCircuitBandwidth("1", 500, 50);
+		metrics.onCircuitBandwidth("1", 300, 30);
+		// Bandwidth of untracked circuits only counts towards the totals
+		metrics.onCircuitBandwidth("2", 1000, 100);
+		CircuitInfo circuit = metrics.getOpenCircuits().get(0);
+		assertEquals(800, circuit.getBytesRead());
+		assertEquals(80, circuit.getBytesWritten());
+		assertEquals(1800, metrics.getTotalBytesRead());
+		assertEquals(180, metrics.getTotalBytesWritten());
+	}
+
+	@Test
+	public void testLimitsTrackedCircuits() {
+		for (int i = 0; i < MAX_TRACKED_CIRCUITS + 5; i++) {
+			metrics.onCircuitStatus("LAUNCHED", String.valueOf(i), null, null, 0);
+		}
+		assertEquals(5, metrics.getUntrackedCount());
+		metrics.onCircuitStatus("BUILT", String.valueOf(MAX_TRACKED_CIRCUITS), null, null, 100);
+		assertEquals(0, metrics.getBuildTimes().getCount());
+		// Circuits are forgotten when Tor stops, but their counts are kept
+		metrics.onCircuitStatus("BUILT", "0", null, null, 100);
+		metrics.clearCircuits();
+		assertTrue(metrics.getOpenCircuits().isEmpty());
+		assertEquals(1, metrics.getBuildTimes().getCount());
+	}
+}
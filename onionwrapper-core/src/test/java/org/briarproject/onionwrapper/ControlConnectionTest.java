@@ -0,0 +1,196 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.ControlConnection.EventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ControlConnectionTest extends BaseTest {
+
+	private static final long TIMEOUT = 10_000;
+
+	private final BlockingQueue<ControlReply> events = new LinkedBlockingQueue<>();
+	private final CountDownLatch closed = new CountDownLatch(1);
+
+	private FakeTorControlServer server;
+	private ControlReactor reactor;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeTorControlServer();
+		reactor = new ControlReactor();
+	}
+
+	@After
+	public void tearDown() {
+		reactor.close();
+		server.close();
+	}
+
+	@Test
+	public void testPipelinesCommands() throws Exception {
+		ControlConnection c = connect();
+		server.setInfo("version", FakeTorControlServer.VERSION);
+		// Send all the commands before waiting for any of the replies
+		List<ControlFuture<ControlReply>> replies = new ArrayList<>();
+		for (int i = 0; i < 20; i++) replies.add(c.getInfo(singletonList("version")));
+		for (ControlFuture<ControlReply> reply : replies) {
+			assertEquals(FakeTorControlServer.VERSION,
+					reply.await(TIMEOUT).getKeyValues().get("version"));
+		}
+		assertEquals(20, server.getCommandCount("GETINFO"));
+		c.close();
+	}
+
+	@Test
+	public void testErrorReplyFailsOnlyThatCommand() throws Exception {
+		ControlConnection c = connect();
+		ControlFuture<ControlReply> bad = c.getInfo(singletonList("no-such-key"));
+		ControlFuture<ControlReply> good = c.setEvents(singletonList("CIRC"));
+		try {
+			bad.await(TIMEOUT);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		assertTrue(good.await(TIMEOUT).isOk());
+		c.close();
+	}
+
+	@Test
+	public void testDeliversEvents() throws Exception {
+		ControlConnection c = connect();
+		c.setEvents(singletonList("CIRC")).await(TIMEOUT);
+		server.sendEvent("CIRC 1 BUILT");
+		ControlReply event = events.poll(TIMEOUT, MILLISECONDS);
+		assertNotNull(event);
+		assertTrue(event.isEvent());
+		assertEquals("CIRC 1 BUILT", event.getMessage());
+		c.close();
+	}
+
+	@Test
+	public void testSetConfQuotesValues() throws Exception {
+		ControlConnection c = connect();
+		String bridge = "obfs4 192.0.2.1:443 cert=\"quoted\\\" iat-mode=0";
+		assertTrue(c.setConf(asList("UseBridges 1", "Bridge " + bridge)).await(TIMEOUT).isOk());
+		assertEquals(singletonList("1"), server.getConf("UseBridges"));
+		assertEquals(singletonList(bridge), server.getConf("Bridge"));
+		c.close();
+	}
+
+	@Test
+	public void testAddsAndRemovesOnion() throws Exception {
+		ControlConnection c = connect();
+		ControlReply reply = c.addOnion("NEW:ED25519-V3", 80, "127.0.0.1:8080").await(TIMEOUT);
+		String onion = reply.getKeyValues().get("ServiceID");
+		assertNotNull(onion);
+		assertNotNull(reply.getKeyValues().get("PrivateKey"));
+		assertEquals(singleton(onion), server.getOnions());
+		assertTrue(c.delOnion(onion).await(TIMEOUT).isOk());
+		assertTrue(server.getOnions().isEmpty());
+		c.close();
+	}
+
+	@Test
+	public void testClosingFailsPendingCommands() throws Exception {
+		ControlConnection c = connect();
+		server.setLatency("GETINFO", 1000);
+		ControlFuture<ControlReply> reply = c.getInfo(singletonList("version"));
+		c.close();
+		assertTrue(c.isClosed());
+		try {
+			reply.await(TIMEOUT);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		assertTrue(closed.await(TIMEOUT, MILLISECONDS));
+		// Commands sent after closing fail immediately
+		assertTrue(c.sendCommand("GETINFO version").isDone());
+	}
+
+	@Test
+	public void testOneReactorServesManyConnections() throws Exception {
+		List<ControlConnection> connections = new ArrayList<>();
+		for (int i = 0; i < 5; i++) connections.add(connect());
+		List<ControlFuture<ControlReply>> replies = new ArrayList<>();
+		for (ControlConnection c : connections) {
+			replies.add(c.setEvents(singletonList("CIRC")));
+		}
+		for (ControlFuture<ControlReply> reply : replies) assertTrue(reply.await(TIMEOUT).isOk());
+		// Closing the reactor closes the connections
+		reactor.close();
+		for (ControlConnection c : connections) assertTrue(c.isClosed());
+	}
+
+	@Test
+	public void testConnectionFailsIfNothingIsListening() throws Exception {
+		// Reusing the port of a closed server is racy, as another test may
+		// bind it. Nothing should listen on the privileged port 1
+		ControlFuture<ControlConnection> f = reactor.connect(
+				new InetSocketAddress("127.0.0.1", 1), new QueueingListener(), Runnable::run);
+		try {
+			f.await(TIMEOUT);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		assertFalse(closed.await(0, MILLISECONDS));
+	}
+
+	@Test
+	public void testRunsDelayedTasksInOrderWhileServingConnections() throws Exception {
+		BlockingQueue<String> ran = new LinkedBlockingQueue<>();
+		long start = System.currentTimeMillis();
+		reactor.schedule(() -> ran.add("later"), 200);
+		reactor.schedule(() -> ran.add("sooner"), 100);
+		reactor.schedule(() -> ran.add("also sooner"), 100);
+		// Commands are handled while the tasks are waiting
+		ControlConnection c = connect();
+		assertTrue(c.setEvents(singletonList("CIRC")).await(TIMEOUT).isOk());
+		assertEquals("sooner", ran.poll(TIMEOUT, MILLISECONDS));
+		assertEquals("also sooner", ran.poll(TIMEOUT, MILLISECONDS));
+		assertEquals("later", ran.poll(TIMEOUT, MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		c.close();
+	}
+
+	private ControlConnection connect() throws Exception {
+		ControlConnection c = reactor.connect(new InetSocketAddress("127.0.0.1", server.getPort()),
+				new QueueingListener(), Runnable::run).await(TIMEOUT);
+		assertTrue(c.authenticate(server.getCookie()).await(TIMEOUT).isOk());
+		return c;
+	}
+
+	private class QueueingListener implements EventListener {
+
+		@Override
+		public void onEvent(ControlReply event) {
+			events.add(event);
+		}
+
+		@Override
+		public void onClosed() {
+			closed.countDown();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package org.briarproject.onionwrapper;
+
+import net.freehaven.tor.control.EventHandler;
+
+import org.briarproject.onionwrapper.ControlReply.Line;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+
+public class ControlEventAdapterTest extends BaseTest {
+
+	private final List<String> calls = new ArrayList<>();
+	private final ControlEventAdapter adapter = new ControlEventAdapter(new RecordingHandler());
+
+	@Test
+	public void testDeliversCircuitEvents() {
+		event("CIRC 1 LAUNCHED BUILD_FLAGS=NEED_CAPACITY PURPOSE=GENERAL");
+		event("CIRC 1 BUILT $0123456789ABCDEF0123456789ABCDEF01234567~guard PURPOSE=GENERAL");
+		// A path in the older format contains '=', but isn't a keyword argument
+		event("CIRC 2 EXTENDED $0123456789ABCDEF0123456789ABCDEF01234567=guard");
+		event("CIRC 3 FAILED REASON=TIMEOUT");
+		assertEquals(asList("circuit LAUNCHED 1 ",
+				"circuit BUILT 1 $0123456789ABCDEF0123456789ABCDEF01234567~guard",
+				"circuit EXTENDED 2 $0123456789ABCDEF0123456789ABCDEF01234567=guard",
+				"circuit FAILED 3 "), calls);
+	}
+
+	@Test
+	public void testDeliversOtherParsedEvents() {
+		event("STREAM 5 SUCCEEDED 3 192.0.2.1:443 SOURCE_ADDR=127.0.0.1:5000");
+		event("ORCONN $0123456789ABCDEF0123456789ABCDEF01234567~guard CONNECTED NCIRCS=1");
+		event("BW 100 20");
+		event("NEWDESC $AAAA~a $BBBB~b");
+		event("NOTICE Bootstrapped 100% (done): Done");
+		assertEquals(asList("stream SUCCEEDED 5 192.0.2.1:443",
+				"orconn CONNECTED $0123456789ABCDEF0123456789ABCDEF01234567~guard",
+				"bw 100 20", "newdesc [$AAAA~a, $BBBB~b]",
+				"message NOTICE Bootstrapped 100% (done): Done"), calls);
+	}
+
+	@Test
+	public void testDeliversCircuitPurposesAndReasonsToDetailedHandler() {
+		ControlEventAdapter detailed = new ControlEventAdapter(new DetailedRecordingHandler());
+		detailed.onEvent(reply("CIRC 1 BUILT $0123456789ABCDEF0123456789ABCDEF01234567~guard"
+				+ " BUILD_FLAGS=NEED_CAPACITY PURPOSE=HS_CLIENT_REND"));
+		// The first argument after the status may be a keyword argument
+		detailed.onEvent(reply("CIRC 3 FAILED REASON=TIMEOUT PURPOSE=GENERAL"));
+		detailed.onEvent(reply("CIRC 4 LAUNCHED"));
+		assertEquals(asList("circuit BUILT 1 $0123456789ABCDEF0123456789ABCDEF01234567~guard"
+						+ " HS_CLIENT_REND null",
+				"circuit FAILED 3  GENERAL TIMEOUT",
+				"circuit LAUNCHED 4  null null"), calls);
+	}
+
+	@Test
+	public void testDeliversStreamReasonsToDetailedHandler() {
+		ControlEventAdapter detailed = new ControlEventAdapter(new DetailedRecordingHandler());
+		detailed.onEvent(reply("STREAM 5 FAILED 3 192.0.2.1:443 REASON=END"
+				+ " REMOTE_REASON=EXITPOLICY SOURCE=EXIT"));
+		detailed.onEvent(reply("STREAM 6 CLOSED 3 192.0.2.1:443 REASON=DONE"));
+		detailed.onEvent(reply("STREAM 7 NEW 0 192.0.2.1:443 SOURCE_ADDR=127.0.0.1:5000"));
+		assertEquals(asList("stream FAILED 5 192.0.2.1:443 END EXITPOLICY",
+				"stream CLOSED 6 192.0.2.1:443 DONE null",
+				"stream NEW 7 192.0.2.1:443 null null"), calls);
+	}
+
+	@Test
+	public void testDeliversUnrecognizedEventsWithTheirArguments() {
+		event("STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED");
+		event("hs_desc UPLOADED abc UNKNOWN $AAAA~a");
+		assertEquals(asList("unrecognized STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED",
+				"unrecognized HS_DESC UPLOADED abc UNKNOWN $AAAA~a"), calls);
+	}
+
+	@Test
+	public void testSkipsMalformedLinesOfMultiLineEvent() {
+		adapter.onEvent(new ControlReply(asList(
+				new Line(650, "BW 100", null),
+				new Line(650, "BW 100 not-a-number", null),
+				new Line(650, "BW 300 40", null))));
+		assertEquals(singletonList("bw 300 40"), calls);
+	}
+
+	@Test
+	public void testReportsClosedConnection() {
+		adapter.onClosed();
+		assertEquals(singletonList("closed"), calls);
+	}
+
+	private void event(String message) {
+		adapter.onEvent(reply(message));
+	}
+
+	private static ControlReply reply(String message) {
+		return new ControlReply(singletonList(new Line(650, message, null)));
+	}
+
+	private class DetailedRecordingHandler extends RecordingHandler
+			implements DetailedEventHandler {
+
+		@Override
+		public void circuitStatus(String status, String circID, String path,
+				@Nullable String purpose, @Nullable String reason) {
+			calls.add("circuit " + status + " " + circID + " " + path + " " + purpose + " "
+					+ reason);
+		}
+
+		@Override
+		public void streamStatus(String status, String streamID, String target,
+				@Nullable String reason, @Nullable String remoteReason) {
+			calls.add("stream " + status + " " + streamID + " " + target + " " + reason + " "
+					+ remoteReason);
+		}
+	}
+
+	private class RecordingHandler implements EventHandler {
+
+		@Override
+		public void circuitStatus(String status, String circID, String path) {
+			calls.add("circuit " + status + " " + circID + " " + path);
+		}
+
+		@Override
+		public void streamStatus(String status, String streamID, String target) {
+			calls.add("stream " + status + " " + streamID + " " + target);
+		}
+
+		@Override
+		public void orConnStatus(String status, String orName) {
+			calls.add("orconn " + status + " " + orName);
+		}
+
+		@Override
+		public void bandwidthUsed(long read, long written) {
+			calls.add("bw " + read + " " + written);
+		}
+
+		@Override
+		public void newDescriptors(List<String> orList) {
+			calls.add("newdesc " + orList);
+		}
+
+		@Override
+		public void message(String severity, String msg) {
+			calls.add("message " + severity + " " + msg);
+		}
+
+		@Override
+		public void unrecognized(String type, String msg) {
+			calls.add("unrecognized " + type + " " + msg);
+		}
+
+		@Override
+		public void controlConnectionClosed() {
+			calls.add("closed");
+		}
+	}
+}
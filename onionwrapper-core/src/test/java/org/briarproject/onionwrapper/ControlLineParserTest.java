@@ -0,0 +1,104 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ControlLineParserTest extends BaseTest {
+
+	private final ControlLineParser parser = new ControlLineParser();
+
+	@Test
+	public void testReadsKeywordsAndArguments() {
+		parser.reset("NOTICE BOOTSTRAP PROGRESS=85 TAG=ap_conn_done");
+		assertTrue(parser.next());
+		assertTrue(parser.tokenEquals("NOTICE"));
+		assertNull(parser.value());
+		assertTrue(parser.next());
+		assertTrue(parser.tokenEquals("BOOTSTRAP"));
+		assertFalse(parser.tokenEquals("BOOT"));
+		assertTrue(parser.next());
+		assertTrue(parser.keyEquals("PROGRESS"));
+		assertFalse(parser.keyEquals("PROG"));
+		assertEquals(85, parser.valueAsInt(-1));
+		assertTrue(parser.next());
+		assertEquals("TAG=ap_conn_done", parser.token());
+		assertEquals("ap_conn_done", parser.value());
+		assertFalse(parser.next());
+	}
+
+	@Test
+	public void testQuotedValuesMayContainSpaces() {
+		parser.reset("NOTICE BOOTSTRAP SUMMARY=\"Loading \\\"relay\\\" descriptors\" "
+				+ "PROGRESS=50");
+		assertTrue(parser.skip(2));
+		assertTrue(parser.next());
+		assertTrue(parser.keyEquals("SUMMARY"));
+		assertEquals("Loading \\\"relay\\\" descriptors", parser.value());
+		assertTrue(parser.findKey("PROGRESS"));
+		assertEquals(50, parser.valueAsInt(-1));
+	}
+
+	@Test
+	public void testFindKeyReturnsFalseIfKeyIsMissing() {
+		parser.reset("WARN CLOCK_SKEW SOURCE=DIRSERV:1.2.3.4:80");
+		assertFalse(parser.findKey("SKEW"));
+		assertFalse(parser.next());
+	}
+
+	@Test
+	public void testParsesSignedLongs() {
+		parser.reset("SKEW=-3600 TIME=+12 MAX=9223372036854775807 MIN=-9223372036854775808");
+		assertTrue(parser.next());
+		assertEquals(-3600, parser.valueAsLong(0));
+		assertTrue(parser.next());
+		assertEquals(12, parser.valueAsLong(0));
+		assertTrue(parser.next());
+		assertEquals(Long.MAX_VALUE, parser.valueAsLong(0));
+		assertTrue(parser.next());
+		assertEquals(Long.MIN_VALUE, parser.valueAsLong(0));
+		assertTrue(parser.hasLongValue());
+	}
+
+	@Test
+	public void testRejectsInvalidNumbers() {
+		parser.reset("A=12x B= C=- D=9223372036854775808 E=3000000000 F");
+		assertTrue(parser.next());
+		assertFalse(parser.hasLongValue());
+		assertEquals(-1, parser.valueAsLong(-1));
+		assertTrue(parser.next());
+		assertEquals(-1, parser.valueAsLong(-1));
+		assertTrue(parser.next());
+		assertEquals(-1, parser.valueAsLong(-1));
+		assertTrue(parser.next());
+		assertEquals(-1, parser.valueAsLong(-1));
+		assertTrue(parser.next());
+		assertEquals(3000000000L, parser.valueAsLong(-1));
+		assertEquals(-1, parser.valueAsInt(-1));
+		assertTrue(parser.next());
+		assertFalse(parser.hasLongValue());
+	}
+
+	@Test
+	public void testSkipsRepeatedSpaces() {
+		parser.reset("  UPLOADED   abcdef  ");
+		assertTrue(parser.next());
+		assertTrue(parser.tokenEquals("UPLOADED"));
+		assertTrue(parser.next());
+		assertEquals("abcdef", parser.token());
+		assertFalse(parser.next());
+		assertFalse(parser.skip(1));
+	}
+
+	@Test
+	public void testParserCanBeReused() {
+		parser.reset("CLOCK_JUMPED TIME=5");
+		assertTrue(parser.findKey("TIME"));
+		parser.reset("CLOCK_JUMPED TIME=7");
+		assertTrue(parser.findKey("TIME"));
+		assertEquals(7, parser.valueAsLong(0));
+	}
+}
@@ -0,0 +1,79 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ControlReplyDecoderTest extends BaseTest {
+
+	private final ControlReplyDecoder decoder = new ControlReplyDecoder();
+	private final List<ControlReply> replies = new ArrayList<>();
+
+	@Test
+	public void testDecodesSingleLineReply() throws Exception {
+		decode("250 OK\r\n");
+		assertEquals(1, replies.size());
+		ControlReply reply = replies.get(0);
+		assertEquals(250, reply.getStatus());
+		assertTrue(reply.isOk());
+		assertFalse(reply.isEvent());
+		assertEquals("OK", reply.getMessage());
+	}
+
+	@Test
+	public void testDecodesMultiLineReplyWithData() throws Exception {
+		decode("250-version=0.4.9.11\r\n250+config-text=\r\nSocksPort 9050\r\n"
+				+ "..hidden\r\n.\r\n250 OK\r\n");
+		assertEquals(1, replies.size());
+		ControlReply reply = replies.get(0);
+		assertEquals(3, reply.getLines().size());
+		assertEquals("0.4.9.11", reply.getKeyValues().get("version"));
+		assertEquals("SocksPort 9050\n.hidden", reply.getKeyValues().get("config-text"));
+		assertNull(reply.getLines().get(0).data);
+	}
+
+	@Test
+	public void testDecodesRepliesSplitAcrossChunks() throws Exception {
+		String s = "650 CIRC 1 BUILT\r\n250 OK\r\n552 Unrecognized key\r\n";
+		for (int i = 0; i < s.length(); i++) decode(s.substring(i, i + 1));
+		assertEquals(3, replies.size());
+		assertTrue(replies.get(0).isEvent());
+		assertEquals("CIRC 1 BUILT", replies.get(0).getMessage());
+		assertTrue(replies.get(1).isOk());
+		assertFalse(replies.get(2).isOk());
+	}
+
+	@Test
+	public void testAcceptsBareLineFeeds() throws Exception {
+		decode("250 OK\n");
+		assertEquals(1, replies.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsMalformedStatus() throws Exception {
+		decode("25x OK\r\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsMalformedSeparator() throws Exception {
+		decode("250!OK\r\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsOverlongLine() throws Exception {
+		decode("250 " + new String(new char[100_000]).replace('\0', 'x'));
+	}
+
+	private void decode(String s) throws IOException {
+		decoder.decode(ByteBuffer.wrap(s.getBytes(UTF_8)), replies);
+	}
+}
@@ -0,0 +1,106 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.EventSubscription.OverflowPolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.onionwrapper.EventSubscription.OverflowPolicy.DROP_NEWEST;
+import static org.briarproject.onionwrapper.EventSubscription.OverflowPolicy.DROP_OLDEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventSubscriptionTest extends BaseTest {
+
+	private final List<Runnable> queued = new ArrayList<>();
+	private final List<String> delivered = new ArrayList<>();
+
+	@Test
+	public void testMatchesEventTypesCaseInsensitively() {
+		EventSubscription s = subscribe(DROP_NEWEST, 1);
+		assertTrue(s.wants("CIRC"));
+		assertFalse(s.wants("STREAM"));
+		s.cancel();
+		assertFalse(s.wants("CIRC"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsInvalidEventType() {
+		new EventSubscription(singletonList("CIRC STREAM"), null, e -> {
+		}, queued::add, 1, DROP_NEWEST);
+	}
+
+	@Test
+	public void testFilterIsAppliedBeforeQueueing() {
+		EventSubscription s = new EventSubscription(singletonList("circ"),
+				e -> e.getMessage().endsWith("BUILT"), e -> delivered.add(e.getMessage()),
+				queued::add, 1, DROP_NEWEST);
+		s.offer(event("1 LAUNCHED"));
+		s.offer(event("1 BUILT"));
+		s.offer(event("1 CLOSED"));
+		runQueued();
+		assertEquals(singletonList("1 BUILT"), delivered);
+		assertEquals(0, s.getDroppedCount());
+	}
+
+	@Test
+	public void testDropsNewestEventsWhenQueueIsFull() {
+		EventSubscription s = subscribe(DROP_NEWEST, 2);
+		for (int i = 0; i < 5; i++) s.offer(event(String.valueOf(i)));
+		// Only one drain task is queued
+		assertEquals(1, queued.size());
+		assertEquals(2, s.getQueuedCount());
+		runQueued();
+		assertEquals(asList("0", "1"), delivered);
+		assertEquals(2, s.getDeliveredCount());
+		assertEquals(3, s.getDroppedCount());
+	}
+
+	@Test
+	public void testDropsOldestEventsWhenQueueIsFull() {
+		EventSubscription s = subscribe(DROP_OLDEST, 2);
+		for (int i = 0; i < 5; i++) s.offer(event(String.valueOf(i)));
+		runQueued();
+		assertEquals(asList("3", "4"), delivered);
+		assertEquals(3, s.getDroppedCount());
+	}
+
+	@Test
+	public void testSchedulesNewDrainTaskAfterDraining() {
+		EventSubscription s = subscribe(DROP_NEWEST, 2);
+		s.offer(event("0"));
+		runQueued();
+		s.offer(event("1"));
+		assertEquals(1, queued.size());
+		runQueued();
+		assertEquals(asList("0", "1"), delivered);
+	}
+
+	@Test
+	public void testCancelledSubscriptionDiscardsQueuedEvents() {
+		EventSubscription s = subscribe(DROP_NEWEST, 2);
+		s.offer(event("0"));
+		s.cancel();
+		runQueued();
+		assertTrue(delivered.isEmpty());
+		assertEquals(0, s.getQueuedCount());
+		assertTrue(s.isCancelled());
+	}
+
+	private EventSubscription subscribe(OverflowPolicy policy, int capacity) {
+		return new EventSubscription(singletonList("circ"), null,
+				e -> delivered.add(e.getMessage()), queued::add, capacity, policy);
+	}
+
+	private TorEvent event(String message) {
+		return new TorEvent("CIRC", message, System.currentTimeMillis());
+	}
+
+	private void runQueued() {
+		while (!queued.isEmpty()) queued.remove(0).run();
+	}
+}
@@ -0,0 +1,825 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Arrays.asList;
+import static java.util.Base64.getDecoder;
+import static java.util.Base64.getEncoder;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.briarproject.onionwrapper.TorUtils.tryToClose;
+
+/**
+ * An in-process server that speaks enough of the Tor control protocol to
+ * exercise {@link AbstractTorWrapper} and other controllers without a Tor
+ * binary or network access.
+ * <p>
+ * The server supports cookie authentication, PROTOCOLINFO, SETCONF,
+ * RESETCONF, GETCONF, LOADCONF, GETINFO, ADD_ONION, DEL_ONION, SETEVENTS,
+ * TAKEOWNERSHIP, SIGNAL and QUIT. Asynchronous events can be injected at any
+ * time with {@link #sendEvent(String)} and {@link #sendEvents(long, List)}, or
+ * in reaction to commands with a {@link CommandListener}. An artificial
+ * latency can be added to each command with {@link #setLatency(String, long)}.
+ * <p>
+ * The server can either be used directly, as if a Tor process were already
+ * running, or it can stand in for a Tor process via
+ * {@link #startProcess(List)}, which reads the torrc, writes the auth cookie
+ * and returns a {@link FakeTorProcess}.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class FakeTorControlServer implements Closeable {
+
+	private static final Logger LOG = getLogger(FakeTorControlServer.class.getName());
+
+	static final String VERSION = "0.4.9.11";
+
+	private static final Set<String> EVENT_TYPES = new HashSet<>(asList("CIRC", "STREAM",
+			"ORCONN", "BW", "DEBUG", "INFO", "NOTICE", "WARN", "ERR", "NEWDESC", "ADDRMAP",
+			"DESCCHANGED", "NS", "STATUS_GENERAL", "STATUS_CLIENT", "STATUS_SERVER", "GUARD",
+			"STREAM_BW", "CLIENTS_SEEN", "NEWCONSENSUS", "BUILDTIMEOUT_SET", "SIGNAL",
+			"CONF_CHANGED", "CIRC_MINOR", "TRANSPORT_LAUNCHED", "CONN_BW", "CIRC_BW",
+			"CELL_STATS", "HS_DESC", "HS_DESC_CONTENT", "NETWORK_LIVENESS", "PT_LOG",
+			"PT_STATUS"));
+
+	/**
+	 * A listener that is called after the server has replied to a command,
+	 * for example to inject events in reaction to the command.
+	 */
+	public interface CommandListener {
+
+		/**
+		 * Called after the server has replied to a command.
+		 *
+		 * @param keyword The command keyword in upper case, eg "ADD_ONION".
+		 * @param args The rest of the command line.
+		 * @param success True if the server replied with a 2xx status.
+		 */
+		void onCommand(String keyword, String args, boolean success);
+	}
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService connectionExecutor = newCachedThreadPool(new DaemonFactory());
+	private final ScheduledExecutorService eventExecutor =
+			newSingleThreadScheduledExecutor(new DaemonFactory());
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, Long> latencies = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> commandCounts = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+	private final List<CommandListener> listeners = new CopyOnWriteArrayList<>();
+
+	private volatile long defaultLatency = 0, cookieDelay = 0;
+
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	private final Set<Connection> connections = new HashSet<>();
+	@GuardedBy("lock")
+	private final Map<String, List<String>> conf = new HashMap<>();
+	@GuardedBy("lock")
+	private final Map<String, String> info = new HashMap<>();
+	@GuardedBy("lock")
+	private final Map<String, String> onions = new HashMap<>();
+	@GuardedBy("lock")
+	private byte[] cookie = new byte[32];
+	@GuardedBy("lock")
+	private int socksPort = 9050;
+	@GuardedBy("lock")
+	private boolean running = true;
+	@GuardedBy("lock")
+	@Nullable
+	private FakeTorProcess process = null;
+
+	/**
+	 * Creates a server listening on an ephemeral port on the loopback
+	 * interface.
+	 */
+	public FakeTorControlServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Creates a server listening on the given port on the loopback
+	 * interface, or an ephemeral port if the port is zero.
+	 */
+	public FakeTorControlServer(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		random.nextBytes(cookie);
+		resetInfo(0);
+		connectionExecutor.execute(this::acceptConnections);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the SOCKS port from the torrc of the last process started with
+	 * {@link #startProcess(List)}. If the torrc asked for an automatic port,
+	 * this is the port chosen by the server.
+	 */
+	public int getSocksPort() {
+		synchronized (lock) {
+			return socksPort;
+		}
+	}
+
+	/**
+	 * Returns the current auth cookie.
+	 */
+	public byte[] getCookie() {
+		synchronized (lock) {
+			return cookie.clone();
+		}
+	}
+
+	/**
+	 * Sets the latency in milliseconds that the server adds before replying
+	 * to commands with the given keyword, eg "ADD_ONION".
+	 */
+	public void setLatency(String keyword, long latencyMs) {
+		latencies.put(keyword.toUpperCase(Locale.US), latencyMs);
+	}
+
+	/**
+	 * Makes the server reject the next given number of commands with the
+	 * given keyword, eg "SETCONF".
+	 */
+	public void failCommands(String keyword, int count) {
+		failures.put(keyword.toUpperCase(Locale.US), new AtomicInteger(count));
+	}
+
+	/**
+	 * Sets the latency in milliseconds that the server adds before replying
+	 * to commands without a specific latency.
+	 */
+	public void setDefaultLatency(long latencyMs) {
+		defaultLatency = latencyMs;
+	}
+
+	/**
+	 * Sets the delay in milliseconds between a fake process opening its
+	 * control listener and writing its auth cookie.
+	 */
+	public void setCookieDelay(long delayMs) {
+		cookieDelay = delayMs;
+	}
+
+	/**
+	 * Sets the value returned by GETINFO for the given key.
+	 */
+	public void setInfo(String key, String value) {
+		synchronized (lock) {
+			info.put(key, value);
+		}
+	}
+
+	/**
+	 * Returns the values of the given configuration option, which are empty
+	 * if the option hasn't been set.
+	 */
+	public List<String> getConf(String key) {
+		synchronized (lock) {
+			List<String> values = conf.get(key.toLowerCase(Locale.US));
+			return values == null ? Collections.emptyList() : new ArrayList<>(values);
+		}
+	}
+
+	/**
+	 * Returns the addresses of the onion services that are currently
+	 * published.
+	 */
+	public Set<String> getOnions() {
+		synchronized (lock) {
+			return new HashSet<>(onions.keySet());
+		}
+	}
+
+	/**
+	 * Returns the number of commands with the given keyword that the server
+	 * has received.
+	 */
+	public int getCommandCount(String keyword) {
+		AtomicInteger count = commandCounts.get(keyword.toUpperCase(Locale.US));
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the number of open control connections.
+	 */
+	public int getConnectionCount() {
+		synchronized (lock) {
+			return connections.size();
+		}
+	}
+
+	public void addCommandListener(CommandListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Sends an asynchronous event to all authenticated connections that
+	 * have subscribed to the event's type.
+	 *
+	 * @param event The event without the status code, eg
+	 * "STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED".
+	 */
+	public void sendEvent(String event) {
+		int space = event.indexOf(' ');
+		String type = space == -1 ? event : event.substring(0, space);
+		List<Connection> subscribers = new ArrayList<>();
+		synchronized (lock) {
+			for (Connection c : connections) {
+				if (c.isSubscribed(type)) subscribers.add(c);
+			}
+		}
+		for (Connection c : subscribers) c.write("650 " + event);
+	}
+
+	/**
+	 * Sends the given events in order on a background thread, starting after
+	 * the given delay. This can be used to script event storms.
+	 */
+	public Future<?> sendEvents(long delayMs, List<String> events) {
+		List<String> copy = new ArrayList<>(events);
+		return eventExecutor.schedule(() -> {
+			for (String event : copy) sendEvent(event);
+		}, delayMs, MILLISECONDS);
+	}
+
+	/**
+	 * Sends the events that Tor sends while bootstrapping, ending with
+	 * bootstrapping complete and a circuit established, and updates the
+	 * bootstrap status returned by GETINFO.
+	 */
+	public void bootstrap() {
+		sendEvent("ORCONN $0123456789ABCDEF0123456789ABCDEF01234567~guard LAUNCHED ID=1");
+		sendEvent("ORCONN $0123456789ABCDEF0123456789ABCDEF01234567~guard CONNECTED ID=1");
+		for (int progress : new int[] {5, 10, 14, 15, 75, 90, 95, 100}) {
+			sendEvent("STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=" + progress
+					+ " TAG=progress" + progress + " SUMMARY=\"Progress " + progress + "\"");
+		}
+		resetInfo(100);
+		sendEvent("CIRC 1 BUILT $0123456789ABCDEF0123456789ABCDEF01234567~guard");
+		sendEvent("STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED");
+		setInfo("status/circuit-established", "1");
+	}
+
+	/**
+	 * Simulates the Tor process crashing: all control connections are closed
+	 * and the fake process, if any, exits with a non-zero value.
+	 */
+	public void crash() {
+		shutDown(134);
+	}
+
+	/**
+	 * Starts a fake Tor process with the given command line, which must
+	 * include "-f" followed by the path of a torrc file. The process writes
+	 * the auth cookie to the data directory specified in the torrc.
+	 */
+	public FakeTorProcess startProcess(List<String> command) throws IOException {
+		int index = command.indexOf("-f");
+		if (index == -1 || index == command.size() - 1) throw new IOException("No torrc");
+		Map<String, List<String>> torrc = readTorrc(new File(command.get(index + 1)));
+		FakeTorProcess p = new FakeTorProcess();
+		byte[] newCookie = new byte[32];
+		random.nextBytes(newCookie);
+		synchronized (lock) {
+			if (process != null && !process.hasExited()) throw new IOException("Already running");
+			conf.clear();
+			conf.putAll(torrc);
+			List<String> socks = torrc.get("socksport");
+			socksPort = socks == null ? 9050 : parsePort(socks.get(0));
+			onions.clear();
+			cookie = newCookie;
+			resetInfo(0);
+			running = true;
+			process = p;
+		}
+		p.log("Oct 17 00:00:00.000 [notice] Tor " + VERSION + " running on a fake platform.");
+		p.log("Oct 17 00:00:00.000 [notice] Opened Control listener connection (ready) on "
+				+ "127.0.0.1:" + getPort());
+		List<String> controlPortFile = torrc.get("controlportwritetofile");
+		if (controlPortFile != null) {
+			String content = "PORT=127.0.0.1:" + getPort() + "\n";
+			writeFile(new File(controlPortFile.get(0)), content.getBytes(UTF_8));
+		}
+		List<String> dataDirectory = torrc.get("datadirectory");
+		if (dataDirectory != null) {
+			File cookieFile = new File(dataDirectory.get(0), "control_auth_cookie");
+			Runnable writeCookie = () -> writeFile(cookieFile, newCookie);
+			if (cookieDelay == 0) writeCookie.run();
+			else eventExecutor.schedule(writeCookie, cookieDelay, MILLISECONDS);
+		}
+		return p;
+	}
+
+	@Override
+	public void close() {
+		shutDown(0);
+		tryToClose(serverSocket, LOG, WARNING);
+		connectionExecutor.shutdownNow();
+		eventExecutor.shutdownNow();
+	}
+
+	private void shutDown(int exitValue) {
+		List<Connection> open;
+		FakeTorProcess p;
+		synchronized (lock) {
+			running = false;
+			open = new ArrayList<>(connections);
+			p = process;
+		}
+		for (Connection c : open) c.close();
+		if (p != null) p.exit(exitValue);
+	}
+
+	@GuardedBy("lock")
+	private void resetInfo(int bootstrapPercentage) {
+		info.put("version", VERSION);
+		info.put("status/bootstrap-phase", "NOTICE BOOTSTRAP PROGRESS=" + bootstrapPercentage
+				+ " TAG=progress" + bootstrapPercentage + " SUMMARY=\"Progress\"");
+		info.put("status/circuit-established", bootstrapPercentage == 100 ? "1" : "0");
+		info.put("net/listeners/control", "\"127.0.0.1:" + getPort() + "\"");
+		info.put("net/listeners/socks", "\"127.0.0.1:" + socksPort + "\"");
+	}
+
+	private int parsePort(String value) {
+		if (value.equals("auto")) return 10000 + random.nextInt(50000);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 9050;
+		}
+	}
+
+	private void writeFile(File file, byte[] content) {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs()) {
+			LOG.warning("Could not create directory for " + file.getName());
+			return;
+		}
+		try {
+			OutputStream out = new FileOutputStream(file);
+			out.write(content);
+			out.close();
+		} catch (IOException e) {
+			LOG.warning("Could not write " + file.getName() + ": " + e);
+		}
+	}
+
+	private Map<String, List<String>> readTorrc(File torrc) throws IOException {
+		Map<String, List<String>> values = new HashMap<>();
+		Scanner scanner = new Scanner(new FileInputStream(torrc), "UTF-8");
+		while (scanner.hasNextLine()) {
+			String line = scanner.nextLine().trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			int space = line.indexOf(' ');
+			String key = space == -1 ? line : line.substring(0, space);
+			String value = space == -1 ? "" : line.substring(space + 1).trim();
+			List<String> list = values.get(key.toLowerCase(Locale.US));
+			if (list == null) {
+				list = new ArrayList<>();
+				values.put(key.toLowerCase(Locale.US), list);
+			}
+			list.add(value);
+		}
+		scanner.close();
+		return values;
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			Socket s;
+			try {
+				s = serverSocket.accept();
+			} catch (IOException e) {
+				return; // The server socket has been closed
+			}
+			Connection c;
+			try {
+				c = new Connection(s);
+			} catch (IOException e) {
+				tryToClose(s, LOG, WARNING);
+				continue;
+			}
+			synchronized (lock) {
+				if (!running) {
+					// There's no Tor process listening
+					c.close();
+					continue;
+				}
+				connections.add(c);
+			}
+			connectionExecutor.execute(c::serve);
+		}
+	}
+
+	private List<String> handleCommand(Connection c, String keyword, String args,
+			@Nullable String body) {
+		commandCounts.computeIfAbsent(keyword, k -> new AtomicInteger()).incrementAndGet();
+		long latency = latencies.containsKey(keyword) ? latencies.get(keyword) : defaultLatency;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!c.authenticated && !keyword.equals("PROTOCOLINFO")
+				&& !keyword.equals("AUTHENTICATE") && !keyword.equals("QUIT")) {
+			c.closeAfterReply = true;
+			return reply("514 Authentication required.");
+		}
+		AtomicInteger failure = failures.get(keyword);
+		if (failure != null && failure.getAndDecrement() > 0) {
+			return reply("551 Injected failure");
+		}
+		switch (keyword) {
+			case "PROTOCOLINFO":
+				return reply("250-PROTOCOLINFO 1", "250-AUTH METHODS=COOKIE",
+						"250-VERSION Tor=\"" + VERSION + "\"", "250 OK");
+			case "AUTHENTICATE":
+				return handleAuthenticate(c, args);
+			case "SETCONF":
+				return handleSetConf(args);
+			case "RESETCONF":
+				return handleResetConf(args);
+			case "GETCONF":
+				return handleGetConf(args);
+			case "LOADCONF":
+				return handleLoadConf(body == null ? "" : body);
+			case "GETINFO":
+				return handleGetInfo(args);
+			case "ADD_ONION":
+				return handleAddOnion(args);
+			case "DEL_ONION":
+				return handleDelOnion(args);
+			case "SETEVENTS":
+				return handleSetEvents(c, args);
+			case "TAKEOWNERSHIP":
+				c.owner = true;
+				return reply("250 OK");
+			case "SIGNAL":
+				return handleSignal(c, args);
+			case "QUIT":
+				c.closeAfterReply = true;
+				return reply("250 closing connection");
+			default:
+				return reply("510 Unrecognized command \"" + keyword + "\"");
+		}
+	}
+
+	private List<String> handleAuthenticate(Connection c, String args) {
+		byte[] expected;
+		synchronized (lock) {
+			expected = cookie;
+		}
+		String hex = args.trim();
+		if (hex.equalsIgnoreCase(toHex(expected))) {
+			c.authenticated = true;
+			return reply("250 OK");
+		}
+		c.closeAfterReply = true;
+		return reply("515 Authentication failed: Authentication cookie did not match expected "
+				+ "value.");
+	}
+
+	private List<String> handleSetConf(String args) {
+		ControlLineParser parser = new ControlLineParser().reset(args);
+		Map<String, List<String>> changes = new HashMap<>();
+		while (parser.next()) {
+			String token = parser.token();
+			int equals = token.indexOf('=');
+			String key = (equals == -1 ? token : token.substring(0, equals))
+					.toLowerCase(Locale.US);
+			List<String> values = changes.get(key);
+			if (values == null) {
+				values = new ArrayList<>();
+				changes.put(key, values);
+			}
+			String value = parser.value();
+			if (value != null) values.add(unescape(value));
+		}
+		synchronized (lock) {
+			for (Map.Entry<String, List<String>> e : changes.entrySet()) {
+				if (e.getValue().isEmpty()) conf.remove(e.getKey());
+				else conf.put(e.getKey(), e.getValue());
+			}
+		}
+		return reply("250 OK");
+	}
+
+	private List<String> handleResetConf(String args) {
+		synchronized (lock) {
+			for (String key : args.trim().split(" +")) conf.remove(key.toLowerCase(Locale.US));
+		}
+		return reply("250 OK");
+	}
+
+	private List<String> handleGetConf(String args) {
+		List<String> lines = new ArrayList<>();
+		synchronized (lock) {
+			for (String key : args.trim().split(" +")) {
+				List<String> values = conf.get(key.toLowerCase(Locale.US));
+				if (values == null) lines.add(key);
+				else for (String value : values) lines.add(key + "=" + value);
+			}
+		}
+		return multiLineReply(lines);
+	}
+
+	private List<String> handleLoadConf(String body) {
+		synchronized (lock) {
+			for (String line : body.split("\n")) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				int space = line.indexOf(' ');
+				String key = (space == -1 ? line : line.substring(0, space))
+						.toLowerCase(Locale.US);
+				String value = space == -1 ? "" : line.substring(space + 1).trim();
+				conf.put(key, new ArrayList<>(Collections.singletonList(value)));
+			}
+		}
+		return reply("250 OK");
+	}
+
+	private List<String> handleGetInfo(String args) {
+		List<String> lines = new ArrayList<>();
+		synchronized (lock) {
+			for (String key : args.trim().split(" +")) {
+				String value = info.get(key);
+				if (value == null) return reply("552 Unrecognized key \"" + key + "\"");
+				lines.add(key + "=" + value);
+			}
+		}
+		return multiLineReply(lines);
+	}
+
+	private List<String> handleAddOnion(String args) {
+		ControlLineParser parser = new ControlLineParser().reset(args);
+		if (!parser.next()) {
+			return reply("512 Bad arguments to ADD_ONION: Need at least 1 argument(s)");
+		}
+		String keySpec = parser.token();
+		boolean discardKey = false, hasPort = false;
+		while (parser.next()) {
+			String value = parser.value();
+			if (parser.keyEquals("Flags") && value != null) {
+				discardKey = asList(value.split(",")).contains("DiscardPK");
+			} else if (parser.keyEquals("Port")) {
+				hasPort = true;
+			}
+		}
+		if (!hasPort) return reply("512 Missing 'Port' argument");
+		String privateKey;
+		boolean generated;
+		if (keySpec.equals("NEW:ED25519-V3") || keySpec.equals("NEW:BEST")) {
+			byte[] key = new byte[64];
+			random.nextBytes(key);
+			privateKey = "ED25519-V3:" + getEncoder().encodeToString(key);
+			generated = true;
+		} else if (keySpec.startsWith("ED25519-V3:") && keySpec.length() > 11) {
+			privateKey = keySpec;
+			generated = false;
+		} else {
+			return reply("513 Invalid key type");
+		}
+		String onion;
+		try {
+			byte[] key = getDecoder().decode(privateKey.substring(11));
+			if (key.length != 64) return reply("512 Failed to decode ED25519-V3 key");
+			// Derive a stand-in for the public key, as the real derivation
+			// isn't needed to check that addresses follow their keys
+			onion = OnionKeys.getOnionAddress(Sha3.sha3_256(key));
+		} catch (IllegalArgumentException e) {
+			return reply("512 Failed to decode ED25519-V3 key");
+		}
+		synchronized (lock) {
+			if (onions.containsKey(onion)) return reply("550 Onion address collision");
+			onions.put(onion, privateKey);
+		}
+		List<String> lines = new ArrayList<>();
+		lines.add("ServiceID=" + onion);
+		if (generated && !discardKey) lines.add("PrivateKey=" + privateKey);
+		return multiLineReply(lines);
+	}
+
+	private List<String> handleDelOnion(String args) {
+		String onion = args.trim();
+		synchronized (lock) {
+			if (onions.remove(onion) == null) return reply("552 Unknown Onion Service id");
+		}
+		return reply("250 OK");
+	}
+
+	private List<String> handleSetEvents(Connection c, String args) {
+		Set<String> types = new HashSet<>();
+		for (String type : args.trim().split(" +")) {
+			if (type.isEmpty()) continue;
+			String upper = type.toUpperCase(Locale.US);
+			if (!EVENT_TYPES.contains(upper)) {
+				return reply("552 Unrecognized event \"" + type + "\"");
+			}
+			types.add(upper);
+		}
+		c.events = types;
+		return reply("250 OK");
+	}
+
+	private List<String> handleSignal(Connection c, String args) {
+		String signal = args.trim().toUpperCase(Locale.US);
+		if (signal.equals("TERM") || signal.equals("SHUTDOWN") || signal.equals("HALT")
+				|| signal.equals("INT")) {
+			c.write("250 OK");
+			shutDown(0);
+			return Collections.emptyList();
+		}
+		if (signal.equals("RELOAD") || signal.equals("HUP") || signal.equals("NEWNYM")
+				|| signal.equals("CLEARDNSCACHE") || signal.equals("HEARTBEAT")
+				|| signal.equals("ACTIVE") || signal.equals("DORMANT")) {
+			return reply("250 OK");
+		}
+		return reply("552 Unrecognized signal code \"" + args.trim() + "\"");
+	}
+
+	private static List<String> reply(String... lines) {
+		return asList(lines);
+	}
+
+	private static List<String> multiLineReply(List<String> lines) {
+		List<String> reply = new ArrayList<>(lines.size() + 1);
+		for (String line : lines) {
+			if (line.indexOf('\n') == -1) {
+				reply.add("250-" + line);
+			} else {
+				int equals = line.indexOf('=');
+				reply.add("250+" + line.substring(0, equals + 1));
+				for (String dataLine : line.substring(equals + 1).split("\n")) {
+					reply.add(dataLine.startsWith(".") ? "." + dataLine : dataLine);
+				}
+				reply.add(".");
+			}
+		}
+		reply.add("250 OK");
+		return reply;
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('\\') == -1) return value;
+		StringBuilder s = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) c = value.charAt(++i);
+			s.append(c);
+		}
+		return s.toString();
+	}
+
+	private static String toHex(byte[] b) {
+		StringBuilder s = new StringBuilder(b.length * 2);
+		for (byte x : b) s.append(String.format("%02X", x & 0xFF));
+		return s.toString();
+	}
+
+	@ThreadSafe
+	@NotNullByDefault
+	private class Connection {
+
+		private final Socket socket;
+		private final BufferedReader in;
+		@GuardedBy("this")
+		private final Writer out;
+
+		// Only accessed by the connection's thread
+		private boolean closeAfterReply = false;
+
+		// Also read by threads sending events or shutting down the server
+		private volatile boolean authenticated = false, owner = false;
+		private volatile Set<String> events = Collections.emptySet();
+
+		private Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+			out = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+		}
+
+		private boolean isSubscribed(String type) {
+			return authenticated && events.contains(type);
+		}
+
+		private void serve() {
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String body = null;
+					if (line.startsWith("+")) {
+						// Multi-line command with a data body terminated by "."
+						line = line.substring(1);
+						StringBuilder data = new StringBuilder();
+						String dataLine;
+						while ((dataLine = in.readLine()) != null && !dataLine.equals(".")) {
+							if (dataLine.startsWith(".")) dataLine = dataLine.substring(1);
+							data.append(dataLine).append('\n');
+						}
+						body = data.toString();
+					}
+					int space = line.indexOf(' ');
+					String keyword = (space == -1 ? line : line.substring(0, space))
+							.toUpperCase(Locale.US);
+					String args = space == -1 ? "" : line.substring(space + 1);
+					List<String> reply = handleCommand(this, keyword, args, body);
+					write(reply);
+					boolean success = reply.isEmpty() || reply.get(0).startsWith("2");
+					for (CommandListener l : listeners) l.onCommand(keyword, args, success);
+					if (closeAfterReply) break;
+				}
+			} catch (IOException e) {
+				// The connection has been closed
+			} finally {
+				close();
+			}
+		}
+
+		private void write(String line) {
+			write(Collections.singletonList(line));
+		}
+
+		/**
+		 * Writes the lines of a reply without letting any events be written
+		 * between them.
+		 */
+		private synchronized void write(List<String> lines) {
+			try {
+				for (String line : lines) {
+					out.write(line);
+					out.write("\r\n");
+				}
+				out.flush();
+			} catch (IOException e) {
+				// The connection has been closed
+			}
+		}
+
+		private void close() {
+			boolean wasOpen;
+			synchronized (lock) {
+				wasOpen = connections.remove(this);
+			}
+			tryToClose(socket, LOG, WARNING);
+			// Tor exits when the owning controller's connection is closed
+			if (wasOpen && owner) shutDown(0);
+		}
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
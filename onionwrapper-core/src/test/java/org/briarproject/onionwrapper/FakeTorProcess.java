@@ -0,0 +1,158 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+
+/**
+ * A {@link Process} standing in for a Tor process that is served by a
+ * {@link FakeTorControlServer}. The process writes Tor-like log lines to its
+ * stdout and exits when the server is told to shut down or crash.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class FakeTorProcess extends Process {
+
+	private final StdoutStream stdout = new StdoutStream();
+	private final InputStream stderr = new EmptyInputStream();
+	private final OutputStream stdin = new ByteArrayOutputStream();
+
+	@GuardedBy("this")
+	private boolean exited = false;
+	@GuardedBy("this")
+	private int exitValue = 0;
+
+	/**
+	 * Writes a line to the process's stdout.
+	 */
+	void log(String line) {
+		stdout.write((line + "\n").getBytes(UTF_8));
+	}
+
+	/**
+	 * Makes the process exit with the given value, if it hasn't already
+	 * exited.
+	 */
+	void exit(int value) {
+		synchronized (this) {
+			if (exited) return;
+			exited = true;
+			exitValue = value;
+			notifyAll();
+		}
+		stdout.close();
+	}
+
+	synchronized boolean hasExited() {
+		return exited;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return stdin;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return stdout;
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		return stderr;
+	}
+
+	@Override
+	public synchronized int waitFor() throws InterruptedException {
+		while (!exited) wait();
+		return exitValue;
+	}
+
+	@Override
+	public synchronized int exitValue() {
+		if (!exited) throw new IllegalThreadStateException();
+		return exitValue;
+	}
+
+	@Override
+	public void destroy() {
+		exit(143);
+	}
+
+	/**
+	 * An unbounded stream of bytes written by any thread. Unlike a
+	 * {@link java.io.PipedInputStream}, reads don't fail when a thread that
+	 * wrote to the stream terminates.
+	 */
+	@ThreadSafe
+	private static class StdoutStream extends InputStream {
+
+		@GuardedBy("this")
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		@GuardedBy("this")
+		private byte[] pending = new byte[0];
+		@GuardedBy("this")
+		private int pendingPos = 0;
+		@GuardedBy("this")
+		private boolean closed = false;
+
+		private synchronized void write(byte[] b) {
+			if (closed) return;
+			buffer.write(b, 0, b.length);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			while (pendingPos == pending.length) {
+				if (buffer.size() > 0) {
+					pending = buffer.toByteArray();
+					pendingPos = 0;
+					buffer.reset();
+				} else if (closed) {
+					return -1;
+				} else {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+				}
+			}
+			int read = Math.min(len, pending.length - pendingPos);
+			System.arraycopy(pending, pendingPos, b, off, read);
+			pendingPos += read;
+			return read;
+		}
+	}
+
+	private static class EmptyInputStream extends InputStream {
+
+		@Override
+		public int read() {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.NetworkState.StateRecord;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkStateTest extends BaseTest {
+
+	private final List<Runnable> queued = new ArrayList<>();
+	private final List<String> notifications = new ArrayList<>();
+	private final NetworkState state = new NetworkState(new NotificationDispatcher(queued::add));
+
+	@Test
+	public void testRetriesTransitionAfterConcurrentChange() {
+		AtomicInteger attempts = new AtomicInteger(0);
+		StateRecord before = state.transition(s -> {
+			// Simulate another thread changing the state between this
+			// transition reading the state and replacing it
+			if (attempts.getAndIncrement() == 0) state.setBootstrapPercentage(50);
+			return s.withCircuitBuilt(true);
+		});
+		assertEquals(2, attempts.get());
+		// The transition was applied to the concurrently changed state
+		assertEquals(50, before.bootstrapPercentage);
+		StateRecord after = state.transition(s -> s);
+		assertEquals(50, after.bootstrapPercentage);
+		assertTrue(after.circuitBuilt);
+		assertEquals(before.version + 1, after.version);
+	}
+
+	@Test
+	public void testDoesNotLoseConcurrentTransitions() throws Exception {
+		int threads = 4, transitions = 1000;
+		CountDownLatch go = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+				for (int j = 0; j < transitions; j++) state.onOrConnectionConnected();
+			});
+			t.start();
+			workers.add(t);
+		}
+		go.countDown();
+		for (Thread t : workers) t.join();
+		StateRecord s = state.transition(r -> r);
+		assertEquals(threads * transitions, s.orConnectionsConnected);
+		assertEquals(threads * transitions, s.version);
+	}
+
+	@Test
+	public void testSkipsNotificationsOlderThanLastDelivered() {
+		state.setObserver(new RecordingObserver());
+		state.setStarting();
+		state.setStarted();
+		assertEquals(2, queued.size());
+		// Deliver the notifications out of order: the STARTING notification
+		// is older than the STARTED notification, so it's skipped
+		queued.get(1).run();
+		queued.get(0).run();
+		assertEquals(singletonList("state " + STARTED), notifications);
+
+		queued.clear();
+		notifications.clear();
+		state.configure(true, null, null, null, emptyMap());
+		state.setBootstrapPercentage(10);
+		assertEquals(2, queued.size());
+		for (Runnable r : queued) r.run();
+		// Notifications delivered in order are all delivered
+		assertEquals(asList("state " + CONNECTING, "bootstrap 10"), notifications);
+	}
+
+	@Test
+	public void testSkipsNotificationsForInvisibleChanges() {
+		state.setObserver(new RecordingObserver());
+		state.setStarting();
+		assertEquals(1, queued.size());
+		// The observer can't see whether a circuit has been built until the
+		// network has been configured
+		state.setCircuitBuilt(true);
+		assertEquals(1, queued.size());
+		queued.get(0).run();
+		assertEquals(singletonList("state " + STARTING), notifications);
+	}
+
+	@Test
+	public void testStoppingDoesNotReportBootstrapPercentage() {
+		state.setObserver(new RecordingObserver());
+		state.setStarting();
+		state.setStarted();
+		state.configure(true, null, null, null, emptyMap());
+		state.setBootstrapPercentage(50);
+		state.setStopping();
+		state.setStopped();
+		for (Runnable r : queued) r.run();
+		assertEquals(asList("state " + STARTING, "state " + STARTED, "state " + CONNECTING,
+				"bootstrap 50", "state " + STOPPING, "state " + STOPPED), notifications);
+
+		// Percentages reported after restarting are compared with the
+		// percentage that was reset, not the last one reported
+		queued.clear();
+		notifications.clear();
+		state.setStarting();
+		state.setStarted();
+		state.configure(true, null, null, null, emptyMap());
+		state.setBootstrapPercentage(50);
+		for (Runnable r : queued) r.run();
+		assertEquals(asList("state " + STARTING, "state " + STARTED, "state " + CONNECTING,
+				"bootstrap 50"), notifications);
+	}
+
+	@Test
+	public void testConfigureReturnsLinesForStateItWasAppliedTo() {
+		state.setStarting();
+		state.setStarted();
+		assertEquals(singletonList("DisableNetwork 0"),
+				state.configure(true, null, null, null, emptyMap()));
+		// Another transition changes the state between configurations.
+		// The lines are computed from the current state, not the state
+		// when the wrapper last configured Tor
+		state.startNetworkReset();
+		assertEquals(asList("ConnectionPadding 1", "DisableNetwork 0"),
+				state.configure(true, null, true, null, emptyMap()));
+		// The configuration ended the reset, so there's nothing to undo
+		assertEquals(0, state.endNetworkReset().size());
+		assertEquals(0, state.configure(true, null, true, null, emptyMap()).size());
+	}
+
+	@Test
+	public void testOnlyOneConcurrentConfigurationReportsChange() throws Exception {
+		for (int round = 0; round < 100; round++) {
+			NetworkState shared = new NetworkState(new NotificationDispatcher(Runnable::run));
+			shared.setStarting();
+			shared.setStarted();
+			int threads = 4;
+			CountDownLatch go = new CountDownLatch(1);
+			AtomicInteger changes = new AtomicInteger(0);
+			List<Thread> workers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				Thread t = new Thread(() -> {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						throw new AssertionError(e);
+					}
+					List<String> conf = shared.configure(true, null, null, null, emptyMap());
+					if (!conf.isEmpty()) {
+						assertEquals(singletonList("DisableNetwork 0"), conf);
+						changes.incrementAndGet();
+					}
+				});
+				t.start();
+				workers.add(t);
+			}
+			go.countDown();
+			for (Thread t : workers) t.join();
+			// Each configuration's lines are computed from the state its
+			// transition won against, so only the first one enables the
+			// network
+			assertEquals(1, changes.get());
+		}
+	}
+
+	private class RecordingObserver implements Observer {
+
+		@Override
+		public void onState(TorState s) {
+			notifications.add("state " + s);
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+			notifications.add("bootstrap " + percentage);
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+	}
+}
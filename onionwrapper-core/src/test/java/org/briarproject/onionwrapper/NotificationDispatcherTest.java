@@ -0,0 +1,82 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class NotificationDispatcherTest extends BaseTest {
+
+	private final List<Runnable> queued = new ArrayList<>();
+	private final List<String> kinds = new ArrayList<>();
+	private final List<String> delivered = new ArrayList<>();
+	private final NotificationDispatcher dispatcher = new NotificationDispatcher(queued::add);
+
+	@Test
+	public void testDeliversEveryNotificationByDefault() {
+		post("state", "STARTING");
+		post("state", "STARTED");
+		assertEquals(2, queued.size());
+		runQueued();
+		assertEquals(asList("STARTING", "STARTED"), delivered);
+		assertEquals(0, dispatcher.getCoalescedCount());
+		assertEquals(2, dispatcher.getLag().getCount());
+	}
+
+	@Test
+	public void testCoalescesPendingNotificationsOfSameKind() {
+		dispatcher.setCoalescing(true);
+		post("bootstrap", "10");
+		post("state", "CONNECTING");
+		post("bootstrap", "50");
+		post("onion", "uploaded");
+		post("bootstrap", "100");
+		post("state", "CONNECTED");
+		// Only one drain task is queued
+		assertEquals(1, queued.size());
+		runQueued();
+		// The latest value of each kind is delivered, in the order the
+		// latest values were posted
+		assertEquals(asList("onion", "bootstrap", "state"), kinds);
+		assertEquals(asList("uploaded", "100", "CONNECTED"), delivered);
+		assertEquals(3, dispatcher.getCoalescedCount());
+		assertEquals(3, dispatcher.getLag().getCount());
+	}
+
+	@Test
+	public void testSchedulesNewDrainTaskAfterDraining() {
+		dispatcher.setCoalescing(true);
+		post("state", "STARTING");
+		runQueued();
+		post("state", "STARTED");
+		assertEquals(1, queued.size());
+		runQueued();
+		assertEquals(asList("STARTING", "STARTED"), delivered);
+	}
+
+	@Test
+	public void testNotificationsPostedWhileDrainingAreDelivered() {
+		dispatcher.setCoalescing(true);
+		dispatcher.dispatch("state", () -> {
+			delivered.add("STARTING");
+			// Posted by another thread while the drain task is running
+			post("state", "STARTED");
+		});
+		runQueued();
+		assertEquals(asList("STARTING", "STARTED"), delivered);
+	}
+
+	private void post(String kind, String value) {
+		dispatcher.dispatch(kind, () -> {
+			kinds.add(kind);
+			delivered.add(value);
+		});
+	}
+
+	private void runQueued() {
+		while (!queued.isEmpty()) queued.remove(0).run();
+	}
+}
@@ -0,0 +1,59 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.Test;
+
+import static org.briarproject.onionwrapper.AssetManifest.toHex;
+import static org.briarproject.onionwrapper.OnionKeys.getOnionAddress;
+import static org.briarproject.onionwrapper.OnionKeys.isValidOnionAddress;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OnionKeysTest extends BaseTest {
+
+	@Test
+	public void testSha3MatchesTestVectors() {
+		// Test vectors from FIPS 202 examples
+		assertEquals("a7ffc6f8bf1ed76651c14756a061d662f580ff4de43b49fa82d80a4b80f8434a",
+				toHex(Sha3.sha3_256(new byte[0])));
+		assertEquals("3a985da74fe225b2045c172d6bd390bd855f086e3e9d525b46bfe24511431532",
+				toHex(Sha3.sha3_256("abc".getBytes(UTF_8))));
+		// An input that spans more than one block, split across several arrays
+		byte[] input = new byte[200];
+		for (int i = 0; i < input.length; i++) input[i] = (byte) 0xa3;
+		String expected = "79f38adec5c20307a98ef76e8324afbfd46cfd81b22e3973c65fa1bd9de31787";
+		assertEquals(expected, toHex(Sha3.sha3_256(input)));
+		byte[] first = new byte[137], second = new byte[63];
+		System.arraycopy(input, 0, first, 0, first.length);
+		System.arraycopy(input, first.length, second, 0, second.length);
+		assertEquals(expected, toHex(Sha3.sha3_256(first, new byte[0], second)));
+	}
+
+	@Test
+	public void testDerivesOnionAddressFromPublicKey() {
+		// Test vector from Tor's test_hs_common.c
+		byte[] publicKey =
+				fromHex("d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a");
+		String onion = "25njqamcweflpvkl73j4szahhihoc4xt3ktcgjnpaingr5yhkenl5sid";
+		assertEquals(onion, getOnionAddress(publicKey));
+		assertTrue(isValidOnionAddress(onion));
+		assertTrue(isValidOnionAddress(onion.toUpperCase()));
+		// Changing any character invalidates the checksum
+		assertFalse(isValidOnionAddress("3" + onion.substring(1)));
+		assertFalse(isValidOnionAddress(onion.substring(1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsPublicKeyOfWrongLength() {
+		getOnionAddress(new byte[31]);
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return b;
+	}
+}
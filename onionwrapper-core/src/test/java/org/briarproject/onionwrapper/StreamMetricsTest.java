@@ -0,0 +1,164 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.StreamMetrics.StreamStats;
+import org.briarproject.onionwrapper.StreamMetrics.TargetClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.briarproject.onionwrapper.StreamMetrics.MAX_TARGET_CLASSES;
+import static org.briarproject.onionwrapper.StreamMetrics.MAX_TRACKED_STREAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamMetricsTest extends BaseTest {
+
+	private static final String ONION =
+			"25njqamcweflpvkl73j4szahhihoc4xt3ktcgjnpaingr5yhkenl5sid.onion";
+
+	private final StreamMetrics metrics = new StreamMetrics();
+
+	@Test
+	public void testParsesTargetClasses() {
+		assertEquals(new TargetClass(true, 80), TargetClass.parse(ONION + ":80"));
+		assertEquals(new TargetClass(false, 443), TargetClass.parse("192.0.2.1:443"));
+		assertEquals(new TargetClass(false, 443), TargetClass.parse("[2001:db8::1]:443"));
+		assertEquals(TargetClass.OTHER, TargetClass.parse("example.com"));
+		assertEquals(TargetClass.OTHER, TargetClass.parse("example.com:http"));
+		assertEquals(TargetClass.OTHER, TargetClass.parse("example.com:65536"));
+	}
+
+	@Test
+	public void testTracksStreamLifecycle() {
+		metrics.onStreamStatus("NEW", "1", ONION + ":80", null, null, 1000);
+		metrics.onStreamStatus("SENTCONNECT", "1", ONION + ":80", null, null, 1100);
+		metrics.onStreamStatus("SUCCEEDED", "1", ONION + ":80", null, null, 1300);
+		assertEquals(1, metrics.getOpenStreamCount());
+		metrics.onStreamStatus("NEW", "2", "192.0.2.1:443", null, null, 2000);
+		metrics.onStreamStatus("FAILED", "2", "192.0.2.1:443", null, null, 2100);
+		metrics.onStreamStatus("CLOSED", "2", "192.0.2.1:443", null, null, 2100);
+		metrics.onStreamStatus("NEW", "3", "192.0.2.1:443", null, null, 3000);
+		metrics.onStreamStatus("CLOSED", "3", "192.0.2.1:443", null, null, 3100);
+		metrics.onStreamStatus("CLOSED", "1", ONION + ":80", null, null, 4000);
+		assertEquals(0, metrics.getOpenStreamCount());
+
+		Map<TargetClass, StreamStats> stats = metrics.getStats();
+		assertEquals(2, stats.size());
+		StreamStats onion = stats.get(new TargetClass(true, 80));
+		assertEquals(1, onion.getSucceededCount());
+		assertEquals(1, onion.getClosedCount());
+		assertEquals(300, onion.getLatency().getMean());
+		assertEquals(500, onion.getLatency().getPercentile(50));
+		StreamStats exit = stats.get(new TargetClass(false, 443));
+		assertEquals(0, exit.getSucceededCount());
+		assertEquals(1, exit.getFailedCount());
+		assertEquals(1, exit.getClosedBeforeOpeningCount());
+		assertEquals(-1, exit.getLatency().getMean());
+		assertEquals(-1, exit.getLatency().getPercentile(50));
+	}
+
+	@Test
+	public void testCountsFailureAndCloseReasons() {
+		String exit = "192.0.2.1:443";
+		metrics.onStreamStatus("NEW", "1", exit, null, null, 0);
+		metrics.onStreamStatus("FAILED", "1", exit, "TIMEOUT", null, 10);
+		metrics.onStreamStatus("CLOSED", "1", exit, "TIMEOUT", null, 10);
+		metrics.onStreamStatus("NEW", "2", exit, null, null, 0);
+		metrics.onStreamStatus("FAILED", "2", exit, "END", "EXITPOLICY", 10);
+		metrics.onStreamStatus("NEW", "3", exit, null, null, 0);
+		metrics.onStreamStatus("FAILED", "3", exit, "TIMEOUT", null, 10);
+		metrics.onStreamStatus("NEW", "4", exit, null, null, 0);
+		metrics.onStreamStatus("SUCCEEDED", "4", exit, null, null, 10);
+		metrics.onStreamStatus("CLOSED", "4", exit, "DONE", null, 20);
+		// Streams closed without a reason, or before opening, aren't counted
+		metrics.onStreamStatus("NEW", "5", exit, null, null, 0);
+		metrics.onStreamStatus("SUCCEEDED", "5", exit, null, null, 10);
+		metrics.onStreamStatus("CLOSED", "5", exit, null, null, 20);
+		metrics.onStreamStatus("NEW", "6", exit, null, null, 0);
+		metrics.onStreamStatus("CLOSED", "6", exit, "MISC", null, 10);
+
+		StreamStats stats = metrics.getStats().get(new TargetClass(false, 443));
+		Map<String, Long> failureReasons = stats.getFailureReasons();
+		assertEquals(asList("TIMEOUT", "END:EXITPOLICY"), new ArrayList<>(failureReasons.keySet()));
+		assertEquals(Long.valueOf(2), failureReasons.get("TIMEOUT"));
+		assertEquals(Long.valueOf(1), failureReasons.get("END:EXITPOLICY"));
+		assertEquals(singletonMap("DONE", 1L), stats.getCloseReasons());
+	}
+
+	@Test
+	public void testLimitsReasons() {
+		for (int i = 0; i < ReasonCounts.MAX_REASONS * 2; i++) {
+			String id = String.valueOf(i);
+			metrics.onStreamStatus("NEW", id, ONION + ":80", null, null, 0);
+			metrics.onStreamStatus("FAILED", id, ONION + ":80", "REASON_" + i, null, 10);
+		}
+		Map<String, Long> reasons =
+				metrics.getStats().get(new TargetClass(true, 80)).getFailureReasons();
+		assertEquals(ReasonCounts.MAX_REASONS, reasons.size());
+		assertEquals(Long.valueOf(ReasonCounts.MAX_REASONS + 1), reasons.get(ReasonCounts.OTHER));
+	}
+
+	@Test
+	public void testBuildsLatencyHistogram() {
+		long[] latencies = {10, 50, 51, 400, 700, 900, 1200, 60_000};
+		for (int i = 0; i < latencies.length; i++) {
+			String id = String.valueOf(i);
+			metrics.onStreamStatus("NEW", id, ONION + ":80", null, null, 0);
+			metrics.onStreamStatus("SUCCEEDED", id, ONION + ":80", null, null, latencies[i]);
+		}
+		LatencyHistogram latency = metrics.getStats().get(new TargetClass(true, 80)).getLatency();
+		long[] histogram = latency.getCounts();
+		assertEquals(LatencyHistogram.getBucketBounds().length, histogram.length);
+		assertEquals(2, histogram[0]); // <= 50 ms
+		assertEquals(1, histogram[1]); // <= 100 ms
+		assertEquals(1, histogram[3]); // <= 500 ms
+		assertEquals(2, histogram[4]); // <= 1000 ms
+		assertEquals(1, histogram[5]); // <= 2500 ms
+		assertEquals(1, histogram[histogram.length - 2]); // <= 60 s
+		assertEquals(0, histogram[histogram.length - 1]);
+		assertEquals(500, latency.getPercentile(50));
+		assertEquals(60_000, latency.getPercentile(100));
+		assertEquals(50, latency.getPercentile(0));
+		assertEquals(8, latency.getCount());
+		assertEquals((10 + 50 + 51 + 400 + 700 + 900 + 1200 + 60_000) / 8, latency.getMean());
+	}
+
+	@Test
+	public void testLimitsTargetClasses() {
+		for (int port = 1; port <= MAX_TARGET_CLASSES * 2; port++) {
+			String id = String.valueOf(port);
+			metrics.onStreamStatus("NEW", id, "192.0.2.1:" + port, null, null, 0);
+			metrics.onStreamStatus("SUCCEEDED", id, "192.0.2.1:" + port, null, null, 10);
+			metrics.onStreamStatus("CLOSED", id, "192.0.2.1:" + port, null, null, 20);
+		}
+		Map<TargetClass, StreamStats> stats = metrics.getStats();
+		assertEquals(MAX_TARGET_CLASSES, stats.size());
+		assertTrue(stats.containsKey(TargetClass.OTHER));
+		assertEquals(MAX_TARGET_CLASSES + 1, stats.get(TargetClass.OTHER).getSucceededCount());
+	}
+
+	@Test
+	public void testLimitsTrackedStreams() {
+		for (int i = 0; i < MAX_TRACKED_STREAMS + 10; i++) {
+			metrics.onStreamStatus("NEW", String.valueOf(i), ONION + ":80", null, null, 0);
+		}
+		assertEquals(10, metrics.getUntrackedStreamCount());
+		// Events for untracked streams are ignored
+		metrics.onStreamStatus("SUCCEEDED", String.valueOf(MAX_TRACKED_STREAMS), ONION + ":80",
+				null, null, 5);
+		assertEquals(0, metrics.getOpenStreamCount());
+		// Streams are forgotten when Tor stops, but their counts are kept
+		metrics.onStreamStatus("SUCCEEDED", "0", ONION + ":80", null, null, 5);
+		metrics.clearStreams();
+		assertEquals(0, metrics.getOpenStreamCount());
+		metrics.onStreamStatus("CLOSED", "0", ONION + ":80", null, null, 10);
+		StreamStats stats = metrics.getStats().get(new TargetClass(true, 80));
+		assertEquals(1, stats.getSucceededCount());
+		assertEquals(0, stats.getClosedCount());
+		assertFalse(metrics.getStats().containsKey(TargetClass.OTHER));
+	}
+}
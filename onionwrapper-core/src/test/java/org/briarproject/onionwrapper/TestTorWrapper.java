@@ -0,0 +1,73 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * A Tor wrapper that runs a {@link FakeTorProcess} served by a
+ * {@link FakeTorControlServer} instead of a real Tor process.
+ */
+@NotNullByDefault
+public class TestTorWrapper extends AbstractTorWrapper {
+
+	private final FakeTorControlServer server;
+	private final List<Boolean> networkChanges = new CopyOnWriteArrayList<>();
+
+	public TestTorWrapper(Executor ioExecutor,
+			Executor eventExecutor,
+			File torDirectory,
+			FakeTorControlServer server,
+			int torSocksPort) {
+		this(ioExecutor, eventExecutor, torDirectory, server, torSocksPort, server.getPort());
+	}
+
+	public TestTorWrapper(Executor ioExecutor,
+			Executor eventExecutor,
+			File torDirectory,
+			FakeTorControlServer server,
+			int torSocksPort,
+			int torControlPort) {
+		super(ioExecutor, eventExecutor, "test", torDirectory, torSocksPort, torControlPort);
+		this.server = server;
+	}
+
+	/**
+	 * Returns the values passed to {@link #onNetworkEnabledChanged(boolean)},
+	 * in the order the calls were made.
+	 */
+	List<Boolean> getNetworkChanges() {
+		return networkChanges;
+	}
+
+	@Override
+	protected void onNetworkEnabledChanged(boolean enabled) {
+		networkChanges.add(enabled);
+	}
+
+	@Override
+	protected int getProcessId() {
+		return 0;
+	}
+
+	@Override
+	protected long getLastUpdateTime() {
+		return 0;
+	}
+
+	@Override
+	protected InputStream getResourceInputStream(String name, String extension) {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	protected Process startTorProcess(ProcessBuilder pb) throws IOException {
+		return server.startProcess(pb.command());
+	}
+}
@@ -0,0 +1,84 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceSpec;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonMap;
+import static org.briarproject.onionwrapper.TorUtils.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TorSnapshotTest extends BaseTest {
+
+	@Test
+	public void testWritesAndReadsSnapshot() throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("NumEntryGuards", "2");
+		options.put("ExitNodes", "{de} {nl}");
+		List<HiddenServiceSpec> services = asList(
+				new HiddenServiceSpec(8080, 80, "ED25519-V3:AAAA"),
+				new HiddenServiceSpec(8081, 443, "ED25519-V3:BBBB"));
+		TorSnapshot snapshot = new TorSnapshot(true,
+				asList("Bridge obfs4 192.0.2.1:443 cert=abc iat-mode=0", "Bridge 192.0.2.2:80"),
+				true, false, options, services);
+
+		TorSnapshot read = TorSnapshot.fromByteArray(snapshot.toByteArray());
+		assertEquals(Boolean.TRUE, read.isNetworkEnabled());
+		assertEquals(snapshot.getBridges(), read.getBridges());
+		assertTrue(read.isConnectionPaddingEnabled());
+		assertFalse(read.isIpv6Enabled());
+		assertEquals(options, read.getOptions());
+		assertEquals(2, read.getHiddenServices().size());
+		for (int i = 0; i < 2; i++) {
+			HiddenServiceSpec expected = services.get(i);
+			HiddenServiceSpec actual = read.getHiddenServices().get(i);
+			assertEquals(expected.localPort, actual.localPort);
+			assertEquals(expected.remotePort, actual.remotePort);
+			assertEquals(expected.privateKey, actual.privateKey);
+		}
+	}
+
+	@Test
+	public void testReadsEmptySnapshot() throws Exception {
+		TorSnapshot read = TorSnapshot.fromByteArray(TorSnapshot.EMPTY.toByteArray());
+		assertNull(read.isNetworkEnabled());
+		assertTrue(read.getBridges().isEmpty());
+		assertTrue(read.getOptions().isEmpty());
+		assertTrue(read.getHiddenServices().isEmpty());
+	}
+
+	@Test
+	public void testIgnoresUnknownLines() throws Exception {
+		TorSnapshot snapshot = new TorSnapshot(false, emptyList(), false, true,
+				singletonMap("NumEntryGuards", "1"), emptyList());
+		String s = new String(snapshot.toByteArray(), UTF_8) + "something-new 1\n";
+		TorSnapshot read = TorSnapshot.fromByteArray(s.getBytes(UTF_8));
+		assertEquals(Boolean.FALSE, read.isNetworkEnabled());
+		assertTrue(read.isIpv6Enabled());
+		assertEquals(singletonMap("NumEntryGuards", "1"), read.getOptions());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsUnknownFormat() throws Exception {
+		TorSnapshot.fromByteArray("tor-snapshot 2\n".getBytes(UTF_8));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsMalformedService() throws Exception {
+		TorSnapshot.fromByteArray("tor-snapshot 1\nservice 80x 80 key\n".getBytes(UTF_8));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsMalformedFlag() throws Exception {
+		TorSnapshot.fromByteArray("tor-snapshot 1\npadding yes\n".getBytes(UTF_8));
+	}
+}
@@ -0,0 +1,111 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorUtils.copyAndClose;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TorUtilsTest extends BaseTest {
+
+	private final File testDir = getTestDirectory();
+	// Larger than the copy buffer, so the copy takes several iterations
+	private final byte[] data = new byte[200_000];
+
+	@Before
+	public void setUp() {
+		assertTrue(testDir.mkdirs());
+		new Random().nextBytes(data);
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testCopiesStreamToStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copyAndClose(new ByteArrayInputStream(data), out);
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void testCopiesStreamToFile() throws Exception {
+		File dest = new File(testDir, "dest");
+		copyAndClose(new ByteArrayInputStream(data), new FileOutputStream(dest));
+		assertArrayEquals(data, readFile(dest));
+	}
+
+	@Test
+	public void testCopiesFileToFile() throws Exception {
+		File src = new File(testDir, "src"), dest = new File(testDir, "dest");
+		copyAndClose(new ByteArrayInputStream(data), new FileOutputStream(src));
+		copyAndClose(new FileInputStream(src), new FileOutputStream(dest));
+		assertArrayEquals(data, readFile(dest));
+	}
+
+	@Test
+	public void testClosesStreamsAndRethrowsException() throws Exception {
+		CloseTrackingInputStream in = new CloseTrackingInputStream();
+		CloseTrackingOutputStream out = new CloseTrackingOutputStream();
+		try {
+			copyAndClose(in, out);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		assertTrue(in.closed);
+		assertTrue(out.closed);
+	}
+
+	private byte[] readFile(File f) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copyAndClose(new FileInputStream(f), out);
+		return out.toByteArray();
+	}
+
+	private static class CloseTrackingInputStream extends InputStream {
+
+		private boolean closed = false;
+
+		@Override
+		public int read() throws IOException {
+			throw new IOException();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static class CloseTrackingOutputStream extends OutputStream {
+
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package org.briarproject.onionwrapper;
+
+import org.briarproject.onionwrapper.TorWrapper.HiddenServiceProperties;
+import org.briarproject.onionwrapper.TorWrapper.Observer;
+import org.briarproject.onionwrapper.TorWrapper.TorState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorWrapper.AUTO_PORT;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTING;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.DISABLED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.NOT_STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
+import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TorWrapperPoolTest extends BaseTest {
+
+	private static final long TIMEOUT = 10_000;
+
+	private final ExecutorService executor = newCachedThreadPool();
+	private final File torDir = getTestDirectory();
+	private final BlockingQueue<TorState> states = new LinkedBlockingQueue<>();
+
+	private final BlockingQueue<BatchResult<HiddenServiceProperties>> restarts =
+			new LinkedBlockingQueue<>();
+
+	private final List<FakeTorControlServer> servers = new ArrayList<>();
+	private final List<TestTorWrapper> members = new ArrayList<>();
+	private TorWrapperPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			FakeTorControlServer server = new FakeTorControlServer();
+			servers.add(server);
+			members.add(new TestTorWrapper(executor, Runnable::run,
+					new File(torDir, String.valueOf(i)), server, AUTO_PORT));
+		}
+		pool = new TorWrapperPool(executor, Runnable::run, members);
+		pool.setObserver(new StateObserver());
+	}
+
+	@After
+	public void tearDown() {
+		for (FakeTorControlServer server : servers) server.close();
+		deleteTestDirectory(torDir);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testStartsAndStopsAllMembers() throws Exception {
+		assertEquals(NOT_STARTED, pool.getTorState());
+		pool.start();
+		assertTrue(pool.isTorRunning());
+		assertEquals(STARTED, pool.getTorState());
+		waitForState(STARTED);
+		for (TorWrapper member : pool.getMembers()) assertTrue(member.isTorRunning());
+		pool.stop();
+		assertFalse(pool.isTorRunning());
+		assertEquals(STOPPED, pool.getTorState());
+	}
+
+	@Test
+	public void testStopsMembersIfOneFailsToStart() throws Exception {
+		servers.get(1).setCookieDelay(60_000);
+		try {
+			pool.start();
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+		for (TorWrapper member : pool.getMembers()) assertFalse(member.isTorRunning());
+	}
+
+	@Test
+	public void testSpreadsHiddenServicesAcrossMembers() throws Exception {
+		pool.start();
+		try {
+			List<HiddenServiceProperties> services = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				services.add(pool.publishHiddenService(8080 + i, 80, null));
+			}
+			assertArrayEquals(new int[] {2, 2}, pool.getHiddenServiceCounts());
+			assertEquals(2, servers.get(0).getOnions().size());
+			assertEquals(2, servers.get(1).getOnions().size());
+			// Each service is removed from the member that published it
+			for (HiddenServiceProperties hs : services.subList(0, 2)) {
+				TorWrapper owner = pool.getOwner(hs.onion);
+				int index = pool.getMembers().indexOf(owner);
+				assertTrue(servers.get(index).getOnions().contains(hs.onion));
+				pool.removeHiddenService(hs.onion);
+				assertFalse(servers.get(index).getOnions().contains(hs.onion));
+				assertNull(pool.getOwner(hs.onion));
+			}
+			// The next service goes to the least loaded member
+			int[] counts = pool.getHiddenServiceCounts();
+			int leastLoaded = counts[0] <= counts[1] ? 0 : 1;
+			HiddenServiceProperties hs = pool.publishHiddenService(9090, 80, null);
+			assertSame(pool.getMembers().get(leastLoaded), pool.getOwner(hs.onion));
+		} finally {
+			pool.stop();
+		}
+		// The services are forgotten when the members stop
+		assertArrayEquals(new int[] {0, 0}, pool.getHiddenServiceCounts());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsUnknownHiddenService() throws Exception {
+		pool.removeHiddenService("abcdefghijklmnopqrstuvwxyz234567abcdefghijklmnopqrstuvwx");
+	}
+
+	@Test(expected = IOException.class)
+	public void testCannotPublishWhenNotRunning() throws Exception {
+		pool.publishHiddenService(8080, 80, null);
+	}
+
+	@Test
+	public void testAppliesConfigurationToAllMembersAndAggregatesState() throws Exception {
+		pool.start();
+		try {
+			waitForState(STARTED);
+			pool.enableConnectionPadding(true);
+			for (FakeTorControlServer server : servers) {
+				assertEquals(asList("1"), server.getConf("ConnectionPadding"));
+			}
+			pool.enableNetwork(true);
+			waitForState(CONNECTING);
+			// The pool isn't connected until every member is connected
+			servers.get(0).bootstrap();
+			TorWrapper first = pool.getMembers().get(0);
+			long start = System.currentTimeMillis();
+			while (first.getTorState() != CONNECTED) {
+				if (System.currentTimeMillis() - start > TIMEOUT) fail();
+				//noinspection BusyWait
+				Thread.sleep(10);
+			}
+			assertEquals(CONNECTING, pool.getTorState());
+			servers.get(1).bootstrap();
+			waitForState(CONNECTED);
+			pool.enableNetwork(false);
+			waitForState(DISABLED);
+		} finally {
+			pool.stop();
+		}
+	}
+
+	@Test
+	public void testKeepsHiddenServicesOfRestartedMember() throws Exception {
+		for (TestTorWrapper member : members) {
+			member.setSupervised(true);
+			member.setRestartDelay(10);
+		}
+		pool.start();
+		try {
+			HiddenServiceProperties a = pool.publishHiddenService(8080, 80, null);
+			HiddenServiceProperties b = pool.publishHiddenService(8081, 80, null);
+			int index = pool.getMembers().indexOf(pool.getOwner(a.onion));
+			assertNotSame(pool.getOwner(a.onion), pool.getOwner(b.onion));
+			servers.get(index).crash();
+			BatchResult<HiddenServiceProperties> restored =
+					restarts.poll(TIMEOUT, MILLISECONDS);
+			assertNotNull(restored);
+			assertEquals(1, restored.getSuccessCount());
+			// The restored service is still owned by the restarted member
+			assertSame(pool.getMembers().get(index), pool.getOwner(a.onion));
+			assertArrayEquals(new int[] {1, 1}, pool.getHiddenServiceCounts());
+			assertTrue(servers.get(index).getOnions().contains(a.onion));
+			pool.removeHiddenService(a.onion);
+			assertFalse(servers.get(index).getOnions().contains(a.onion));
+			assertArrayEquals(index == 0 ? new int[] {0, 1} : new int[] {1, 0},
+					pool.getHiddenServiceCounts());
+		} finally {
+			pool.stop();
+		}
+	}
+
+	private void waitForState(TorState expected) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			long remaining = end - System.currentTimeMillis();
+			TorState s = states.poll(Math.max(0, remaining), MILLISECONDS);
+			if (s == null) fail("Timed out waiting for " + expected);
+			if (s == expected) return;
+		}
+	}
+
+	private class StateObserver implements Observer {
+
+		@Override
+		public void onState(TorState s) {
+			states.add(s);
+		}
+
+		@Override
+		public void onBootstrapPercentage(int percentage) {
+		}
+
+		@Override
+		public void onHsDescriptorUpload(String onion) {
+		}
+
+		@Override
+		public void onClockSkewDetected(long skewSeconds) {
+		}
+
+		@Override
+		public void onRestarted(BatchResult<HiddenServiceProperties> restored) {
+			restarts.add(restored);
+		}
+	}
+}
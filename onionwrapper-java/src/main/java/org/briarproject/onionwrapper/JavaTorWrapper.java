@@ -3,13 +3,25 @@ package org.briarproject.onionwrapper;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.CodeSource;
 import java.util.concurrent.Executor;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
 import static org.briarproject.nullsafety.NullSafety.requireNonNull;
+import static org.briarproject.onionwrapper.TorUtils.tryToClose;
 
 @NotNullByDefault
 abstract class JavaTorWrapper extends AbstractTorWrapper {
@@ -41,4 +53,49 @@ abstract class JavaTorWrapper extends AbstractTorWrapper {
 		ClassLoader cl = getClass().getClassLoader();
 		return requireNonNull(cl.getResourceAsStream(name + extension));
 	}
+
+	@Override
+	protected void waitForAuthCookie(File cookieFile, long timeoutMs)
+			throws IOException, InterruptedException {
+		WatchService watcher;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+		} catch (UnsupportedOperationException | IOException e) {
+			LOG.info("File watching is not supported, polling for auth cookie");
+			pollForAuthCookie(cookieFile, timeoutMs);
+			return;
+		}
+		try {
+			// Tor creates its data directory if it doesn't already exist, so
+			// watch the Tor directory until the data directory appears
+			File dataDirectory = requireNonNull(cookieFile.getParentFile());
+			torDirectory.toPath().register(watcher, ENTRY_CREATE);
+			boolean watchingDataDirectory = false;
+			long end = System.currentTimeMillis() + timeoutMs;
+			while (true) {
+				if (!watchingDataDirectory && dataDirectory.isDirectory()) {
+					dataDirectory.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+					watchingDataDirectory = true;
+				}
+				// Check the file after registering, so no changes are missed
+				if (isAuthCookieWritten(cookieFile)) return;
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) throw new IOException("Auth cookie not created");
+				WatchKey key = watcher.poll(remaining, MILLISECONDS);
+				if (key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} finally {
+			tryToClose(watcher, LOG, WARNING);
+		}
+	}
+
+	@Override
+	protected void replaceFile(File src, File dest) throws IOException {
+		// Unlike File#renameTo(), this replaces an existing file atomically
+		// on Windows as well as Unix
+		Files.move(src.toPath(), dest.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+	}
 }
@@ -4,7 +4,7 @@ import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import static java.util.logging.Level.INFO;
@@ -26,8 +26,10 @@ public class MacTorWrapper extends UnixTorWrapper {
 	 * 		transport binaries.
 	 * @param torDirectory The directory where the Tor process should keep its
 	 * 		state.
-	 * @param torSocksPort The port number to use for Tor's SOCKS port.
-	 * @param torControlPort The port number to use for Tor's control port.
+	 * @param torSocksPort The port number to use for Tor's SOCKS port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
+	 * @param torControlPort The port number to use for Tor's control port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
 	 */
 	public MacTorWrapper(Executor ioExecutor,
 			Executor eventExecutor,
@@ -39,30 +41,29 @@ public class MacTorWrapper extends UnixTorWrapper {
 	}
 
 	@Override
-	protected void installTorExecutable() throws IOException {
-		super.installTorExecutable();
-		installLibEvent();
+	protected List<InstallTask> getInstallTasks() {
+		List<InstallTask> tasks = super.getInstallTasks();
+		tasks.add(this::installLibEvent);
+		return tasks;
 	}
 
 	private void installLibEvent() throws IOException {
 		if (LOG.isLoggable(INFO)) {
 			LOG.info("Installing libevent binary for " + architecture);
 		}
-		File libEventFile = getLibEventFile();
-		extract(getExecutableInputStream("libevent-" + LIB_EVENT_VERSION + ".dylib"),
-				libEventFile);
+		String name = "libevent-" + LIB_EVENT_VERSION + ".dylib";
+		installAsset(() -> getExecutableInputStream(name), getLibEventFile(), false);
 	}
 
 	private File getLibEventFile() {
-		return new File(torDirectory, "libevent-" + LIB_EVENT_VERSION + ".dylib");
+		return new File(getAssetDirectory(), "libevent-" + LIB_EVENT_VERSION + ".dylib");
 	}
 
 	@Override
-	protected void extract(InputStream in, File dest) throws IOException {
-		// Important: delete file to prevent problems on macOS in case the file signature changed
-		// for binaries.
-		//noinspection ResultOfMethodCallIgnored
-		dest.delete();
-		super.extract(in, dest);
+	protected void waitForAuthCookie(File cookieFile, long timeoutMs)
+			throws IOException, InterruptedException {
+		// The JDK has no native file watching on macOS, and its fallback only
+		// checks for changes every few seconds, which is slower than polling
+		pollForAuthCookie(cookieFile, timeoutMs);
 	}
 }
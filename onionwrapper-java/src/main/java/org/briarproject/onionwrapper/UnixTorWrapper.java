@@ -26,8 +26,10 @@ public class UnixTorWrapper extends JavaTorWrapper {
 	 * 		transport binaries.
 	 * @param torDirectory The directory where the Tor process should keep its
 	 * 		state.
-	 * @param torSocksPort The port number to use for Tor's SOCKS port.
-	 * @param torControlPort The port number to use for Tor's control port.
+	 * @param torSocksPort The port number to use for Tor's SOCKS port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
+	 * @param torControlPort The port number to use for Tor's control port, or
+	 * 		{@link #AUTO_PORT} to let Tor choose a port.
 	 */
 	public UnixTorWrapper(Executor ioExecutor,
 			Executor eventExecutor,
@@ -15,6 +15,7 @@ import static org.briarproject.nullsafety.NullSafety.requireNonNull;
 import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
 import static org.briarproject.onionwrapper.TestUtils.getArchitectureForTorBinary;
 import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.briarproject.onionwrapper.TorWrapper.AUTO_PORT;
 import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
 import static org.briarproject.onionwrapper.TorWrapper.TorState.STARTED;
 import static org.briarproject.onionwrapper.TorWrapper.TorState.STOPPED;
@@ -30,8 +31,6 @@ public class BootstrapTest extends BaseTest {
 
 	private final static Logger LOG = getLogger(BootstrapTest.class.getName());
 
-	private static final int SOCKS_PORT = 59060;
-	private static final int CONTROL_PORT = 59061;
 	private final static long TIMEOUT = MINUTES.toMillis(5);
 
 	private final ExecutorService executor = newCachedThreadPool();
@@ -55,13 +54,13 @@ public class BootstrapTest extends BaseTest {
 		TorWrapper tor;
 		if (isLinux()) {
 			tor = new UnixTorWrapper(executor, executor, architecture, torDir,
-					CONTROL_PORT, SOCKS_PORT);
+					AUTO_PORT, AUTO_PORT);
 		} else if (isMac()) {
 			tor = new MacTorWrapper(executor, executor, architecture, torDir,
-					CONTROL_PORT, SOCKS_PORT);
+					AUTO_PORT, AUTO_PORT);
 		} else if (isWindows()) {
 			tor = new WindowsTorWrapper(executor, executor, architecture, torDir,
-					CONTROL_PORT, SOCKS_PORT);
+					AUTO_PORT, AUTO_PORT);
 		} else {
 			throw new AssertionError("Running on unsupported OS");
 		}
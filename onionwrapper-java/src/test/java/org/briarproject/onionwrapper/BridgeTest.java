@@ -39,6 +39,7 @@ import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
 import static org.briarproject.onionwrapper.TestUtils.getArchitectureForTorBinary;
 import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
 import static org.briarproject.onionwrapper.TestUtils.isOptionalTestEnabled;
+import static org.briarproject.onionwrapper.TorWrapper.AUTO_PORT;
 import static org.briarproject.onionwrapper.TorWrapper.TorState.CONNECTED;
 import static org.briarproject.onionwrapper.util.OsUtils.isLinux;
 import static org.junit.Assert.fail;
@@ -51,8 +52,6 @@ public class BridgeTest extends BaseTest {
 	private final static Logger LOG = getLogger(BridgeTest.class.getName());
 
 	private static final List<BridgeType> ESSENTIAL_BRIDGE_TYPES = asList(MEEK, SNOWFLAKE);
-	private static final int SOCKS_PORT = 59060;
-	private static final int CONTROL_PORT = 59061;
 	private final static long TIMEOUT = MINUTES.toMillis(2);
 	private final static long MEEK_TIMEOUT = MINUTES.toMillis(10);
 	private final static int UNREACHABLE_BRIDGES_ALLOWED = 6;
@@ -133,7 +132,7 @@ public class BridgeTest extends BaseTest {
 
 		String architecture = requireNonNull(getArchitectureForTorBinary());
 		TorWrapper tor = new UnixTorWrapper(executor, executor, architecture, torDir,
-				CONTROL_PORT, SOCKS_PORT);
+				AUTO_PORT, AUTO_PORT);
 
 		LOG.warning("Testing " + params.bridge);
 		try {
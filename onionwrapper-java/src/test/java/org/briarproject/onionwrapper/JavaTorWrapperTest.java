@@ -0,0 +1,68 @@
+package org.briarproject.onionwrapper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.briarproject.onionwrapper.TestUtils.deleteTestDirectory;
+import static org.briarproject.onionwrapper.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JavaTorWrapperTest extends BaseTest {
+
+	private final ExecutorService executor = newCachedThreadPool();
+	private final File torDir = getTestDirectory();
+	private final File dataDir = new File(torDir, ".tor");
+	private final File cookieFile = new File(dataDir, "control_auth_cookie");
+	private final JavaTorWrapper tor =
+			new UnixTorWrapper(executor, executor, "test", torDir, 59060, 59061);
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(torDir);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testReturnsWhenCookieIsAlreadyWritten() throws Exception {
+		assertTrue(dataDir.mkdirs());
+		writeCookie();
+		tor.waitForAuthCookie(cookieFile, 1000);
+	}
+
+	@Test
+	public void testWaitsForDataDirectoryAndCookie() throws Exception {
+		assertTrue(torDir.mkdirs());
+		executor.execute(() -> {
+			try {
+				Thread.sleep(100);
+				assertTrue(dataDir.mkdirs());
+				Thread.sleep(100);
+				writeCookie();
+			} catch (InterruptedException | IOException e) {
+				fail();
+			}
+		});
+		tor.waitForAuthCookie(cookieFile, 5000);
+		assertTrue(AbstractTorWrapper.isAuthCookieWritten(cookieFile));
+	}
+
+	@Test(expected = IOException.class)
+	public void testThrowsExceptionIfCookieIsNotWritten() throws Exception {
+		assertTrue(dataDir.mkdirs());
+		tor.waitForAuthCookie(cookieFile, 100);
+	}
+
+	private void writeCookie() throws IOException {
+		OutputStream out = new FileOutputStream(cookieFile);
+		out.write(new byte[32]);
+		out.close();
+	}
+}